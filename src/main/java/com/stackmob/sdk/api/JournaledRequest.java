@@ -0,0 +1,58 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.net.HttpVerb;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A request read back from a {@link StackMobRequestJournal}, sent exactly as it was written
+ */
+class JournaledRequest extends StackMobRequest {
+    private final String body;
+    private final String path;
+
+    JournaledRequest(ExecutorService executor,
+                     StackMobSession session,
+                     HttpVerb verb,
+                     List<Map.Entry<String, String>> headers,
+                     String body,
+                     String path,
+                     StackMobRawCallback cb,
+                     StackMobRedirectedCallback redirCb) {
+        super(executor, session, verb, headers, StackMobRequest.EmptyParams, path, cb, redirCb);
+        this.body = body;
+        this.path = path;
+    }
+
+    JournaledRequest setSecure(boolean secure) {
+        this.isSecure = secure;
+        return this;
+    }
+
+    @Override protected String getPath() {
+        return path;
+    }
+
+    @Override protected String getRequestBody() {
+        return body;
+    }
+}
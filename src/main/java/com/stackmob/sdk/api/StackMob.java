@@ -16,12 +16,19 @@
 
 package com.stackmob.sdk.api;
 
+import com.stackmob.sdk.callback.StackMobBulkCallback;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobCountCallback;
 import com.stackmob.sdk.callback.StackMobRawCallback;
 import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
 import com.stackmob.sdk.net.HttpVerbWithPayload;
 import com.stackmob.sdk.net.HttpVerbWithoutPayload;
 import com.stackmob.sdk.push.StackMobPushToken;
+import com.stackmob.sdk.util.BulkProgress;
+import com.stackmob.sdk.util.ListHelpers;
 import com.stackmob.sdk.util.Pair;
+import com.stackmob.sdk.util.ThrottledRequestQueue;
 
 import java.io.IOException;
 import java.net.URI;
@@ -39,6 +46,9 @@ public class StackMob {
 
     private final Object urlFormatLock = new Object();
 
+    //room in a bulk request URL for the scheme, host and separators
+    private static final int BULK_URL_OVERHEAD = 200;
+
     protected static class RegistrationIDAndUser {
         public String userId;
         public Map<String, String> token = new HashMap<String, String>();
@@ -663,6 +673,37 @@ public class StackMob {
         return this.get("/"+query.getObjectName(), query.getArguments(), query.getHeaders(), callback);
     }
 
+    /**
+     * count the objects a query matches without downloading them. asks for a single object with only its id, and
+     * reads the total from the Content-Range header
+     * @param query the query to count. its range and select are ignored
+     * @param callback callback to be called with the count. may execute in a separate thread
+     * @return a StackMobRequestSendResult representing what happened when the SDK tried to do the request. contains no information about the response - that will be passed to the callback when the response comes back
+     */
+    public StackMobRequestSendResult count(StackMobQuery query,
+                    StackMobCountCallback callback) {
+        StackMobQuery countQuery = new StackMobQuery(query.getObjectName()).add(query).isInRange(0, 0).select(Arrays.asList(query.getObjectName() + "_id"));
+        return get(countQuery, callback);
+    }
+
+    /**
+     * do a get request on the StackMob platform with a query that's already been encoded
+     * @param query the prepared query to run
+     * @param callback callback to be called when the server returns. may execute in a separate thread
+     * @return a StackMobRequestSendResult representing what happened when the SDK tried to do the request. contains no information about the response - that will be passed to the callback when the response comes back
+     */
+    public StackMobRequestSendResult get(StackMobPreparedQuery query,
+                    StackMobRawCallback callback) {
+        return new StackMobRequestWithoutPayload(this.executor,
+                                                 this.session,
+                                                 HttpVerbWithoutPayload.GET,
+                                                 query.getHeaders(),
+                                                 StackMobRequest.EmptyParams,
+                                                 "/" + query.getObjectName(),
+                                                 callback,
+                                                 this.redirectedCallback).setUrlFormat(this.apiUrlFormat).setQueryString(query.getQueryString()).sendRequest();
+    }
+
     /**
      * do a get request on the StackMob platform
      * @param query the query to run
@@ -990,6 +1031,112 @@ public class StackMob {
                                                  this.redirectedCallback).setUrlFormat(this.apiUrlFormat).sendRequest();
     }
     
+    /**
+     * same as {@link #deleteIdsFrom(String, String, String, java.util.List, boolean, com.stackmob.sdk.callback.StackMobRawCallback)},
+     * except for any number of ids. the ids are split into chunks that keep each request URL under
+     * {@link StackMobRequest#MAX_URL_LENGTH}, and one delete is sent per chunk with at most maxConcurrentRequests
+     * of them in flight at once
+     * @param path the path to get
+     * @param primaryId id of the object with the relation
+     * @param field name of the relation or array field to delete from
+     * @param idsToDelete list of ids to atomically remove from field.
+     *                    ids should be same type as the primary id of the related type (most likely String or Integer)
+     * @param cascadeDeletes true if related objects specified in idsToDelete should also be deleted
+     * @param maxConcurrentRequests the most deletes to have in flight at once
+     * @param callback called as each chunk finishes and once when they're all done. may execute in a separate thread
+     */
+    public <T> void deleteIdsFrom(final String path,
+                                  final String primaryId,
+                                  final String field,
+                                  List<T> idsToDelete,
+                                  final boolean cascadeDeletes,
+                                  int maxConcurrentRequests,
+                                  StackMobBulkCallback callback) {
+        //a repeated id would be reported twice and throw the count off
+        Set<String> unique = new LinkedHashSet<String>();
+        for(T id : idsToDelete) {
+            unique.add(id.toString());
+        }
+        List<String> ids = new ArrayList<String>(unique);
+        final BulkProgress progress = new BulkProgress(ids.size(), callback);
+        int maxLength = StackMobRequest.MAX_URL_LENGTH - BULK_URL_OVERHEAD - path.length() - primaryId.length() - field.length();
+        ThrottledRequestQueue queue = new ThrottledRequestQueue(maxConcurrentRequests);
+        for(final List<String> chunk : ListHelpers.chunkByEncodedLength(ids, maxLength)) {
+            queue.add(new ThrottledRequestQueue.Request() {
+                @Override
+                public void send(Runnable done) {
+                    StackMobRequestSendResult result = deleteIdsFrom(path, primaryId, field, chunk, cascadeDeletes, new BulkChunkCallback(chunk, progress, done));
+                    failIfNotSent(result, chunk, progress, done);
+                }
+            });
+        }
+        queue.start(progress.finisher());
+    }
+
+    /**
+     * delete many objects from the stackmob platform, one request per object with at most maxConcurrentRequests
+     * of them in flight at once
+     * @param path the path to delete from
+     * @param ids the ids of the objects to delete
+     * @param maxConcurrentRequests the most deletes to have in flight at once
+     * @param callback called as each delete finishes and once when they're all done. may execute in a separate thread
+     */
+    public void deleteAll(final String path,
+                          List<String> ids,
+                          int maxConcurrentRequests,
+                          StackMobBulkCallback callback) {
+        Set<String> unique = new LinkedHashSet<String>(ids);
+        final BulkProgress progress = new BulkProgress(unique.size(), callback);
+        ThrottledRequestQueue queue = new ThrottledRequestQueue(maxConcurrentRequests);
+        for(final String id : unique) {
+            queue.add(new ThrottledRequestQueue.Request() {
+                @Override
+                public void send(Runnable done) {
+                    List<String> chunk = Arrays.asList(id);
+                    StackMobRequestSendResult result = delete(path, id, new BulkChunkCallback(chunk, progress, done));
+                    failIfNotSent(result, chunk, progress, done);
+                }
+            });
+        }
+        queue.start(progress.finisher());
+    }
+
+    private static void failIfNotSent(StackMobRequestSendResult result, List<String> ids, BulkProgress progress, Runnable done) {
+        if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+            progress.failed(ids, new StackMobException(result.getFailureReason().getMessage()));
+            progress.completed(ids.size());
+            done.run();
+        }
+    }
+
+    private static class BulkChunkCallback extends StackMobCallback {
+        private final List<String> ids;
+        private final BulkProgress progress;
+        private final Runnable done;
+
+        BulkChunkCallback(List<String> ids, BulkProgress progress, Runnable done) {
+            this.ids = ids;
+            this.progress = progress;
+            this.done = done;
+        }
+
+        @Override
+        public void success(String responseBody) {
+            for(String id : ids) {
+                progress.succeeded(id);
+            }
+            progress.completed(ids.size());
+            done.run();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            progress.failed(ids, e);
+            progress.completed(ids.size());
+            done.run();
+        }
+    }
+
     //Forgot/reset password
 
     /**
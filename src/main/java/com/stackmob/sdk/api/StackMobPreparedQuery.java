@@ -0,0 +1,156 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.util.Pair;
+
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+
+/**
+ * A frozen {@link StackMobQuery}. The query string and headers are encoded once, when the query is prepared,
+ * so running it again only costs the request itself. Example usage:
+ * <code>
+ *     StackMobPreparedQuery byAge = new StackMobQuery("user").fieldIsGreaterThan("age", "0").isInRange(0, 9).prepare("age[gt]");
+ *     StackMob.getStackMob().get(byAge.bind("21"), callback);
+ *     StackMob.getStackMob().get(byAge.bind("30").inRange(10, 19), callback);
+ * </code>
+ *
+ * Prepared queries are immutable, so they can be shared between threads. {@link #bind} and {@link #inRange} return
+ * new prepared queries that reuse everything that didn't change.
+ */
+public final class StackMobPreparedQuery {
+
+    private final String objectName;
+    //the encoded arguments that never change, "" if there are none
+    private final String fixedQueryString;
+    //the encoded "key=" for each parameter, in binding order
+    private final String[] parameterPrefixes;
+    private final String[] boundValues;
+    private final String queryString;
+    private final List<Map.Entry<String, String>> headers;
+
+    StackMobPreparedQuery(StackMobQuery query, String... parameters) {
+        this.objectName = query.getObjectName();
+        Map<String, String> fixed = new HashMap<String, String>(query.getArguments());
+        this.parameterPrefixes = new String[parameters.length];
+        this.boundValues = new String[parameters.length];
+        for(int i = 0; i < parameters.length; i++) {
+            if(!fixed.containsKey(parameters[i])) {
+                throw new IllegalArgumentException(String.format("the query has no argument %s to make a parameter", parameters[i]));
+            }
+            boundValues[i] = fixed.remove(parameters[i]);
+            parameterPrefixes[i] = encode(parameters[i]) + "=";
+        }
+        this.fixedQueryString = StackMobRequest.formatQueryString(fixed);
+        List<Map.Entry<String, String>> headerList = new ArrayList<Map.Entry<String, String>>();
+        for(Map.Entry<String, String> header : query.getHeaders().entrySet()) {
+            headerList.add(new Pair<String, String>(header.getKey(), header.getValue()));
+        }
+        this.headers = Collections.unmodifiableList(headerList);
+        this.queryString = buildQueryString(fixedQueryString, parameterPrefixes, encodeAll(boundValues));
+    }
+
+    private StackMobPreparedQuery(StackMobPreparedQuery template, String[] boundValues, String queryString, List<Map.Entry<String, String>> headers) {
+        this.objectName = template.objectName;
+        this.fixedQueryString = template.fixedQueryString;
+        this.parameterPrefixes = template.parameterPrefixes;
+        this.boundValues = boundValues;
+        this.queryString = queryString;
+        this.headers = headers;
+    }
+
+    public String getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * @return the encoded query string that's sent with this query, without the leading "?"
+     */
+    public String getQueryString() {
+        return queryString;
+    }
+
+    /**
+     * @return the headers sent with this query. the list can't be modified
+     */
+    public List<Map.Entry<String, String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * give the parameters new values
+     * @param values one value for each parameter, in the order the parameters were given to {@link StackMobQuery#prepare}
+     * @return a prepared query with the new values
+     */
+    public StackMobPreparedQuery bind(String... values) {
+        if(values.length != parameterPrefixes.length) {
+            throw new IllegalArgumentException(String.format("expected %d values but got %d", parameterPrefixes.length, values.length));
+        }
+        String[] copy = values.clone();
+        return new StackMobPreparedQuery(this, copy, buildQueryString(fixedQueryString, parameterPrefixes, encodeAll(copy)), headers);
+    }
+
+    /**
+     * same as {@link StackMobQuery#isInRange(Integer, Integer)}, for paging through the results of a prepared query
+     * @param start the starting object number (inclusive)
+     * @param end the ending object number (inclusive)
+     * @return a prepared query for that range
+     */
+    public StackMobPreparedQuery inRange(int start, int end) {
+        List<Map.Entry<String, String>> newHeaders = new ArrayList<Map.Entry<String, String>>(headers.size() + 1);
+        for(Map.Entry<String, String> header : headers) {
+            if(!StackMobQuery.RangeHeader.equals(header.getKey())) newHeaders.add(header);
+        }
+        newHeaders.add(new Pair<String, String>(StackMobQuery.RangeHeader, "objects=" + start + "-" + end));
+        return new StackMobPreparedQuery(this, boundValues, queryString, Collections.unmodifiableList(newHeaders));
+    }
+
+    private static String buildQueryString(String fixed, String[] prefixes, String[] encodedValues) {
+        if(prefixes.length == 0) {
+            return fixed;
+        }
+        int length = fixed.length();
+        for(int i = 0; i < prefixes.length; i++) {
+            length += prefixes[i].length() + encodedValues[i].length() + 1;
+        }
+        StringBuilder builder = new StringBuilder(length);
+        builder.append(fixed);
+        for(int i = 0; i < prefixes.length; i++) {
+            if(builder.length() > 0) builder.append("&");
+            builder.append(prefixes[i]).append(encodedValues[i]);
+        }
+        return builder.toString();
+    }
+
+    private static String[] encodeAll(String[] values) {
+        String[] encoded = new String[values.length];
+        for(int i = 0; i < values.length; i++) {
+            encoded[i] = encode(values[i]);
+        }
+        return encoded;
+    }
+
+    private static String encode(String value) {
+        try {
+            return StackMobRequest.percentEncode(value);
+        }
+        catch(UnsupportedEncodingException e) {
+            //UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -52,10 +52,10 @@ public class StackMobQuery {
     private Map<String, String> headers = new HashMap<String, String>();
     private Map<String, String> args = new HashMap<String, String>();
 
-    private static final String RangeHeader = "Range";
-    private static final String ExpandHeader = "X-StackMob-Expand";
-    private static final String OrderByHeader = "X-StackMob-OrderBy";
-    private static final String SelectHeader = "X-StackMob-Select";
+    public static final String RangeHeader = "Range";
+    public static final String ExpandHeader = "X-StackMob-Expand";
+    public static final String OrderByHeader = "X-StackMob-OrderBy";
+    public static final String SelectHeader = "X-StackMob-Select";
 
     public static enum Ordering {
         DESCENDING("desc"),
@@ -129,7 +129,7 @@ public class StackMobQuery {
      * @return the new query that resulted from adding this operation
      */
     public StackMobQuery fieldIsNear(String field, GeoPoint point) {
-        return putInMap(field, Operator.NEAR, join(point.asList()));
+        return putInMap(field, Operator.NEAR, point.appendTo(new StringBuilder()).toString());
     }
 
     /**
@@ -141,9 +141,9 @@ public class StackMobQuery {
      * @return the new query that resulted from adding this operation
      */
     public StackMobQuery fieldIsNearWithinMi(String field, GeoPoint point, Double maxDistanceMi) {
-        List<String> arguments = point.asList();
-        arguments.add(GeoPoint.miToRadians(maxDistanceMi).toString()); //convert to radians
-        return putInMap(field, Operator.NEAR, join(arguments));
+        StringBuilder arguments = point.appendTo(new StringBuilder());
+        arguments.append(',').append(GeoPoint.milesToRadians(maxDistanceMi)); //convert to radians
+        return putInMap(field, Operator.NEAR, arguments.toString());
     }
 
     /**
@@ -155,9 +155,9 @@ public class StackMobQuery {
      * @return the new query that resulted from adding this operation
      */
     public StackMobQuery fieldIsNearWithinKm(String field, GeoPoint point, Double maxDistanceKm) {
-        List<String> arguments = point.asList();
-        arguments.add(GeoPoint.kmToRadians(maxDistanceKm).toString()); //convert to radians
-        return putInMap(field, Operator.NEAR, join(arguments));
+        StringBuilder arguments = point.appendTo(new StringBuilder());
+        arguments.append(',').append(GeoPoint.kilometersToRadians(maxDistanceKm)); //convert to radians
+        return putInMap(field, Operator.NEAR, arguments.toString());
     }
 
     /**
@@ -168,9 +168,9 @@ public class StackMobQuery {
      * @return the new query that resulted from adding this operation
      */
     public StackMobQuery fieldIsWithinRadiusInMi(String field, GeoPoint point, Double radiusInMi) {
-        List<String> arguments = point.asList();
-        arguments.add(GeoPoint.miToRadians(radiusInMi).toString()); //convert to radians
-        return putInMap(field, Operator.WITHIN, join(arguments));
+        StringBuilder arguments = point.appendTo(new StringBuilder());
+        arguments.append(',').append(GeoPoint.milesToRadians(radiusInMi)); //convert to radians
+        return putInMap(field, Operator.WITHIN, arguments.toString());
     }
 
     /**
@@ -181,9 +181,9 @@ public class StackMobQuery {
      * @return the new query that resulted from adding this operation
      */
     public StackMobQuery fieldIsWithinRadiusInKm(String field, GeoPoint point, Double radiusInKm) {
-        List<String> arguments = point.asList();
-        arguments.add(GeoPoint.kmToRadians(radiusInKm).toString()); //convert to radians
-        return putInMap(field, Operator.WITHIN, join(arguments));
+        StringBuilder arguments = point.appendTo(new StringBuilder());
+        arguments.append(',').append(GeoPoint.kilometersToRadians(radiusInKm)); //convert to radians
+        return putInMap(field, Operator.WITHIN, arguments.toString());
     }
 
     /**
@@ -195,9 +195,8 @@ public class StackMobQuery {
      * @return the new query that resulted from adding this operation
      */
     public StackMobQuery fieldIsWithinBox(String field, GeoPoint lowerLeft, GeoPoint upperRight) {
-        List<String> arguments = lowerLeft.asList();
-        arguments.addAll(upperRight.asList());
-        return putInMap(field, Operator.WITHIN, join(arguments));
+        StringBuilder arguments = lowerLeft.appendTo(new StringBuilder()).append(',');
+        return putInMap(field, Operator.WITHIN, upperRight.appendTo(arguments).toString());
     }
 
     /**
@@ -330,6 +329,17 @@ public class StackMobQuery {
         return this;
     }
 
+    /**
+     * freeze this query so it can be run many times without being encoded again. changing this query afterwards
+     * doesn't affect the prepared query
+     * @param parameters the arguments, by their key in {@link #getArguments()} (for example "age[gt]"), whose values
+     *                   can be changed later with {@link StackMobPreparedQuery#bind}. their current values are used until then
+     * @return the prepared query
+     */
+    public StackMobPreparedQuery prepare(String... parameters) {
+        return new StackMobPreparedQuery(this, parameters);
+    }
+
     private StackMobQuery putInMap(String field, Operator operator, String value) {
         args.put(field+operator.getOperatorForURL(), value);
         return this;
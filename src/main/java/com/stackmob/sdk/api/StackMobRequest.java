@@ -52,9 +52,12 @@ public abstract class StackMobRequest {
     public static final String DEFAULT_URL_FORMAT = "mob1.stackmob.com";
     public static final String DEFAULT_API_URL_FORMAT = "api." + DEFAULT_URL_FORMAT;
     public static final String DEFAULT_PUSH_URL_FORMAT = "push." + DEFAULT_URL_FORMAT;
+    //the longest URL we'll build on purpose. some proxies and servers reject much more than this
+    public static final int MAX_URL_LENGTH = 2000;
     protected static final String SECURE_SCHEME = "https";
     protected static final String REGULAR_SCHEME = "http";
     private static StackMobCookieStore cookieStore = new StackMobCookieStore();
+    private static volatile StackMobRequestJournal requestJournal = null;
 
     public static void setCookieStore(StackMobCookieStore store) {
         cookieStore = store;
@@ -64,6 +67,19 @@ public abstract class StackMobRequest {
         return cookieStore;
     }
 
+    /**
+     * journal every POST, PUT and DELETE before it's sent, so that none are lost if the process exits before they
+     * go through. requests that carry passwords are sent directly. see {@link StackMobRequestJournal}
+     * @param journal the journal to use, or null to send requests directly again
+     */
+    public static void setRequestJournal(StackMobRequestJournal journal) {
+        requestJournal = journal;
+    }
+
+    public static StackMobRequestJournal getRequestJournal() {
+        return requestJournal;
+    }
+
     protected final ExecutorService executor;
     protected final StackMobSession session;
     protected StackMobRawCallback callback;
@@ -76,6 +92,8 @@ public abstract class StackMobRequest {
     protected Boolean isSecure = false;
     protected Map<String, String> params = new HashMap<String, String>();
     protected List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+    //an already encoded query string that replaces params, for prepared queries
+    protected String queryString = null;
 
     protected Gson gson;
 
@@ -112,9 +130,37 @@ public abstract class StackMobRequest {
         return this;
     }
 
+    /**
+     * send this query string as is instead of encoding the params
+     * @param encodedQueryString the percent encoded query string, without the leading "?"
+     * @return this request
+     */
+    public StackMobRequest setQueryString(String encodedQueryString) {
+        this.queryString = encodedQueryString;
+        return this;
+    }
+
     protected abstract String getRequestBody();
 
+    protected String getQueryString() {
+        if(queryString != null) {
+            return queryString;
+        }
+        return formatQueryString(this.params);
+    }
+
     public StackMobRequestSendResult sendRequest() {
+        StackMobRequestJournal journal = requestJournal;
+        if(journal != null && journal.handles(this)) {
+            return journal.enqueue(this);
+        }
+        return sendNow();
+    }
+
+    /**
+     * send this request over the network, bypassing the journal
+     */
+    StackMobRequestSendResult sendNow() {
         try {
             if(HttpVerbWithoutPayload.GET == httpVerb) {
                 sendGetRequest();
@@ -141,7 +187,7 @@ public abstract class StackMobRequest {
 
     protected void sendGetRequest() throws StackMobException {
         try {
-            String query = formatQueryString(this.params);
+            String query = getQueryString();
             URI uri = createURI(getScheme(), urlFormat, getPath(), query);
             OAuthRequest req = getOAuthRequest(HttpVerbWithoutPayload.GET, uri.toString());
             sendRequest(req);
@@ -195,7 +241,7 @@ public abstract class StackMobRequest {
 
     protected void sendDeleteRequest() throws StackMobException {
         try {
-            String query = formatQueryString(this.params);
+            String query = getQueryString();
             URI uri = createURI(getScheme(), urlFormat, getPath(), query);
             OAuthRequest req = getOAuthRequest(HttpVerbWithoutPayload.DELETE, uri.toString());
             sendRequest(req);
@@ -320,6 +366,17 @@ public abstract class StackMobRequest {
         return requestHeaders;
     }
     
+    protected static List<Map.Entry<String, String>> getResponseHeaders(Response ret) {
+        List<Map.Entry<String, String>> responseHeaders = new ArrayList<Map.Entry<String, String>>();
+        for(Map.Entry<String, String> header : ret.getHeaders().entrySet()) {
+            //the status line comes back as a header with no name
+            if(header.getKey() != null) {
+                responseHeaders.add(new Pair<String, String>(header.getKey(), header.getValue()));
+            }
+        }
+        return responseHeaders;
+    }
+
     protected void sendRequest(final OAuthRequest req) throws InterruptedException, ExecutionException {
         final StackMobRawCallback cb = this.callback;
 
@@ -344,10 +401,7 @@ public abstract class StackMobRequest {
                         sendRequest(newReq);
                     }
                     else {
-                        List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
-                        for(Map.Entry<String, String> header : req.getHeaders().entrySet()) {
-                            headers.add(header);
-                        }
+                        List<Map.Entry<String, String>> headers = getResponseHeaders(ret);
                         if(Http.isSuccess(ret.getCode())) {
                             cookieStore.storeCookies(ret);
                         }
@@ -0,0 +1,647 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.api;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+import com.stackmob.sdk.net.HttpVerbHelper;
+import com.stackmob.sdk.net.HttpVerbWithPayload;
+import com.stackmob.sdk.net.HttpVerbWithoutPayload;
+import com.stackmob.sdk.util.Pair;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal for POST, PUT and DELETE requests, so they survive the process exiting before they go
+ * through. Example usage:
+ * <code>
+ *     StackMobRequest.setRequestJournal(new StackMobRequestJournal(new File("/var/lib/myapp/stackmob")));
+ * </code>
+ *
+ * Once a journal is set, sending one of these requests appends it to the journal and returns only once it's on
+ * disk. Requests sent at about the same time are written and synced together, so a busy process pays for one sync
+ * per batch instead of one per request. A background deliverer then sends journaled requests in order, retrying
+ * with backoff on network errors, 5xx, 408 and 429 responses, and hands any other response to the request's
+ * callback. Network errors are retried for as long as it takes, but a request that gets one of those responses
+ * {@link #setMaxAttempts(int)} times in a row is given up on: its callback gets the last response and it's dropped
+ * from the journal, so it doesn't hold up the requests behind it. Requests left over from an earlier process are
+ * sent when the journal is opened, and their responses go to {@link #setRecoveredCallback}.
+ *
+ * Requests to log in, log out or change a password, and writes to the user schema, aren't journaled. They carry
+ * passwords, which shouldn't sit on disk, and they're sent directly.
+ *
+ * Delivery is at least once: a request whose response was lost is sent again. Each request carries a
+ * {@link #IDEMPOTENCY_KEY_HEADER} header that stays the same across retries, so a server that honors it can drop
+ * the repeats. The journal is split into segment files, and a segment is deleted once every request in it, and in
+ * every older segment, has had its response.
+ */
+public class StackMobRequestJournal {
+
+    public static final String IDEMPOTENCY_KEY_HEADER = "X-StackMob-Idempotency-Key";
+    private static final long DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 1;
+    private static final int DEFAULT_MAX_ATTEMPTS = 10;
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 5 * 60 * 1000;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "StackMob request journal");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    //requests from an earlier process have no executor of their own
+    private static final ExecutorService recoveredExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "StackMob request journal delivery");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static class Entry {
+        final long seq;
+        final JsonObject json;
+        //the request in this process, or null if it was read back from an earlier one
+        final StackMobRequest origin;
+        long segment;
+        boolean inFlight = false;
+        //retryable responses from the server so far in this process
+        int failedAttempts = 0;
+
+        Entry(long seq, JsonObject json, StackMobRequest origin) {
+            this.seq = seq;
+            this.json = json;
+            this.origin = origin;
+        }
+    }
+
+    private static class Write {
+        final byte[] record;
+        //what the record journals, or null for an ack
+        final Entry entry;
+        boolean done = false;
+        IOException error = null;
+
+        Write(byte[] record, Entry entry) {
+            this.record = record;
+            this.entry = entry;
+        }
+    }
+
+    private final File directory;
+    private final long segmentBytes;
+    private final int maxInFlight;
+
+    private final Object writeLock = new Object();
+    private final LinkedList<Write> toWrite = new LinkedList<Write>();
+    private boolean closing = false;
+    private final Thread writer;
+    //only touched by the writer thread once it's started
+    private FileOutputStream segmentOut;
+    private long segmentSize = 0;
+
+    private final TreeMap<Long, Entry> unacked = new TreeMap<Long, Entry>();
+    private final TreeMap<Long, Integer> unackedPerSegment = new TreeMap<Long, Integer>();
+    private long currentSegment;
+    private long nextSeq = 1;
+    private int inFlight = 0;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long retryDelay = MIN_RETRY_MILLIS;
+    private boolean waitingToRetry = false;
+    private boolean closed = false;
+    private StackMobRawCallback recoveredCallback = new StackMobRawCallback() {
+        @Override
+        public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) { }
+    };
+
+    /**
+     * open a journal, sending whatever an earlier process left in it
+     * @param directory where to keep the segment files. created if it doesn't exist
+     * @throws StackMobException if the journal can't be read or written
+     */
+    public StackMobRequestJournal(File directory) throws StackMobException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param directory where to keep the segment files
+     * @param segmentBytes how big a segment gets before a new one is started
+     * @param maxInFlight how many requests to have in flight at once. with more than one, requests can reach the
+     *                    server out of order
+     * @throws StackMobException if the journal can't be read or written
+     */
+    public StackMobRequestJournal(File directory, long segmentBytes, int maxInFlight) throws StackMobException {
+        if(maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxInFlight = maxInFlight;
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new StackMobException("couldn't create " + directory.getPath());
+        }
+        synchronized(this) {
+            load();
+            try {
+                //never append to a segment an earlier process may have torn
+                segmentOut = new FileOutputStream(segmentFile(currentSegment), true);
+            } catch(IOException e) {
+                throw new StackMobException("couldn't open the journal: " + e.getMessage());
+            }
+            unackedPerSegment.put(currentSegment, 0);
+            trimHead();
+        }
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "StackMob request journal writer");
+        writer.setDaemon(true);
+        writer.start();
+        pump();
+    }
+
+    /**
+     * @param callback gets the responses to requests left over from an earlier process
+     */
+    public synchronized void setRecoveredCallback(StackMobRawCallback callback) {
+        this.recoveredCallback = callback;
+    }
+
+    /**
+     * @param maxAttempts how many times a request can get a 5xx, 408 or 429 response before it's given up on and
+     *                    its callback gets that response. network errors don't count. attempts made by an earlier
+     *                    process aren't remembered
+     */
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        if(maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return how many journaled requests haven't had their response yet
+     */
+    public synchronized int getPendingCount() {
+        return unacked.size();
+    }
+
+    /**
+     * stop delivering and close the journal. requests that haven't had their response are sent when it's opened
+     * again
+     */
+    public void close() {
+        synchronized(this) {
+            if(closed) return;
+            closed = true;
+        }
+        synchronized(writeLock) {
+            closing = true;
+            writeLock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            segmentOut.close();
+        } catch(IOException ignored) { }
+    }
+
+    boolean handles(StackMobRequest request) {
+        HttpVerb verb = request.httpVerb;
+        if(verb != HttpVerbWithPayload.POST && verb != HttpVerbWithPayload.PUT && verb != HttpVerbWithoutPayload.DELETE) return false;
+        if(request instanceof StackMobUserBasedRequest) return false;
+        String userPath = "/" + request.session.getUserObjectName();
+        String path = request.getPath();
+        return !path.equals(userPath) && !path.startsWith(userPath + "/");
+    }
+
+    /**
+     * journal a request, returning once it's on disk
+     */
+    StackMobRequestSendResult enqueue(StackMobRequest request) {
+        long seq;
+        synchronized(this) {
+            if(closed) {
+                return new StackMobRequestSendResult(StackMobRequestSendResult.RequestSendStatus.FAILED, new StackMobException("the request journal is closed"));
+            }
+            seq = nextSeq++;
+        }
+        JsonObject json = new JsonObject();
+        json.addProperty("op", "send");
+        json.addProperty("seq", seq);
+        json.addProperty("verb", request.httpVerb.toString());
+        json.addProperty("host", request.urlFormat);
+        json.addProperty("secure", request.isSecure);
+        json.addProperty("path", request.getPath());
+        json.addProperty("query", request.getQueryString());
+        JsonArray headers = new JsonArray();
+        if(request.headers != null) {
+            for(Map.Entry<String, String> header : request.headers) headers.add(header(header.getKey(), header.getValue()));
+        }
+        headers.add(header(IDEMPOTENCY_KEY_HEADER, UUID.randomUUID().toString()));
+        json.add("headers", headers);
+        json.addProperty("body", request.getRequestBody());
+        Entry entry = new Entry(seq, json, request);
+        Write write = new Write(encode(json), entry);
+        boolean interrupted = false;
+        synchronized(writeLock) {
+            toWrite.add(write);
+            writeLock.notifyAll();
+            //once queued the request may well be written, so the caller has to hear how it went
+            while(!write.done) {
+                try {
+                    writeLock.wait();
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+        if(write.error != null) {
+            return new StackMobRequestSendResult(StackMobRequestSendResult.RequestSendStatus.FAILED, new StackMobException("couldn't journal the request: " + write.error.getMessage()));
+        }
+        return new StackMobRequestSendResult();
+    }
+
+    private static JsonArray header(String key, String value) {
+        JsonArray pair = new JsonArray();
+        pair.add(new JsonPrimitive(key));
+        pair.add(new JsonPrimitive(value));
+        return pair;
+    }
+
+    /*
+     * A segment is a run of records, each a 4 byte length, the 4 byte CRC32 of the payload, and the payload: a JSON
+     * object that's either {"op":"send", "seq":..., ...the request...} or {"op":"ack", "seq":...}
+     */
+
+    private static byte[] encode(JsonObject json) {
+        try {
+            byte[] payload = json.toString().getBytes("UTF-8");
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 8);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+            out.flush();
+            return bytes.toByteArray();
+        } catch(IOException e) {
+            //writing to memory doesn't fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    //call with the lock held
+    private void load() throws StackMobException {
+        TreeSet<Long> segments = new TreeSet<Long>();
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                String name = file.getName();
+                if(!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+                try {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch(NumberFormatException ignored) { }
+            }
+        }
+        JsonParser parser = new JsonParser();
+        for(long segment : segments) {
+            unackedPerSegment.put(segment, 0);
+            File file = segmentFile(segment);
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                while(true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch(EOFException e) {
+                        break;
+                    }
+                    if(length < 0 || length > file.length()) break;
+                    int checksum = in.readInt();
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    //a record torn by a crash
+                    if((int) crc.getValue() != checksum) break;
+                    JsonObject record = parser.parse(new String(payload, "UTF-8")).getAsJsonObject();
+                    long seq = record.get("seq").getAsLong();
+                    nextSeq = Math.max(nextSeq, seq + 1);
+                    if("send".equals(record.get("op").getAsString())) {
+                        Entry entry = new Entry(seq, record, null);
+                        entry.segment = segment;
+                        unacked.put(seq, entry);
+                    } else {
+                        unacked.remove(seq);
+                    }
+                }
+            } catch(EOFException e) {
+                //a record torn by a crash
+            } catch(IOException e) {
+                throw new StackMobException("couldn't read the journal: " + e.getMessage());
+            } catch(RuntimeException e) {
+                throw new StackMobException("the journal in " + directory.getPath() + " is corrupt: " + e.getMessage());
+            } finally {
+                if(in != null) {
+                    try {
+                        in.close();
+                    } catch(IOException ignored) { }
+                }
+            }
+        }
+        for(Entry entry : unacked.values()) {
+            unackedPerSegment.put(entry.segment, unackedPerSegment.get(entry.segment) + 1);
+        }
+        currentSegment = segments.isEmpty() ? 1 : segments.last() + 1;
+    }
+
+    /**
+     * delete segments from the oldest on, as long as everything in them has had its response. an ack can be in a
+     * later segment than what it acks, so only deleting in order keeps every ack that still matters
+     */
+    //call with the lock held
+    private void trimHead() {
+        while(!unackedPerSegment.isEmpty()) {
+            long oldest = unackedPerSegment.firstKey();
+            if(oldest == currentSegment || unackedPerSegment.get(oldest) > 0) break;
+            unackedPerSegment.remove(oldest);
+            if(!segmentFile(oldest).delete()) {
+                StackMob.getLogger().logWarning("Couldn't delete journal segment %s", segmentFile(oldest).getPath());
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while(true) {
+            List<Write> batch;
+            synchronized(writeLock) {
+                while(toWrite.isEmpty() && !closing) {
+                    try {
+                        writeLock.wait();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                }
+                if(toWrite.isEmpty()) return;
+                batch = new ArrayList<Write>(toWrite);
+                toWrite.clear();
+            }
+            IOException error = null;
+            try {
+                commit(batch);
+            } catch(IOException e) {
+                error = e;
+            }
+            synchronized(writeLock) {
+                for(Write write : batch) {
+                    write.done = true;
+                    write.error = error;
+                }
+                writeLock.notifyAll();
+            }
+            if(error == null) committed(batch);
+        }
+    }
+
+    /**
+     * write a batch and sync it once
+     */
+    private void commit(List<Write> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for(Write write : batch) bytes.write(write.record);
+        if(segmentSize > 0 && segmentSize + bytes.size() > segmentBytes) {
+            roll();
+        }
+        long segment;
+        synchronized(this) {
+            segment = currentSegment;
+        }
+        for(Write write : batch) {
+            if(write.entry != null) write.entry.segment = segment;
+        }
+        segmentOut.write(bytes.toByteArray());
+        segmentOut.flush();
+        segmentOut.getFD().sync();
+        segmentSize += bytes.size();
+    }
+
+    private void roll() throws IOException {
+        long next;
+        synchronized(this) {
+            next = currentSegment + 1;
+        }
+        FileOutputStream out = new FileOutputStream(segmentFile(next), true);
+        segmentOut.close();
+        segmentOut = out;
+        segmentSize = 0;
+        synchronized(this) {
+            currentSegment = next;
+            unackedPerSegment.put(next, 0);
+            trimHead();
+        }
+    }
+
+    private void committed(List<Write> batch) {
+        synchronized(this) {
+            for(Write write : batch) {
+                Entry entry = write.entry;
+                if(entry == null) continue;
+                unacked.put(entry.seq, entry);
+                unackedPerSegment.put(entry.segment, unackedPerSegment.get(entry.segment) + 1);
+            }
+        }
+        pump();
+    }
+
+    /**
+     * send the oldest requests that aren't in flight, up to the limit
+     */
+    private void pump() {
+        List<Entry> toSend = new ArrayList<Entry>();
+        synchronized(this) {
+            if(closed || waitingToRetry) return;
+            for(Entry entry : unacked.values()) {
+                if(inFlight >= maxInFlight) break;
+                if(entry.inFlight) continue;
+                entry.inFlight = true;
+                inFlight++;
+                toSend.add(entry);
+            }
+        }
+        for(Entry entry : toSend) {
+            send(entry);
+        }
+    }
+
+    private void send(final Entry entry) {
+        JsonObject json = entry.json;
+        JournaledRequest request;
+        try {
+            List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+            for(JsonElement header : json.getAsJsonArray("headers")) {
+                JsonArray pair = header.getAsJsonArray();
+                headers.add(new Pair<String, String>(pair.get(0).getAsString(), pair.get(1).getAsString()));
+            }
+            StackMobRequest origin = entry.origin;
+            StackMobSession session = origin != null ? origin.session : StackMob.getStackMob().getSession();
+            StackMobRedirectedCallback redirected = origin != null ? origin.redirectedCallback : StackMob.getStackMob().redirectedCallback;
+            request = new JournaledRequest(origin != null ? origin.executor : recoveredExecutor,
+                                           session,
+                                           HttpVerbHelper.valueOf(json.get("verb").getAsString()),
+                                           headers,
+                                           json.get("body").getAsString(),
+                                           json.get("path").getAsString(),
+                                           new Delivery(entry),
+                                           redirected);
+            request.setSecure(json.get("secure").getAsBoolean()).setUrlFormat(json.get("host").getAsString());
+            String query = json.get("query").getAsString();
+            if(query.length() > 0) request.setQueryString(query);
+        } catch(StackMobException e) {
+            StackMob.getLogger().logError("Dropping unreadable journaled request %s", json.toString());
+            acked(entry);
+            return;
+        } catch(RuntimeException e) {
+            //most likely StackMob hasn't been set up yet in this process
+            retry(entry);
+            return;
+        }
+        if(request.sendNow().getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+            retry(entry);
+        }
+    }
+
+    private static boolean isRetryable(int statusCode) {
+        return statusCode < 0 || statusCode >= 500 || statusCode == 408 || statusCode == 429;
+    }
+
+    private class Delivery extends StackMobRawCallback {
+        private final Entry entry;
+
+        Delivery(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+            if(isRetryable(responseStatusCode) && !givesUp(entry, responseStatusCode)) {
+                retry(entry);
+                return;
+            }
+            StackMobRawCallback callback;
+            synchronized(StackMobRequestJournal.this) {
+                callback = entry.origin != null ? entry.origin.callback : recoveredCallback;
+            }
+            try {
+                callback.done(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+            } catch(Throwable t) {
+                StackMob.getLogger().logError("Callback threw error %s", StackMobLogger.getStackTrace(t));
+            }
+            acked(entry);
+        }
+    }
+
+    /**
+     * count a retryable response, and say whether it's the last one the request gets
+     */
+    private boolean givesUp(Entry entry, int statusCode) {
+        //the server was never reached, which is what the journal is for waiting out
+        if(statusCode < 0) return false;
+        int attempts;
+        synchronized(this) {
+            attempts = ++entry.failedAttempts;
+            if(attempts < maxAttempts) return false;
+        }
+        StackMob.getLogger().logWarning("Giving up on journaled request %d after %d attempts, the last got HTTP %d", entry.seq, attempts, statusCode);
+        return true;
+    }
+
+    private void retry(Entry entry) {
+        synchronized(this) {
+            entry.inFlight = false;
+            inFlight--;
+            if(waitingToRetry || closed) return;
+            waitingToRetry = true;
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized(StackMobRequestJournal.this) {
+                        waitingToRetry = false;
+                    }
+                    pump();
+                }
+            }, retryDelay, TimeUnit.MILLISECONDS);
+            retryDelay = Math.min(MAX_RETRY_MILLIS, retryDelay * 2);
+        }
+    }
+
+    private void acked(Entry entry) {
+        synchronized(this) {
+            entry.inFlight = false;
+            inFlight--;
+            retryDelay = MIN_RETRY_MILLIS;
+            if(unacked.remove(entry.seq) != null) {
+                Integer count = unackedPerSegment.get(entry.segment);
+                if(count != null) unackedPerSegment.put(entry.segment, count - 1);
+                trimHead();
+            }
+        }
+        JsonObject ack = new JsonObject();
+        ack.addProperty("op", "ack");
+        ack.addProperty("seq", entry.seq);
+        synchronized(writeLock) {
+            //nobody waits on an ack. if it's lost the request is just sent again
+            if(!closing) {
+                toWrite.add(new Write(encode(ack), null));
+                writeLock.notifyAll();
+            }
+        }
+        pump();
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.callback;
+
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.List;
+
+public abstract class StackMobBulkCallback {
+    /**
+     * called each time part of the operation finishes. does nothing unless overridden. may be called from several
+     * background threads, but never concurrently
+     * @param completed how many objects have been handled so far, successfully or not
+     * @param total how many objects the operation handles in all
+     */
+    public void progress(int completed, int total) { }
+
+    /**
+     * called once when every object went through
+     * @param ids the ids of the objects that were handled
+     */
+    public abstract void success(List<String> ids);
+
+    /**
+     * called once when the operation is done but something went wrong. partial failures are reported as a
+     * {@link com.stackmob.sdk.exception.StackMobBulkException}
+     * @param e the reason for the failure
+     */
+    public abstract void failure(StackMobException e);
+}
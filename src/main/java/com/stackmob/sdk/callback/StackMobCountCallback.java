@@ -0,0 +1,40 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.callback;
+
+import com.stackmob.sdk.exception.StackMobException;
+
+public abstract class StackMobCountCallback extends StackMobPageCallback {
+    @Override
+    public void success(String responseBody, int totalItems) {
+        if(totalItems >= 0) {
+            success(totalItems);
+        }
+        else if(responseBody.trim().equals("[]")) {
+            //nothing matched, so there was no range to report
+            success(0);
+        }
+        else {
+            failure(new StackMobException("the server didn't say how many objects the query matches"));
+        }
+    }
+
+    /**
+     * called when the count comes back
+     * @param count how many objects the query matches
+     */
+    abstract public void success(int count);
+}
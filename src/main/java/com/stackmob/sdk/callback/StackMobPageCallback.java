@@ -0,0 +1,54 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.callback;
+
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.exception.StackMobHTTPResponseException;
+import com.stackmob.sdk.net.HttpVerb;
+import com.stackmob.sdk.util.Http;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A callback for one page of a ranged query. Along with the page itself it gets the total number of objects
+ * the query matches, from the Content-Range header of the response.
+ */
+public abstract class StackMobPageCallback extends StackMobRawCallback {
+    @Override public void done(HttpVerb requestVerb,
+                               String requestURL,
+                               List<Map.Entry<String, String>> requestHeaders,
+                               String requestBody,
+                               Integer responseStatusCode,
+                               List<Map.Entry<String, String>> responseHeaders,
+                               byte[] responseBody) {
+        if(Http.isSuccess(responseStatusCode)) {
+            success(new String(responseBody), getTotalNumberOfItemsFromContentRange(responseHeaders));
+        }
+        else {
+            failure(new StackMobHTTPResponseException(responseStatusCode, responseHeaders, responseBody));
+        }
+    }
+
+    /**
+     * called when the page comes back
+     * @param responseBody the page, as a JSON array
+     * @param totalItems the total number of objects the query matches, or a negative number if the server
+     *                   didn't say. see {@link #getTotalNumberOfItemsFromContentRange(java.util.List)}
+     */
+    abstract public void success(String responseBody, int totalItems);
+    abstract public void failure(StackMobException e);
+}
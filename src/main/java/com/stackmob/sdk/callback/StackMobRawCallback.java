@@ -45,19 +45,19 @@ public abstract class StackMobRawCallback {
      * get the total number of items from the Content-Range header
      * @param responseHeaders the headers that were returned in the response
      * @return the total number of items returned in the Content-Range header, -1 if there was no Content-Range header
-     * or it was malformed, -2 if the Content-Length header was present and well formed but the instance length was "*"
+     * or it was malformed, -2 if the Content-Range header was present and well formed but the instance length was "*"
      */
     public static Integer getTotalNumberOfItemsFromContentRange(List<Map.Entry<String, String>> responseHeaders) {
-        Map.Entry<String, String> contentLengthHeader = null;
+        Map.Entry<String, String> contentRangeHeader = null;
 
         for(Map.Entry<String, String> header: responseHeaders) {
-            if(header.getKey().toLowerCase().equals("content-length")) {
-                contentLengthHeader = header;
+            if(header.getKey() != null && header.getKey().toLowerCase().equals("content-range")) {
+                contentRangeHeader = header;
             }
         }
 
-        if(contentLengthHeader != null) {
-            List<String> hyphenSplit = Arrays.asList(contentLengthHeader.getValue().split("\\-"));
+        if(contentRangeHeader != null) {
+            List<String> hyphenSplit = Arrays.asList(contentRangeHeader.getValue().split("\\-"));
             if(hyphenSplit.size() != 2) {
                 return -1;
             }
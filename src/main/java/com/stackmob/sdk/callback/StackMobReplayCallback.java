@@ -0,0 +1,52 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.callback;
+
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.List;
+
+/**
+ * Hears about changes made offline as they reach the server. Every method has a default, so override only what
+ * you need. Methods are called from a background thread, one at a time
+ */
+public abstract class StackMobReplayCallback<T> {
+    /**
+     * called when an object was changed on the server after the version a local change was made to. the default
+     * keeps the server's version
+     * @param local the local version, or null if it was destroyed locally
+     * @param server the server's version, or null if it was destroyed on the server
+     * @return the version to keep: server to drop the local change, local or a merge of the two to save it, or
+     *         null to destroy the object
+     */
+    public T conflict(T local, T server) {
+        return server;
+    }
+
+    /**
+     * called after local changes reach the server
+     * @param ids the ids of the objects whose changes went through
+     */
+    public void replayed(List<String> ids) { }
+
+    /**
+     * called when the server refuses a local change for good. the change is dropped, and the local copy goes back
+     * to the server's version if the change was made against one. otherwise the local copy is left as it is
+     * @param id the id of the object
+     * @param e the reason it was refused
+     */
+    public void rejected(String id, StackMobException e) { }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.callback;
+
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.List;
+
+public abstract class StackMobScanCallback<T> {
+    /**
+     * called with each page of the scan as it comes in. may be called from several background threads, but never
+     * concurrently
+     * @param partition which partition the page belongs to
+     * @param start the position of the page's first object in the whole result
+     * @param objects the objects on the page
+     */
+    public abstract void page(int partition, int start, List<T> objects);
+
+    /**
+     * called once when every page has been delivered
+     * @param total how many objects the query matched when the scan started
+     */
+    public abstract void success(int total);
+
+    /**
+     * called once when the scan is done but a page failed. no pages are requested after a failure. when delivering in
+     * order, pages after the failed one are not delivered
+     * @param e the reason for the first failure
+     */
+    public abstract void failure(StackMobException e);
+}
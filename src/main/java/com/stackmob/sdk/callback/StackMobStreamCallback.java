@@ -0,0 +1,40 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.callback;
+
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.List;
+
+public abstract class StackMobStreamCallback<T> {
+    /**
+     * called with each batch of results as they become ready. may be called from several background threads, but
+     * never concurrently
+     * @param results the next results
+     */
+    public abstract void results(List<T> results);
+
+    /**
+     * called once after the last batch of results
+     */
+    public abstract void success();
+
+    /**
+     * called once if the operation fails. no results are delivered after this
+     * @param e the reason for the failure
+     */
+    public abstract void failure(StackMobException e);
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.callback;
+
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.Set;
+
+public abstract class StackMobSyncCallback {
+    /**
+     * called once the local copy has caught up with the server
+     * @param changedIDs the ids of the objects that were created or modified since the last sync
+     * @param deletedIDs the ids of the objects found to be deleted. only ever filled on a sync that reconciles
+     */
+    public abstract void success(Set<String> changedIDs, Set<String> deletedIDs);
+
+    /**
+     * called if the sync fails. whatever was applied before the failure stays applied, and the next sync picks up
+     * from there
+     * @param e the reason for the failure
+     */
+    abstract public void failure(StackMobException e);
+}
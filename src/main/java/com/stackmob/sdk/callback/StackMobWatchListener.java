@@ -0,0 +1,35 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.callback;
+
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.List;
+
+public abstract class StackMobWatchListener<T> {
+    /**
+     * called when objects matching the watched query are created or modified. never called with both lists empty
+     * @param added objects created since the previous poll
+     * @param modified objects that existed before the previous poll and have changed since
+     */
+    public abstract void changed(List<T> added, List<T> modified);
+
+    /**
+     * called when a poll fails. the watch stays active and picks up where it left off on the next poll
+     * @param e the reason for the failure
+     */
+    public abstract void failure(StackMobException e);
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.exception;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports the outcome of an operation on many objects at once where at least one of them failed.
+ */
+public class StackMobBulkException extends StackMobException {
+    private static final long serialVersionUID = 1L;
+
+    private Map<String, StackMobException> failures;
+    private List<String> succeeded;
+
+    public StackMobBulkException(Map<String, StackMobException> failures, List<String> succeeded) {
+        super(String.format("%d of %d objects failed", failures.size(), failures.size() + succeeded.size()));
+        this.failures = Collections.unmodifiableMap(failures);
+        this.succeeded = Collections.unmodifiableList(succeeded);
+    }
+
+    /**
+     * get the reason each failed object failed
+     * @return a map from the id of each failed object to the reason it failed
+     */
+    public Map<String, StackMobException> getFailures() {
+        return failures;
+    }
+
+    /**
+     * get the objects that went through
+     * @return the ids of the objects that succeeded
+     */
+    public List<String> getSucceeded() {
+        return succeeded;
+    }
+}
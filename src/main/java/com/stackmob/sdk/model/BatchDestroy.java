@@ -0,0 +1,99 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobBulkCallback;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.BulkProgress;
+import com.stackmob.sdk.util.ThrottledRequestQueue;
+
+import java.util.*;
+
+/**
+ * Deletes many models, of any mix of types, with a bounded number of deletes in flight. The platform deletes
+ * top level objects one at a time, so this sends one request per distinct (schema, id). Since the same id can be
+ * used in more than one schema, objects are reported to the callback as schemaName/id.
+ */
+class BatchDestroy {
+
+    private final Map<String, Set<String>> idsBySchema = new LinkedHashMap<String, Set<String>>();
+    private final BulkProgress progress;
+
+    BatchDestroy(Collection<? extends StackMobModel> models, StackMobBulkCallback callback) {
+        int total = 0;
+        for(StackMobModel model : models) {
+            if(model.getID() == null) {
+                throw new IllegalArgumentException("every model needs an id to be destroyed");
+            }
+            Set<String> ids = idsBySchema.get(model.getSchemaName());
+            if(ids == null) {
+                ids = new LinkedHashSet<String>();
+                idsBySchema.put(model.getSchemaName(), ids);
+            }
+            if(ids.add(model.getID())) total++;
+        }
+        progress = new BulkProgress(total, callback);
+    }
+
+    void send(int maxConcurrentRequests) {
+        ThrottledRequestQueue queue = new ThrottledRequestQueue(maxConcurrentRequests);
+        for(Map.Entry<String, Set<String>> schema : idsBySchema.entrySet()) {
+            for(String id : schema.getValue()) {
+                queue.add(new DeleteRequest(schema.getKey(), id));
+            }
+        }
+        queue.start(progress.finisher());
+    }
+
+    private class DeleteRequest extends ThrottledRequestQueue.Request {
+        private final String schemaName;
+        private final String id;
+        private final String key;
+
+        DeleteRequest(String schemaName, String id) {
+            this.schemaName = schemaName;
+            this.id = id;
+            this.key = schemaName + "/" + id;
+        }
+
+        @Override
+        public void send(final Runnable done) {
+            StackMobRequestSendResult result = StackMob.getStackMob().delete(schemaName, id, new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    progress.succeeded(key);
+                    progress.completed(1);
+                    done.run();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    progress.failed(key, e);
+                    progress.completed(1);
+                    done.run();
+                }
+            });
+            if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+                progress.failed(key, new StackMobException(result.getFailureReason().getMessage()));
+                progress.completed(1);
+                done.run();
+            }
+        }
+    }
+}
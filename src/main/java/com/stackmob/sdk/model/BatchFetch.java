@@ -0,0 +1,206 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobRequest;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.exception.StackMobBulkException;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.ListHelpers;
+import com.stackmob.sdk.util.ThrottledRequestQueue;
+
+import java.util.*;
+
+/**
+ * Fetches many models by id with IN queries. The ids are split so that no URL gets too long, and the
+ * resulting queries are sent with a bounded number in flight. Existing model instances are filled in place. Since
+ * the same id can be used in more than one schema, objects are reported to the callback as schemaName/id.
+ */
+class BatchFetch<T extends StackMobModel> {
+
+    //room in the URL for everything but the id list: scheme, host, path, operator and the other arguments
+    private static final int URL_OVERHEAD = 300;
+
+    private final List<T> models;
+    private final List<String> selection;
+    private final StackMobQueryCallback<T> callback;
+    private final Map<String, StackMobException> failures = new HashMap<String, StackMobException>();
+    private final List<String> succeeded = new ArrayList<String>();
+    private boolean unloadedOnly;
+
+    BatchFetch(List<T> models, StackMobQueryCallback<T> callback) {
+        this(models, null, callback);
+    }
+
+    /**
+     * @param models the models to fill
+     * @param selection the only fields to fetch and fill, or null for all of them
+     * @param callback called once every query is done
+     */
+    BatchFetch(List<T> models, List<String> selection, StackMobQueryCallback<T> callback) {
+        this.models = models;
+        this.selection = selection;
+        this.callback = callback;
+    }
+
+    /**
+     * fill only fields the models haven't loaded and haven't had assigned since, leaving local changes alone
+     */
+    BatchFetch<T> fillingUnloadedOnly() {
+        unloadedOnly = true;
+        return this;
+    }
+
+    void send(int maxConcurrentRequests) {
+        //schema -> id -> every instance with that id
+        Map<String, Map<String, List<T>>> bySchema = new LinkedHashMap<String, Map<String, List<T>>>();
+        for(T model : models) {
+            if(model.getID() == null) {
+                throw new IllegalArgumentException("every model needs an id to be fetched");
+            }
+            Map<String, List<T>> byID = bySchema.get(model.getSchemaName());
+            if(byID == null) {
+                byID = new LinkedHashMap<String, List<T>>();
+                bySchema.put(model.getSchemaName(), byID);
+            }
+            List<T> withID = byID.get(model.getID());
+            if(withID == null) {
+                withID = new ArrayList<T>();
+                byID.put(model.getID(), withID);
+            }
+            withID.add(model);
+        }
+
+        ThrottledRequestQueue queue = new ThrottledRequestQueue(maxConcurrentRequests);
+        for(Map.Entry<String, Map<String, List<T>>> schema : bySchema.entrySet()) {
+            String idField = schema.getValue().values().iterator().next().get(0).getIDFieldName();
+            int maxLength = StackMobRequest.MAX_URL_LENGTH - URL_OVERHEAD - idField.length();
+            List<String> ids = new ArrayList<String>(schema.getValue().keySet());
+            for(List<String> chunk : ListHelpers.chunkByEncodedLength(ids, maxLength)) {
+                queue.add(new ChunkRequest(schema.getKey(), idField, chunk, schema.getValue()));
+            }
+        }
+        queue.start(new Runnable() {
+            @Override
+            public void run() {
+                finish();
+            }
+        });
+    }
+
+    private void finish() {
+        if(failures.isEmpty()) {
+            callback.success(models);
+        }
+        else {
+            callback.failure(new StackMobBulkException(failures, succeeded));
+        }
+    }
+
+    private synchronized void succeed(String schemaName, String id) {
+        succeeded.add(schemaName + "/" + id);
+    }
+
+    private synchronized void fail(String schemaName, String id, StackMobException e) {
+        failures.put(schemaName + "/" + id, e);
+    }
+
+    private class ChunkRequest extends ThrottledRequestQueue.Request {
+        private final String schemaName;
+        private final String idField;
+        private final List<String> ids;
+        private final Map<String, List<T>> byID;
+
+        ChunkRequest(String schemaName, String idField, List<String> ids, Map<String, List<T>> byID) {
+            this.schemaName = schemaName;
+            this.idField = idField;
+            this.ids = ids;
+            this.byID = byID;
+        }
+
+        @Override
+        public void send(final Runnable done) {
+            StackMobQuery query = new StackMobQuery(schemaName).fieldIsIn(idField, ids).isInRange(0, ids.size() - 1);
+            if(selection != null) {
+                List<String> fields = new ArrayList<String>(selection);
+                fields.add(idField);
+                query.select(fields);
+            }
+            StackMobRequestSendResult result = StackMob.getStackMob().get(query, new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    Set<String> missing = new HashSet<String>(ids);
+                    try {
+                        for(JsonElement json : new JsonParser().parse(responseBody).getAsJsonArray()) {
+                            JsonElement idJson = json.getAsJsonObject().get(idField);
+                            if(idJson == null || !missing.remove(idJson.getAsString())) {
+                                continue;
+                            }
+                            String id = idJson.getAsString();
+                            try {
+                                for(T model : byID.get(id)) {
+                                    if(unloadedOnly) {
+                                        model.fillUnloadedFromJson(json);
+                                    } else {
+                                        model.fillFromJson(json, selection);
+                                    }
+                                }
+                                succeed(schemaName, id);
+                            }
+                            catch(StackMobException e) {
+                                fail(schemaName, id, e);
+                            }
+                        }
+                    }
+                    catch(RuntimeException e) {
+                        //the response wasn't the array we asked for. everything we haven't seen yet failed
+                        StackMobException parseFailure = new StackMobException(e.getMessage());
+                        for(String id : missing) {
+                            fail(schemaName, id, parseFailure);
+                        }
+                        missing.clear();
+                    }
+                    for(String id : missing) {
+                        fail(schemaName, id, new StackMobException(String.format("no %s with id %s", schemaName, id)));
+                    }
+                    done.run();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    failAll(e);
+                    done.run();
+                }
+            });
+            if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+                failAll(new StackMobException(result.getFailureReason().getMessage()));
+                done.run();
+            }
+        }
+
+        private void failAll(StackMobException e) {
+            for(String id : ids) {
+                fail(schemaName, id, e);
+            }
+        }
+    }
+}
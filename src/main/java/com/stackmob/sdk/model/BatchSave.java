@@ -0,0 +1,279 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobBulkCallback;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.AdaptiveBatchSizer;
+import com.stackmob.sdk.util.BulkProgress;
+import com.stackmob.sdk.util.Pair;
+import com.stackmob.sdk.util.RelationMapping;
+import com.stackmob.sdk.util.ThrottledRequestQueue;
+
+import java.util.*;
+
+/**
+ * Saves many models with bulk POSTs. Models are grouped by schema, and each schema gets its own
+ * {@link AdaptiveBatchSizer} so batch sizes follow the latency and payload size that schema actually shows.
+ * Batches are cut lazily as slots free up, round robin across schemas. Since the same id can be used in more than
+ * one schema, objects are reported to the callback as schemaName/id.
+ */
+class BatchSave {
+
+    /**
+     * told about each object the server accepted, with the server's json for it
+     */
+    interface SavedListener {
+        void saved(StackMobModel model, String serverJson);
+    }
+
+    private static final int INITIAL_BATCH_SIZE = 20;
+    private static final int MIN_BATCH_SIZE = 1;
+    private static final int MAX_BATCH_SIZE = 200;
+    private static final long TARGET_LATENCY_MILLIS = 2000;
+    private static final int MAX_PAYLOAD_BYTES = 512 * 1024;
+    static final List<String> SERVER_FIELDS = Arrays.asList("lastmoddate", "createddate");
+
+    private final Map<String, LinkedList<StackMobModel>> remaining = new LinkedHashMap<String, LinkedList<StackMobModel>>();
+    private final Map<String, AdaptiveBatchSizer> sizers = new HashMap<String, AdaptiveBatchSizer>();
+    private final List<String> schemaOrder = new ArrayList<String>();
+    private int nextSchema = 0;
+
+    private final BulkProgress progress;
+    private SavedListener savedListener;
+
+    BatchSave(Collection<? extends StackMobModel> models, StackMobBulkCallback callback) {
+        //the same instance twice would just be saved twice
+        Set<StackMobModel> seen = Collections.newSetFromMap(new IdentityHashMap<StackMobModel, Boolean>());
+        for(StackMobModel model : models) {
+            if(!seen.add(model)) {
+                continue;
+            }
+            LinkedList<StackMobModel> forSchema = remaining.get(model.getSchemaName());
+            if(forSchema == null) {
+                forSchema = new LinkedList<StackMobModel>();
+                remaining.put(model.getSchemaName(), forSchema);
+                schemaOrder.add(model.getSchemaName());
+                sizers.put(model.getSchemaName(), new AdaptiveBatchSizer(INITIAL_BATCH_SIZE, MIN_BATCH_SIZE, MAX_BATCH_SIZE, TARGET_LATENCY_MILLIS, MAX_PAYLOAD_BYTES));
+            }
+            forSchema.add(model);
+        }
+        this.progress = new BulkProgress(seen.size(), callback);
+    }
+
+    BatchSave setSavedListener(SavedListener listener) {
+        this.savedListener = listener;
+        return this;
+    }
+
+    void send(int maxConcurrentRequests) {
+        new ThrottledRequestQueue(maxConcurrentRequests) {
+            @Override
+            protected Request next() {
+                return nextBatch();
+            }
+        }.start(progress.finisher());
+    }
+
+    private BatchRequest nextBatch() {
+        for(int i = 0; i < schemaOrder.size(); i++) {
+            String schema = schemaOrder.get((nextSchema + i) % schemaOrder.size());
+            LinkedList<StackMobModel> forSchema = remaining.get(schema);
+            if(!forSchema.isEmpty()) {
+                nextSchema = (nextSchema + i + 1) % schemaOrder.size();
+                AdaptiveBatchSizer sizer = sizers.get(schema);
+                List<StackMobModel> batch = new ArrayList<StackMobModel>();
+                int size = sizer.getBatchSize();
+                while(batch.size() < size && !forSchema.isEmpty()) {
+                    batch.add(forSchema.removeFirst());
+                }
+                return new BatchRequest(schema, batch, sizer);
+            }
+        }
+        return null;
+    }
+
+    private class BatchRequest extends ThrottledRequestQueue.Request {
+        private final String schemaName;
+        private final List<StackMobModel> batch;
+        private final AdaptiveBatchSizer sizer;
+
+        BatchRequest(String schemaName, List<StackMobModel> batch, AdaptiveBatchSizer sizer) {
+            this.schemaName = schemaName;
+            this.batch = batch;
+            this.sizer = sizer;
+        }
+
+        @Override
+        public void send(final Runnable done) {
+            final Map<String, StackMobModel> byID = new LinkedHashMap<String, StackMobModel>();
+            RelationMapping mapping = new RelationMapping();
+            JsonArray array = new JsonArray();
+            for(StackMobModel model : batch) {
+                try {
+                    array.add(model.toJsonElement(0, mapping));
+                    byID.put(model.getID(), model);
+                }
+                catch(RuntimeException e) {
+                    progress.failed(keyFor(model.getID()), new StackMobException(e.getMessage()));
+                }
+            }
+            if(byID.isEmpty()) {
+                finish(done);
+                return;
+            }
+            final String body = array.toString();
+            List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+            if(!mapping.isEmpty()) headers.add(new Pair<String, String>("X-StackMob-Relations", mapping.toHeaderString()));
+            final long start = System.currentTimeMillis();
+            StackMobRequestSendResult result = StackMob.getStackMob().post(schemaName, body, headers, new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    sizer.recordSuccess(byID.size(), body.length(), System.currentTimeMillis() - start);
+                    handleResponse(responseBody, byID, done);
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    sizer.recordFailure();
+                    failAll(byID.keySet(), e);
+                    finish(done);
+                }
+            });
+            if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+                failAll(byID.keySet(), new StackMobException(result.getFailureReason().getMessage()));
+                finish(done);
+            }
+        }
+
+        private void handleResponse(String responseBody, Map<String, StackMobModel> byID, final Runnable done) {
+            String idField = byID.values().iterator().next().getIDFieldName();
+            Map<String, StackMobModel> unaccounted = new HashMap<String, StackMobModel>(byID);
+            try {
+                JsonElement json = new JsonParser().parse(responseBody);
+                if(json.isJsonArray()) {
+                    //the created objects themselves, server fields and all
+                    for(JsonElement created : json.getAsJsonArray()) {
+                        JsonElement idJson = created.getAsJsonObject().get(idField);
+                        StackMobModel model = idJson == null ? null : unaccounted.remove(idJson.getAsString());
+                        if(model != null) {
+                            try {
+                                model.fillFromJson(created, SERVER_FIELDS);
+                            }
+                            catch(StackMobException e) {
+                                //saved all the same
+                                StackMob.getLogger().logWarning("Couldn't read server fields for %s: %s", model.getID(), e.getMessage());
+                            }
+                            saved(model, created.toString());
+                            progress.succeeded(keyFor(model.getID()));
+                        }
+                    }
+                }
+                else if(json.isJsonObject() && json.getAsJsonObject().has("succeeded")) {
+                    //just the ids, so the server fields need another (select only) round trip
+                    JsonObject summary = json.getAsJsonObject();
+                    final List<StackMobModel> created = new ArrayList<StackMobModel>();
+                    for(JsonElement idJson : summary.getAsJsonArray("succeeded")) {
+                        StackMobModel model = unaccounted.remove(idJson.getAsString());
+                        if(model != null) {
+                            created.add(model);
+                            progress.succeeded(keyFor(model.getID()));
+                        }
+                    }
+                    if(summary.has("failed")) {
+                        for(JsonElement failed : summary.getAsJsonArray("failed")) {
+                            JsonElement idJson = failed.isJsonObject() ? failed.getAsJsonObject().get(idField) : failed;
+                            if(idJson != null && unaccounted.remove(idJson.getAsString()) != null) {
+                                progress.failed(keyFor(idJson.getAsString()), new StackMobException("the server rejected " + failed.toString()));
+                            }
+                        }
+                    }
+                    failAll(unaccounted.keySet(), new StackMobException("missing from the bulk response"));
+                    fetchServerFields(created, done);
+                    return;
+                }
+                else {
+                    unaccounted.clear();
+                    failAll(byID.keySet(), new StackMobException("unexpected bulk response " + responseBody));
+                }
+            }
+            catch(RuntimeException e) {
+                failAll(unaccounted.keySet(), new StackMobException(e.getMessage()));
+                unaccounted.clear();
+            }
+            failAll(unaccounted.keySet(), new StackMobException("missing from the bulk response"));
+            finish(done);
+        }
+
+        private void fetchServerFields(final List<StackMobModel> created, final Runnable done) {
+            if(created.isEmpty()) {
+                finish(done);
+                return;
+            }
+            //stay inside this batch's slot, so don't add any concurrency of our own
+            new BatchFetch<StackMobModel>(created, SERVER_FIELDS, new StackMobQueryCallback<StackMobModel>() {
+                @Override
+                public void success(List<StackMobModel> result) {
+                    savedAll(created);
+                    finish(done);
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    //the objects were saved, we just don't know their server fields
+                    StackMob.getLogger().logWarning("Couldn't fetch server fields after a bulk save: %s", e.getMessage());
+                    savedAll(created);
+                    finish(done);
+                }
+            }).send(1);
+        }
+
+        private void savedAll(List<StackMobModel> created) {
+            for(StackMobModel model : created) {
+                saved(model, model.toJsonElement(0, new RelationMapping()).toString());
+            }
+        }
+
+        private void saved(StackMobModel model, String serverJson) {
+            if(savedListener != null) savedListener.saved(model, serverJson);
+        }
+
+        private String keyFor(String id) {
+            return schemaName + "/" + id;
+        }
+
+        private void failAll(Collection<String> ids, StackMobException e) {
+            List<String> keys = new ArrayList<String>();
+            for(String id : ids) {
+                keys.add(keyFor(id));
+            }
+            progress.failed(keys, e);
+        }
+
+        private void finish(Runnable done) {
+            progress.completed(batch.size());
+            done.run();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.callback.StackMobStreamCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.Pair;
+
+import java.util.*;
+
+/**
+ * Joins the results of a query with objects of another type whose field matches a field of each result.
+ * The left side is read a batch at a time; the distinct keys of each batch are looked up on the right side with
+ * a {@link StackMobBatchLoader}, and the pairs are emitted before the next batch is read, so only one batch is
+ * ever held in memory.
+ */
+class ClientJoin<T extends StackMobModel, R extends StackMobModel> {
+
+    //the loader is flushed by hand as soon as a batch's keys are in, which cancels its window before it runs out
+    private static final long LOADER_WINDOW_MILLIS = 60 * 1000;
+
+    private final StackMobModelQuery<T> left;
+    private final StackMobQuery template;
+    private final String leftField;
+    private final StackMobBatchLoader<R> rightLoader;
+    private final int batchSize;
+    private final StackMobStreamCallback<Pair<T, R>> callback;
+    private int nextStart = 0;
+
+    ClientJoin(StackMobModelQuery<T> left, String leftField, Class<R> rightClass, String rightField, int batchSize, int maxConcurrentRequests, StackMobStreamCallback<Pair<T, R>> callback) {
+        if(batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.left = left;
+        StackMobQuery query = left.getQuery();
+        this.template = new StackMobQuery(query.getObjectName()).add(query);
+        if(!template.getHeaders().containsKey(StackMobQuery.OrderByHeader)) {
+            //paging through an unordered result could skip or repeat objects
+            template.fieldIsOrderedBy(left.getIDFieldName(), StackMobQuery.Ordering.ASCENDING);
+        }
+        this.leftField = leftField;
+        this.rightLoader = new StackMobBatchLoader<R>(rightClass, rightField, LOADER_WINDOW_MILLIS, batchSize, maxConcurrentRequests);
+        this.batchSize = batchSize;
+        this.callback = callback;
+    }
+
+    void send() {
+        StackMobQuery query = new StackMobQuery(template.getObjectName()).add(template).isInRange(nextStart, nextStart + batchSize - 1);
+        StackMobRequestSendResult result = StackMob.getStackMob().get(query, new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                JsonArray page;
+                try {
+                    page = new JsonParser().parse(responseBody).getAsJsonArray();
+                }
+                catch(RuntimeException e) {
+                    failure(new StackMobException(e.getMessage()));
+                    return;
+                }
+                nextStart += page.size();
+                resolve(page, page.size() == batchSize);
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                callback.failure(e);
+            }
+        });
+        if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+            callback.failure(new StackMobException(result.getFailureReason().getMessage()));
+        }
+    }
+
+    private void resolve(JsonArray page, final boolean more) {
+        final List<T> leftModels = new ArrayList<T>();
+        final List<String> leftKeys = new ArrayList<String>();
+        for(JsonElement elt : page) {
+            JsonElement key = elt.getAsJsonObject().get(leftField);
+            if(key == null || !key.isJsonPrimitive()) continue;
+            T model = left.parseResult(elt);
+            if(model == null) continue;
+            leftModels.add(model);
+            leftKeys.add(key.getAsString());
+        }
+        final Set<String> distinct = new LinkedHashSet<String>(leftKeys);
+        if(distinct.isEmpty()) {
+            next(more);
+            return;
+        }
+        final Map<String, List<R>> rightByKey = new HashMap<String, List<R>>();
+        final StackMobException[] firstFailure = new StackMobException[1];
+        for(final String key : distinct) {
+            rightLoader.load(key, new StackMobQueryCallback<R>() {
+                @Override
+                public void success(List<R> result) {
+                    answered(key, result, null);
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    answered(key, null, e);
+                }
+
+                private void answered(String key, List<R> result, StackMobException e) {
+                    synchronized(rightByKey) {
+                        if(e != null && firstFailure[0] == null) firstFailure[0] = e;
+                        rightByKey.put(key, result);
+                        if(rightByKey.size() < distinct.size()) return;
+                    }
+                    if(firstFailure[0] != null) {
+                        callback.failure(firstFailure[0]);
+                        return;
+                    }
+                    emit(leftModels, leftKeys, rightByKey);
+                    next(more);
+                }
+            });
+        }
+        rightLoader.flush();
+    }
+
+    private void emit(List<T> leftModels, List<String> leftKeys, Map<String, List<R>> rightByKey) {
+        List<Pair<T, R>> pairs = new ArrayList<Pair<T, R>>();
+        for(int i = 0; i < leftModels.size(); i++) {
+            for(R right : rightByKey.get(leftKeys.get(i))) {
+                pairs.add(new Pair<T, R>(leftModels.get(i), right));
+            }
+        }
+        if(!pairs.isEmpty()) {
+            callback.results(pairs);
+        }
+    }
+
+    private void next(boolean more) {
+        if(more) {
+            send();
+        }
+        else {
+            callback.success();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.util.GeoPoints;
+import com.stackmob.sdk.util.JsonQueryEvaluator;
+
+import java.util.*;
+
+/**
+ * A spatial index of points by id. The globe is cut into a grid of square cells of lat/lon degrees, so a radius or
+ * box only has to look at the points in the cells it overlaps. Distances are in radians, like NEAR and WITHIN.
+ * Points are packed into one array and each cell holds slots into it, so the distance math runs on the
+ * {@link GeoPoints} kernels.
+ */
+class GeoGridIndex {
+
+    /**
+     * A growable list of ints
+     */
+    private static class IntBag {
+        int[] items = new int[4];
+        int size = 0;
+
+        void add(int item) {
+            if(size == items.length) items = Arrays.copyOf(items, size * 2);
+            items[size++] = item;
+        }
+
+        void remove(int item) {
+            for(int i = 0; i < size; i++) {
+                if(items[i] == item) {
+                    items[i] = items[--size];
+                    return;
+                }
+            }
+        }
+
+        void addAll(IntBag other) {
+            if(size + other.size > items.length) items = Arrays.copyOf(items, Math.max(items.length * 2, size + other.size));
+            System.arraycopy(other.items, 0, items, size, other.size);
+            size += other.size;
+        }
+    }
+
+    private final double cellDegrees;
+    private final int latCells;
+    private final int lonCells;
+    private final Map<Long, IntBag> cells = new HashMap<Long, IntBag>();
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+    //lat, lon of each slot
+    private double[] coords = new double[32];
+    private String[] ids = new String[16];
+    private int slotCount = 0;
+    private final IntBag freeSlots = new IntBag();
+    //reused by every search
+    private final IntBag candidates = new IntBag();
+    private double[] distances = new double[16];
+
+    GeoGridIndex(double cellDegrees) {
+        if(cellDegrees <= 0 || cellDegrees > 90) {
+            throw new IllegalArgumentException("cellDegrees must be more than 0 and at most 90");
+        }
+        this.cellDegrees = cellDegrees;
+        this.latCells = (int) Math.ceil(180 / cellDegrees);
+        this.lonCells = (int) Math.ceil(360 / cellDegrees);
+    }
+
+    void add(String id, double lat, double lon) {
+        remove(id);
+        int slot;
+        if(freeSlots.size > 0) {
+            slot = freeSlots.items[--freeSlots.size];
+        } else {
+            slot = slotCount++;
+            if(slot == ids.length) {
+                ids = Arrays.copyOf(ids, slot * 2);
+                coords = Arrays.copyOf(coords, slot * 4);
+            }
+        }
+        ids[slot] = id;
+        coords[2 * slot] = lat;
+        coords[2 * slot + 1] = lon;
+        slots.put(id, slot);
+        long key = cellKey(latCell(lat), lonCell(lon));
+        IntBag cell = cells.get(key);
+        if(cell == null) {
+            cell = new IntBag();
+            cells.put(key, cell);
+        }
+        cell.add(slot);
+    }
+
+    void remove(String id) {
+        Integer slot = slots.remove(id);
+        if(slot == null) return;
+        long key = cellKey(latCell(coords[2 * slot]), lonCell(coords[2 * slot + 1]));
+        IntBag cell = cells.get(key);
+        cell.remove(slot);
+        if(cell.size == 0) cells.remove(key);
+        ids[slot] = null;
+        freeSlots.add(slot);
+    }
+
+    void clear() {
+        cells.clear();
+        slots.clear();
+        Arrays.fill(ids, null);
+        slotCount = 0;
+        freeSlots.size = 0;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    /**
+     * @return the ids of every point within radians of the center, in no particular order
+     */
+    List<String> withinRadius(double lat, double lon, double radians) {
+        int found = slotsWithinRadius(lat, lon, radians);
+        List<String> result = new ArrayList<String>(found);
+        for(int i = 0; i < found; i++) result.add(ids[candidates.items[i]]);
+        return result;
+    }
+
+    /**
+     * @return the ids of every point in the box, in no particular order
+     */
+    List<String> withinBox(double lowerLat, double lowerLon, double upperLat, double upperLon) {
+        collectCandidates(latCell(lowerLat), latCell(upperLat), lonCell(lowerLon), lonCell(upperLon));
+        List<String> result = new ArrayList<String>();
+        for(int i = 0; i < candidates.size; i++) {
+            int slot = candidates.items[i];
+            if(JsonQueryEvaluator.isInBox(coords[2 * slot], coords[2 * slot + 1], lowerLat, lowerLon, upperLat, upperLon)) result.add(ids[slot]);
+        }
+        return result;
+    }
+
+    /**
+     * @return the ids of the count points closest to the center, closest first
+     */
+    List<String> nearest(double lat, double lon, int count) {
+        double radians = Math.toRadians(cellDegrees);
+        int found = slotsWithinRadius(lat, lon, radians);
+        //grow the circle until it holds enough points, everything outside it is further away than everything inside
+        while(found < Math.min(count, slots.size()) && radians < Math.PI) {
+            radians = Math.min(Math.PI, radians * 2);
+            found = slotsWithinRadius(lat, lon, radians);
+        }
+        if(distances.length < found) distances = new double[Math.max(found, distances.length * 2)];
+        GeoPoints.sortByDistance(lat, lon, coords, candidates.items, found, distances);
+        List<String> result = new ArrayList<String>(Math.min(found, count));
+        for(int i = 0; i < found && i < count; i++) result.add(ids[candidates.items[i]]);
+        return result;
+    }
+
+    /**
+     * leave the slots within radians of the center at the front of candidates
+     * @return how many there are
+     */
+    private int slotsWithinRadius(double lat, double lon, double radians) {
+        double latLo = lat - Math.toDegrees(radians);
+        double latHi = lat + Math.toDegrees(radians);
+        double sinRadius = Math.sin(radians);
+        double cosLat = Math.cos(Math.toRadians(lat));
+        if(radians >= Math.PI / 2 || latLo <= -90 || latHi >= 90 || sinRadius >= cosLat) {
+            //the circle takes in a pole or a whole band of longitude
+            collectCandidates(latCell(Math.max(-90, latLo)), latCell(Math.min(90, latHi)), 0, lonCells - 1);
+        } else {
+            double dLon = Math.toDegrees(Math.asin(sinRadius / cosLat));
+            collectCandidates(latCell(latLo), latCell(latHi), lonCell(lon - dLon), lonCell(lon + dLon));
+        }
+        return GeoPoints.withinRadius(lat, lon, radians, coords, candidates.items, candidates.size, candidates.items);
+    }
+
+    /**
+     * fill candidates with the slots in the cells from latLo to latHi and lonLo to lonHi, wrapping around the 180th
+     * meridian if lonLo is east of lonHi
+     */
+    private void collectCandidates(int latLo, int latHi, int lonLo, int lonHi) {
+        candidates.size = 0;
+        int lonSpan = lonLo <= lonHi ? lonHi - lonLo + 1 : lonCells - lonLo + lonHi + 1;
+        long cellCount = (long) (latHi - latLo + 1) * lonSpan;
+        if(cellCount > cells.size()) {
+            //fewer cells have points than the area covers, so check those instead
+            for(Map.Entry<Long, IntBag> cell : cells.entrySet()) {
+                int latCell = (int) (cell.getKey() / lonCells);
+                int lonCell = (int) (cell.getKey() % lonCells);
+                boolean lonInRange = lonLo <= lonHi ? lonCell >= lonLo && lonCell <= lonHi : lonCell >= lonLo || lonCell <= lonHi;
+                if(latCell >= latLo && latCell <= latHi && lonInRange) candidates.addAll(cell.getValue());
+            }
+            return;
+        }
+        for(int latCell = latLo; latCell <= latHi; latCell++) {
+            for(int i = 0; i < lonSpan; i++) {
+                IntBag cell = cells.get(cellKey(latCell, (lonLo + i) % lonCells));
+                if(cell != null) candidates.addAll(cell);
+            }
+        }
+    }
+
+    private int latCell(double lat) {
+        return Math.max(0, Math.min(latCells - 1, (int) Math.floor((lat + 90) / cellDegrees)));
+    }
+
+    private int lonCell(double lon) {
+        double normalized = ((lon + 180) % 360 + 360) % 360;
+        return Math.min(lonCells - 1, (int) Math.floor(normalized / cellDegrees));
+    }
+
+    private long cellKey(int latCell, int lonCell) {
+        return (long) latCell * lonCells + lonCell;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.callback.StackMobAggregationCallback;
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.*;
+
+/**
+ * Runs a {@link StackMobAggregation} over a query with a {@link PartitionedRead}. Each partition folds into its own
+ * partial result, and the partials are merged at the end.
+ */
+class ParallelAggregation extends PartitionedRead {
+
+    private final StackMobAggregation aggregation;
+    private final StackMobAggregationCallback callback;
+    private final StackMobAggregationResult result;
+    private final StackMobAggregationResult[] partials;
+
+    ParallelAggregation(StackMobModelQuery<?> modelQuery, StackMobAggregation aggregation, int partitions, int pageSize, StackMobAggregationCallback callback) {
+        super(modelQuery, partitions, pageSize);
+        this.aggregation = aggregation;
+        List<String> selection = aggregation.getSelection();
+        template.select(selection.isEmpty() ? Arrays.asList(modelQuery.getIDFieldName()) : selection);
+        this.callback = callback;
+        this.result = aggregation.newResult();
+        this.partials = new StackMobAggregationResult[partitions];
+        for(int i = 0; i < partitions; i++) {
+            partials[i] = aggregation.newResult();
+        }
+    }
+
+    @Override
+    void page(int partition, int start, int end, String responseBody) throws Exception {
+        //each partition reads one page at a time, so its partial is never folded into concurrently
+        aggregation.fold(responseBody, partials[partition]);
+    }
+
+    @Override
+    synchronized void partitionDone(int partition) {
+        result.merge(partials[partition]);
+    }
+
+    @Override
+    void succeeded(int total) {
+        callback.success(result);
+    }
+
+    @Override
+    void failed(StackMobException e) {
+        callback.failure(e);
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.callback.StackMobScanCallback;
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.*;
+
+/**
+ * Reads everything a query matches with a {@link PartitionedRead}. The results can be delivered as they arrive or
+ * in order.
+ */
+class ParallelScan<T extends StackMobModel> extends PartitionedRead {
+
+    private final StackMobModelQuery<T> modelQuery;
+    private final boolean inOrder;
+    private final StackMobScanCallback<T> callback;
+
+    private final Object deliveryLock = new Object();
+    //only used in order: pages waiting on an earlier page, by start
+    private final TreeMap<Integer, Delivery> waiting = new TreeMap<Integer, Delivery>();
+    private int nextStart = 0;
+    private volatile int total;
+
+    private class Delivery {
+        final int partition;
+        final List<T> objects;
+
+        Delivery(int partition, List<T> objects) {
+            this.partition = partition;
+            this.objects = objects;
+        }
+    }
+
+    ParallelScan(StackMobModelQuery<T> modelQuery, int partitions, int pageSize, boolean inOrder, StackMobScanCallback<T> callback) {
+        super(modelQuery, partitions, pageSize);
+        this.modelQuery = modelQuery;
+        this.inOrder = inOrder;
+        this.callback = callback;
+    }
+
+    @Override
+    void counted(int total) {
+        this.total = total;
+    }
+
+    @Override
+    void page(int partition, int start, int end, String responseBody) {
+        List<T> objects = modelQuery.parseResults(responseBody);
+        synchronized(deliveryLock) {
+            if(!inOrder) {
+                callback.page(partition, start, objects);
+                return;
+            }
+            waiting.put(start, new Delivery(partition, objects));
+            while(!waiting.isEmpty() && waiting.firstKey() == nextStart) {
+                Delivery delivery = waiting.remove(nextStart);
+                callback.page(delivery.partition, nextStart, delivery.objects);
+                //pages are always full length except at the end of a partition, where the next partition starts
+                nextStart = nextStart + pageSizeAt(nextStart);
+            }
+        }
+    }
+
+    @Override
+    void succeeded(int total) {
+        callback.success(total);
+    }
+
+    @Override
+    void failed(StackMobException e) {
+        callback.failure(e);
+    }
+
+    private int pageSizeAt(int start) {
+        int partitionSize = getPartitionSize(total);
+        int partitionEnd = Math.min(total, (start / partitionSize + 1) * partitionSize);
+        return Math.min(getPageSize(), partitionEnd - start);
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobCountCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.ThrottledRequestQueue;
+
+/**
+ * Reads everything a query matches by counting it, splitting [0, total) into contiguous partitions and walking
+ * the partitions concurrently, each a page at a time. Subclasses decide what to do with each page and with the
+ * outcome; the first failure stops every partition and is reported once they've all stopped.
+ */
+abstract class PartitionedRead {
+
+    protected final StackMobQuery template;
+    private final int partitions;
+    private final int pageSize;
+    private volatile StackMobException firstFailure = null;
+
+    PartitionedRead(StackMobModelQuery<?> modelQuery, int partitions, int pageSize) {
+        if(partitions < 1 || pageSize < 1) {
+            throw new IllegalArgumentException("partitions and pageSize must be at least 1");
+        }
+        StackMobQuery query = modelQuery.getQuery();
+        this.template = new StackMobQuery(query.getObjectName()).add(query);
+        if(!template.getHeaders().containsKey(StackMobQuery.OrderByHeader)) {
+            //ranges over an unordered result aren't guaranteed to line up with each other
+            template.fieldIsOrderedBy(modelQuery.getIDFieldName(), StackMobQuery.Ordering.ASCENDING);
+        }
+        this.partitions = partitions;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * called with the count, before any page is read. does nothing unless overridden
+     * @param total how many results the query matched
+     */
+    void counted(int total) { }
+
+    /**
+     * handle one page of results. throwing fails the whole read
+     * @param partition the partition the page is in
+     * @param start the index of the first result on the page
+     * @param end one past the index of the last result asked for
+     * @param responseBody the page
+     */
+    abstract void page(int partition, int start, int end, String responseBody) throws Exception;
+
+    /**
+     * called once every page of a partition has been handled, unless the read failed first
+     * @param partition the partition
+     */
+    void partitionDone(int partition) { }
+
+    /**
+     * called once when every partition is done
+     * @param total how many results the query matched
+     */
+    abstract void succeeded(int total);
+
+    /**
+     * called once instead of {@link #succeeded(int)} if the count or any page failed
+     * @param e the first failure
+     */
+    abstract void failed(StackMobException e);
+
+    void send(final int maxConcurrentRequests) {
+        StackMobRequestSendResult result = StackMob.getStackMob().count(template, new StackMobCountCallback() {
+            @Override
+            public void success(int count) {
+                read(count, maxConcurrentRequests);
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                failed(e);
+            }
+        });
+        if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+            failed(new StackMobException(result.getFailureReason().getMessage()));
+        }
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return how many results each partition but the last covers
+     */
+    int getPartitionSize(int total) {
+        return (total + partitions - 1) / partitions;
+    }
+
+    private void read(final int total, int maxConcurrentRequests) {
+        counted(total);
+        ThrottledRequestQueue queue = new ThrottledRequestQueue(maxConcurrentRequests);
+        int partitionSize = getPartitionSize(total);
+        for(int i = 0; i < partitions && i * partitionSize < total; i++) {
+            queue.add(new PartitionRequest(i, i * partitionSize, Math.min(total, (i + 1) * partitionSize)));
+        }
+        queue.start(new Runnable() {
+            @Override
+            public void run() {
+                if(firstFailure != null) {
+                    failed(firstFailure);
+                }
+                else {
+                    succeeded(total);
+                }
+            }
+        });
+    }
+
+    private synchronized void recordFailure(StackMobException e) {
+        if(firstFailure == null) firstFailure = e;
+    }
+
+    /**
+     * walks one partition a page at a time, and holds its slot in the queue until it's done
+     */
+    private class PartitionRequest extends ThrottledRequestQueue.Request {
+        private final int partition;
+        private final int end;
+        private int start;
+        private Runnable done;
+
+        PartitionRequest(int partition, int start, int end) {
+            this.partition = partition;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public void send(Runnable done) {
+            this.done = done;
+            sendPage();
+        }
+
+        private void sendPage() {
+            if(firstFailure != null) {
+                done.run();
+                return;
+            }
+            if(start >= end) {
+                partitionDone(partition);
+                done.run();
+                return;
+            }
+            final int pageStart = start;
+            final int pageEnd = Math.min(end, start + pageSize);
+            StackMobQuery query = new StackMobQuery(template.getObjectName()).add(template).isInRange(pageStart, pageEnd - 1);
+            StackMobRequestSendResult result = StackMob.getStackMob().get(query, new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    try {
+                        page(partition, pageStart, pageEnd, responseBody);
+                    }
+                    catch(Exception e) {
+                        failure(new StackMobException(e.getMessage()));
+                        return;
+                    }
+                    start = pageEnd;
+                    sendPage();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    recordFailure(e);
+                    done.run();
+                }
+            });
+            if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+                recordFailure(new StackMobException(result.getFailureReason().getMessage()));
+                done.run();
+            }
+        }
+    }
+}
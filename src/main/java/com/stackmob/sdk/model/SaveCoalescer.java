@@ -0,0 +1,276 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobBulkCallback;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobBulkException;
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind for {@link StackMobModel#save()}. Saves of the same (schema, id) are collapsed into one, which goes
+ * out with the latest state of the object no later than the delay after the first of them. Reaching the maximum
+ * number of pending objects, or calling {@link #flush()}, sends everything pending at once as bulk saves.
+ * Every callback that was collapsed gets the result of the save that finally went out.
+ *
+ * Only one save of an object is out at a time. Saves that come due while one is in flight wait for it, collapsed
+ * into one again, so the server never sees an older state of the object land after a newer one.
+ */
+class SaveCoalescer {
+
+    private final long delayMillis;
+    private final int maxPending;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final Map<String, Pending> pending = new LinkedHashMap<String, Pending>();
+    //the objects with a save out right now
+    private final Set<String> inFlight = new HashSet<String>();
+    //saves that came due while one of the same object was out
+    private final Map<String, Pending> waiting = new HashMap<String, Pending>();
+
+    private static class Pending {
+        final String key;
+        StackMobModel model;
+        int depth;
+        final List<StackMobCallback> callbacks = new ArrayList<StackMobCallback>();
+        ScheduledFuture<?> timer;
+
+        Pending(String key) {
+            this.key = key;
+        }
+
+        void add(StackMobModel model, int depth, List<StackMobCallback> callbacks) {
+            this.model = model;
+            this.depth = Math.max(this.depth, depth);
+            this.callbacks.addAll(callbacks);
+        }
+    }
+
+    SaveCoalescer(long delayMillis, int maxPending) {
+        this.delayMillis = delayMillis;
+        this.maxPending = maxPending;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "StackMob save coalescer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    void save(StackMobModel model, int depth, StackMobCallback callback) {
+        if(model.getID() == null) {
+            //the id is what we coalesce on, so assign it now rather than at serialization
+            model.setID(UUID.randomUUID().toString().replace("-", ""));
+        }
+        final String key = model.getSchemaName() + "/" + model.getID();
+        List<Pending> toFlush = null;
+        synchronized(this) {
+            Pending entry = pending.get(key);
+            if(entry == null) {
+                final Pending newEntry = new Pending(key);
+                entry = newEntry;
+                pending.put(key, newEntry);
+                newEntry.timer = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushEntry(key, newEntry);
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            }
+            entry.add(model, depth, Collections.singletonList(callback));
+            if(pending.size() >= maxPending) {
+                toFlush = drain();
+            }
+        }
+        if(toFlush != null) {
+            send(toFlush);
+        }
+    }
+
+    /**
+     * send everything that's pending right now
+     */
+    void flush() {
+        List<Pending> toFlush;
+        synchronized(this) {
+            toFlush = drain();
+        }
+        send(toFlush);
+    }
+
+    void shutdown() {
+        flush();
+        scheduler.shutdown();
+    }
+
+    private void flushEntry(String key, Pending entry) {
+        synchronized(this) {
+            //it may have gone out with a batch already, and a newer entry may have taken its place
+            if(pending.get(key) != entry) {
+                return;
+            }
+            pending.remove(key);
+            if(!claim(entry)) return;
+        }
+        sendAlone(entry);
+    }
+
+    //call with the lock held. returns what can go out now
+    private List<Pending> drain() {
+        List<Pending> drained = new ArrayList<Pending>();
+        for(Pending entry : pending.values()) {
+            entry.timer.cancel(false);
+            if(claim(entry)) drained.add(entry);
+        }
+        if(!pending.isEmpty()) {
+            //a cancelled timer otherwise stays queued, holding its entry, until its delay runs out
+            scheduler.purge();
+        }
+        pending.clear();
+        return drained;
+    }
+
+    /**
+     * @return how many timers are waiting to run out
+     */
+    int getScheduledCount() {
+        return scheduler.getQueue().size();
+    }
+
+    /**
+     * call with the lock held
+     * @return whether the entry can go out now. if a save of the same object is out, it waits for that one instead
+     */
+    private boolean claim(Pending entry) {
+        if(inFlight.add(entry.key)) return true;
+        Pending next = waiting.get(entry.key);
+        if(next == null) {
+            waiting.put(entry.key, entry);
+        } else {
+            next.add(entry.model, entry.depth, entry.callbacks);
+        }
+        return false;
+    }
+
+    /**
+     * a save of this object is done, so send whatever waited for it
+     */
+    private void finished(String key) {
+        Pending next;
+        synchronized(this) {
+            next = waiting.remove(key);
+            if(next == null) {
+                inFlight.remove(key);
+                return;
+            }
+        }
+        sendAlone(next);
+    }
+
+    private void sendAlone(Pending entry) {
+        FanOutCallback callback = new FanOutCallback(entry);
+        StackMobRequestSendResult result = entry.model.sendSave(entry.depth, callback);
+        if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+            callback.failure(new StackMobException(result.getFailureReason().getMessage()));
+        }
+    }
+
+    private void send(List<Pending> entries) {
+        //bulk saves only go one level deep, so anything deeper goes out on its own
+        final Map<String, Pending> bulk = new HashMap<String, Pending>();
+        List<StackMobModel> bulkModels = new ArrayList<StackMobModel>();
+        for(Pending entry : entries) {
+            if(entry.depth > 0) {
+                sendAlone(entry);
+            }
+            else {
+                bulk.put(entry.key, entry);
+                bulkModels.add(entry.model);
+            }
+        }
+        if(bulkModels.isEmpty()) {
+            return;
+        }
+        final Map<String, String> serverJson = Collections.synchronizedMap(new HashMap<String, String>());
+        new BatchSave(bulkModels, new StackMobBulkCallback() {
+            @Override
+            public void success(List<String> keys) {
+                for(Map.Entry<String, Pending> entry : bulk.entrySet()) {
+                    new FanOutCallback(entry.getValue()).success(serverJson.get(entry.getKey()));
+                }
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                Map<String, StackMobException> failures = e instanceof StackMobBulkException ? ((StackMobBulkException) e).getFailures() : null;
+                for(Map.Entry<String, Pending> entry : bulk.entrySet()) {
+                    StackMobException reason = failures == null ? e : failures.get(entry.getKey());
+                    String json = serverJson.get(entry.getKey());
+                    if(reason == null && json != null) {
+                        new FanOutCallback(entry.getValue()).success(json);
+                    }
+                    else {
+                        new FanOutCallback(entry.getValue()).failure(reason == null ? e : reason);
+                    }
+                }
+            }
+        }).setSavedListener(new BatchSave.SavedListener() {
+            @Override
+            public void saved(StackMobModel model, String json) {
+                //what a single save would have handed its callback
+                serverJson.put(model.getSchemaName() + "/" + model.getID(), json);
+            }
+        }).send(StackMobModel.DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    private class FanOutCallback extends StackMobCallback {
+        private final Pending entry;
+
+        FanOutCallback(Pending entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void success(String responseBody) {
+            try {
+                for(StackMobCallback callback : entry.callbacks) {
+                    callback.success(responseBody);
+                }
+            } finally {
+                finished(entry.key);
+            }
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            try {
+                for(StackMobCallback callback : entry.callbacks) {
+                    callback.failure(e);
+                }
+            } finally {
+                finished(entry.key);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+
+/**
+ * What to aggregate over the results of a query: the numeric fields to sum, min, max and average, and optionally a
+ * field to group by. Example usage:
+ * <code>
+ *     query.aggregate(new StackMobAggregation("price", "quantity").groupBy("category"), callback);
+ * </code>
+ *
+ * Only these fields are selected, and responses are read a token at a time straight into primitive accumulators,
+ * so no model objects are created.
+ */
+public class StackMobAggregation {
+
+    private final List<String> fields;
+    //the index of each field, resolved once rather than searching the list for every name in every object
+    private final Map<String, Integer> fieldIndexes = new HashMap<String, Integer>();
+    private String groupBy = null;
+
+    /**
+     * @param fields the numeric fields to aggregate. none is fine if all you need is counts
+     */
+    public StackMobAggregation(String... fields) {
+        this.fields = Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(fields)));
+        for(int i = this.fields.size() - 1; i >= 0; i--) {
+            //walking backwards, the first of any repeated field wins and later copies are ignored
+            fieldIndexes.put(this.fields.get(i), i);
+        }
+    }
+
+    /**
+     * aggregate each value of this field separately
+     * @param field the field to group by
+     * @return this aggregation
+     */
+    public StackMobAggregation groupBy(String field) {
+        this.groupBy = field;
+        return this;
+    }
+
+    List<String> getSelection() {
+        List<String> selection = new ArrayList<String>(fields);
+        if(groupBy != null && !selection.contains(groupBy)) selection.add(groupBy);
+        return selection;
+    }
+
+    StackMobAggregationResult newResult() {
+        return new StackMobAggregationResult(fields);
+    }
+
+    /**
+     * fold a page of results into a partial result
+     * @param json the page, a JSON array of objects
+     * @param into the partial result to add to
+     * @return how many objects were on the page
+     */
+    int fold(String json, StackMobAggregationResult into) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        double[] values = new double[fields.size()];
+        boolean[] present = new boolean[fields.size()];
+        int objects = 0;
+        reader.beginArray();
+        while(reader.hasNext()) {
+            Arrays.fill(present, false);
+            String group = null;
+            reader.beginObject();
+            while(reader.hasNext()) {
+                String name = reader.nextName();
+                Integer index = fieldIndexes.get(name);
+                if(index != null && reader.peek() == JsonToken.NUMBER) {
+                    //read as text so a field can be both aggregated and grouped by
+                    String number = reader.nextString();
+                    values[index] = Double.parseDouble(number);
+                    present[index] = true;
+                    if(name.equals(groupBy)) group = number;
+                }
+                else if(name.equals(groupBy)) {
+                    group = readGroup(reader);
+                }
+                else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            StackMobAggregationResult.Accumulator accumulator = into.accumulatorFor(group);
+            accumulator.count++;
+            for(int i = 0; i < values.length; i++) {
+                if(present[i]) accumulator.add(i, values[i]);
+            }
+            objects++;
+        }
+        reader.endArray();
+        return objects;
+    }
+
+    private static String readGroup(JsonReader reader) throws IOException {
+        switch(reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return Boolean.toString(reader.nextBoolean());
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import java.util.*;
+
+/**
+ * The count of objects, and the sum, min, max and average of each aggregated field, for each group. Without a
+ * group by there's a single group, null. The methods that don't take a group cover every group together.
+ * Objects whose field is missing or isn't a number are counted but don't contribute to that field's statistics,
+ * and a field with no values has NaN statistics.
+ */
+public class StackMobAggregationResult {
+
+    static class Accumulator {
+        long count = 0;
+        final long[] valueCounts;
+        final double[] sums;
+        final double[] mins;
+        final double[] maxs;
+
+        Accumulator(int fields) {
+            valueCounts = new long[fields];
+            sums = new double[fields];
+            mins = new double[fields];
+            maxs = new double[fields];
+            Arrays.fill(mins, Double.POSITIVE_INFINITY);
+            Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+        }
+
+        void add(int field, double value) {
+            valueCounts[field]++;
+            sums[field] += value;
+            if(value < mins[field]) mins[field] = value;
+            if(value > maxs[field]) maxs[field] = value;
+        }
+
+        void merge(Accumulator other) {
+            count += other.count;
+            for(int i = 0; i < sums.length; i++) {
+                valueCounts[i] += other.valueCounts[i];
+                sums[i] += other.sums[i];
+                mins[i] = Math.min(mins[i], other.mins[i]);
+                maxs[i] = Math.max(maxs[i], other.maxs[i]);
+            }
+        }
+    }
+
+    private final List<String> fields;
+    private final Map<String, Accumulator> groups = new LinkedHashMap<String, Accumulator>();
+
+    StackMobAggregationResult(List<String> fields) {
+        this.fields = fields;
+    }
+
+    Accumulator accumulatorFor(String group) {
+        Accumulator accumulator = groups.get(group);
+        if(accumulator == null) {
+            accumulator = new Accumulator(fields.size());
+            groups.put(group, accumulator);
+        }
+        return accumulator;
+    }
+
+    /**
+     * fold another partial result into this one
+     */
+    void merge(StackMobAggregationResult other) {
+        for(Map.Entry<String, Accumulator> group : other.groups.entrySet()) {
+            accumulatorFor(group.getKey()).merge(group.getValue());
+        }
+    }
+
+    /**
+     * @return the value of the group by field for each group seen. null stands for objects without one
+     */
+    public Set<String> getGroups() {
+        return Collections.unmodifiableSet(groups.keySet());
+    }
+
+    public long getCount() {
+        return total().count;
+    }
+
+    public long getCount(String group) {
+        return group(group).count;
+    }
+
+    public double getSum(String field) {
+        return sum(total(), field);
+    }
+
+    public double getSum(String group, String field) {
+        return sum(group(group), field);
+    }
+
+    public double getMin(String field) {
+        return min(total(), field);
+    }
+
+    public double getMin(String group, String field) {
+        return min(group(group), field);
+    }
+
+    public double getMax(String field) {
+        return max(total(), field);
+    }
+
+    public double getMax(String group, String field) {
+        return max(group(group), field);
+    }
+
+    public double getAverage(String field) {
+        return average(total(), field);
+    }
+
+    public double getAverage(String group, String field) {
+        return average(group(group), field);
+    }
+
+    private Accumulator group(String group) {
+        Accumulator accumulator = groups.get(group);
+        return accumulator == null ? new Accumulator(fields.size()) : accumulator;
+    }
+
+    private Accumulator total() {
+        Accumulator total = new Accumulator(fields.size());
+        for(Accumulator accumulator : groups.values()) {
+            total.merge(accumulator);
+        }
+        return total;
+    }
+
+    private int index(String field) {
+        int index = fields.indexOf(field);
+        if(index < 0) {
+            throw new IllegalArgumentException(field + " wasn't aggregated");
+        }
+        return index;
+    }
+
+    private double sum(Accumulator accumulator, String field) {
+        int i = index(field);
+        return accumulator.valueCounts[i] == 0 ? Double.NaN : accumulator.sums[i];
+    }
+
+    private double min(Accumulator accumulator, String field) {
+        int i = index(field);
+        return accumulator.valueCounts[i] == 0 ? Double.NaN : accumulator.mins[i];
+    }
+
+    private double max(Accumulator accumulator, String field) {
+        int i = index(field);
+        return accumulator.valueCounts[i] == 0 ? Double.NaN : accumulator.maxs[i];
+    }
+
+    private double average(Accumulator accumulator, String field) {
+        int i = index(field);
+        return accumulator.valueCounts[i] == 0 ? Double.NaN : accumulator.sums[i] / accumulator.valueCounts[i];
+    }
+}
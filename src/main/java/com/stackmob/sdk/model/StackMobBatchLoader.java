@@ -0,0 +1,322 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobLogger;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobRequest;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.ListHelpers;
+import com.stackmob.sdk.util.ThrottledRequestQueue;
+
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects lookups of one type by one field and sends them together as IN queries. Lookups are held for up to
+ * the window after the first of them, or until the batch is full, and the same key asked for twice is only sent
+ * once. Example usage:
+ * <code>
+ *     StackMobBatchLoader&lt;Task&gt; tasks = StackMobBatchLoader.forID(Task.class, 10, 100);
+ *     tasks.load(taskId, new StackMobQueryCallback&lt;Task&gt;() { ... });
+ * </code>
+ *
+ * Each callback gets the objects whose field equals its key, which is an empty list if there aren't any.
+ */
+public class StackMobBatchLoader<T extends StackMobModel> {
+
+    //room in the URL for everything but the key list: scheme, host, path, operator and the other arguments
+    private static final int URL_OVERHEAD = 300;
+    //objects per request when looking up by a field other than the id
+    static final int PAGE_SIZE = 200;
+
+    private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "StackMob batch loader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final StackMobModelQuery<T> modelQuery;
+    private final String field;
+    private final boolean isIDField;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final int maxConcurrentRequests;
+
+    private Map<String, List<StackMobQueryCallback<T>>> pending = new LinkedHashMap<String, List<StackMobQueryCallback<T>>>();
+    private ScheduledFuture<?> windowTimer;
+
+    /**
+     * @param classOfT the type to load
+     * @param field the field to look objects up by
+     * @param windowMillis how long to collect lookups before sending them
+     * @param maxBatchSize how many distinct keys to collect before sending them right away
+     */
+    public StackMobBatchLoader(Class<T> classOfT, String field, long windowMillis, int maxBatchSize) {
+        this(classOfT, field, windowMillis, maxBatchSize, StackMobModel.DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    /**
+     * @param classOfT the type to load
+     * @param field the field to look objects up by
+     * @param windowMillis how long to collect lookups before sending them
+     * @param maxBatchSize how many distinct keys to collect before sending them right away
+     * @param maxConcurrentRequests the most queries to have in flight at once for one batch
+     */
+    public StackMobBatchLoader(Class<T> classOfT, String field, long windowMillis, int maxBatchSize, int maxConcurrentRequests) {
+        if(windowMillis < 0 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("windowMillis can't be negative and maxBatchSize must be at least 1");
+        }
+        this.modelQuery = new StackMobModelQuery<T>(classOfT);
+        this.field = field;
+        this.isIDField = field.equals(modelQuery.getIDFieldName());
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * a loader that looks objects up by id
+     * @param classOfT the type to load
+     * @param windowMillis how long to collect lookups before sending them
+     * @param maxBatchSize how many distinct ids to collect before sending them right away
+     * @return the loader
+     */
+    public static <T extends StackMobModel> StackMobBatchLoader<T> forID(Class<T> classOfT, long windowMillis, int maxBatchSize) {
+        return new StackMobBatchLoader<T>(classOfT, new StackMobModelQuery<T>(classOfT).getIDFieldName(), windowMillis, maxBatchSize);
+    }
+
+    /**
+     * look up the objects whose field equals key, along with any other lookups made around the same time
+     * @param key the value to look for
+     * @param callback gets the matching objects, or an empty list if nothing matched
+     */
+    public void load(String key, StackMobQueryCallback<T> callback) {
+        Map<String, List<StackMobQueryCallback<T>>> batch = null;
+        synchronized(this) {
+            if(pending.isEmpty()) {
+                final Map<String, List<StackMobQueryCallback<T>>> window = pending;
+                windowTimer = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(window);
+                    }
+                }, windowMillis, TimeUnit.MILLISECONDS);
+            }
+            List<StackMobQueryCallback<T>> callbacks = pending.get(key);
+            if(callbacks == null) {
+                callbacks = new ArrayList<StackMobQueryCallback<T>>();
+                pending.put(key, callbacks);
+            }
+            callbacks.add(callback);
+            if(pending.size() >= maxBatchSize) {
+                batch = takePending();
+            }
+        }
+        if(batch != null) {
+            send(batch);
+        }
+    }
+
+    /**
+     * send everything collected so far without waiting for the window to end
+     */
+    public void flush() {
+        Map<String, List<StackMobQueryCallback<T>>> batch;
+        synchronized(this) {
+            batch = takePending();
+        }
+        if(!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    private void flush(Map<String, List<StackMobQueryCallback<T>>> window) {
+        synchronized(this) {
+            //the batch filled up, or was flushed, before its window ended
+            if(pending != window) {
+                return;
+            }
+            windowTimer = null;
+            pending = new LinkedHashMap<String, List<StackMobQueryCallback<T>>>();
+        }
+        send(window);
+    }
+
+    //call with the lock held
+    private Map<String, List<StackMobQueryCallback<T>>> takePending() {
+        if(windowTimer != null) {
+            windowTimer.cancel(false);
+            windowTimer = null;
+            //a batch sent before its window ends shouldn't stay queued, holding its keys and callbacks, until then.
+            //setRemoveOnCancelPolicy would do this, but it isn't there before Java 7 or Android API 21
+            scheduler.purge();
+        }
+        Map<String, List<StackMobQueryCallback<T>>> batch = pending;
+        pending = new LinkedHashMap<String, List<StackMobQueryCallback<T>>>();
+        return batch;
+    }
+
+    /**
+     * @return how many windows are waiting to run out, across every loader
+     */
+    static int getScheduledWindowCount() {
+        return scheduler.getQueue().size();
+    }
+
+    private void send(Map<String, List<StackMobQueryCallback<T>>> batch) {
+        int maxLength = StackMobRequest.MAX_URL_LENGTH - URL_OVERHEAD - field.length();
+        ThrottledRequestQueue queue = new ThrottledRequestQueue(maxConcurrentRequests);
+        for(List<String> chunk : ListHelpers.chunkByEncodedLength(new ArrayList<String>(batch.keySet()), maxLength)) {
+            queue.add(new ChunkRequest(chunk, batch));
+        }
+        queue.start(new Runnable() {
+            @Override
+            public void run() { }
+        });
+    }
+
+    private class ChunkRequest extends ThrottledRequestQueue.Request {
+        private final List<String> keys;
+        private final Map<String, List<StackMobQueryCallback<T>>> batch;
+        private final Map<String, JsonArray> byKey = new HashMap<String, JsonArray>();
+
+        ChunkRequest(List<String> keys, Map<String, List<StackMobQueryCallback<T>>> batch) {
+            this.keys = keys;
+            this.batch = batch;
+        }
+
+        @Override
+        public void send(Runnable done) {
+            fetch(0, done);
+        }
+
+        private void fetch(final int start, final Runnable done) {
+            //at most one object per id, so the whole result fits in one page. any other field can match more
+            //objects than the server hands back at once, so those are paged in a stable order
+            final int pageSize = isIDField ? keys.size() : PAGE_SIZE;
+            StackMobModelQuery<T> query = new StackMobModelQuery<T>(modelQuery.classOfT).fieldIsIn(field, keys).isInRange(start, start + pageSize - 1);
+            if(!isIDField) {
+                query.fieldIsOrderedBy(modelQuery.getIDFieldName(), StackMobQuery.Ordering.ASCENDING);
+            }
+            StackMobRequestSendResult result = StackMob.getStackMob().get(query.getQuery(), new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    int received = 0;
+                    try {
+                        for(JsonElement elt : new JsonParser().parse(responseBody).getAsJsonArray()) {
+                            received++;
+                            JsonElement value = elt.getAsJsonObject().get(field);
+                            if(value == null || !value.isJsonPrimitive()) continue;
+                            JsonArray forKey = byKey.get(value.getAsString());
+                            if(forKey == null) {
+                                forKey = new JsonArray();
+                                byKey.put(value.getAsString(), forKey);
+                            }
+                            forKey.add(elt);
+                        }
+                    }
+                    catch(RuntimeException e) {
+                        failure(new StackMobException(e.getMessage()));
+                        return;
+                    }
+                    if(!isIDField && received == pageSize) {
+                        fetch(start + pageSize, done);
+                        return;
+                    }
+                    try {
+                        succeedAll();
+                    }
+                    finally {
+                        done.run();
+                    }
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    try {
+                        failAll(e);
+                    }
+                    finally {
+                        done.run();
+                    }
+                }
+            });
+            if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+                try {
+                    failAll(new StackMobException(result.getFailureReason().getMessage()));
+                }
+                finally {
+                    done.run();
+                }
+            }
+        }
+
+        private void succeedAll() {
+            for(String key : keys) {
+                JsonArray forKey = byKey.get(key);
+                for(StackMobQueryCallback<T> callback : batch.get(key)) {
+                    List<T> results;
+                    try {
+                        //every caller gets its own instances
+                        results = forKey == null ? new ArrayList<T>() : modelQuery.parseResults(forKey);
+                    }
+                    catch(RuntimeException e) {
+                        callFailure(callback, new StackMobException(e.getMessage()));
+                        continue;
+                    }
+                    try {
+                        callback.success(results);
+                    }
+                    catch(RuntimeException e) {
+                        //one broken callback shouldn't keep the rest from hearing back
+                        StackMob.getLogger().logError("Batch loader callback threw %s", StackMobLogger.getStackTrace(e));
+                    }
+                }
+            }
+        }
+
+        private void failAll(StackMobException e) {
+            for(String key : keys) {
+                for(StackMobQueryCallback<T> callback : batch.get(key)) {
+                    callFailure(callback, e);
+                }
+            }
+        }
+
+        private void callFailure(StackMobQueryCallback<T> callback, StackMobException e) {
+            try {
+                callback.failure(e);
+            }
+            catch(RuntimeException thrown) {
+                StackMob.getLogger().logError("Batch loader callback threw %s", StackMobLogger.getStackTrace(thrown));
+            }
+        }
+    }
+}
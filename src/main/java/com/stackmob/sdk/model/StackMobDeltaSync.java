@@ -0,0 +1,342 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobSyncCallback;
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a {@link StackMobLocalStore} in step with the results of a query by fetching only what changed. Each sync
+ * asks for the objects whose lastmoddate is at least the latest one seen so far, oldest first, and applies them to
+ * the store. Deletes leave nothing to fetch, so every few syncs the ids on the server are listed and anything in
+ * the store that's gone is dropped. Example usage:
+ * <code>
+ *     StackMobLocalStore&lt;Task&gt; tasks = new StackMobLocalStore&lt;Task&gt;(Task.class);
+ *     StackMobDeltaSync&lt;Task&gt; sync = new StackMobDeltaSync&lt;Task&gt;(new StackMobModelQuery&lt;Task&gt;(Task.class), tasks);
+ *     sync.start(30 * 1000, callback);
+ * </code>
+ *
+ * The first sync loads everything. The store should hold only what this sync puts in it, since reconciling drops
+ * anything the query doesn't return. Objects already in the store are updated in place, so references to them stay
+ * current.
+ */
+public class StackMobDeltaSync<T extends StackMobModel> {
+
+    public static final String LAST_MODIFIED_FIELD = "lastmoddate";
+    private static final int DEFAULT_PAGE_SIZE = 200;
+    private static final int DEFAULT_RECONCILE_EVERY = 10;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "StackMob delta sync");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final StackMobModelQuery<T> modelQuery;
+    private final StackMobQuery template;
+    private final StackMobLocalStore<T> replica;
+    private final String idField;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int reconcileEvery = DEFAULT_RECONCILE_EVERY;
+
+    //the latest lastmoddate applied, and the ids applied with exactly that lastmoddate
+    private String highWater = null;
+    private final Set<String> idsAtHighWater = new HashSet<String>();
+    private int syncsSinceReconcile = 0;
+    private boolean forceReconcile = false;
+    private List<StackMobSyncCallback> running = null;
+    private ScheduledFuture<?> timer = null;
+
+    /**
+     * @param query the objects to keep in step. its ordering, range and select are replaced
+     * @param replica where to keep them
+     */
+    public StackMobDeltaSync(StackMobModelQuery<T> query, StackMobLocalStore<T> replica) {
+        this.modelQuery = query;
+        this.replica = replica;
+        this.idField = query.getIDFieldName();
+        StackMobQuery original = query.getQuery();
+        this.template = new StackMobQuery(original.getObjectName()).add(original);
+        template.getHeaders().remove(StackMobQuery.OrderByHeader);
+        template.getHeaders().remove(StackMobQuery.SelectHeader);
+        template.getHeaders().remove(StackMobQuery.RangeHeader);
+    }
+
+    /**
+     * @param pageSize how many changed objects to get per request
+     * @return this sync
+     */
+    public synchronized StackMobDeltaSync<T> pageSize(int pageSize) {
+        if(pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @param syncs how many syncs to run between looking for deletes. 1 looks every time, 0 never looks unless
+     *              {@link #reconcileOnNextSync()} is called
+     * @return this sync
+     */
+    public synchronized StackMobDeltaSync<T> reconcileEvery(int syncs) {
+        this.reconcileEvery = syncs;
+        return this;
+    }
+
+    /**
+     * look for deletes on the next sync no matter how long it's been
+     */
+    public synchronized void reconcileOnNextSync() {
+        forceReconcile = true;
+    }
+
+    /**
+     * @return the latest lastmoddate applied so far, or null before the first sync
+     */
+    public synchronized String getHighWaterMark() {
+        return highWater;
+    }
+
+    /**
+     * sync now. if a sync is already running, the callback gets that sync's outcome instead of starting another
+     * @param callback gets what changed
+     */
+    public void sync(StackMobSyncCallback callback) {
+        synchronized(this) {
+            if(running != null) {
+                running.add(callback);
+                return;
+            }
+            running = new ArrayList<StackMobSyncCallback>();
+            running.add(callback);
+        }
+        new Pass().fetchChanges();
+    }
+
+    /**
+     * sync every intervalMillis in the background until {@link #stop()} is called
+     * @param intervalMillis how long to wait between syncs
+     * @param callback gets the outcome of every sync
+     */
+    public synchronized void start(long intervalMillis, final StackMobSyncCallback callback) {
+        if(timer != null) {
+            throw new IllegalStateException("this sync is already started");
+        }
+        timer = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sync(callback);
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if(timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+
+    private void finish(Set<String> changed, Set<String> deleted, StackMobException failure) {
+        List<StackMobSyncCallback> callbacks;
+        synchronized(this) {
+            callbacks = running;
+            running = null;
+        }
+        for(StackMobSyncCallback callback : callbacks) {
+            if(failure != null) {
+                callback.failure(failure);
+            } else {
+                callback.success(changed, deleted);
+            }
+        }
+    }
+
+    /**
+     * One sync: page through the changes, then maybe reconcile
+     */
+    private class Pass {
+        private final Set<String> changed = new LinkedHashSet<String>();
+        private final Set<String> serverIDs = new HashSet<String>();
+        private String lastID = null;
+        //how far into the objects tied with the high water mark to start, only ever more than 0 when a whole page
+        //came back tied with it
+        private int skip = 0;
+
+        void fetchChanges() {
+            StackMobQuery query = new StackMobQuery(template.getObjectName()).add(template);
+            query.fieldIsOrderedBy(LAST_MODIFIED_FIELD, StackMobQuery.Ordering.ASCENDING).fieldIsOrderedBy(idField, StackMobQuery.Ordering.ASCENDING);
+            final String startedAt;
+            final int size;
+            final int start;
+            synchronized(StackMobDeltaSync.this) {
+                startedAt = highWater;
+                size = pageSize;
+                start = skip;
+            }
+            //the objects applied with the high water mark come back again and are skipped by id. skipping them by
+            //count instead would skip something else if one of them has since been modified or deleted
+            if(startedAt != null) query.fieldIsGreaterThanOrEqualTo(LAST_MODIFIED_FIELD, startedAt);
+            query.isInRange(start, start + size - 1);
+            send(query, new PageHandler() {
+                @Override
+                void handle(JsonArray page) throws StackMobException {
+                    applyChanges(page);
+                    if(page.size() == size) {
+                        synchronized(StackMobDeltaSync.this) {
+                            //a full page that didn't move the mark is all ties, so the next one has to start past it
+                            skip = startedAt != null && startedAt.equals(highWater) ? start + size : 0;
+                        }
+                        fetchChanges();
+                    } else {
+                        reconcileIfDue();
+                    }
+                }
+            });
+        }
+
+        private void applyChanges(JsonArray page) throws StackMobException {
+            for(JsonElement elt : page) {
+                JsonObject object = elt.getAsJsonObject();
+                JsonElement modified = object.get(LAST_MODIFIED_FIELD);
+                JsonElement id = object.get(idField);
+                if(modified == null || modified.isJsonNull() || id == null) {
+                    throw new StackMobException(String.format("can't sync %s because an object doesn't have %s", template.getObjectName(), LAST_MODIFIED_FIELD));
+                }
+                synchronized(StackMobDeltaSync.this) {
+                    if(modified.getAsString().equals(highWater)) {
+                        if(!idsAtHighWater.add(id.getAsString())) continue;
+                    } else {
+                        highWater = modified.getAsString();
+                        idsAtHighWater.clear();
+                        idsAtHighWater.add(id.getAsString());
+                    }
+                }
+                T existing = replica.get(id.getAsString());
+                if(existing != null) {
+                    existing.fillFromJson(object);
+                    replica.put(existing);
+                } else {
+                    T model = modelQuery.parseResult(object);
+                    if(model != null) replica.put(model);
+                }
+                changed.add(id.getAsString());
+            }
+        }
+
+        private void reconcileIfDue() {
+            boolean due;
+            synchronized(StackMobDeltaSync.this) {
+                syncsSinceReconcile++;
+                due = forceReconcile || (reconcileEvery > 0 && syncsSinceReconcile >= reconcileEvery);
+            }
+            if(due) {
+                fetchIDs();
+            } else {
+                finish(changed, Collections.<String>emptySet(), null);
+            }
+        }
+
+        /**
+         * list the ids on the server in order, starting after the last one seen. unlike paging by offset, nothing
+         * is skipped if objects are deleted in the meantime, and a skipped id would look deleted
+         */
+        private void fetchIDs() {
+            StackMobQuery query = new StackMobQuery(template.getObjectName()).add(template);
+            query.fieldIsOrderedBy(idField, StackMobQuery.Ordering.ASCENDING).select(Arrays.asList(idField));
+            if(lastID != null) query.fieldIsGreaterThan(idField, lastID);
+            query.isInRange(0, pageSize - 1);
+            send(query, new PageHandler() {
+                @Override
+                void handle(JsonArray page) {
+                    for(JsonElement elt : page) {
+                        JsonElement id = elt.getAsJsonObject().get(idField);
+                        if(id == null) continue;
+                        serverIDs.add(id.getAsString());
+                        lastID = id.getAsString();
+                    }
+                    if(page.size() == pageSize) {
+                        fetchIDs();
+                    } else {
+                        dropDeleted();
+                    }
+                }
+            });
+        }
+
+        private void dropDeleted() {
+            Set<String> deleted = new LinkedHashSet<String>();
+            for(String id : replica.getIDs()) {
+                //anything applied during this sync is on the server, even if it was created after its id was passed
+                if(!serverIDs.contains(id) && !changed.contains(id)) {
+                    replica.remove(id);
+                    deleted.add(id);
+                }
+            }
+            synchronized(StackMobDeltaSync.this) {
+                syncsSinceReconcile = 0;
+                forceReconcile = false;
+            }
+            finish(changed, deleted, null);
+        }
+
+        private void send(StackMobQuery query, final PageHandler handler) {
+            StackMobRequestSendResult result = StackMob.getStackMob().get(query, new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    try {
+                        handler.handle(new JsonParser().parse(responseBody).getAsJsonArray());
+                    } catch(StackMobException e) {
+                        failure(e);
+                    } catch(RuntimeException e) {
+                        failure(new StackMobException(e.getMessage()));
+                    }
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    finish(changed, Collections.<String>emptySet(), e);
+                }
+            });
+            if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+                finish(changed, Collections.<String>emptySet(), new StackMobException(result.getFailureReason().getMessage()));
+            }
+        }
+    }
+
+    private static abstract class PageHandler {
+        abstract void handle(JsonArray page) throws StackMobException;
+    }
+}
@@ -0,0 +1,370 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.GeoPoint;
+import com.stackmob.sdk.util.JsonQueryEvaluator;
+import com.stackmob.sdk.util.ThrottledRequestQueue;
+
+import java.util.*;
+
+/**
+ * Caches the results of WITHIN box queries in fixed tiles of lat/lon degrees, for maps that pan and zoom. A box is
+ * covered with tiles, only the tiles that aren't cached yet are fetched, each with its own WITHIN box query and
+ * several at once, and the box is put together from the tiles. Tiles are dropped ttlMillis after they're fetched.
+ * Example usage:
+ * <code>
+ *     StackMobGeoTileCache&lt;Shop&gt; shops = new StackMobGeoTileCache&lt;Shop&gt;(new StackMobModelQuery&lt;Shop&gt;(Shop.class), "location", 0.05, 5 * 60 * 1000);
+ *     shops.getWithinBox(lowerLeft, upperRight, callback);
+ * </code>
+ *
+ * Pick tiles around the size of a typical viewport. Much smaller tiles mean many requests per box, and much bigger
+ * ones mean fetching objects far off screen. A box that covers more tiles than {@link #maxTilesPerBox(int)} allows
+ * fails rather than fetch them all. Each tile is fetched a page at a time, so a crowded tile comes back whole.
+ */
+public class StackMobGeoTileCache<T extends StackMobModel> {
+
+    private static final int DEFAULT_PAGE_SIZE = 200;
+    private static final int DEFAULT_MAX_TILES_PER_BOX = 100;
+
+    private static class Located<T> {
+        final T model;
+        final double lat;
+        final double lon;
+
+        Located(T model, double lat, double lon) {
+            this.model = model;
+            this.lat = lat;
+            this.lon = lon;
+        }
+    }
+
+    private class Tile {
+        final double lowerLat;
+        final double lowerLon;
+        final double upperLat;
+        final double upperLon;
+        final List<Viewport> waiting = new ArrayList<Viewport>();
+        List<Located<T>> contents = null;
+        long fetchedAt = 0;
+
+        Tile(int latTile, int lonTile) {
+            lowerLat = -90 + latTile * tileDegrees;
+            upperLat = Math.min(90, lowerLat + tileDegrees);
+            lowerLon = -180 + lonTile * tileDegrees;
+            upperLon = Math.min(180, lowerLon + tileDegrees);
+        }
+
+        boolean isLoading() {
+            return contents == null;
+        }
+    }
+
+    private class Viewport {
+        final double[] box;
+        final StackMobQueryCallback<T> callback;
+        final List<Tile> tiles = new ArrayList<Tile>();
+        int outstanding = 0;
+        StackMobException failure = null;
+
+        Viewport(double[] box, StackMobQueryCallback<T> callback) {
+            this.box = box;
+            this.callback = callback;
+        }
+
+        //call with the cache's lock held, and call finish() without it if this returns true
+        boolean tileDone(StackMobException e) {
+            if(e != null && failure == null) failure = e;
+            return --outstanding == 0;
+        }
+
+        void finish() {
+            if(failure != null) {
+                callback.failure(failure);
+                return;
+            }
+            List<T> results = new ArrayList<T>();
+            Set<String> seen = new HashSet<String>();
+            for(Tile tile : tiles) {
+                for(Located<T> located : tile.contents) {
+                    //a point on the edge between two tiles is in both
+                    if(JsonQueryEvaluator.isInBox(located.lat, located.lon, box[0], box[1], box[2], box[3]) && seen.add(located.model.getID())) {
+                        results.add(located.model);
+                    }
+                }
+            }
+            callback.success(results);
+        }
+    }
+
+    private final StackMobModelQuery<T> base;
+    private final String idField;
+    private final String field;
+    private final double tileDegrees;
+    private final int latTiles;
+    private final int lonTiles;
+    private final long ttlMillis;
+    private final int maxConcurrentRequests;
+    private final Map<Long, Tile> tiles = new HashMap<Long, Tile>();
+    private volatile int pageSize = DEFAULT_PAGE_SIZE;
+    private volatile int maxTilesPerBox = DEFAULT_MAX_TILES_PER_BOX;
+
+    /**
+     * @param base the query to cache the results of, without the WITHIN condition. it's copied, so later changes
+     *             don't affect this cache
+     * @param field the GeoPoint field the boxes are on
+     * @param tileDegrees the size of each tile
+     * @param ttlMillis how long a tile is kept after it's fetched
+     */
+    public StackMobGeoTileCache(StackMobModelQuery<T> base, String field, double tileDegrees, long ttlMillis) {
+        this(base, field, tileDegrees, ttlMillis, StackMobModel.DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    /**
+     * @param base the query to cache the results of, without the WITHIN condition. it's copied, so later changes
+     *             don't affect this cache. its range and order are ignored, since tiles are paged in id order
+     * @param field the GeoPoint field the boxes are on
+     * @param tileDegrees the size of each tile
+     * @param ttlMillis how long a tile is kept after it's fetched
+     * @param maxConcurrentRequests how many tiles each box fetches at once
+     */
+    public StackMobGeoTileCache(StackMobModelQuery<T> base, String field, double tileDegrees, long ttlMillis, int maxConcurrentRequests) {
+        if(tileDegrees <= 0 || tileDegrees > 90) {
+            throw new IllegalArgumentException("tileDegrees must be more than 0 and at most 90");
+        }
+        this.base = new StackMobModelQuery<T>(base.classOfT);
+        this.base.getQuery().add(base.getQuery());
+        this.base.getQuery().getHeaders().remove(StackMobQuery.RangeHeader);
+        this.base.getQuery().getHeaders().remove(StackMobQuery.OrderByHeader);
+        this.idField = base.getIDFieldName();
+        this.field = field;
+        this.tileDegrees = tileDegrees;
+        this.latTiles = (int) Math.ceil(180 / tileDegrees);
+        this.lonTiles = (int) Math.ceil(360 / tileDegrees);
+        this.ttlMillis = ttlMillis;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * set how many objects each request for a tile gets. a tile with more than this takes several requests
+     * @param pageSize how many objects to get per request
+     * @return this cache
+     */
+    public StackMobGeoTileCache<T> pageSize(int pageSize) {
+        if(pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * set how many tiles a box can cover. a bigger box fails, since fetching it would mean a request for every tile;
+     * zoom in, or use a cache with bigger tiles for zoomed out maps
+     * @param maxTilesPerBox the most tiles a box can cover
+     * @return this cache
+     */
+    public StackMobGeoTileCache<T> maxTilesPerBox(int maxTilesPerBox) {
+        if(maxTilesPerBox < 1) {
+            throw new IllegalArgumentException("maxTilesPerBox must be at least 1");
+        }
+        this.maxTilesPerBox = maxTilesPerBox;
+        return this;
+    }
+
+    /**
+     * get the objects in a box, fetching whichever tiles it covers that aren't cached. a box whose lower left corner
+     * is east of its upper right crosses the 180th meridian
+     * @param lowerLeft the lower left corner of the box
+     * @param upperRight the upper right corner of the box
+     * @param callback gets the objects in the box, or a failure if the box covers more tiles than
+     *                 {@link #maxTilesPerBox(int)} allows
+     */
+    public void getWithinBox(GeoPoint lowerLeft, GeoPoint upperRight, StackMobQueryCallback<T> callback) {
+        double[] box = new double[] {lowerLeft.getLatitude(), lowerLeft.getLongitude(), upperRight.getLatitude(), upperRight.getLongitude()};
+        Viewport viewport = new Viewport(box, callback);
+        List<Tile> toFetch = new ArrayList<Tile>();
+        int latLo = latTile(box[0]);
+        int latHi = latTile(box[2]);
+        int lonLo = lonTile(box[1], false);
+        int lonHi = lonTile(box[3], true);
+        int lonSpan = lonLo <= lonHi ? lonHi - lonLo + 1 : lonTiles - lonLo + lonHi + 1;
+        int tileCount = Math.max(0, latHi - latLo + 1) * lonSpan;
+        int limit = maxTilesPerBox;
+        if(tileCount > limit) {
+            callback.failure(new StackMobException(String.format("the box covers %d tiles, more than the limit of %d", tileCount, limit)));
+            return;
+        }
+        synchronized(this) {
+            evictExpired();
+            for(int latTile = latLo; latTile <= latHi; latTile++) {
+                for(int i = 0; i < lonSpan; i++) {
+                    int lonTile = (lonLo + i) % lonTiles;
+                    long key = (long) latTile * lonTiles + lonTile;
+                    Tile tile = tiles.get(key);
+                    if(tile == null) {
+                        tile = new Tile(latTile, lonTile);
+                        tiles.put(key, tile);
+                        toFetch.add(tile);
+                    }
+                    if(tile.isLoading()) {
+                        tile.waiting.add(viewport);
+                        viewport.outstanding++;
+                    }
+                    viewport.tiles.add(tile);
+                }
+            }
+        }
+        if(viewport.outstanding == 0) {
+            viewport.finish();
+            return;
+        }
+        ThrottledRequestQueue queue = new ThrottledRequestQueue(maxConcurrentRequests);
+        for(Tile tile : toFetch) {
+            queue.add(new TileRequest(tile, pageSize));
+        }
+        queue.start(null);
+    }
+
+    /**
+     * drop every tile that's older than the TTL. this also happens on every {@link #getWithinBox}
+     */
+    public synchronized void evictExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Tile> it = tiles.values().iterator();
+        while(it.hasNext()) {
+            Tile tile = it.next();
+            if(!tile.isLoading() && now - tile.fetchedAt > ttlMillis) it.remove();
+        }
+    }
+
+    /**
+     * drop every cached tile
+     */
+    public synchronized void clear() {
+        Iterator<Tile> it = tiles.values().iterator();
+        while(it.hasNext()) {
+            if(!it.next().isLoading()) it.remove();
+        }
+    }
+
+    /**
+     * @return how many tiles are cached or being fetched
+     */
+    public synchronized int getTileCount() {
+        return tiles.size();
+    }
+
+    private void tileFetched(Tile tile, List<Located<T>> contents, StackMobException failure) {
+        List<Viewport> finished = new ArrayList<Viewport>();
+        synchronized(this) {
+            if(failure == null) {
+                tile.contents = contents;
+                tile.fetchedAt = System.currentTimeMillis();
+            } else {
+                //leave nothing behind so the next box tries again
+                tile.contents = Collections.emptyList();
+                tiles.values().remove(tile);
+            }
+            for(Viewport viewport : tile.waiting) {
+                if(viewport.tileDone(failure)) finished.add(viewport);
+            }
+            tile.waiting.clear();
+        }
+        for(Viewport viewport : finished) {
+            viewport.finish();
+        }
+    }
+
+    private int latTile(double lat) {
+        return Math.max(0, Math.min(latTiles - 1, (int) Math.floor((lat + 90) / tileDegrees)));
+    }
+
+    private int lonTile(double lon, boolean upperEdge) {
+        //180 is the east edge of the last tile, not the west edge of the first
+        if(upperEdge && lon == 180) return lonTiles - 1;
+        double normalized = ((lon + 180) % 360 + 360) % 360;
+        return Math.min(lonTiles - 1, (int) Math.floor(normalized / tileDegrees));
+    }
+
+    private class TileRequest extends ThrottledRequestQueue.Request {
+        private final Tile tile;
+        private final int pageSize;
+        private final List<Located<T>> contents = new ArrayList<Located<T>>();
+
+        TileRequest(Tile tile, int pageSize) {
+            this.tile = tile;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public void send(final Runnable done) {
+            fetch(0, done);
+        }
+
+        //a crowded tile has more objects than the server hands back at once, so it's paged in a stable order and
+        //only cached once the last page is in
+        private void fetch(final int start, final Runnable done) {
+            StackMobQuery query = new StackMobQuery(base.getQuery().getObjectName()).add(base.getQuery())
+                    .fieldIsWithinBox(field, GeoPoint.of(tile.lowerLon, tile.lowerLat), GeoPoint.of(tile.upperLon, tile.upperLat))
+                    .fieldIsOrderedBy(idField, StackMobQuery.Ordering.ASCENDING)
+                    .isInRange(start, start + pageSize - 1);
+            StackMobRequestSendResult result = StackMob.getStackMob().get(query, new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    int received = 0;
+                    try {
+                        JsonArray array = new JsonParser().parse(responseBody).getAsJsonArray();
+                        for(JsonElement elt : array) {
+                            received++;
+                            double[] point = JsonQueryEvaluator.latLon(elt.getAsJsonObject().get(field));
+                            T model = base.parseResult(elt);
+                            if(point != null && model != null) contents.add(new Located<T>(model, point[0], point[1]));
+                        }
+                    } catch(RuntimeException e) {
+                        failure(new StackMobException(e.getMessage()));
+                        return;
+                    }
+                    if(received == pageSize) {
+                        fetch(start + pageSize, done);
+                        return;
+                    }
+                    tileFetched(tile, contents, null);
+                    done.run();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    tileFetched(tile, null, e);
+                    done.run();
+                }
+            });
+            if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+                tileFetched(tile, null, new StackMobException(result.getFailureReason().getMessage()));
+                done.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.*;
+
+/**
+ * Walks through the results of a {@link StackMobModelQuery} ordered by a key field and then by id. Each page asks
+ * for objects whose key is at least the last key seen, so how far into the results a page is doesn't change what it
+ * costs. The objects already returned with exactly that key come back again and are dropped by id; a page only
+ * starts past them when a whole page came back tied with the last key.
+ *
+ * The query's own ordering and range are replaced. Pages are fetched one at a time, since each depends on the
+ * one before it.
+ */
+public class StackMobKeysetCursor<T extends StackMobModel> {
+
+    private final StackMobModelQuery<T> modelQuery;
+    private final StackMobQuery template;
+    private final String keyField;
+    private final String idField;
+    private final int pageSize;
+
+    private String lastKey = null;
+    private final Set<String> idsAtLastKey = new HashSet<String>();
+    //how far into the objects tied with the last key to start, only ever more than 0 when a whole page came back
+    //tied with it
+    private int skip = 0;
+    private boolean done = false;
+
+    StackMobKeysetCursor(StackMobModelQuery<T> modelQuery, String keyField, int pageSize) {
+        if(pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        }
+        this.modelQuery = modelQuery;
+        this.keyField = keyField;
+        this.idField = modelQuery.getIDFieldName();
+        this.pageSize = pageSize;
+        StackMobQuery query = modelQuery.getQuery();
+        this.template = new StackMobQuery(query.getObjectName()).add(query);
+        template.getHeaders().remove(StackMobQuery.OrderByHeader);
+        template.fieldIsOrderedBy(keyField, StackMobQuery.Ordering.ASCENDING).fieldIsOrderedBy(idField, StackMobQuery.Ordering.ASCENDING);
+        String select = template.getHeaders().get(StackMobQuery.SelectHeader);
+        if(select != null) {
+            //we need the key and id of every object to know where the next page starts
+            List<String> fields = new ArrayList<String>(Arrays.asList(select.split(",")));
+            if(!fields.contains(keyField)) fields.add(keyField);
+            if(!fields.contains(idField)) fields.add(idField);
+            template.select(fields);
+        }
+    }
+
+    /**
+     * @return false once a page has come back short, or a page failed
+     */
+    public synchronized boolean hasNextPage() {
+        return !done;
+    }
+
+    /**
+     * fetch the next page and wait for it
+     * @return the objects on the page, which can be none on the last one
+     * @throws StackMobException if the page couldn't be fetched. the cursor is done after that
+     * @throws NoSuchElementException if there are no more pages
+     */
+    public synchronized List<T> nextPage() throws StackMobException {
+        if(done) {
+            throw new NoSuchElementException("no more pages");
+        }
+        JsonArray fresh = new JsonArray();
+        //a page of nothing but objects already returned isn't worth handing back, so keep going until there's news
+        while(fresh.size() == 0 && !done) {
+            String startedAt = lastKey;
+            StackMobQuery query = new StackMobQuery(template.getObjectName()).add(template);
+            //skipping the objects already returned with the last key by count would skip something else if one of
+            //them has since been deleted or given another key
+            if(startedAt != null) {
+                query.fieldIsGreaterThanOrEqualTo(keyField, startedAt);
+            }
+            query.isInRange(skip, skip + pageSize - 1);
+            JsonArray page;
+            try {
+                page = fetch(query);
+            }
+            catch(StackMobException e) {
+                done = true;
+                throw e;
+            }
+            if(page.size() < pageSize) {
+                done = true;
+            }
+            for(JsonElement elt : page) {
+                JsonObject object = elt.getAsJsonObject();
+                JsonElement keyJson = object.get(keyField);
+                JsonElement idJson = object.get(idField);
+                if(keyJson == null || keyJson.isJsonNull() || idJson == null) {
+                    done = true;
+                    throw new StackMobException(String.format("can't page by %s because an object doesn't have it", keyField));
+                }
+                String key = keyJson.getAsString();
+                String id = idJson.getAsString();
+                if(key.equals(lastKey)) {
+                    if(!idsAtLastKey.add(id)) continue;
+                }
+                else {
+                    lastKey = key;
+                    idsAtLastKey.clear();
+                    idsAtLastKey.add(id);
+                }
+                fresh.add(elt);
+            }
+            //a full page that didn't move the last key is all ties, so the next one has to start past it
+            skip = startedAt != null && startedAt.equals(lastKey) ? skip + pageSize : 0;
+        }
+        return modelQuery.parseResults(fresh);
+    }
+
+    private static JsonArray fetch(StackMobQuery query) throws StackMobException {
+        final Object lock = new Object();
+        final JsonArray[] result = new JsonArray[1];
+        final StackMobException[] error = new StackMobException[1];
+        StackMobRequestSendResult sent = StackMob.getStackMob().get(query, new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                synchronized(lock) {
+                    try {
+                        result[0] = new JsonParser().parse(responseBody).getAsJsonArray();
+                    }
+                    catch(RuntimeException e) {
+                        error[0] = new StackMobException(e.getMessage());
+                    }
+                    lock.notifyAll();
+                }
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                synchronized(lock) {
+                    error[0] = e;
+                    lock.notifyAll();
+                }
+            }
+        });
+        if(sent.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+            throw new StackMobException(sent.getFailureReason().getMessage());
+        }
+        synchronized(lock) {
+            while(result[0] == null && error[0] == null) {
+                try {
+                    lock.wait();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StackMobException("interrupted while waiting for a page");
+                }
+            }
+        }
+        if(error[0] != null) {
+            throw error[0];
+        }
+        return result[0];
+    }
+}
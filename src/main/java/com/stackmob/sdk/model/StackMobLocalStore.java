@@ -0,0 +1,525 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.GeoPoints;
+import com.stackmob.sdk.util.JsonQueryEvaluator;
+import com.stackmob.sdk.util.JsonValueComparator;
+import com.stackmob.sdk.util.RelationMapping;
+
+import java.util.*;
+
+/**
+ * Objects of one type held in memory, which {@link StackMobQuery}s can be run against without going to the server.
+ * Equality, IN, lt/lte/gt/gte, NEAR, WITHIN, ordering and ranges are supported. Example usage:
+ * <code>
+ *     StackMobLocalStore&lt;Task&gt; tasks = new StackMobLocalStore&lt;Task&gt;(Task.class).index("owner").sortedIndex("due");
+ *     tasks.putAll(tasksFromServer);
+ *     tasks.send(new StackMobModelQuery&lt;Task&gt;(Task.class).fieldIsEqualTo("owner", "bob").fieldIsOrderedBy("due", ASCENDING), callback);
+ * </code>
+ *
+ * Without indexes every query looks at every object. A hash index on a field answers equality and IN on it
+ * directly, a sorted index answers ranges and ordering on it, and a geo index answers NEAR and WITHIN on a
+ * {@link com.stackmob.sdk.util.GeoPoint} field. The most selective index a query can use picks
+ * the candidates, and the rest of the conditions are checked on just those.
+ *
+ * Objects are indexed as they are when they're put in, so put an object in again after changing it. Queries return
+ * the stored objects themselves.
+ */
+public class StackMobLocalStore<T extends StackMobModel> {
+
+    private static class Entry<T> {
+        final T model;
+        final JsonObject json;
+
+        Entry(T model, JsonObject json) {
+            this.model = model;
+            this.json = json;
+        }
+    }
+
+    private final String schemaName;
+    private final String idField;
+    private final Map<String, Entry<T>> entries = new LinkedHashMap<String, Entry<T>>();
+    //field -> value key -> ids
+    private final Map<String, Map<String, Set<String>>> hashIndexes = new HashMap<String, Map<String, Set<String>>>();
+    //field -> value -> ids
+    private final Map<String, TreeMap<JsonElement, Set<String>>> sortedIndexes = new HashMap<String, TreeMap<JsonElement, Set<String>>>();
+    private final Map<String, GeoGridIndex> geoIndexes = new HashMap<String, GeoGridIndex>();
+    private volatile boolean complete = false;
+
+    public StackMobLocalStore(Class<T> classOfT) {
+        T prototype = new Gson().fromJson("{}", classOfT);
+        this.schemaName = prototype.getSchemaName();
+        this.idField = prototype.getIDFieldName();
+    }
+
+    /**
+     * keep a hash index on a field, for equality and IN conditions
+     * @param field the field to index
+     * @return this store
+     */
+    public synchronized StackMobLocalStore<T> index(String field) {
+        if(!hashIndexes.containsKey(field)) {
+            hashIndexes.put(field, new HashMap<String, Set<String>>());
+            for(Entry<T> entry : entries.values()) addToHashIndex(field, entry);
+        }
+        return this;
+    }
+
+    /**
+     * keep a sorted index on a field, for lt/lte/gt/gte conditions and ordering
+     * @param field the field to index
+     * @return this store
+     */
+    public synchronized StackMobLocalStore<T> sortedIndex(String field) {
+        if(!sortedIndexes.containsKey(field)) {
+            sortedIndexes.put(field, new TreeMap<JsonElement, Set<String>>(JsonValueComparator.INSTANCE));
+            for(Entry<T> entry : entries.values()) addToSortedIndex(field, entry);
+        }
+        return this;
+    }
+
+    /**
+     * keep a geo index with one degree cells on a GeoPoint field, for NEAR and WITHIN conditions
+     * @param field the field to index
+     * @return this store
+     */
+    public StackMobLocalStore<T> geoIndex(String field) {
+        return geoIndex(field, 1.0);
+    }
+
+    /**
+     * keep a geo index on a GeoPoint field, for NEAR and WITHIN conditions
+     * @param field the field to index
+     * @param cellDegrees the size of the grid cells. around the typical search radius works best
+     * @return this store
+     */
+    public synchronized StackMobLocalStore<T> geoIndex(String field, double cellDegrees) {
+        if(!geoIndexes.containsKey(field)) {
+            geoIndexes.put(field, new GeoGridIndex(cellDegrees));
+            for(Entry<T> entry : entries.values()) addToGeoIndex(field, entry);
+        }
+        return this;
+    }
+
+    /**
+     * add an object, or replace the one with the same id. objects without an id are given one
+     * @param model the object
+     */
+    public synchronized void put(T model) {
+        JsonObject json = model.toJsonElement(0, new RelationMapping()).getAsJsonObject();
+        remove(model.getID());
+        Entry<T> entry = new Entry<T>(model, json);
+        entries.put(model.getID(), entry);
+        for(String field : hashIndexes.keySet()) addToHashIndex(field, entry);
+        for(String field : sortedIndexes.keySet()) addToSortedIndex(field, entry);
+        for(String field : geoIndexes.keySet()) addToGeoIndex(field, entry);
+    }
+
+    public synchronized void putAll(Collection<? extends T> models) {
+        for(T model : models) put(model);
+    }
+
+    /**
+     * @param id the id of the object to drop
+     * @return the object, or null if it wasn't here
+     */
+    public synchronized T remove(String id) {
+        Entry<T> entry = entries.remove(id);
+        if(entry == null) return null;
+        for(Map.Entry<String, Map<String, Set<String>>> index : hashIndexes.entrySet()) {
+            for(String key : hashKeys(entry.json.get(index.getKey()))) {
+                removePosting(index.getValue(), key, id);
+            }
+        }
+        for(Map.Entry<String, TreeMap<JsonElement, Set<String>>> index : sortedIndexes.entrySet()) {
+            for(JsonElement value : sortKeys(entry.json.get(index.getKey()))) {
+                removePosting(index.getValue(), value, id);
+            }
+        }
+        for(GeoGridIndex index : geoIndexes.values()) index.remove(id);
+        return entry.model;
+    }
+
+    public synchronized T get(String id) {
+        Entry<T> entry = entries.get(id);
+        return entry == null ? null : entry.model;
+    }
+
+    /**
+     * @return the object as it was when it was put here, regardless of changes made to it since, or null
+     */
+    synchronized JsonObject getJson(String id) {
+        Entry<T> entry = entries.get(id);
+        return entry == null ? null : entry.json;
+    }
+
+    /**
+     * @return the ids of every object here, as of now
+     */
+    public synchronized Set<String> getIDs() {
+        return new LinkedHashSet<String>(entries.keySet());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        for(Map<String, Set<String>> index : hashIndexes.values()) index.clear();
+        for(TreeMap<JsonElement, Set<String>> index : sortedIndexes.values()) index.clear();
+        for(GeoGridIndex index : geoIndexes.values()) index.clear();
+        complete = false;
+    }
+
+    /**
+     * say whether this store holds every object of its type. when it does, {@link #send(StackMobModelQuery, StackMobQueryCallback)}
+     * answers every query it can run here without going to the server
+     * @param complete whether every object is here
+     */
+    public void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
+    /**
+     * @param query a query on this store's type
+     * @return whether the query can be run against this store. objects are stored with their relations as ids, so
+     *         a query that expands relations can't be
+     */
+    public boolean canAnswer(StackMobQuery query) {
+        String expand = query.getHeaders().get(StackMobQuery.ExpandHeader);
+        if(expand != null && Integer.parseInt(expand) > 0) return false;
+        return query.getObjectName().equals(schemaName) && new JsonQueryEvaluator(query).isSupported();
+    }
+
+    /**
+     * run a query against the objects in this store
+     * @param query the query
+     * @return the matching objects, ordered and limited as the query says
+     * @throws IllegalArgumentException if {@link #canAnswer(StackMobQuery)} is false for the query
+     */
+    public synchronized List<T> query(StackMobQuery query) {
+        if(!canAnswer(query)) {
+            throw new IllegalArgumentException("this query can't be run against a local store of " + schemaName);
+        }
+        JsonQueryEvaluator evaluator = new JsonQueryEvaluator(query);
+        final JsonQueryEvaluator.Condition near = evaluator.getOrder() == null ? evaluator.getNear() : null;
+        List<Entry<T>> matches = new ArrayList<Entry<T>>();
+        boolean ordered = false;
+        Collection<String> candidates = nearestFromGeoIndex(evaluator);
+        if(candidates != null) {
+            ordered = true;
+        } else {
+            candidates = smallest(smallest(candidatesFromHashIndex(evaluator), candidatesFromSortedIndex(evaluator)), candidatesFromGeoIndex(evaluator));
+        }
+        if(candidates == null && evaluator.getOrderBy() != null) {
+            candidates = idsInOrder(evaluator.getOrderBy());
+            ordered = candidates != null;
+        }
+        if(candidates == null) candidates = entries.keySet();
+        int limit = ordered ? evaluator.getLimit() : -1;
+        for(String id : candidates) {
+            Entry<T> entry = entries.get(id);
+            if(entry != null && evaluator.matches(entry.json)) {
+                matches.add(entry);
+                //already in order, so nothing past the end of the range is needed
+                if(limit >= 0 && matches.size() >= limit) break;
+            }
+        }
+        if(!ordered && evaluator.getOrder() != null) {
+            final Comparator<JsonObject> order = evaluator.getOrder();
+            Collections.sort(matches, new Comparator<Entry<T>>() {
+                @Override
+                public int compare(Entry<T> a, Entry<T> b) {
+                    return order.compare(a.json, b.json);
+                }
+            });
+        } else if(!ordered && near != null) {
+            //like the platform, NEAR results come back closest first
+            int count = matches.size();
+            double[] points = new double[2 * count];
+            int[] order = new int[count];
+            for(int i = 0; i < count; i++) {
+                double[] point = JsonQueryEvaluator.latLon(matches.get(i).json.get(near.getField()));
+                points[2 * i] = point == null ? Double.NaN : point[0];
+                points[2 * i + 1] = point == null ? Double.NaN : point[1];
+                order[i] = i;
+            }
+            double[] center = near.getPoint();
+            GeoPoints.sortByDistance(center[0], center[1], points, order, count, new double[count]);
+            List<Entry<T>> sorted = new ArrayList<Entry<T>>(count);
+            for(int i = 0; i < count; i++) sorted.add(matches.get(order[i]));
+            matches = sorted;
+        }
+        List<T> results = new ArrayList<T>();
+        for(Entry<T> entry : evaluator.applyRange(matches)) {
+            results.add(entry.model);
+        }
+        return results;
+    }
+
+    /**
+     * run a query against this store if every object it could match is known to be here: the store is complete
+     * (see {@link #setComplete(boolean)}), or the query looks objects up by id and all of them are here. otherwise,
+     * or if it can't be run here at all, it goes to the server, and whatever comes back is added to the store.
+     * results answered here are the whole stored objects even if the query selects only some fields
+     * @param query the query
+     * @param callback gets the results
+     */
+    public void send(StackMobModelQuery<T> query, final StackMobQueryCallback<T> callback) {
+        List<T> local = null;
+        synchronized(this) {
+            if(canAnswer(query.getQuery()) && holdsEveryMatch(query.getQuery())) local = query(query.getQuery());
+        }
+        if(local != null) {
+            callback.success(local);
+            return;
+        }
+        query.send(new StackMobQueryCallback<T>() {
+            @Override
+            public void success(List<T> result) {
+                putAll(result);
+                callback.success(result);
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                callback.failure(e);
+            }
+        });
+    }
+
+    /**
+     * @return whether nothing the query matches can be missing: the store is complete, or an equality or IN
+     *         condition on the id names only objects that are here
+     */
+    private boolean holdsEveryMatch(StackMobQuery query) {
+        if(complete) return true;
+        for(JsonQueryEvaluator.Condition condition : new JsonQueryEvaluator(query).getConditions()) {
+            if(!condition.getField().equals(idField)) continue;
+            if(condition.getOperator() != null && condition.getOperator() != StackMobQuery.Operator.IN) continue;
+            if(entries.keySet().containsAll(condition.getValues())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the ids matching the most selective equality or IN condition on a hash indexed field, or null if
+     *         there's no such condition
+     */
+    private Collection<String> candidatesFromHashIndex(JsonQueryEvaluator evaluator) {
+        Collection<String> best = null;
+        for(JsonQueryEvaluator.Condition condition : evaluator.getConditions()) {
+            Map<String, Set<String>> index = hashIndexes.get(condition.getField());
+            if(index == null) continue;
+            Collection<String> ids;
+            if(condition.getOperator() == null) {
+                ids = postings(index.get(JsonQueryEvaluator.key(condition.getValues().get(0))));
+            } else if(condition.getOperator() == StackMobQuery.Operator.IN) {
+                ids = new LinkedHashSet<String>();
+                for(String value : condition.getValues()) ids.addAll(postings(index.get(JsonQueryEvaluator.key(value))));
+            } else {
+                continue;
+            }
+            best = smallest(best, ids);
+        }
+        return best;
+    }
+
+    /**
+     * @return the ids in the narrowest range of a sorted indexed field, or null if there's no range condition on one
+     */
+    private Collection<String> candidatesFromSortedIndex(JsonQueryEvaluator evaluator) {
+        Collection<String> best = null;
+        for(Map.Entry<String, TreeMap<JsonElement, Set<String>>> index : sortedIndexes.entrySet()) {
+            NavigableMap<JsonElement, Set<String>> range = index.getValue();
+            boolean narrowed = false;
+            for(JsonQueryEvaluator.Condition condition : evaluator.getConditions()) {
+                if(!condition.getField().equals(index.getKey()) || condition.getOperator() == null) continue;
+                JsonElement bound = JsonQueryEvaluator.toJsonValue(condition.getValues().get(0));
+                switch(condition.getOperator()) {
+                    case LT: range = range.headMap(bound, false); narrowed = true; break;
+                    case LTE: range = range.headMap(bound, true); narrowed = true; break;
+                    case GT: range = range.tailMap(bound, false); narrowed = true; break;
+                    case GTE: range = range.tailMap(bound, true); narrowed = true; break;
+                    default: break;
+                }
+            }
+            if(!narrowed) continue;
+            //an object with an array in the field can be filed under several values in the range
+            Set<String> ids = new LinkedHashSet<String>();
+            for(Set<String> posting : range.values()) ids.addAll(posting);
+            best = smallest(best, ids);
+        }
+        return best;
+    }
+
+    /**
+     * @return the ids within the radius or box of the most selective NEAR or WITHIN condition on a geo indexed field,
+     *         or null if there's no such condition
+     */
+    private Collection<String> candidatesFromGeoIndex(JsonQueryEvaluator evaluator) {
+        Collection<String> best = null;
+        for(JsonQueryEvaluator.Condition condition : evaluator.getConditions()) {
+            GeoGridIndex index = geoIndexes.get(condition.getField());
+            if(index == null || condition.getPoint() == null) continue;
+            double[] point = condition.getPoint();
+            double[] box = condition.getBox();
+            Collection<String> ids;
+            if(box != null) {
+                ids = index.withinBox(box[0], box[1], box[2], box[3]);
+            } else if(!Double.isNaN(condition.getRadius())) {
+                ids = index.withinRadius(point[0], point[1], condition.getRadius());
+            } else {
+                continue;
+            }
+            best = smallest(best, ids);
+        }
+        return best;
+    }
+
+    /**
+     * @return the ids closest to the point of the query's NEAR condition in order, if that's all the query needs.
+     *         otherwise null
+     */
+    private Collection<String> nearestFromGeoIndex(JsonQueryEvaluator evaluator) {
+        JsonQueryEvaluator.Condition near = evaluator.getNear();
+        if(near == null || evaluator.getConditions().size() != 1 || evaluator.getOrder() != null || evaluator.getLimit() < 0) return null;
+        GeoGridIndex index = geoIndexes.get(near.getField());
+        if(index == null) return null;
+        double[] point = near.getPoint();
+        if(Double.isNaN(near.getRadius())) {
+            return index.nearest(point[0], point[1], evaluator.getLimit());
+        }
+        return null;
+    }
+
+    private static Collection<String> smallest(Collection<String> a, Collection<String> b) {
+        if(a == null) return b;
+        if(b == null) return a;
+        return b.size() < a.size() ? b : a;
+    }
+
+    /**
+     * @return every id in the order of the query, or null if its first ordering field has no sorted index
+     */
+    private Collection<String> idsInOrder(String orderBy) {
+        if(orderBy.contains(",")) return null;
+        String[] fieldAndOrder = orderBy.trim().split(":");
+        TreeMap<JsonElement, Set<String>> index = sortedIndexes.get(fieldAndOrder[0]);
+        if(index == null) return null;
+        boolean descending = fieldAndOrder.length > 1 && fieldAndOrder[1].trim().equalsIgnoreCase("desc");
+        List<String> ids = new ArrayList<String>();
+        Set<String> indexed = new HashSet<String>();
+        //objects without the field sort first
+        for(Map.Entry<String, Entry<T>> entry : entries.entrySet()) {
+            JsonElement value = entry.getValue().json.get(fieldAndOrder[0]);
+            if(value == null || value.isJsonNull()) {
+                ids.add(entry.getKey());
+            } else if(!isSortable(value)) {
+                //an array or object has no single place in the index, so the index can't order them
+                return null;
+            }
+        }
+        for(Set<String> posting : (descending ? index.descendingMap() : index).values()) {
+            ids.addAll(posting);
+            indexed.addAll(posting);
+        }
+        if(descending) Collections.rotate(ids, -(ids.size() - indexed.size()));
+        return ids;
+    }
+
+    private void addToHashIndex(String field, Entry<T> entry) {
+        Map<String, Set<String>> index = hashIndexes.get(field);
+        for(String key : hashKeys(entry.json.get(field))) {
+            Set<String> ids = index.get(key);
+            if(ids == null) {
+                ids = new LinkedHashSet<String>();
+                index.put(key, ids);
+            }
+            ids.add(entry.model.getID());
+        }
+    }
+
+    private void addToSortedIndex(String field, Entry<T> entry) {
+        TreeMap<JsonElement, Set<String>> index = sortedIndexes.get(field);
+        for(JsonElement value : sortKeys(entry.json.get(field))) {
+            Set<String> ids = index.get(value);
+            if(ids == null) {
+                ids = new LinkedHashSet<String>();
+                index.put(value, ids);
+            }
+            ids.add(entry.model.getID());
+        }
+    }
+
+    private void addToGeoIndex(String field, Entry<T> entry) {
+        double[] point = JsonQueryEvaluator.latLon(entry.json.get(field));
+        if(point != null) geoIndexes.get(field).add(entry.model.getID(), point[0], point[1]);
+    }
+
+    private static List<String> hashKeys(JsonElement value) {
+        List<String> keys = new ArrayList<String>();
+        if(value == null || value.isJsonNull()) return keys;
+        if(value.isJsonArray()) {
+            for(JsonElement element : value.getAsJsonArray()) {
+                if(!element.isJsonNull()) keys.add(JsonQueryEvaluator.key(element));
+            }
+        } else {
+            keys.add(JsonQueryEvaluator.key(value));
+        }
+        return keys;
+    }
+
+    /**
+     * @return the values an object is filed under in a sorted index: the value itself, or each element of an array,
+     *         since a range condition on an array matches if any element does
+     */
+    private static List<JsonElement> sortKeys(JsonElement value) {
+        List<JsonElement> keys = new ArrayList<JsonElement>();
+        if(isSortable(value)) {
+            keys.add(value);
+        } else if(value != null && value.isJsonArray()) {
+            for(JsonElement element : value.getAsJsonArray()) {
+                if(isSortable(element)) keys.add(element);
+            }
+        }
+        return keys;
+    }
+
+    private static boolean isSortable(JsonElement value) {
+        return value != null && value.isJsonPrimitive();
+    }
+
+    private static <K> void removePosting(Map<K, Set<String>> index, K key, String id) {
+        Set<String> ids = index.get(key);
+        if(ids == null) return;
+        ids.remove(id);
+        if(ids.isEmpty()) index.remove(key);
+    }
+
+    private static Collection<String> postings(Set<String> ids) {
+        return ids == null ? Collections.<String>emptySet() : ids;
+    }
+}
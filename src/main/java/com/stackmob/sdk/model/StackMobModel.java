@@ -21,10 +21,14 @@ import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobBulkCallback;
 import com.stackmob.sdk.callback.StackMobCallback;
 import com.stackmob.sdk.callback.StackMobIntermediaryCallback;
 import com.stackmob.sdk.callback.StackMobNoopCallback;
+import com.stackmob.sdk.callback.StackMobQueryCallback;
 import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.GeoPoint;
 import com.stackmob.sdk.util.Pair;
 import com.stackmob.sdk.util.RelationMapping;
 import com.stackmob.sdk.util.SerializationMetadata;
@@ -34,6 +38,7 @@ import static com.stackmob.sdk.util.SerializationMetadata.*;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.*;
 
 public abstract class StackMobModel {
@@ -60,11 +65,25 @@ public abstract class StackMobModel {
     }
 
     
+    //how many requests the bulk operations keep in flight at once unless told otherwise
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+
+    private static volatile SaveCoalescer saveCoalescer;
+
     private transient String id;
     private transient Class<? extends StackMobModel> actualClass;
     private transient String schemaName;
     private transient boolean hasData;
     private transient Gson gson;
+    //set when this object came from a query that selected only some fields. null means every field is loaded
+    private transient volatile Set<String> loadedFields;
+    //what each field that wasn't loaded held when the object was filled, so changes to it can be told apart
+    private transient volatile Map<String, JsonElement> unloadedValues;
+    //fields that weren't loaded but were marked as changed with markChanged
+    private transient volatile Set<String> changedFields;
+    private transient volatile UsageProfiler.Run usageRun;
+    //how this object was reached from the result it belongs to, "" for the result itself
+    private transient volatile String usagePath;
 
     public StackMobModel(String id, Class<? extends StackMobModel> actualClass) {
         this(actualClass);
@@ -121,7 +140,163 @@ public abstract class StackMobModel {
     public boolean hasData() {
         return hasData;
     }
-    
+
+    /**
+     * Tells the SDK that a field is about to be read. Call this at the top of each getter of a class with
+     * auto-select turned on (see {@link #enableAutoSelect(Class)}). If this object came from a query that didn't
+     * select the field, the fields missing from every result of that query are fetched in one batch before the
+     * getter goes on, and the call site selects the field from then on. The same goes for a related object that
+     * came back as just an id because auto-expand (see {@link #enableAutoExpand(Class)}) didn't expand deep enough:
+     * every object at that relation path is fetched at once. This blocks while that fetch is in flight.
+     * @param fieldName the name of the java field
+     * @throws IllegalStateException if the field or object was missing and couldn't be fetched
+     */
+    protected void touch(String fieldName) {
+        UsageProfiler.Run run = usageRun;
+        if(run == null) return;
+        String jsonName = fieldName.toLowerCase();
+        String path = usagePath;
+        run.site.read(path, jsonName);
+        if(!isMissing(jsonName, path)) return;
+        StackMobException failure = run.fill(path);
+        if(isMissing(jsonName, path)) {
+            throw new IllegalStateException(String.format("Couldn't load field %s of %s %s, which auto-select or auto-expand at %s left out: %s", fieldName, getSchemaName(), id, run.site.callSite, failure == null ? "it wasn't found" : failure.getMessage()));
+        }
+    }
+
+    private boolean isMissing(String jsonName, String path) {
+        if(!hasData) return path.length() > 0;
+        Set<String> loaded = loadedFields;
+        return loaded != null && !loaded.contains(jsonName);
+    }
+
+    /**
+     * Tells the SDK that a field was just assigned. Only matters for objects that came from a query with auto-select
+     * (see {@link #enableAutoSelect(Class)}), where fields that weren't selected are left out when saving unless
+     * they changed. Any assignment that changes a field's value is noticed without this; call it from setters so
+     * that assigning a field that wasn't selected the value it happened to hold, like 0, false or null, is saved too.
+     * @param fieldName the name of the java field
+     */
+    protected synchronized void markChanged(String fieldName) {
+        if(loadedFields == null) return;
+        Set<String> changed = changedFields;
+        if(changed == null) {
+            changed = new HashSet<String>();
+            changedFields = changed;
+        }
+        changed.add(fieldName.toLowerCase());
+    }
+
+    /**
+     * start tracking what's read from this object and everything related to it
+     * @param run the query or fetch this object came from
+     * @param path how this object was reached from the result it belongs to
+     * @param selection the fields that were selected, or null if they all were
+     */
+    void profile(UsageProfiler.Run run, String path, Collection<String> selection) {
+        if(run != null) run.register(path, this);
+        this.usageRun = run;
+        this.usagePath = path;
+        setLoadedFields(selection);
+        Class<?> classToCheck = actualClass;
+        while(!classToCheck.equals(StackMobModel.class)) {
+            for(Field field : classToCheck.getDeclaredFields()) {
+                SerializationMetadata metadata = getMetadata(field.getName());
+                if(metadata != MODEL && metadata != MODEL_ARRAY) continue;
+                String relationPath = path.length() == 0 ? field.getName().toLowerCase() : path + "." + field.getName().toLowerCase();
+                try {
+                    field.setAccessible(true);
+                    Collection<StackMobModel> related;
+                    if(metadata == MODEL) {
+                        related = Collections.singletonList((StackMobModel) field.get(this));
+                    } else {
+                        related = field.get(this) == null ? Collections.<StackMobModel>emptyList() : getFieldAsCollection(field);
+                    }
+                    for(StackMobModel relatedModel : related) {
+                        if(relatedModel == null || relatedModel.usageRun == run) continue;
+                        relatedModel.profile(run, relationPath, null);
+                    }
+                } catch(IllegalAccessException ignore) { } //Should never happen
+            }
+            classToCheck = classToCheck.getSuperclass();
+        }
+    }
+
+    private synchronized void setLoadedFields(Collection<String> selection) {
+        changedFields = null;
+        if(selection == null) {
+            loadedFields = null;
+            unloadedValues = null;
+            return;
+        }
+        Set<String> loaded = new HashSet<String>(selection);
+        Map<String, JsonElement> unloaded = new HashMap<String, JsonElement>();
+        JsonObject current = gson.toJsonTree(this).getAsJsonObject();
+        for(String fieldName : getFieldNames(current)) {
+            if(!loaded.contains(fieldName.toLowerCase())) unloaded.put(fieldName, current.get(fieldName));
+        }
+        unloadedValues = unloaded;
+        loadedFields = loaded;
+    }
+
+    boolean isPartlyLoaded() {
+        return loadedFields != null;
+    }
+
+    /**
+     * @return the json names of the fields a partly loaded object didn't load, empty if it loaded everything
+     */
+    List<String> getUnloadedFieldNames() {
+        List<String> unloaded = new ArrayList<String>();
+        Set<String> loaded = loadedFields;
+        if(loaded == null) return unloaded;
+        Class<?> classToCheck = actualClass;
+        while(!classToCheck.equals(StackMobModel.class)) {
+            for(Field field : classToCheck.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if(Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) continue;
+                String jsonName = field.getName().toLowerCase();
+                if(!loaded.contains(jsonName)) unloaded.add(jsonName);
+            }
+            classToCheck = classToCheck.getSuperclass();
+        }
+        return unloaded;
+    }
+
+    /**
+     * fill in the fields a partly loaded object didn't load, except ones assigned since, and mark it fully loaded
+     */
+    synchronized void fillUnloadedFromJson(JsonElement json) throws StackMobException {
+        Set<String> loaded = loadedFields;
+        if(loaded == null) return;
+        JsonObject current = gson.toJsonTree(this).getAsJsonObject();
+        for(Map.Entry<String, JsonElement> jsonField : json.getAsJsonObject().entrySet()) {
+            String jsonName = jsonField.getKey();
+            if(loaded.contains(jsonName)) continue;
+            String fieldName = getFieldName(jsonName);
+            if(fieldName != null && isChangedSinceFilled(fieldName, current.get(fieldName))) continue;
+            fillFieldFromJson(jsonName, jsonField.getValue());
+        }
+        setLoadedFields(null);
+    }
+
+    /**
+     * @return whether a field of a partly loaded object should be saved: it was loaded, marked as changed, or holds
+     *         something other than what it held when the object was filled
+     */
+    private boolean isSaved(String fieldName, JsonElement value, Set<String> loaded) {
+        return loaded.contains(fieldName.toLowerCase()) || isChangedSinceFilled(fieldName, value);
+    }
+
+    private boolean isChangedSinceFilled(String fieldName, JsonElement value) {
+        Set<String> changed = changedFields;
+        if(changed != null && changed.contains(fieldName.toLowerCase())) return true;
+        Map<String, JsonElement> unloaded = unloadedValues;
+        if(unloaded == null) return true;
+        JsonElement filled = unloaded.get(fieldName);
+        return value == null ? filled != null : !value.equals(filled);
+    }
+
     protected void fillFieldFromJson(String jsonName, JsonElement json) throws StackMobException {
         try {
             if(jsonName.equals(getIDFieldName())) {
@@ -275,6 +450,7 @@ public abstract class StackMobModel {
                     fillFieldFromJson(jsonField.getKey(), jsonField.getValue());
                 }
             }
+            if(selection == null) setLoadedFields(null);
             hasData = true;
         }
     }
@@ -309,15 +485,20 @@ public abstract class StackMobModel {
         return list;
     }
 
-    private JsonElement toJsonElement(int depth, RelationMapping mapping) {
+    JsonElement toJsonElement(int depth, RelationMapping mapping) {
         // Set the id here as opposed to on the server to avoid a race condition
         if(getID() == null) setID(UUID.randomUUID().toString().replace("-",""));
         if(depth < 0) return new JsonPrimitive(getID());
         JsonObject json = gson.toJsonTree(this).getAsJsonObject();
         JsonObject outgoing = new JsonObject();
+        Set<String> loaded = loadedFields;
         for(String fieldName : getFieldNames(json)) {
             ensureValidName(fieldName, "field");
             JsonElement value = json.get(fieldName);
+            if(loaded != null && !isSaved(fieldName, value, loaded)) {
+                //never loaded and never changed, so sending it would wipe out the real value
+                continue;
+            }
             if(getMetadata(fieldName) == MODEL) {
                 json.remove(fieldName);
                 try {
@@ -356,18 +537,34 @@ public abstract class StackMobModel {
             } else if(getMetadata(fieldName) == OBJECT) {
                 //We don't support subobjects. Gson automatically converts a few types like
                 //Date and BigInteger to primitive types, but anything else has to be an error.
-                if(value.isJsonObject()) {
+                //GeoPoints are the exception, the platform stores them as {"lat":..., "lon":...}
+                if(value.isJsonObject() && !isGeoPointField(fieldName)) {
                     throw new IllegalStateException("Field " + fieldName + " is a subobject which is not supported at this time");
                 }
             }
             outgoing.add(fieldName.toLowerCase(), json.get(fieldName));
         }
+        Set<String> changed = changedFields;
+        if(loaded != null && changed != null) {
+            //gson leaves out nulls, but one that was set on purpose has to go out
+            for(String jsonName : changed) {
+                if(!outgoing.has(jsonName) && getFieldName(jsonName) != null) outgoing.add(jsonName, JsonNull.INSTANCE);
+            }
+        }
         if(id != null) {
             outgoing.addProperty(getIDFieldName(),id);
         }
         return outgoing;
     }
     
+    private boolean isGeoPointField(String fieldName) {
+        try {
+            return getField(fieldName).getType().equals(GeoPoint.class);
+        } catch(NoSuchFieldException e) {
+            return false;
+        }
+    }
+
     public String toJson() {
         return toJsonWithDepth(0);
     }
@@ -397,6 +594,8 @@ public abstract class StackMobModel {
     }
     
     public void fetchWithDepth(int depth, StackMobCallback callback) {
+        final UsageProfiler.Run run = UsageProfiler.startRun(actualClass, getSchemaName());
+        if(run != null && UsageProfiler.autoExpands(actualClass)) depth = run.expandDepth(depth);
         Map<String,String> args = new HashMap<String, String>();
         if(depth > 0) args.put("_expand", String.valueOf(depth));
         Map<String,String> headers = new HashMap<String, String>();
@@ -405,6 +604,7 @@ public abstract class StackMobModel {
             public void success(String responseBody) {
                 try {
                     StackMobModel.this.fillFromJson(new JsonParser().parse(responseBody));
+                    if(run != null) profile(run, "", null);
                 } catch (StackMobException e) {
                     failure(e);
                 }
@@ -413,6 +613,59 @@ public abstract class StackMobModel {
         });
     }
     
+    /**
+     * fetch many objects of the same type by id. the ids are sent as IN queries, split so that no request URL gets too
+     * long, with at most {@link #DEFAULT_MAX_CONCURRENT_REQUESTS} of those queries in flight at once
+     * @param classOfT the type of object to fetch
+     * @param ids the ids to fetch
+     * @param callback called once when every query is done. gets every fetched object, or a
+     *                 {@link com.stackmob.sdk.exception.StackMobBulkException} with the reason each failed object
+     *                 failed, keyed by schemaName/id
+     */
+    public static <T extends StackMobModel> void fetchAll(Class<T> classOfT, Collection<String> ids, StackMobQueryCallback<T> callback) {
+        fetchAll(classOfT, ids, DEFAULT_MAX_CONCURRENT_REQUESTS, callback);
+    }
+
+    /**
+     * same as {@link #fetchAll(Class, java.util.Collection, com.stackmob.sdk.callback.StackMobQueryCallback)}, except
+     * allows you to choose how many queries can be in flight at once
+     * @param classOfT the type of object to fetch
+     * @param ids the ids to fetch
+     * @param maxConcurrentRequests the most queries to have in flight at once
+     * @param callback called once when every query is done
+     */
+    public static <T extends StackMobModel> void fetchAll(Class<T> classOfT, Collection<String> ids, int maxConcurrentRequests, StackMobQueryCallback<T> callback) {
+        List<T> models = new ArrayList<T>();
+        for(String id : new LinkedHashSet<String>(ids)) {
+            T model = new Gson().fromJson("{}", classOfT);
+            model.setID(id);
+            models.add(model);
+        }
+        new BatchFetch<T>(models, callback).send(maxConcurrentRequests);
+    }
+
+    /**
+     * refresh many existing objects at once, filling each of them in place. they can be of different types
+     * as long as each has an id
+     * @param models the objects to refresh
+     * @param callback called once when every query is done. gets the objects, or a
+     *                 {@link com.stackmob.sdk.exception.StackMobBulkException} reporting them as schemaName/id
+     */
+    public static <T extends StackMobModel> void fetchAll(Collection<T> models, StackMobQueryCallback<T> callback) {
+        fetchAll(models, DEFAULT_MAX_CONCURRENT_REQUESTS, callback);
+    }
+
+    /**
+     * same as {@link #fetchAll(java.util.Collection, com.stackmob.sdk.callback.StackMobQueryCallback)}, except
+     * allows you to choose how many queries can be in flight at once
+     * @param models the objects to refresh
+     * @param maxConcurrentRequests the most queries to have in flight at once
+     * @param callback called once when every query is done
+     */
+    public static <T extends StackMobModel> void fetchAll(Collection<T> models, int maxConcurrentRequests, StackMobQueryCallback<T> callback) {
+        new BatchFetch<T>(new ArrayList<T>(models), callback).send(maxConcurrentRequests);
+    }
+
     public void save() {
         save(new StackMobNoopCallback());
     }
@@ -426,11 +679,21 @@ public abstract class StackMobModel {
     }
 
     public void saveWithDepth(int depth, StackMobCallback callback) {
+        SaveCoalescer coalescer = saveCoalescer;
+        if(coalescer != null) {
+            coalescer.save(this, depth, callback);
+        }
+        else {
+            sendSave(depth, callback);
+        }
+    }
+
+    StackMobRequestSendResult sendSave(int depth, StackMobCallback callback) {
         RelationMapping mapping = new RelationMapping();
         String json = toJsonWithDepth(depth, mapping);
         List<Map.Entry<String,String>> headers= new ArrayList<Map.Entry<String,String>>();
         if(!mapping.isEmpty()) headers.add(new Pair<String,String>("X-StackMob-Relations", mapping.toHeaderString()));
-        StackMob.getStackMob().post(getSchemaName(), json, headers, new StackMobIntermediaryCallback(callback) {
+        return StackMob.getStackMob().post(getSchemaName(), json, headers, new StackMobIntermediaryCallback(callback) {
             @Override
             public void success(String responseBody) {
                 try {
@@ -443,6 +706,125 @@ public abstract class StackMobModel {
         });
     }
 
+    /**
+     * turn on write-behind for saves. repeated saves of the same object are collapsed into one request carrying the
+     * latest state, sent at most delayMillis after the first of them. once maxPending distinct objects are waiting,
+     * they all go out together via {@link #saveAll(java.util.Collection, com.stackmob.sdk.callback.StackMobBulkCallback)}.
+     * every callback passed to a collapsed save is called with the result of the request that finally went out
+     * @param delayMillis the longest a save waits before going out
+     * @param maxPending how many distinct objects can be waiting before everything is sent
+     */
+    public static synchronized void enableSaveCoalescing(long delayMillis, int maxPending) {
+        if(delayMillis < 0 || maxPending < 1) {
+            throw new IllegalArgumentException("delayMillis can't be negative and maxPending must be at least 1");
+        }
+        SaveCoalescer old = saveCoalescer;
+        saveCoalescer = new SaveCoalescer(delayMillis, maxPending);
+        if(old != null) old.shutdown();
+    }
+
+    /**
+     * turn write-behind back off, sending anything still waiting
+     */
+    public static synchronized void disableSaveCoalescing() {
+        SaveCoalescer old = saveCoalescer;
+        saveCoalescer = null;
+        if(old != null) old.shutdown();
+    }
+
+    /**
+     * send every save that write-behind is holding right now. call this before your app exits, since pending saves
+     * live only in memory
+     */
+    public static void flushPendingSaves() {
+        SaveCoalescer coalescer = saveCoalescer;
+        if(coalescer != null) coalescer.flush();
+    }
+
+    /**
+     * turn on auto-select for a class. each place in your code that queries it with a {@link StackMobModelQuery}
+     * is watched the first time it runs to see which fields the results have read, and after that it selects only
+     * those fields. the SDK can't see plain field reads, so this only narrows queries of classes whose getters call
+     * {@link #touch(String)}; a call site whose results never report a read keeps getting every field. reading a
+     * field that wasn't selected fetches the missing fields of all that query's results in one batch, and selects
+     * the field from then on. queries that already have a select are
+     * left alone. every query walks the stack to find its call site, so each call site is learned and narrowed on
+     * its own
+     * @param classOfT the class to turn it on for
+     */
+    public static void enableAutoSelect(Class<? extends StackMobModel> classOfT) {
+        UsageProfiler.enableAutoSelect(classOfT);
+    }
+
+    /**
+     * turn auto-select back off for a class. what was learned is kept
+     * @param classOfT the class to turn it off for
+     */
+    public static void disableAutoSelect(Class<? extends StackMobModel> classOfT) {
+        UsageProfiler.disableAutoSelect(classOfT);
+    }
+
+    /**
+     * turn on auto-expand for a class. each place in your code that queries it with a {@link StackMobModelQuery}
+     * or fetches it is watched the first time it runs to see how deep into related objects the results are read,
+     * and after that it uses the smallest expand depth that covers those reads, in place of the one asked for. as
+     * with auto-select, getters of every class involved have to call {@link #touch(String)}. reading a related
+     * object that wasn't expanded fetches every object the query returned at that relation path in one batch, and
+     * expands deep enough from then on
+     * @param classOfT the class to turn it on for
+     */
+    public static void enableAutoExpand(Class<? extends StackMobModel> classOfT) {
+        UsageProfiler.enableAutoExpand(classOfT);
+    }
+
+    /**
+     * turn auto-expand back off for a class. what was learned is kept
+     * @param classOfT the class to turn it off for
+     */
+    public static void disableAutoExpand(Class<? extends StackMobModel> classOfT) {
+        UsageProfiler.disableAutoExpand(classOfT);
+    }
+
+    /**
+     * @return what the results from each call site of a class with auto-select or auto-expand on have read so far,
+     *         with the expand depth each call site should use
+     */
+    public static List<StackMobUsageStatistics> getUsageStatistics() {
+        return UsageProfiler.statistics();
+    }
+
+    /**
+     * forget what each call site has read
+     */
+    public static void resetUsageStatistics() {
+        UsageProfiler.reset();
+    }
+
+    /**
+     * save many objects with as few requests as possible. objects are grouped by schema and sent in bulk POSTs whose
+     * size adapts to how long earlier batches took and how big they were, with at most
+     * {@link #DEFAULT_MAX_CONCURRENT_REQUESTS} batches in flight at once. server assigned fields like createddate and
+     * lastmoddate are filled back into each object
+     * @param models the objects to save. they can be of different types
+     * @param callback called once when every batch is done. gets the saved objects as schemaName/id, or a
+     *                 {@link com.stackmob.sdk.exception.StackMobBulkException} with the reason each failed object
+     *                 failed, keyed the same way
+     */
+    public static void saveAll(Collection<? extends StackMobModel> models, StackMobBulkCallback callback) {
+        saveAll(models, DEFAULT_MAX_CONCURRENT_REQUESTS, callback);
+    }
+
+    /**
+     * same as {@link #saveAll(java.util.Collection, com.stackmob.sdk.callback.StackMobBulkCallback)}, except
+     * allows you to choose how many batches can be in flight at once
+     * @param models the objects to save
+     * @param maxConcurrentRequests the most batches to have in flight at once
+     * @param callback called once when every batch is done
+     */
+    public static void saveAll(Collection<? extends StackMobModel> models, int maxConcurrentRequests, StackMobBulkCallback callback) {
+        new BatchSave(models, callback).send(maxConcurrentRequests);
+    }
+
     public void destroy() {
         destroy(new StackMobNoopCallback());
     }
@@ -451,4 +833,43 @@ public abstract class StackMobModel {
         StackMob.getStackMob().delete(getSchemaName(), id, callback);
     }
 
+    /**
+     * destroy many objects, with at most {@link #DEFAULT_MAX_CONCURRENT_REQUESTS} deletes in flight at once
+     * @param models the objects to destroy. they can be of different types, but each needs an id
+     * @param callback called as each delete finishes and once when they're all done. gets the destroyed objects as
+     *                 schemaName/id, or a {@link com.stackmob.sdk.exception.StackMobBulkException} with the reason each
+     *                 failed object failed, keyed the same way
+     */
+    public static void destroyAll(Collection<? extends StackMobModel> models, StackMobBulkCallback callback) {
+        destroyAll(models, DEFAULT_MAX_CONCURRENT_REQUESTS, callback);
+    }
+
+    /**
+     * same as {@link #destroyAll(java.util.Collection, com.stackmob.sdk.callback.StackMobBulkCallback)}, except
+     * allows you to choose how many deletes can be in flight at once
+     * @param models the objects to destroy
+     * @param maxConcurrentRequests the most deletes to have in flight at once
+     * @param callback called as each delete finishes and once when they're all done
+     */
+    public static void destroyAll(Collection<? extends StackMobModel> models, int maxConcurrentRequests, StackMobBulkCallback callback) {
+        new BatchDestroy(models, callback).send(maxConcurrentRequests);
+    }
+
+    /**
+     * destroy many objects of the same type by id
+     * @param classOfT the type of object to destroy
+     * @param ids the ids to destroy
+     * @param callback called as each delete finishes and once when they're all done. objects are reported as
+     *                 schemaName/id
+     */
+    public static <T extends StackMobModel> void destroyAll(Class<T> classOfT, Collection<String> ids, StackMobBulkCallback callback) {
+        List<T> models = new ArrayList<T>();
+        for(String id : ids) {
+            T model = new Gson().fromJson("{}", classOfT);
+            model.setID(id);
+            models.add(model);
+        }
+        destroyAll(models, callback);
+    }
+
 }
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobPageCallback;
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.*;
+
+/**
+ * Walks through the results of a {@link StackMobModelQuery} a page at a time using the Range header. While you
+ * work on one page, up to prefetchDepth pages after it are already being fetched. The first page is fetched on its
+ * own; its Content-Range total then says how many pages there are, so no requests are wasted past the end.
+ * If the server doesn't send a total, the first page with fewer than pageSize objects is the last one.
+ *
+ * Example usage:
+ * <code>
+ *     StackMobModelCursor&lt;Task&gt; cursor = new StackMobModelQuery&lt;Task&gt;(Task.class).cursor(100, 2);
+ *     while(cursor.hasNextPage()) {
+ *         for(Task task : cursor.nextPage()) {
+ *             ...
+ *         }
+ *     }
+ * </code>
+ *
+ * A failed page is thrown from {@link #nextPage()} and ends the cursor.
+ */
+public class StackMobModelCursor<T extends StackMobModel> {
+
+    private final StackMobModelQuery<T> modelQuery;
+    private final StackMobQuery template;
+    private final int pageSize;
+    private final int prefetchDepth;
+
+    private final Object lock = new Object();
+    private final Map<Integer, Page> pages = new HashMap<Integer, Page>();
+    private int nextPage = 0;
+    private int nextToRequest = 0;
+    private int lastPage = Integer.MAX_VALUE;
+    private int totalCount = -1;
+    private boolean sizeKnown = false;
+    private boolean closed = false;
+
+    private class Page {
+        List<T> results;
+        StackMobException error;
+    }
+
+    StackMobModelCursor(StackMobModelQuery<T> modelQuery, int pageSize, int prefetchDepth) {
+        if(pageSize < 1 || prefetchDepth < 0) {
+            throw new IllegalArgumentException("pageSize must be at least 1 and prefetchDepth can't be negative");
+        }
+        this.modelQuery = modelQuery;
+        //later changes to the query shouldn't change pages we haven't fetched yet
+        StackMobQuery query = modelQuery.getQuery();
+        this.template = new StackMobQuery(query.getObjectName()).add(query);
+        this.pageSize = pageSize;
+        this.prefetchDepth = prefetchDepth;
+        synchronized(lock) {
+            fillWindow();
+        }
+    }
+
+    /**
+     * @return false once every page has been returned, the cursor failed or it was closed. before the first page
+     * comes back this is true even if the query matches nothing, in which case the first page is empty
+     */
+    public boolean hasNextPage() {
+        synchronized(lock) {
+            return !closed && nextPage <= lastPage;
+        }
+    }
+
+    /**
+     * get the next page, waiting for it if it hasn't come back yet
+     * @return the objects on the page
+     * @throws StackMobException if the page couldn't be fetched
+     * @throws NoSuchElementException if there are no more pages
+     */
+    public List<T> nextPage() throws StackMobException {
+        synchronized(lock) {
+            if(!hasNextPage()) {
+                throw new NoSuchElementException("no more pages");
+            }
+            int index = nextPage;
+            while(!pages.containsKey(index)) {
+                if(closed) throw new StackMobException("the cursor was closed");
+                try {
+                    lock.wait();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StackMobException("interrupted while waiting for a page");
+                }
+            }
+            Page page = pages.remove(index);
+            nextPage++;
+            fillWindow();
+            if(page.error != null) {
+                throw page.error;
+            }
+            return page.results;
+        }
+    }
+
+    /**
+     * @return the total number of objects the query matches, or a negative number if that isn't known yet or the
+     * server didn't say
+     */
+    public int getTotalCount() {
+        synchronized(lock) {
+            return totalCount;
+        }
+    }
+
+    /**
+     * stop fetching. pages already in flight are thrown away when they come back
+     */
+    public void close() {
+        synchronized(lock) {
+            closed = true;
+            pages.clear();
+            lock.notifyAll();
+        }
+    }
+
+    //call with the lock held
+    private void fillWindow() {
+        int limit = Math.min(lastPage, nextPage + prefetchDepth);
+        if(!sizeKnown) {
+            limit = Math.min(limit, 0);
+        }
+        while(!closed && nextToRequest <= limit) {
+            request(nextToRequest++);
+        }
+    }
+
+    private void request(final int index) {
+        int start = index * pageSize;
+        StackMobQuery pageQuery = new StackMobQuery(template.getObjectName()).add(template).isInRange(start, start + pageSize - 1);
+        StackMobRequestSendResult result = StackMob.getStackMob().get(pageQuery, new StackMobPageCallback() {
+            @Override
+            public void success(String responseBody, int totalItems) {
+                Page page = new Page();
+                try {
+                    page.results = modelQuery.parseResults(responseBody);
+                }
+                catch(RuntimeException e) {
+                    page.error = new StackMobException(e.getMessage());
+                }
+                received(index, page, totalItems);
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                Page page = new Page();
+                page.error = e;
+                received(index, page, -1);
+            }
+        });
+        if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+            Page page = new Page();
+            page.error = new StackMobException(result.getFailureReason().getMessage());
+            received(index, page, -1);
+        }
+    }
+
+    private void received(int index, Page page, int totalItems) {
+        synchronized(lock) {
+            if(closed) {
+                return;
+            }
+            if(page.error != null) {
+                //nothing after a failed page is handed out
+                lastPage = Math.min(lastPage, index);
+            }
+            else if(totalItems >= 0) {
+                totalCount = totalItems;
+                //a page that already failed still bounds what's handed out
+                lastPage = Math.min(lastPage, (totalItems + pageSize - 1) / pageSize - 1);
+            }
+            else if(page.results.size() < pageSize) {
+                lastPage = Math.min(lastPage, index);
+            }
+            sizeKnown = true;
+            pages.put(index, page);
+            fillWindow();
+            lock.notifyAll();
+        }
+    }
+}
@@ -24,10 +24,16 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import com.stackmob.sdk.api.StackMob;
 import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobAggregationCallback;
 import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobCountCallback;
 import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.callback.StackMobScanCallback;
+import com.stackmob.sdk.callback.StackMobStreamCallback;
 import com.stackmob.sdk.exception.StackMobException;
 import com.stackmob.sdk.util.GeoPoint;
+import com.stackmob.sdk.util.Pair;
 
 public class StackMobModelQuery<T extends StackMobModel>{
 
@@ -45,19 +51,34 @@ public class StackMobModelQuery<T extends StackMobModel>{
 
     public void send(StackMobQueryCallback<T> callback) {
         final StackMobQueryCallback<T> furtherCallback = callback;
-        StackMob.getStackMob().get(query, new StackMobCallback() {
+        StackMobQuery toSend = query;
+        final UsageProfiler.Run run = UsageProfiler.startRun(classOfT, query.getObjectName());
+        List<String> selection = null;
+        if(run != null) {
+            toSend = new StackMobQuery(query.getObjectName()).add(query);
+            if(UsageProfiler.autoSelects(classOfT) && !query.getHeaders().containsKey(StackMobQuery.SelectHeader)) {
+                selection = run.selection(getIDFieldName());
+                if(selection != null) toSend.select(selection);
+            }
+            if(UsageProfiler.autoExpands(classOfT)) {
+                String requested = query.getHeaders().get(StackMobQuery.ExpandHeader);
+                int depth = run.expandDepth(requested == null ? 0 : Integer.parseInt(requested));
+                if(depth > 0) {
+                    toSend.expandDepthIs(depth);
+                } else {
+                    toSend.getHeaders().remove(StackMobQuery.ExpandHeader);
+                }
+            }
+        }
+        final List<String> profiledSelection = selection;
+        StackMob.getStackMob().get(toSend, new StackMobCallback() {
             @Override
             public void success(String responseBody) {
-                JsonArray array = new JsonParser().parse(responseBody).getAsJsonArray();
-                List<T> resultList = new ArrayList<T>();
-                for(JsonElement elt : array) {
-                    T newObject = new Gson().fromJson("{}", classOfT);
-                    try {
-                        newObject.fillFromJson(elt);
-                        resultList.add(newObject);
-                    } catch (StackMobException e) { }
+                List<T> results = parseResults(responseBody);
+                if(run != null) {
+                    for(T result : results) result.profile(run, "", profiledSelection);
                 }
-                furtherCallback.success(resultList);
+                furtherCallback.success(results);
             }
 
             @Override
@@ -67,6 +88,134 @@ public class StackMobModelQuery<T extends StackMobModel>{
         });
     }
     
+    /**
+     * walk through the results of this query a page at a time, fetching the next pages in the background while
+     * you work on the current one. the query's own range, if any, is ignored
+     * @param pageSize how many objects to get per request
+     * @param prefetchDepth how many pages past the current one to fetch ahead of time. 0 fetches each page only when
+     *                      it's asked for
+     * @return a cursor at the first page
+     */
+    public StackMobModelCursor<T> cursor(int pageSize, int prefetchDepth) {
+        return new StackMobModelCursor<T>(this, pageSize, prefetchDepth);
+    }
+
+    /**
+     * walk through the results of this query in order of keyField, a page at a time. unlike {@link #cursor}, each
+     * page starts from the last key seen instead of an offset, so late pages are as cheap as early ones
+     * @param keyField the field to page by. it should rarely change and mostly increase as objects are created, like
+     *                 createddate. ties are broken by the object's id
+     * @param pageSize how many objects to get per request
+     * @return a cursor at the first page
+     */
+    public StackMobKeysetCursor<T> keysetCursor(String keyField, int pageSize) {
+        return new StackMobKeysetCursor<T>(this, keyField, pageSize);
+    }
+
+    /**
+     * same as {@link #keysetCursor(String, int)}, paging by createddate
+     * @param pageSize how many objects to get per request
+     * @return a cursor at the first page
+     */
+    public StackMobKeysetCursor<T> keysetCursor(int pageSize) {
+        return keysetCursor("createddate", pageSize);
+    }
+
+    /**
+     * read everything this query matches as fast as possible. the total is counted first, then [0, total) is split
+     * into partitions that are read concurrently, each a page at a time. if the query isn't ordered it's ordered by
+     * id, so that the partitions line up. the query's own range is ignored
+     * @param partitions how many parts to split the result into
+     * @param pageSize how many objects to get per request
+     * @param maxConcurrentRequests how many partitions to read at once
+     * @param inOrder true to deliver pages in the order of the whole result, holding back pages that arrive early.
+     *                false to deliver each page as soon as it arrives
+     * @param callback gets each page and then the outcome of the scan
+     */
+    public void scan(int partitions, int pageSize, int maxConcurrentRequests, boolean inOrder, StackMobScanCallback<T> callback) {
+        new ParallelScan<T>(this, partitions, pageSize, inOrder, callback).send(maxConcurrentRequests);
+    }
+
+    /**
+     * compute counts and numeric statistics over everything this query matches, without downloading whole objects.
+     * see {@link StackMobAggregation}. the work is split into range partitions like {@link #scan}
+     * @param aggregation what to aggregate
+     * @param partitions how many parts to split the result into
+     * @param pageSize how many objects to get per request
+     * @param maxConcurrentRequests how many partitions to read at once
+     * @param callback gets the result
+     */
+    public void aggregate(StackMobAggregation aggregation, int partitions, int pageSize, int maxConcurrentRequests, StackMobAggregationCallback callback) {
+        new ParallelAggregation(this, aggregation, partitions, pageSize, callback).send(maxConcurrentRequests);
+    }
+
+    /**
+     * same as {@link #aggregate(StackMobAggregation, int, int, int, com.stackmob.sdk.callback.StackMobAggregationCallback)},
+     * with {@link StackMobModel#DEFAULT_MAX_CONCURRENT_REQUESTS} partitions of 500 object pages read at once
+     * @param aggregation what to aggregate
+     * @param callback gets the result
+     */
+    public void aggregate(StackMobAggregation aggregation, StackMobAggregationCallback callback) {
+        aggregate(aggregation, StackMobModel.DEFAULT_MAX_CONCURRENT_REQUESTS, 500, StackMobModel.DEFAULT_MAX_CONCURRENT_REQUESTS, callback);
+    }
+
+    String getIDFieldName() {
+        return new Gson().fromJson("{}", classOfT).getIDFieldName();
+    }
+
+    /**
+     * count the objects this query matches without downloading them. see
+     * {@link StackMob#count(com.stackmob.sdk.api.StackMobQuery, com.stackmob.sdk.callback.StackMobCountCallback)}
+     * @param callback called with the count
+     */
+    public void count(StackMobCountCallback callback) {
+        StackMobRequestSendResult result = StackMob.getStackMob().count(query, callback);
+        if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+            callback.failure(new StackMobException(result.getFailureReason().getMessage()));
+        }
+    }
+
+    List<T> parseResults(String responseBody) {
+        return parseResults(new JsonParser().parse(responseBody).getAsJsonArray());
+    }
+
+    List<T> parseResults(JsonArray array) {
+        List<T> resultList = new ArrayList<T>();
+        for(JsonElement elt : array) {
+            T newObject = parseResult(elt);
+            if(newObject != null) resultList.add(newObject);
+        }
+        return resultList;
+    }
+
+    /**
+     * @return the object, or null if it couldn't be read
+     */
+    T parseResult(JsonElement json) {
+        T newObject = new Gson().fromJson("{}", classOfT);
+        try {
+            newObject.fillFromJson(json);
+            return newObject;
+        } catch (StackMobException e) {
+            return null;
+        }
+    }
+
+    /**
+     * pair each result of this query with the objects of another type whose rightField equals the result's leftField.
+     * results are read batchSize at a time, and each batch's distinct keys are looked up with IN queries before the
+     * next batch is read, so memory use depends on the batch size and not on how many results there are. results
+     * with no match aren't emitted
+     * @param leftField the field of this query's results to join on
+     * @param rightClass the type to join with
+     * @param rightField the field of rightClass that leftField has to equal
+     * @param batchSize how many results of this query to handle at a time
+     * @param callback gets the pairs a batch at a time, then the outcome
+     */
+    public <R extends StackMobModel> void join(String leftField, Class<R> rightClass, String rightField, int batchSize, StackMobStreamCallback<Pair<T, R>> callback) {
+        new ClientJoin<T, R>(this, leftField, rightClass, rightField, batchSize, StackMobModel.DEFAULT_MAX_CONCURRENT_REQUESTS, callback).send();
+    }
+
     public StackMobModelQuery<T> field(StackMobField fieldObj) {
       query.add(fieldObj.getQuery());
       return this;
@@ -0,0 +1,433 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.RelationMapping;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A cache that keeps models outside the Java heap, so a large one doesn't slow down garbage collection. Example usage:
+ * <code>
+ *     StackMobOffHeapCache cache = new StackMobOffHeapCache(4L * 1024 * 1024 * 1024);
+ *     cache.put(task);
+ *     Task cached = cache.get(Task.class, task.getID());
+ * </code>
+ *
+ * Each model is stored as its JSON, with relations as ids, in large slabs of direct memory, or of memory mapped
+ * files if you give a directory. Only a map from schema and id to where the bytes are lives on the heap, and a
+ * model is rebuilt from its bytes each time it's read, so {@link #get} returns a new instance every time.
+ *
+ * New bytes are appended to the current slab, and replacing or removing a model only marks its old bytes dead.
+ * When the current slab fills up, the emptiest full slab is compacted into a spare if at least half of it is dead.
+ * Otherwise the oldest slab is evicted along with every model in it.
+ */
+public class StackMobOffHeapCache {
+
+    public static final int DEFAULT_SLAB_BYTES = 64 * 1024 * 1024;
+    //a slab at most this full is worth compacting rather than evicting the oldest one
+    private static final double COMPACT_THRESHOLD = 0.5;
+    //record length, then key length
+    private static final int HEADER_BYTES = 4 + 2;
+
+    private static class Slab {
+        ByteBuffer buffer = null;
+        int used = 0;
+        long live = 0;
+        //when it last filled up, or 0 if it hasn't since it was last emptied
+        long filledAt = 0;
+    }
+
+    private final int slabBytes;
+    private final File directory;
+    private final Slab[] slabs;
+    //schema/id -> slab number in the high 32 bits, offset in the low 32
+    private final Map<String, Long> index = new HashMap<String, Long>();
+    private final Map<Class<?>, StackMobModelQuery<?>> queries = new HashMap<Class<?>, StackMobModelQuery<?>>();
+    private int active = 0;
+    private int spare;
+    private long fills = 0;
+    private long evictions = 0;
+    private final List<RandomAccessFile> files = new ArrayList<RandomAccessFile>();
+
+    /**
+     * @param maxBytes the most memory to use, in slabs of {@link #DEFAULT_SLAB_BYTES}
+     */
+    public StackMobOffHeapCache(long maxBytes) {
+        this(maxBytes, DEFAULT_SLAB_BYTES);
+    }
+
+    /**
+     * @param maxBytes the most direct memory to use
+     * @param slabBytes how much memory to allocate at a time. no model bigger than this can be cached
+     */
+    public StackMobOffHeapCache(long maxBytes, int slabBytes) {
+        this(maxBytes, slabBytes, null);
+    }
+
+    /**
+     * @param maxBytes the most memory to use
+     * @param slabBytes how much memory to allocate at a time. no model bigger than this can be cached
+     * @param directory where to keep files to map slabs from, or null to use direct memory. the files are scratch
+     *                  space; the cache starts out empty whatever is there
+     */
+    public StackMobOffHeapCache(long maxBytes, int slabBytes, File directory) {
+        if(slabBytes <= HEADER_BYTES) {
+            throw new IllegalArgumentException("slabBytes is too small");
+        }
+        if(maxBytes / slabBytes < 3) {
+            throw new IllegalArgumentException("maxBytes must hold at least three slabs");
+        }
+        if(maxBytes / slabBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many slabs; use bigger ones");
+        }
+        this.slabBytes = slabBytes;
+        this.directory = directory;
+        this.slabs = new Slab[(int) (maxBytes / slabBytes)];
+        for(int i = 0; i < slabs.length; i++) slabs[i] = new Slab();
+        this.spare = slabs.length - 1;
+    }
+
+    /**
+     * add a model, or replace the cached one with the same id
+     * @param model the model. it needs an id
+     * @return whether it was cached. a model too big for a slab isn't
+     * @throws StackMobException if a slab can't be mapped
+     */
+    public boolean put(StackMobModel model) throws StackMobException {
+        if(model.getID() == null) {
+            throw new IllegalArgumentException("only models with an id can be cached");
+        }
+        byte[] key = utf8(key(model.getSchemaName(), model.getID()));
+        byte[] payload = utf8(model.toJsonElement(0, new RelationMapping()).toString());
+        int length = HEADER_BYTES + key.length + payload.length;
+        if(length > slabBytes || key.length > Short.MAX_VALUE) {
+            return false;
+        }
+        synchronized(this) {
+            makeRoom(length);
+            Slab slab = slabs[active];
+            ByteBuffer buffer = slab.buffer.duplicate();
+            buffer.position(slab.used);
+            buffer.putInt(length).putShort((short) key.length).put(key).put(payload);
+            Long previous = index.put(key(model.getSchemaName(), model.getID()), location(active, slab.used));
+            if(previous != null) release(previous);
+            slab.used += length;
+            slab.live += length;
+        }
+        return true;
+    }
+
+    public void putAll(Collection<? extends StackMobModel> models) throws StackMobException {
+        for(StackMobModel model : models) put(model);
+    }
+
+    /**
+     * @param classOfT the type of model
+     * @param id its id
+     * @return a new instance of the cached model, or null if it isn't cached
+     */
+    public <T extends StackMobModel> T get(Class<T> classOfT, String id) {
+        StackMobModelQuery<T> query = queryFor(classOfT);
+        byte[] payload;
+        synchronized(this) {
+            Long location = index.get(key(query.getQuery().getObjectName(), id));
+            if(location == null) return null;
+            ByteBuffer buffer = slabs[slabOf(location)].buffer.duplicate();
+            buffer.position(offsetOf(location));
+            int length = buffer.getInt();
+            int keyLength = buffer.getShort();
+            buffer.position(buffer.position() + keyLength);
+            payload = new byte[length - HEADER_BYTES - keyLength];
+            buffer.get(payload);
+        }
+        try {
+            return query.parseResult(new JsonParser().parse(new String(payload, "UTF-8")));
+        } catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return whether it was cached
+     */
+    public synchronized boolean remove(Class<? extends StackMobModel> classOfT, String id) {
+        Long location = index.remove(key(queryFor(classOfT).getQuery().getObjectName(), id));
+        if(location == null) return false;
+        release(location);
+        return true;
+    }
+
+    /**
+     * @return how many models are cached
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return how many bytes the cached models take up, not counting space that hasn't been reclaimed yet
+     */
+    public synchronized long getLiveBytes() {
+        long live = 0;
+        for(Slab slab : slabs) live += slab.live;
+        return live;
+    }
+
+    /**
+     * @return how many models have been evicted to make room
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * drop every model. the memory is kept for reuse
+     */
+    public synchronized void clear() {
+        index.clear();
+        for(Slab slab : slabs) {
+            slab.used = 0;
+            slab.live = 0;
+            slab.filledAt = 0;
+        }
+        active = 0;
+        spare = slabs.length - 1;
+    }
+
+    /**
+     * drop every model and let go of the memory. mapped files are deleted
+     */
+    public synchronized void close() {
+        clear();
+        for(Slab slab : slabs) slab.buffer = null;
+        for(RandomAccessFile file : files) {
+            try {
+                file.close();
+            } catch(IOException ignored) { }
+        }
+        files.clear();
+        if(directory != null) {
+            for(int i = 0; i < slabs.length; i++) {
+                File file = slabFile(i);
+                //a file still mapped can't be deleted on some platforms, so try again when the process exits
+                if(!file.delete()) file.deleteOnExit();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized <T extends StackMobModel> StackMobModelQuery<T> queryFor(Class<T> classOfT) {
+        StackMobModelQuery<T> query = (StackMobModelQuery<T>) queries.get(classOfT);
+        if(query == null) {
+            query = new StackMobModelQuery<T>(classOfT);
+            queries.put(classOfT, query);
+        }
+        return query;
+    }
+
+    private static String key(String schema, String id) {
+        return schema + "/" + id;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long location(int slab, int offset) {
+        return ((long) slab << 32) | (offset & 0xffffffffL);
+    }
+
+    private static int slabOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    private File slabFile(int slab) {
+        return new File(directory, "slab-" + slab);
+    }
+
+    /**
+     * the first time a slab is used, get its memory
+     */
+    //call with the lock held
+    private void allocate(int number) throws StackMobException {
+        Slab slab = slabs[number];
+        if(slab.buffer != null) return;
+        if(directory == null) {
+            slab.buffer = ByteBuffer.allocateDirect(slabBytes);
+            return;
+        }
+        try {
+            if(!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("couldn't create " + directory.getPath());
+            }
+            RandomAccessFile file = new RandomAccessFile(slabFile(number), "rw");
+            files.add(file);
+            slab.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, slabBytes);
+        } catch(IOException e) {
+            throw new StackMobException("couldn't map a slab: " + e.getMessage());
+        }
+    }
+
+    /**
+     * make the active slab one with room for length more bytes
+     */
+    //call with the lock held
+    private void makeRoom(int length) throws StackMobException {
+        allocate(active);
+        while(slabs[active].used + length > slabBytes) {
+            slabs[active].filledAt = ++fills;
+            int next = emptySlab();
+            if(next < 0) {
+                int emptiest = -1;
+                for(int i = 0; i < slabs.length; i++) {
+                    if(i == active || i == spare) continue;
+                    if(emptiest < 0 || slabs[i].live < slabs[emptiest].live) emptiest = i;
+                }
+                //the active slab just filled up, so it's a candidate too
+                if(slabs[active].live < slabs[emptiest].live) emptiest = active;
+                //compacting only helps if the record fits alongside what survives
+                if(slabs[emptiest].live <= slabBytes * COMPACT_THRESHOLD && slabs[emptiest].live + length <= slabBytes) {
+                    next = compact(emptiest);
+                } else {
+                    next = evictOldest();
+                }
+            }
+            active = next;
+            allocate(active);
+        }
+    }
+
+    /**
+     * @return a slab that's never been filled, or -1
+     */
+    //call with the lock held
+    private int emptySlab() {
+        for(int i = 0; i < slabs.length; i++) {
+            if(i != active && i != spare && slabs[i].filledAt == 0 && slabs[i].used == 0) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * copy a slab's live records into the spare, which then takes new records, and make the slab the spare
+     * @return the slab to append to now
+     */
+    //call with the lock held
+    private int compact(int victim) throws StackMobException {
+        allocate(spare);
+        Slab from = slabs[victim];
+        Slab to = slabs[spare];
+        ByteBuffer source = from.buffer.duplicate();
+        ByteBuffer target = to.buffer.duplicate();
+        int offset = 0;
+        while(offset < from.used) {
+            source.position(offset);
+            int length = source.getInt();
+            String key = readKey(source);
+            Long location = index.get(key);
+            if(location != null && location == location(victim, offset)) {
+                source.position(offset).limit(offset + length);
+                target.position(to.used);
+                target.put(source);
+                source.limit(source.capacity());
+                index.put(key, location(spare, to.used));
+                to.used += length;
+                to.live += length;
+            }
+            offset += length;
+        }
+        int next = spare;
+        reset(victim);
+        spare = victim;
+        return next;
+    }
+
+    /**
+     * drop the slab that filled up longest ago, and everything in it
+     * @return the emptied slab
+     */
+    //call with the lock held
+    private int evictOldest() {
+        int oldest = -1;
+        for(int i = 0; i < slabs.length; i++) {
+            if(i == spare || slabs[i].filledAt == 0) continue;
+            if(oldest < 0 || slabs[i].filledAt < slabs[oldest].filledAt) oldest = i;
+        }
+        Slab slab = slabs[oldest];
+        ByteBuffer buffer = slab.buffer.duplicate();
+        int offset = 0;
+        while(offset < slab.used) {
+            buffer.position(offset);
+            int length = buffer.getInt();
+            String key = readKey(buffer);
+            Long location = index.get(key);
+            if(location != null && location == location(oldest, offset)) {
+                index.remove(key);
+                evictions++;
+            }
+            offset += length;
+        }
+        reset(oldest);
+        return oldest;
+    }
+
+    //call with the lock held
+    private void reset(int number) {
+        Slab slab = slabs[number];
+        slab.used = 0;
+        slab.live = 0;
+        slab.filledAt = 0;
+    }
+
+    /**
+     * read the key of the record whose length was just read
+     */
+    private static String readKey(ByteBuffer buffer) {
+        byte[] key = new byte[buffer.getShort()];
+        buffer.get(key);
+        try {
+            return new String(key, "UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * mark a record's bytes dead
+     */
+    //call with the lock held
+    private void release(long location) {
+        Slab slab = slabs[slabOf(location)];
+        slab.live -= slab.buffer.getInt(offsetOf(location));
+    }
+}
@@ -0,0 +1,841 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobBulkCallback;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobReplayCallback;
+import com.stackmob.sdk.exception.StackMobBulkException;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.exception.StackMobHTTPResponseException;
+import com.stackmob.sdk.util.RelationMapping;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link StackMobLocalStore} that saves and destroys locally first and catches the server up in the background,
+ * so changes never wait on, or fail because of, the network. Example usage:
+ * <code>
+ *     StackMobOfflineStore&lt;Task&gt; tasks = new StackMobOfflineStore&lt;Task&gt;(Task.class, new File(dir, "tasks.journal"));
+ *     tasks.save(task);
+ *     List&lt;Task&gt; mine = tasks.getLocalStore().query(new StackMobQuery("task").fieldIsEqualTo("owner", "bob"));
+ * </code>
+ *
+ * Every change is appended to a journal file and synced to disk before it's applied, so the store, including
+ * changes that haven't reached the server yet, is rebuilt from the journal when it's opened again. A replayer pushes
+ * pending changes with {@link StackMobModel#saveAll} and {@link StackMobModel#destroyAll}, one change per object at
+ * a time so each object's changes land in order, and backs off while the server can't be reached. Call
+ * {@link #replay()} to try again right away, for example when the device comes back online.
+ *
+ * Before a change to an object the server has is pushed, the object's lastmoddate on the server is compared with the
+ * one the change was made against, and if they differ {@link StackMobReplayCallback#conflict} decides what to keep.
+ * The lastmoddate is learned from {@link #cache} and from saves, so types that want conflicts detected after their
+ * own saves should declare a lastmoddate field.
+ */
+public class StackMobOfflineStore<T extends StackMobModel> {
+
+    public static final String LAST_MODIFIED_FIELD = "lastmoddate";
+    private static final int CHECK_BATCH_SIZE = 50;
+    //how many passes a change can fail while others go through before it's given up on
+    static final int MAX_ATTEMPTS = 5;
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 5 * 60 * 1000;
+    private static final int MIN_COMPACT_RECORDS = 1000;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "StackMob offline replayer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A local change waiting to reach the server
+     */
+    private static class Change {
+        final long seq;
+        final boolean destroy;
+        //the lastmoddate on the server the change was made against, or null if unknown
+        String base;
+        final JsonObject json;
+
+        Change(long seq, boolean destroy, String base, JsonObject json) {
+            this.seq = seq;
+            this.destroy = destroy;
+            this.base = base;
+            this.json = json;
+        }
+    }
+
+    private final Class<T> classOfT;
+    private final StackMobModelQuery<T> modelQuery;
+    private final String schemaName;
+    private final String idField;
+    private final File file;
+    private FileOutputStream out;
+    private final StackMobLocalStore<T> local;
+    private final Map<String, LinkedList<Change>> pending = new LinkedHashMap<String, LinkedList<Change>>();
+    private final Map<String, String> serverVersions = new HashMap<String, String>();
+    private final Map<String, Integer> attempts = new HashMap<String, Integer>();
+    private long nextSeq = 1;
+    private int records = 0;
+    private StackMobReplayCallback<T> callback = new StackMobReplayCallback<T>() { };
+    private long retryDelay = MIN_RETRY_MILLIS;
+    private boolean replaying = false;
+    private ScheduledFuture<?> scheduled = null;
+    private boolean closed = false;
+
+    /**
+     * open a store, rebuilding it from the journal if there is one
+     * @param classOfT the type of object to store
+     * @param journal the file to keep the journal in. created if it doesn't exist
+     * @throws StackMobException if the journal can't be read or written
+     */
+    public StackMobOfflineStore(Class<T> classOfT, File journal) throws StackMobException {
+        this.classOfT = classOfT;
+        this.modelQuery = new StackMobModelQuery<T>(classOfT);
+        this.local = new StackMobLocalStore<T>(classOfT);
+        T prototype = new Gson().fromJson("{}", classOfT);
+        this.schemaName = prototype.getSchemaName();
+        this.idField = prototype.getIDFieldName();
+        this.file = journal;
+        synchronized(this) {
+            load();
+            //rewriting also drops a record torn by a crash, which anything appended after it would run into
+            compact();
+            if(!pending.isEmpty()) schedule(0);
+        }
+    }
+
+    /**
+     * @return the objects in this store, to query. add and remove objects through this store, not directly
+     */
+    public StackMobLocalStore<T> getLocalStore() {
+        return local;
+    }
+
+    public synchronized void setReplayCallback(StackMobReplayCallback<T> callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * save an object locally, and on the server when it can be reached. objects without an id are given one
+     * @param model the object
+     * @throws StackMobException if the change can't be written to the journal
+     */
+    public synchronized void save(T model) throws StackMobException {
+        checkOpen();
+        if(model.getID() == null) {
+            model.setID(UUID.randomUUID().toString().replace("-", ""));
+        }
+        JsonObject json = model.toJsonElement(0, new RelationMapping()).getAsJsonObject();
+        Change change = new Change(nextSeq++, false, serverVersions.get(model.getID()), json);
+        append(changeRecord(model.getID(), change));
+        enqueue(model.getID(), change);
+        local.put(model);
+        kick();
+    }
+
+    /**
+     * destroy an object locally, and on the server when it can be reached
+     * @param model the object
+     * @throws StackMobException if the change can't be written to the journal
+     */
+    public void destroy(T model) throws StackMobException {
+        destroy(model.getID());
+    }
+
+    public synchronized void destroy(String id) throws StackMobException {
+        checkOpen();
+        Change change = new Change(nextSeq++, true, serverVersions.get(id), null);
+        append(changeRecord(id, change));
+        enqueue(id, change);
+        local.remove(id);
+        kick();
+    }
+
+    /**
+     * add objects fetched from the server, without pushing them back. objects with local changes that haven't been
+     * pushed yet are left alone
+     * @param models the objects, as the server has them
+     * @throws StackMobException if they can't be written to the journal
+     */
+    public synchronized void cache(Collection<? extends T> models) throws StackMobException {
+        checkOpen();
+        for(T model : models) {
+            if(model.getID() == null || pending.containsKey(model.getID())) continue;
+            JsonObject json = model.toJsonElement(0, new RelationMapping()).getAsJsonObject();
+            String version = lastModified(json);
+            append(putRecord(model.getID(), json, version));
+            setServerVersion(model.getID(), version);
+            local.put(model);
+        }
+    }
+
+    /**
+     * @return how many objects have local changes that haven't reached the server yet
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * try to push pending changes now rather than waiting out the backoff
+     */
+    public synchronized void replay() {
+        if(closed || pending.isEmpty()) return;
+        retryDelay = MIN_RETRY_MILLIS;
+        schedule(0);
+    }
+
+    /**
+     * stop replaying and close the journal. changes that haven't been pushed are replayed when the store is opened
+     * again
+     */
+    public synchronized void close() {
+        if(closed) return;
+        closed = true;
+        if(scheduled != null) scheduled.cancel(false);
+        try {
+            out.close();
+        } catch(IOException ignored) { }
+    }
+
+    private void checkOpen() {
+        if(closed) {
+            throw new IllegalStateException("this store is closed");
+        }
+    }
+
+    private void enqueue(String id, Change change) {
+        LinkedList<Change> changes = pending.get(id);
+        if(changes == null) {
+            changes = new LinkedList<Change>();
+            pending.put(id, changes);
+        }
+        changes.add(change);
+    }
+
+    private void setServerVersion(String id, String version) {
+        if(version == null) {
+            serverVersions.remove(id);
+        } else {
+            serverVersions.put(id, version);
+        }
+    }
+
+    private static String lastModified(JsonObject json) {
+        JsonElement modified = json == null ? null : json.get(LAST_MODIFIED_FIELD);
+        return modified == null || !modified.isJsonPrimitive() ? null : modified.getAsString();
+    }
+
+    //call with the lock held
+    private void kick() {
+        //a running pass picks up new changes when it finishes
+        if(!replaying && scheduled == null) schedule(0);
+    }
+
+    //call with the lock held
+    private void schedule(long delay) {
+        if(closed) return;
+        if(scheduled != null) scheduled.cancel(false);
+        scheduled = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                startPass();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * The journal: one JSON record per line.
+     *   {"op":"save","id":...,"seq":...,"base":...,"json":{...}}   a local save, pending until acked
+     *   {"op":"destroy","id":...,"seq":...,"base":...}             a local destroy, pending until acked
+     *   {"op":"ack","id":...,"seq":...,"base":...}                 changes up to seq are done, and the server is at base
+     *   {"op":"put","id":...,"base":...,"json":{...}}              the server's version, nothing to push
+     *   {"op":"remove","id":...}                                   gone on the server, nothing to push
+     */
+
+    private JsonObject changeRecord(String id, Change change) {
+        JsonObject record = new JsonObject();
+        record.addProperty("op", change.destroy ? "destroy" : "save");
+        record.addProperty("id", id);
+        record.addProperty("seq", change.seq);
+        record.add("base", change.base == null ? JsonNull.INSTANCE : new JsonPrimitive(change.base));
+        if(!change.destroy) record.add("json", change.json);
+        return record;
+    }
+
+    private static JsonObject putRecord(String id, JsonObject json, String base) {
+        JsonObject record = new JsonObject();
+        record.addProperty("op", "put");
+        record.addProperty("id", id);
+        record.add("base", base == null ? JsonNull.INSTANCE : new JsonPrimitive(base));
+        record.add("json", json);
+        return record;
+    }
+
+    private static JsonObject ackRecord(String id, long seq, String base) {
+        JsonObject record = new JsonObject();
+        record.addProperty("op", "ack");
+        record.addProperty("id", id);
+        record.addProperty("seq", seq);
+        record.add("base", base == null ? JsonNull.INSTANCE : new JsonPrimitive(base));
+        return record;
+    }
+
+    private static JsonObject removeRecord(String id) {
+        JsonObject record = new JsonObject();
+        record.addProperty("op", "remove");
+        record.addProperty("id", id);
+        return record;
+    }
+
+    private static String optString(JsonObject record, String field) {
+        JsonElement value = record.get(field);
+        return value == null || value.isJsonNull() ? null : value.getAsString();
+    }
+
+    //call with the lock held
+    private void append(JsonObject record) throws StackMobException {
+        try {
+            out.write((record.toString() + "\n").getBytes("UTF-8"));
+            out.flush();
+            out.getFD().sync();
+            records++;
+        } catch(IOException e) {
+            throw new StackMobException("couldn't write to the journal: " + e.getMessage());
+        }
+    }
+
+    //call with the lock held
+    private void load() throws StackMobException {
+        Map<String, JsonObject> state = new LinkedHashMap<String, JsonObject>();
+        if(file.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+                JsonParser parser = new JsonParser();
+                String line;
+                while((line = reader.readLine()) != null) {
+                    if(line.length() == 0) continue;
+                    JsonObject record;
+                    try {
+                        record = parser.parse(line).getAsJsonObject();
+                    } catch(RuntimeException e) {
+                        //a record torn by a crash can only be the last one
+                        break;
+                    }
+                    applyRecord(record, state);
+                }
+            } catch(IOException e) {
+                throw new StackMobException("couldn't read the journal: " + e.getMessage());
+            } finally {
+                if(reader != null) {
+                    try {
+                        reader.close();
+                    } catch(IOException ignored) { }
+                }
+            }
+        }
+        for(JsonObject json : state.values()) {
+            T model = modelQuery.parseResult(json);
+            if(model != null) local.put(model);
+        }
+    }
+
+    private void applyRecord(JsonObject record, Map<String, JsonObject> state) {
+        String op = optString(record, "op");
+        String id = optString(record, "id");
+        if(op == null || id == null) return;
+        if(record.has("seq")) nextSeq = Math.max(nextSeq, record.get("seq").getAsLong() + 1);
+        if(op.equals("save") || op.equals("destroy")) {
+            boolean destroy = op.equals("destroy");
+            JsonObject json = destroy ? null : record.getAsJsonObject("json");
+            enqueue(id, new Change(record.get("seq").getAsLong(), destroy, optString(record, "base"), json));
+            if(destroy) {
+                state.remove(id);
+            } else {
+                state.put(id, json);
+            }
+        } else if(op.equals("ack")) {
+            acked(id, record.get("seq").getAsLong(), optString(record, "base"));
+        } else if(op.equals("put")) {
+            state.put(id, record.getAsJsonObject("json"));
+            setServerVersion(id, optString(record, "base"));
+        } else if(op.equals("remove")) {
+            state.remove(id);
+            serverVersions.remove(id);
+        }
+    }
+
+    /**
+     * rewrite the journal as the current state: the server's version of everything without pending changes, and
+     * the pending changes
+     */
+    //call with the lock held
+    private void compact() throws StackMobException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream tempOut = null;
+        int written = 0;
+        try {
+            tempOut = new FileOutputStream(temp);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(tempOut, "UTF-8"));
+            for(String id : local.getIDs()) {
+                if(pending.containsKey(id)) continue;
+                writer.write(putRecord(id, local.getJson(id), serverVersions.get(id)).toString());
+                writer.write("\n");
+                written++;
+            }
+            for(Map.Entry<String, LinkedList<Change>> changes : pending.entrySet()) {
+                for(Change change : changes.getValue()) {
+                    writer.write(changeRecord(changes.getKey(), change).toString());
+                    writer.write("\n");
+                    written++;
+                }
+            }
+            writer.flush();
+            tempOut.getFD().sync();
+            writer.close();
+            if(out != null) out.close();
+            if(!temp.renameTo(file)) {
+                //some platforms won't rename over an existing file
+                if(!file.delete() || !temp.renameTo(file)) {
+                    throw new IOException("couldn't replace " + file.getPath());
+                }
+            }
+            out = new FileOutputStream(file, true);
+            records = written;
+        } catch(IOException e) {
+            if(tempOut != null) {
+                try {
+                    tempOut.close();
+                } catch(IOException ignored) { }
+            }
+            try {
+                if(out == null || !out.getFD().valid()) out = new FileOutputStream(file, true);
+            } catch(IOException ignored) { }
+            throw new StackMobException("couldn't rewrite the journal: " + e.getMessage());
+        }
+    }
+
+    //call with the lock held
+    private void maybeCompact() {
+        int live = local.size();
+        for(LinkedList<Change> changes : pending.values()) live += changes.size();
+        if(records > MIN_COMPACT_RECORDS && records > 2 * live) {
+            try {
+                compact();
+            } catch(StackMobException ignored) {
+                //appending still works, so try again next time
+            }
+        }
+    }
+
+    /**
+     * drop the changes up to seq, which the server now has
+     */
+    //call with the lock held
+    private void acked(String id, long seq, String base) {
+        LinkedList<Change> changes = pending.get(id);
+        if(changes != null) {
+            while(!changes.isEmpty() && changes.getFirst().seq <= seq) changes.removeFirst();
+            //later changes were made against what was just pushed
+            for(Change change : changes) change.base = base;
+            if(changes.isEmpty()) pending.remove(id);
+        }
+        setServerVersion(id, base);
+        attempts.remove(id);
+    }
+
+    /**
+     * The one change per object being pushed in a pass. Changes queued together collapse into the last of them,
+     * made against the first one's base
+     */
+    private static class Push {
+        final String id;
+        final long seq;
+        final String base;
+        boolean destroy;
+        JsonObject json;
+
+        Push(String id, LinkedList<Change> changes) {
+            this.id = id;
+            this.seq = changes.getLast().seq;
+            this.base = changes.getFirst().base;
+            this.destroy = changes.getLast().destroy;
+            this.json = changes.getLast().json;
+        }
+    }
+
+    private void startPass() {
+        List<Push> pushes = new ArrayList<Push>();
+        synchronized(this) {
+            scheduled = null;
+            if(closed || replaying) return;
+            for(Map.Entry<String, LinkedList<Change>> changes : pending.entrySet()) {
+                pushes.add(new Push(changes.getKey(), changes.getValue()));
+            }
+            if(pushes.isEmpty()) return;
+            replaying = true;
+        }
+        Pass pass = new Pass(pushes);
+        try {
+            pass.check(0);
+        } catch(RuntimeException e) {
+            pass.unreachable();
+        }
+    }
+
+    private class Pass {
+        private final List<Push> pushes;
+        private final List<String> toCheck = new ArrayList<String>();
+        private final Map<String, JsonObject> onServer = new HashMap<String, JsonObject>();
+        private final Map<String, Push> byID = new HashMap<String, Push>();
+        private final List<String> replayed = new ArrayList<String>();
+        private final Map<String, StackMobException> failures = new HashMap<String, StackMobException>();
+        private int outstanding = 0;
+
+        Pass(List<Push> pushes) {
+            this.pushes = pushes;
+            for(Push push : pushes) {
+                byID.put(push.id, push);
+                if(push.base != null) toCheck.add(push.id);
+            }
+        }
+
+        /**
+         * get the server's version of everything a change was made against, a batch at a time
+         */
+        void check(final int start) {
+            if(start >= toCheck.size()) {
+                resolve();
+                return;
+            }
+            final List<String> ids = toCheck.subList(start, Math.min(toCheck.size(), start + CHECK_BATCH_SIZE));
+            StackMobQuery query = new StackMobQuery(schemaName).fieldIsIn(idField, new ArrayList<String>(ids)).isInRange(0, ids.size() - 1);
+            StackMobRequestSendResult result = StackMob.getStackMob().get(query, new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    try {
+                        for(JsonElement elt : new JsonParser().parse(responseBody).getAsJsonArray()) {
+                            JsonObject object = elt.getAsJsonObject();
+                            JsonElement id = object.get(idField);
+                            if(id != null) onServer.put(id.getAsString(), object);
+                        }
+                    } catch(RuntimeException e) {
+                        failure(new StackMobException(e.getMessage()));
+                        return;
+                    }
+                    check(start + ids.size());
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    unreachable();
+                }
+            });
+            if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+                unreachable();
+            }
+        }
+
+        private void resolve() {
+            StackMobReplayCallback<T> resolver;
+            synchronized(StackMobOfflineStore.this) {
+                resolver = callback;
+            }
+            List<T> saves = new ArrayList<T>();
+            List<String> destroys = new ArrayList<String>();
+            for(Push push : pushes) {
+                JsonObject server = onServer.get(push.id);
+                if(push.base != null && !push.base.equals(lastModified(server))) {
+                    T localModel = push.destroy ? null : modelQuery.parseResult(push.json);
+                    T serverModel = server == null ? null : modelQuery.parseResult(server);
+                    T winner = resolver.conflict(localModel, serverModel);
+                    if(winner == serverModel) {
+                        if(!keepServer(push, server, serverModel)) {
+                            failures.put(push.id, new StackMobException("couldn't record the server's version of " + push.id));
+                        }
+                        continue;
+                    }
+                    push.destroy = winner == null;
+                    push.json = winner == null ? null : winner.toJsonElement(0, new RelationMapping()).getAsJsonObject();
+                    if(winner != null && winner != localModel) {
+                        mergeLocally(push, winner);
+                    }
+                }
+                if(push.destroy) {
+                    destroys.add(push.id);
+                } else {
+                    T model = modelQuery.parseResult(push.json);
+                    if(model == null) {
+                        failures.put(push.id, new StackMobException("couldn't read the saved " + schemaName + " " + push.id));
+                    } else {
+                        saves.add(model);
+                    }
+                }
+            }
+            outstanding = (saves.isEmpty() ? 0 : 1) + (destroys.isEmpty() ? 0 : 1);
+            if(outstanding == 0) {
+                finish();
+                return;
+            }
+            List<String> saveIDs = new ArrayList<String>();
+            for(T model : saves) saveIDs.add(model.getID());
+            if(!saves.isEmpty()) StackMobModel.saveAll(saves, new Outcome(saveIDs, saves));
+            if(!destroys.isEmpty()) StackMobModel.destroyAll(classOfT, destroys, new Outcome(destroys, Collections.<T>emptyList()));
+        }
+
+        /**
+         * a merge replaces the local copy too, unless it's been changed again since this pass started
+         */
+        private void mergeLocally(Push push, T merged) {
+            synchronized(StackMobOfflineStore.this) {
+                LinkedList<Change> changes = pending.get(push.id);
+                if(changes == null || changes.getLast().seq != push.seq) return;
+                try {
+                    append(putRecord(push.id, push.json, serverVersions.get(push.id)));
+                } catch(StackMobException e) {
+                    return;
+                }
+                local.put(merged);
+            }
+        }
+
+        /**
+         * @return whether dropping the local change for the server's version was recorded
+         */
+        private boolean keepServer(Push push, JsonObject server, T serverModel) {
+            synchronized(StackMobOfflineStore.this) {
+                return dropChange(push, true, server, serverModel);
+            }
+        }
+
+        /**
+         * drop a change the server turned down for good, putting the local copy back the way the server has it
+         * @return whether that was recorded
+         */
+        //call with the lock held
+        private boolean reject(String id) {
+            Push push = byID.get(id);
+            if(push == null) return false;
+            //the server's version was only looked up for changes made against one
+            boolean known = push.base != null;
+            JsonObject server = onServer.get(id);
+            return dropChange(push, known, server, known && server != null ? modelQuery.parseResult(server) : null);
+        }
+
+        /**
+         * drop a push's change and put the local copy back to the server's version, unless it was changed again
+         * since this pass started
+         * @param known whether the server's version is known. if it isn't, the local copy is kept, but it's no
+         *              longer taken to be any version the server has
+         * @param server the server's version, or null if it doesn't have the object
+         * @return whether dropping the change was recorded
+         */
+        //call with the lock held
+        private boolean dropChange(Push push, boolean known, JsonObject server, T serverModel) {
+            LinkedList<Change> changes = pending.get(push.id);
+            boolean changedSince = changes != null && changes.getLast().seq != push.seq;
+            boolean restore = known && !changedSince;
+            String version = known ? lastModified(server) : null;
+            try {
+                //a later change keeps its own state in the journal, so the server's version can't replace it there
+                if(restore && server == null) {
+                    append(removeRecord(push.id));
+                } else if(restore) {
+                    append(putRecord(push.id, server, version));
+                }
+                append(ackRecord(push.id, push.seq, version));
+            } catch(StackMobException e) {
+                return false;
+            }
+            acked(push.id, push.seq, version);
+            if(restore && server == null) {
+                local.remove(push.id);
+            } else if(restore && serverModel != null) {
+                local.put(serverModel);
+            }
+            return true;
+        }
+
+        private class Outcome extends StackMobBulkCallback {
+            private final List<String> ids;
+            private final Map<String, T> saved = new HashMap<String, T>();
+
+            Outcome(List<String> ids, List<T> saves) {
+                this.ids = ids;
+                for(T model : saves) saved.put(model.getID(), model);
+            }
+
+            @Override
+            public void success(List<String> ids) {
+                done(idsOf(ids), Collections.<String, StackMobException>emptyMap());
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                if(e instanceof StackMobBulkException) {
+                    StackMobBulkException bulk = (StackMobBulkException) e;
+                    Map<String, StackMobException> failed = new HashMap<String, StackMobException>();
+                    for(Map.Entry<String, StackMobException> failure : bulk.getFailures().entrySet()) {
+                        failed.put(idOf(failure.getKey()), failure.getValue());
+                    }
+                    done(idsOf(bulk.getSucceeded()), failed);
+                } else {
+                    Map<String, StackMobException> all = new HashMap<String, StackMobException>();
+                    for(String id : ids) all.put(id, e);
+                    done(Collections.<String>emptyList(), all);
+                }
+            }
+
+            //bulk results are reported as schemaName/id, and everything here is the one schema
+            private String idOf(String key) {
+                String prefix = schemaName + "/";
+                return key.startsWith(prefix) ? key.substring(prefix.length()) : key;
+            }
+
+            private List<String> idsOf(List<String> keys) {
+                List<String> ids = new ArrayList<String>();
+                for(String key : keys) ids.add(idOf(key));
+                return ids;
+            }
+
+            private void done(List<String> ids, Map<String, StackMobException> failed) {
+                synchronized(StackMobOfflineStore.this) {
+                    for(String id : ids) {
+                        T model = saved.get(id);
+                        String version = model == null ? null : lastModified(model.toJsonElement(0, new RelationMapping()).getAsJsonObject());
+                        if(!succeeded(byID.get(id), version)) {
+                            failures.put(id, new StackMobException("couldn't record that " + id + " was pushed"));
+                        } else {
+                            replayed.add(id);
+                            T current = local.get(id);
+                            if(current != null && model != null) {
+                                try {
+                                    current.fillFromJson(model.toJsonElement(0, new RelationMapping()), BatchSave.SERVER_FIELDS);
+                                } catch(StackMobException ignored) { }
+                            }
+                        }
+                    }
+                    for(Map.Entry<String, StackMobException> failure : failed.entrySet()) {
+                        Push push = byID.get(failure.getKey());
+                        if(push == null) continue;
+                        if(push.destroy && isNotFound(failure.getValue())) {
+                            //already gone is as good as destroyed
+                            if(succeeded(push, null)) {
+                                replayed.add(push.id);
+                            } else {
+                                failures.put(push.id, new StackMobException("couldn't record that " + push.id + " was pushed"));
+                            }
+                        } else {
+                            failures.put(push.id, failure.getValue());
+                        }
+                    }
+                    if(--outstanding > 0) return;
+                }
+                finish();
+            }
+        }
+
+        //call with the lock held
+        private boolean succeeded(Push push, String version) {
+            if(push == null) return false;
+            try {
+                append(ackRecord(push.id, push.seq, version));
+            } catch(StackMobException e) {
+                //pushed again next time, which is safe since saves and destroys can be repeated
+                return false;
+            }
+            acked(push.id, push.seq, version);
+            return true;
+        }
+
+        private void unreachable() {
+            synchronized(StackMobOfflineStore.this) {
+                replaying = false;
+                retryDelay = Math.min(MAX_RETRY_MILLIS, retryDelay * 2);
+                schedule(retryDelay);
+            }
+        }
+
+        private void finish() {
+            List<String> rejected = new ArrayList<String>();
+            StackMobReplayCallback<T> listener;
+            synchronized(StackMobOfflineStore.this) {
+                listener = callback;
+                boolean reachable = !replayed.isEmpty() || failures.size() < pushes.size();
+                for(Map.Entry<String, StackMobException> failure : failures.entrySet()) {
+                    String id = failure.getKey();
+                    Integer tries = attempts.get(id);
+                    tries = tries == null ? 1 : tries + 1;
+                    //only count failures while the server is answering, since any change fails while it isn't
+                    if(reachable) attempts.put(id, tries);
+                    if(isRefused(failure.getValue()) || (reachable && tries >= MAX_ATTEMPTS)) {
+                        if(reject(id)) rejected.add(id);
+                    }
+                }
+                maybeCompact();
+                replaying = false;
+                if(failures.size() > rejected.size()) {
+                    retryDelay = reachable ? MIN_RETRY_MILLIS : Math.min(MAX_RETRY_MILLIS, retryDelay * 2);
+                    schedule(retryDelay);
+                } else {
+                    retryDelay = MIN_RETRY_MILLIS;
+                    //anything still pending was changed during this pass
+                    if(!pending.isEmpty()) schedule(0);
+                }
+            }
+            for(String id : rejected) {
+                listener.rejected(id, failures.get(id));
+            }
+            if(!replayed.isEmpty()) {
+                listener.replayed(replayed);
+            }
+        }
+    }
+
+    private static boolean isNotFound(StackMobException e) {
+        return e instanceof StackMobHTTPResponseException && ((StackMobHTTPResponseException) e).getCode() == 404;
+    }
+
+    /**
+     * @return whether the server turned the change down in a way that retrying won't fix
+     */
+    private static boolean isRefused(StackMobException e) {
+        if(!(e instanceof StackMobHTTPResponseException)) return false;
+        int code = ((StackMobHTTPResponseException) e).getCode();
+        return code >= 400 && code < 500 && code != 408 && code != 429;
+    }
+}
@@ -0,0 +1,300 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.callback.StackMobStreamCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.JsonValueComparator;
+
+import java.util.*;
+
+/**
+ * The objects that match any of several queries on the same type. The platform only ANDs conditions together, so
+ * each branch is run as its own query, all of them concurrently, and an object matched by more than one branch is
+ * only returned once. Example usage:
+ * <code>
+ *     new StackMobUnionQuery&lt;Task&gt;(Task.class)
+ *         .or(new StackMobModelQuery&lt;Task&gt;(Task.class).fieldIsEqualTo("owner", "bob"))
+ *         .or(new StackMobModelQuery&lt;Task&gt;(Task.class).fieldIsEqualTo("owner", "alice"))
+ *         .limit(50)
+ *         .send(callback);
+ * </code>
+ *
+ * If every branch has the same ordering, the branches are paged through and merged, so results stream out in
+ * that order and no branch is read further than the limit needs. Otherwise results come out as the pages arrive.
+ */
+public class StackMobUnionQuery<T extends StackMobModel> {
+
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    private final StackMobModelQuery<T> modelQuery;
+    private final List<StackMobQuery> branches = new ArrayList<StackMobQuery>();
+    private int limit = -1;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    public StackMobUnionQuery(Class<T> classOfT) {
+        this.modelQuery = new StackMobModelQuery<T>(classOfT);
+    }
+
+    /**
+     * add a branch. later changes to the branch don't affect this union
+     * @param branch a query on the same type as the union
+     * @return this union
+     */
+    public StackMobUnionQuery<T> or(StackMobModelQuery<T> branch) {
+        StackMobQuery query = branch.getQuery();
+        if(!query.getObjectName().equals(modelQuery.getQuery().getObjectName())) {
+            throw new IllegalArgumentException("every branch of a union must query the same schema");
+        }
+        branches.add(new StackMobQuery(query.getObjectName()).add(query));
+        return this;
+    }
+
+    /**
+     * return at most this many objects in all
+     * @param limit the most objects to return
+     * @return this union
+     */
+    public StackMobUnionQuery<T> limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * @param pageSize how many objects to ask each branch for at a time
+     * @return this union
+     */
+    public StackMobUnionQuery<T> pageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * run the union, streaming out results as they're ready
+     * @param callback gets each batch of results, then the outcome
+     */
+    public void send(StackMobStreamCallback<T> callback) {
+        if(branches.isEmpty()) {
+            callback.success();
+            return;
+        }
+        new UnionRun(callback).start();
+    }
+
+    /**
+     * run the union and get all the results at once
+     * @param callback gets every result
+     */
+    public void send(final StackMobQueryCallback<T> callback) {
+        final List<T> all = new ArrayList<T>();
+        send(new StackMobStreamCallback<T>() {
+            @Override
+            public void results(List<T> results) {
+                all.addAll(results);
+            }
+
+            @Override
+            public void success() {
+                callback.success(all);
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                callback.failure(e);
+            }
+        });
+    }
+
+    private class Branch {
+        final StackMobQuery template;
+        final LinkedList<JsonObject> buffer = new LinkedList<JsonObject>();
+        int nextStart = 0;
+        boolean exhausted = false;
+        boolean inFlight = false;
+
+        Branch(StackMobQuery template) {
+            this.template = template;
+        }
+
+        boolean isDone() {
+            return exhausted && buffer.isEmpty();
+        }
+    }
+
+    private class UnionRun {
+        private final StackMobStreamCallback<T> callback;
+        private final List<Branch> running = new ArrayList<Branch>();
+        private final String idField = modelQuery.getIDFieldName();
+        private final Comparator<JsonObject> order;
+        private final int requestSize;
+        private final Set<String> seen = new HashSet<String>();
+        private int emitted = 0;
+        private boolean finished = false;
+
+        UnionRun(StackMobStreamCallback<T> callback) {
+            this.callback = callback;
+            String orderBy = branches.get(0).getHeaders().get(StackMobQuery.OrderByHeader);
+            for(StackMobQuery branch : branches) {
+                String branchOrder = branch.getHeaders().get(StackMobQuery.OrderByHeader);
+                if(orderBy == null || !orderBy.equals(branchOrder)) {
+                    orderBy = null;
+                }
+            }
+            this.order = orderBy == null ? null : JsonValueComparator.forOrderBy(orderBy);
+            this.requestSize = limit > 0 ? Math.min(pageSize, limit) : pageSize;
+            for(StackMobQuery branch : branches) {
+                StackMobQuery template = new StackMobQuery(branch.getObjectName()).add(branch);
+                String select = template.getHeaders().get(StackMobQuery.SelectHeader);
+                if(select != null) {
+                    //we need the id to dedupe, and the ordered fields to merge
+                    List<String> fields = new ArrayList<String>(Arrays.asList(select.split(",")));
+                    List<String> needed = new ArrayList<String>();
+                    needed.add(idField);
+                    if(orderBy != null) {
+                        for(String part : orderBy.split(",")) needed.add(part.split(":")[0].trim());
+                    }
+                    for(String field : needed) {
+                        if(!fields.contains(field)) fields.add(field);
+                    }
+                    template.select(fields);
+                }
+                running.add(new Branch(template));
+            }
+        }
+
+        synchronized void start() {
+            for(Branch branch : running) {
+                request(branch);
+            }
+        }
+
+        //call with the lock held
+        private void request(final Branch branch) {
+            branch.inFlight = true;
+            StackMobQuery query = new StackMobQuery(branch.template.getObjectName()).add(branch.template).isInRange(branch.nextStart, branch.nextStart + requestSize - 1);
+            StackMobRequestSendResult result = StackMob.getStackMob().get(query, new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    JsonArray page;
+                    try {
+                        page = new JsonParser().parse(responseBody).getAsJsonArray();
+                    }
+                    catch(RuntimeException e) {
+                        failure(new StackMobException(e.getMessage()));
+                        return;
+                    }
+                    received(branch, page);
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    failed(e);
+                }
+            });
+            if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+                failed(new StackMobException(result.getFailureReason().getMessage()));
+            }
+        }
+
+        private synchronized void received(Branch branch, JsonArray page) {
+            if(finished) {
+                return;
+            }
+            branch.inFlight = false;
+            branch.nextStart += page.size();
+            //a single branch never needs more than the limit, since its own objects are all distinct
+            if(page.size() < requestSize || (limit > 0 && branch.nextStart >= limit)) {
+                branch.exhausted = true;
+            }
+            for(JsonElement elt : page) {
+                branch.buffer.add(elt.getAsJsonObject());
+            }
+            JsonArray ready = order == null ? drainUnordered() : drainOrdered();
+            if(ready.size() > 0) {
+                callback.results(modelQuery.parseResults(ready));
+            }
+            boolean allDone = true;
+            for(Branch b : running) {
+                allDone &= b.isDone();
+            }
+            if(allDone || (limit > 0 && emitted >= limit)) {
+                finished = true;
+                callback.success();
+                return;
+            }
+            for(Branch b : running) {
+                if(b.buffer.isEmpty() && !b.exhausted && !b.inFlight) {
+                    request(b);
+                }
+            }
+        }
+
+        private synchronized void failed(StackMobException e) {
+            if(finished) {
+                return;
+            }
+            finished = true;
+            callback.failure(e);
+        }
+
+        private JsonArray drainUnordered() {
+            JsonArray ready = new JsonArray();
+            for(Branch branch : running) {
+                while(!branch.buffer.isEmpty()) {
+                    emit(branch.buffer.removeFirst(), ready);
+                }
+            }
+            return ready;
+        }
+
+        /**
+         * k-way merge: an object can only go out once every branch that isn't done has something to compare it with
+         */
+        private JsonArray drainOrdered() {
+            JsonArray ready = new JsonArray();
+            while(limit <= 0 || emitted < limit) {
+                Branch smallest = null;
+                for(Branch branch : running) {
+                    if(branch.isDone()) continue;
+                    if(branch.buffer.isEmpty()) return ready;
+                    if(smallest == null || order.compare(branch.buffer.getFirst(), smallest.buffer.getFirst()) < 0) {
+                        smallest = branch;
+                    }
+                }
+                if(smallest == null) return ready;
+                emit(smallest.buffer.removeFirst(), ready);
+            }
+            return ready;
+        }
+
+        private void emit(JsonObject object, JsonArray ready) {
+            if(limit > 0 && emitted >= limit) return;
+            JsonElement id = object.get(idField);
+            if(id != null && !seen.add(id.getAsString())) return;
+            ready.add(object);
+            emitted++;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobBulkCallback;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobBulkException;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.BulkProgress;
+import com.stackmob.sdk.util.ThrottledRequestQueue;
+
+import java.util.*;
+
+/**
+ * Collects saves, destroys and relation changes on many models and sends them all at once with {@link #flush}.
+ * Repeated operations on the same object collapse into the last one. Flushing happens in three phases, each
+ * starting when the one before it is done:
+ * <ol>
+ *     <li>saves, as bulk POSTs with schemas running in parallel</li>
+ *     <li>relation changes, one putRelated for the added ids and chunked deleteIdsFrom calls for the removed ids
+ *     of each relation</li>
+ *     <li>destroys</li>
+ * </ol>
+ * A relation change that involves an object that failed to save is not sent, and fails with that object.
+ */
+public class StackMobUnitOfWork {
+
+    private final int maxConcurrentRequests;
+    private Map<String, StackMobModel> saves = new LinkedHashMap<String, StackMobModel>();
+    private Map<String, StackMobModel> destroys = new LinkedHashMap<String, StackMobModel>();
+    private Map<String, RelationChange> relationChanges = new LinkedHashMap<String, RelationChange>();
+
+    private static class RelationChange {
+        final String schemaName;
+        final String parentId;
+        final String field;
+        final Set<String> added = new LinkedHashSet<String>();
+        //schemaName/id of each added object, to match them against failed saves
+        final Set<String> addedKeys = new HashSet<String>();
+        final Set<String> removed = new LinkedHashSet<String>();
+        boolean cascadeDeletes = false;
+
+        RelationChange(String schemaName, String parentId, String field) {
+            this.schemaName = schemaName;
+            this.parentId = parentId;
+            this.field = field;
+        }
+
+        String getKey() {
+            return schemaName + "/" + parentId + "/" + field;
+        }
+
+        boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    public StackMobUnitOfWork() {
+        this(StackMobModel.DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    /**
+     * @param maxConcurrentRequests the most requests to have in flight at once in each phase of a flush
+     */
+    public StackMobUnitOfWork(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * save this object when the unit of work is flushed. saving it again before then does nothing more, and
+     * the object is serialized as it is at flush time. objects without an id are given one now
+     * @param model the object to save
+     */
+    public synchronized void save(StackMobModel model) {
+        String key = keyFor(model);
+        destroys.remove(key);
+        saves.put(key, model);
+    }
+
+    /**
+     * destroy this object when the unit of work is flushed. any pending save of it is dropped, as are pending
+     * changes to its relations and pending adds of it to other objects' relations
+     * @param model the object to destroy. it needs an id
+     */
+    public synchronized void destroy(StackMobModel model) {
+        if(model.getID() == null) {
+            throw new IllegalArgumentException("a model needs an id to be destroyed");
+        }
+        String key = keyFor(model);
+        saves.remove(key);
+        destroys.put(key, model);
+        Iterator<RelationChange> changes = relationChanges.values().iterator();
+        while(changes.hasNext()) {
+            RelationChange change = changes.next();
+            if(change.schemaName.equals(model.getSchemaName()) && change.parentId.equals(model.getID())) {
+                changes.remove();
+            }
+            else if(change.addedKeys.remove(key)) {
+                //adding it would leave the parent pointing at an object that's gone. removing it still goes out,
+                //since the destroy doesn't clean up references to it
+                change.added.remove(model.getID());
+                if(change.isEmpty()) changes.remove();
+            }
+        }
+    }
+
+    /**
+     * add objects to a has-many relation when the unit of work is flushed
+     * @param parent the object with the relation
+     * @param relatedField the name of the relation
+     * @param related the objects to add to it
+     */
+    public synchronized void addRelated(StackMobModel parent, String relatedField, Collection<? extends StackMobModel> related) {
+        RelationChange change = relationChange(parent, relatedField);
+        for(StackMobModel model : related) {
+            String id = idFor(model);
+            change.removed.remove(id);
+            change.added.add(id);
+            change.addedKeys.add(keyFor(model));
+        }
+    }
+
+    /**
+     * remove objects from a has-many relation when the unit of work is flushed
+     * @param parent the object with the relation
+     * @param relatedField the name of the relation
+     * @param related the objects to remove from it
+     * @param cascadeDeletes true if the removed objects should also be deleted. applies to everything removed
+     *                       from this relation in the flush
+     */
+    public synchronized void removeRelated(StackMobModel parent, String relatedField, Collection<? extends StackMobModel> related, boolean cascadeDeletes) {
+        RelationChange change = relationChange(parent, relatedField);
+        for(StackMobModel model : related) {
+            String id = idFor(model);
+            change.added.remove(id);
+            change.addedKeys.remove(keyFor(model));
+            change.removed.add(id);
+        }
+        change.cascadeDeletes |= cascadeDeletes;
+    }
+
+    /**
+     * @return true if there's nothing to flush
+     */
+    public synchronized boolean isEmpty() {
+        return saves.isEmpty() && destroys.isEmpty() && relationChanges.isEmpty();
+    }
+
+    /**
+     * send everything collected so far and start over with an empty unit of work
+     * @param callback called as each phase makes progress and once when everything is done. succeeded and failed
+     *                 objects are reported as schemaName/id, and relation changes as schemaName/parentId/relatedField,
+     *                 with the parent's schema
+     */
+    public void flush(StackMobBulkCallback callback) {
+        final List<StackMobModel> toSave;
+        final List<StackMobModel> toDestroy;
+        final List<RelationChange> changes = new ArrayList<RelationChange>();
+        synchronized(this) {
+            toSave = new ArrayList<StackMobModel>(saves.values());
+            toDestroy = new ArrayList<StackMobModel>(destroys.values());
+            for(RelationChange change : relationChanges.values()) {
+                if(!change.isEmpty()) changes.add(change);
+            }
+            saves = new LinkedHashMap<String, StackMobModel>();
+            destroys = new LinkedHashMap<String, StackMobModel>();
+            relationChanges = new LinkedHashMap<String, RelationChange>();
+        }
+        final BulkProgress progress = new BulkProgress(toSave.size() + changes.size() + toDestroy.size(), callback);
+        final Map<String, StackMobException> saveFailures = new HashMap<String, StackMobException>();
+        final Runnable destroyPhase = new Runnable() {
+            @Override
+            public void run() {
+                if(toDestroy.isEmpty()) {
+                    progress.finish();
+                    return;
+                }
+                StackMobModel.destroyAll(toDestroy, maxConcurrentRequests, new PhaseCallback(toDestroy, progress, null) {
+                    @Override
+                    void phaseDone() {
+                        progress.finish();
+                    }
+                });
+            }
+        };
+        final Runnable relationPhase = new Runnable() {
+            @Override
+            public void run() {
+                sendRelationChanges(changes, saveFailures, progress, destroyPhase);
+            }
+        };
+        if(toSave.isEmpty()) {
+            relationPhase.run();
+            return;
+        }
+        StackMobModel.saveAll(toSave, maxConcurrentRequests, new PhaseCallback(toSave, progress, saveFailures) {
+            @Override
+            void phaseDone() {
+                relationPhase.run();
+            }
+        });
+    }
+
+    private void sendRelationChanges(List<RelationChange> changes, Map<String, StackMobException> saveFailures, final BulkProgress progress, Runnable next) {
+        ThrottledRequestQueue queue = new ThrottledRequestQueue(maxConcurrentRequests);
+        for(final RelationChange change : changes) {
+            StackMobException dependency = failedDependency(change, saveFailures);
+            if(dependency != null) {
+                progress.failed(change.getKey(), new StackMobException("not sent because an object it involves failed to save: " + dependency.getMessage()));
+                progress.completed(1);
+                continue;
+            }
+            queue.add(new ThrottledRequestQueue.Request() {
+                @Override
+                public void send(Runnable done) {
+                    new RelationChangeSender(change, progress, done).sendAdded();
+                }
+            });
+        }
+        queue.start(next);
+    }
+
+    private StackMobException failedDependency(RelationChange change, Map<String, StackMobException> saveFailures) {
+        if(saveFailures.isEmpty()) return null;
+        StackMobException failure = saveFailures.get(change.schemaName + "/" + change.parentId);
+        for(String key : change.addedKeys) {
+            if(failure == null) failure = saveFailures.get(key);
+        }
+        return failure;
+    }
+
+    /**
+     * sends one relation change, adds first and then removes, and reports it once
+     */
+    private static class RelationChangeSender {
+        private final RelationChange change;
+        private final BulkProgress progress;
+        private final Runnable done;
+
+        RelationChangeSender(RelationChange change, BulkProgress progress, Runnable done) {
+            this.change = change;
+            this.progress = progress;
+            this.done = done;
+        }
+
+        void sendAdded() {
+            if(change.added.isEmpty()) {
+                sendRemoved();
+                return;
+            }
+            StackMobRequestSendResult result = StackMob.getStackMob().putRelated(change.schemaName, change.parentId, change.field, new ArrayList<String>(change.added), new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    sendRemoved();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    finish(e);
+                }
+            });
+            if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+                finish(new StackMobException(result.getFailureReason().getMessage()));
+            }
+        }
+
+        void sendRemoved() {
+            if(change.removed.isEmpty()) {
+                finish(null);
+                return;
+            }
+            StackMob.getStackMob().deleteIdsFrom(change.schemaName, change.parentId, change.field, new ArrayList<String>(change.removed), change.cascadeDeletes, 1, new StackMobBulkCallback() {
+                @Override
+                public void success(List<String> ids) {
+                    finish(null);
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    finish(e);
+                }
+            });
+        }
+
+        private void finish(StackMobException e) {
+            if(e == null) {
+                progress.succeeded(change.getKey());
+            }
+            else {
+                progress.failed(change.getKey(), e);
+            }
+            progress.completed(1);
+            done.run();
+        }
+    }
+
+    /**
+     * folds the outcome of one phase into the progress of the whole flush
+     */
+    private static abstract class PhaseCallback extends StackMobBulkCallback {
+        private final List<String> keys = new ArrayList<String>();
+        private final BulkProgress progress;
+        private final Map<String, StackMobException> failuresOut;
+        private int reported = 0;
+
+        PhaseCallback(List<StackMobModel> models, BulkProgress progress, Map<String, StackMobException> failuresOut) {
+            for(StackMobModel model : models) {
+                keys.add(keyFor(model));
+            }
+            this.progress = progress;
+            this.failuresOut = failuresOut;
+        }
+
+        abstract void phaseDone();
+
+        @Override
+        public void progress(int completed, int total) {
+            progress.completed(completed - reported);
+            reported = completed;
+        }
+
+        @Override
+        public void success(List<String> ids) {
+            for(String id : ids) {
+                progress.succeeded(id);
+            }
+            phaseDone();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            if(e instanceof StackMobBulkException) {
+                StackMobBulkException bulk = (StackMobBulkException) e;
+                for(String id : bulk.getSucceeded()) {
+                    progress.succeeded(id);
+                }
+                for(Map.Entry<String, StackMobException> failure : bulk.getFailures().entrySet()) {
+                    progress.failed(failure.getKey(), failure.getValue());
+                }
+                if(failuresOut != null) failuresOut.putAll(bulk.getFailures());
+            }
+            else {
+                //nothing more specific to go on, so every object in the phase failed
+                progress.failed(keys, e);
+                if(failuresOut != null) {
+                    for(String key : keys) {
+                        failuresOut.put(key, e);
+                    }
+                }
+            }
+            phaseDone();
+        }
+    }
+
+    private RelationChange relationChange(StackMobModel parent, String relatedField) {
+        String parentId = idFor(parent);
+        RelationChange change = new RelationChange(parent.getSchemaName(), parentId, relatedField);
+        RelationChange existing = relationChanges.get(change.getKey());
+        if(existing != null) return existing;
+        relationChanges.put(change.getKey(), change);
+        return change;
+    }
+
+    private static String idFor(StackMobModel model) {
+        if(model.getID() == null) {
+            //relations are by id, so an object created in this unit of work needs its id now
+            model.setID(UUID.randomUUID().toString().replace("-", ""));
+        }
+        return model.getID();
+    }
+
+    private static String keyFor(StackMobModel model) {
+        return model.getSchemaName() + "/" + idFor(model);
+    }
+}
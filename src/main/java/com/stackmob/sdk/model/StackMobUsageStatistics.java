@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * What the results from one call site have read so far, and the expand depth that would have covered it.
+ * See {@link StackMobModel#getUsageStatistics()}
+ */
+public class StackMobUsageStatistics {
+
+    private final String schemaName;
+    private final String callSite;
+    private final int runs;
+    private final Set<String> fieldsRead;
+    private final Set<String> relationPathsRead;
+    private final int recommendedExpandDepth;
+    private final int followUpFetches;
+
+    StackMobUsageStatistics(String schemaName, String callSite, int runs, Set<String> fieldsRead, Set<String> relationPathsRead, int recommendedExpandDepth, int followUpFetches) {
+        this.schemaName = schemaName;
+        this.callSite = callSite;
+        this.runs = runs;
+        this.fieldsRead = Collections.unmodifiableSet(fieldsRead);
+        this.relationPathsRead = Collections.unmodifiableSet(relationPathsRead);
+        this.recommendedExpandDepth = recommendedExpandDepth;
+        this.followUpFetches = followUpFetches;
+    }
+
+    public String getSchemaName() {
+        return schemaName;
+    }
+
+    /**
+     * @return the line of code that sent the query or fetch
+     */
+    public String getCallSite() {
+        return callSite;
+    }
+
+    /**
+     * @return how many times the call site has run
+     */
+    public int getRuns() {
+        return runs;
+    }
+
+    /**
+     * @return the fields read on the results themselves
+     */
+    public Set<String> getFieldsRead() {
+        return fieldsRead;
+    }
+
+    /**
+     * @return the relations whose objects had fields read, like "author" or "author.publisher"
+     */
+    public Set<String> getRelationPathsRead() {
+        return relationPathsRead;
+    }
+
+    /**
+     * @return the smallest expand depth that covers every relation read, up to the platform's limit of 3
+     */
+    public int getRecommendedExpandDepth() {
+        return recommendedExpandDepth;
+    }
+
+    /**
+     * @return how many times results had to fetch fields that weren't selected or related objects that weren't
+     *         expanded
+     */
+    public int getFollowUpFetches() {
+        return followUpFetches;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s at %s: %d runs, fields %s, relations %s, recommended expand depth %d, %d follow-up fetches",
+                schemaName, callSite, runs, fieldsRead, relationPathsRead, recommendedExpandDepth, followUpFetches);
+    }
+}
@@ -0,0 +1,394 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.api.StackMobRequestSendResult;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobWatchListener;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.JsonQueryEvaluator;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells listeners when objects matching a query are created or modified. Example usage:
+ * <code>
+ *     StackMobWatcher watcher = new StackMobWatcher();
+ *     StackMobWatcher.Watch watch = watcher.watch(new StackMobModelQuery&lt;Task&gt;(Task.class).fieldIsEqualTo("owner", "bob"), listener);
+ *     ...
+ *     watch.cancel();
+ * </code>
+ *
+ * Every watch on the same schema shares one poll, which asks for whatever has a lastmoddate past the latest one
+ * seen. The results are checked against each watch's conditions on the client, so only conditions a
+ * {@link JsonQueryEvaluator} supports can be watched. How often a schema is polled follows how often it's been
+ * changing: a busy schema is polled as often as the minimum interval allows, and an idle one backs off to the
+ * maximum. Deletes aren't reported.
+ */
+public class StackMobWatcher {
+
+    public static final String LAST_MODIFIED_FIELD = "lastmoddate";
+    public static final String CREATED_FIELD = "createddate";
+    private static final long DEFAULT_MIN_INTERVAL_MILLIS = 1000;
+    private static final long DEFAULT_MAX_INTERVAL_MILLIS = 60 * 1000;
+    private static final int DEFAULT_CHANGES_PER_POLL = 10;
+    private static final int PAGE_SIZE = 200;
+    //weight of the latest poll in the change rate
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "StackMob watcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A registered watch
+     */
+    public class Watch {
+        private final Poller poller;
+        private final StackMobModelQuery<? extends StackMobModel> modelQuery;
+        private final JsonQueryEvaluator evaluator;
+        private final StackMobWatchListener<? extends StackMobModel> listener;
+
+        private Watch(Poller poller, StackMobModelQuery<? extends StackMobModel> modelQuery, StackMobWatchListener<? extends StackMobModel> listener) {
+            this.poller = poller;
+            this.modelQuery = modelQuery;
+            this.evaluator = new JsonQueryEvaluator(modelQuery.getQuery());
+            this.listener = listener;
+        }
+
+        /**
+         * stop telling the listener about changes. the schema stops being polled once none of its watches are left
+         */
+        public void cancel() {
+            StackMobWatcher.this.cancel(this);
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T extends StackMobModel> void dispatch(List<JsonObject> changes, Set<JsonObject> created) {
+            List<T> added = new ArrayList<T>();
+            List<T> modified = new ArrayList<T>();
+            for(JsonObject object : changes) {
+                if(!evaluator.matches(object)) continue;
+                T model = ((StackMobModelQuery<T>) modelQuery).parseResult(object);
+                if(model == null) continue;
+                if(created.contains(object)) {
+                    added.add(model);
+                } else {
+                    modified.add(model);
+                }
+            }
+            if(!added.isEmpty() || !modified.isEmpty()) {
+                ((StackMobWatchListener<T>) listener).changed(added, modified);
+            }
+        }
+    }
+
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final int changesPerPoll;
+    private final Map<String, Poller> pollers = new HashMap<String, Poller>();
+
+    public StackMobWatcher() {
+        this(DEFAULT_MIN_INTERVAL_MILLIS, DEFAULT_MAX_INTERVAL_MILLIS, DEFAULT_CHANGES_PER_POLL);
+    }
+
+    /**
+     * @param minIntervalMillis the shortest time to wait between polls of a schema
+     * @param maxIntervalMillis the longest time to wait between polls of a schema
+     * @param changesPerPoll how many changes to aim for in each poll. the interval is set so that, at the rate a
+     *                       schema has been changing, about this many changes come back each time
+     */
+    public StackMobWatcher(long minIntervalMillis, long maxIntervalMillis, int changesPerPoll) {
+        if(minIntervalMillis <= 0 || maxIntervalMillis < minIntervalMillis) {
+            throw new IllegalArgumentException("intervals must be positive, and the max at least the min");
+        }
+        if(changesPerPoll < 1) {
+            throw new IllegalArgumentException("changesPerPoll must be at least 1");
+        }
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.changesPerPoll = changesPerPoll;
+    }
+
+    /**
+     * start watching a query. only its conditions matter; its ordering, range, select and expand are ignored
+     * @param query the objects to watch
+     * @param listener told about each change
+     * @return the watch, to cancel later
+     * @throws IllegalArgumentException if the query has conditions that can't be checked on the client
+     */
+    public synchronized <T extends StackMobModel> Watch watch(StackMobModelQuery<T> query, StackMobWatchListener<T> listener) {
+        if(!new JsonQueryEvaluator(query.getQuery()).isSupported()) {
+            throw new IllegalArgumentException("this query has conditions that can't be watched");
+        }
+        String schema = query.getQuery().getObjectName();
+        Poller poller = pollers.get(schema);
+        if(poller == null) {
+            poller = new Poller(schema, query.getIDFieldName());
+            pollers.put(schema, poller);
+        }
+        Watch watch = new Watch(poller, query, listener);
+        poller.add(watch);
+        return watch;
+    }
+
+    /**
+     * cancel every watch
+     */
+    public synchronized void stop() {
+        for(Poller poller : new ArrayList<Poller>(pollers.values())) {
+            poller.shutdown();
+        }
+        pollers.clear();
+    }
+
+    /**
+     * @param schema a schema being watched
+     * @return how long the schema is waiting between polls right now, or -1 if it isn't being watched
+     */
+    public synchronized long getInterval(String schema) {
+        Poller poller = pollers.get(schema);
+        return poller == null ? -1 : poller.getInterval();
+    }
+
+    private synchronized void cancel(Watch watch) {
+        Poller poller = watch.poller;
+        if(poller.remove(watch) && pollers.get(poller.schema) == poller) {
+            pollers.remove(poller.schema);
+            poller.shutdown();
+        }
+    }
+
+    /**
+     * The shared poll for one schema
+     */
+    private class Poller {
+        private final String schema;
+        private final String idField;
+        private final List<Watch> watches = new ArrayList<Watch>();
+        //the latest lastmoddate seen, and the ids seen with exactly that lastmoddate
+        private String cursor = null;
+        private final Set<String> idsAtCursor = new HashSet<String>();
+        //how far into the objects tied with the cursor to start, only ever more than 0 when a whole page came back
+        //tied with it
+        private int skip = 0;
+        private long interval = minIntervalMillis;
+        private double changesPerMilli = 0;
+        private long lastPollTime = 0;
+        private int pendingChanges = 0;
+        private ScheduledFuture<?> next = null;
+        private boolean stopped = false;
+
+        Poller(String schema, String idField) {
+            this.schema = schema;
+            this.idField = idField;
+        }
+
+        synchronized void add(Watch watch) {
+            watches.add(watch);
+            if(cursor == null && next == null) {
+                schedule(0);
+            }
+        }
+
+        /**
+         * @return whether that was the last watch
+         */
+        synchronized boolean remove(Watch watch) {
+            watches.remove(watch);
+            return watches.isEmpty();
+        }
+
+        synchronized void shutdown() {
+            stopped = true;
+            if(next != null) next.cancel(false);
+        }
+
+        synchronized long getInterval() {
+            return interval;
+        }
+
+        //call with the lock held
+        private void schedule(long delay) {
+            if(stopped) return;
+            next = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    poll();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void poll() {
+            final String previousCursor;
+            StackMobQuery query = new StackMobQuery(schema);
+            synchronized(this) {
+                if(stopped) return;
+                previousCursor = cursor;
+                if(cursor == null) {
+                    //nothing before the first poll is a change, so start just past the newest object
+                    query.fieldIsOrderedBy(LAST_MODIFIED_FIELD, StackMobQuery.Ordering.DESCENDING).isInRange(0, 0);
+                } else {
+                    //the objects seen with the cursor come back again and are skipped by id. skipping them by count
+                    //instead would skip something else if one of them has since been modified or deleted
+                    query.fieldIsGreaterThanOrEqualTo(LAST_MODIFIED_FIELD, cursor)
+                         .fieldIsOrderedBy(LAST_MODIFIED_FIELD, StackMobQuery.Ordering.ASCENDING)
+                         .fieldIsOrderedBy(idField, StackMobQuery.Ordering.ASCENDING)
+                         .isInRange(skip, skip + PAGE_SIZE - 1);
+                }
+            }
+            StackMobRequestSendResult result = StackMob.getStackMob().get(query, new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    JsonArray page;
+                    try {
+                        page = new JsonParser().parse(responseBody).getAsJsonArray();
+                    } catch(RuntimeException e) {
+                        failure(new StackMobException(e.getMessage()));
+                        return;
+                    }
+                    if(previousCursor == null) {
+                        started(page);
+                    } else {
+                        received(page);
+                    }
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    failed(e);
+                }
+            });
+            if(result.getStatus() == StackMobRequestSendResult.RequestSendStatus.FAILED) {
+                failed(new StackMobException(result.getFailureReason().getMessage()));
+            }
+        }
+
+        private synchronized void started(JsonArray page) {
+            long newest = -1;
+            if(page.size() > 0) {
+                JsonElement modified = page.get(0).getAsJsonObject().get(LAST_MODIFIED_FIELD);
+                if(modified != null && modified.isJsonPrimitive()) newest = modified.getAsLong();
+            }
+            cursor = Long.toString(newest + 1);
+            lastPollTime = System.currentTimeMillis();
+            schedule(interval);
+        }
+
+        private void received(JsonArray page) {
+            List<JsonObject> changes = new ArrayList<JsonObject>();
+            Set<JsonObject> created = Collections.newSetFromMap(new IdentityHashMap<JsonObject, Boolean>());
+            List<Watch> current;
+            String previousCursor;
+            synchronized(this) {
+                if(stopped) return;
+                previousCursor = cursor;
+                Set<String> seenAtCursor = new HashSet<String>(idsAtCursor);
+                for(JsonElement elt : page) {
+                    JsonObject object = elt.getAsJsonObject();
+                    JsonElement modified = object.get(LAST_MODIFIED_FIELD);
+                    JsonElement id = object.get(idField);
+                    if(modified == null || !modified.isJsonPrimitive() || id == null) continue;
+                    if(isNew(object.get(CREATED_FIELD), previousCursor, seenAtCursor.contains(id.getAsString()))) {
+                        created.add(object);
+                    }
+                    if(modified.getAsString().equals(cursor)) {
+                        if(!idsAtCursor.add(id.getAsString())) continue;
+                    } else {
+                        cursor = modified.getAsString();
+                        idsAtCursor.clear();
+                        idsAtCursor.add(id.getAsString());
+                    }
+                    changes.add(object);
+                }
+                current = new ArrayList<Watch>(watches);
+            }
+            for(Watch watch : current) {
+                watch.dispatch(changes, created);
+            }
+            synchronized(this) {
+                if(page.size() == PAGE_SIZE) {
+                    //a full page that didn't move the cursor is all ties, so the next one has to start past it
+                    skip = previousCursor.equals(cursor) ? skip + PAGE_SIZE : 0;
+                    //more changes are waiting, so don't wait to get them
+                    adapt(changes.size(), false);
+                    schedule(0);
+                } else {
+                    skip = 0;
+                    adapt(changes.size(), true);
+                    schedule(interval);
+                }
+            }
+        }
+
+        /**
+         * whether an object was created since the last poll. one created at the cursor itself is new unless it was
+         * already seen there
+         */
+        private boolean isNew(JsonElement created, String since, boolean seenAtCursor) {
+            if(created == null || !created.isJsonPrimitive()) return false;
+            long createdAt = created.getAsLong();
+            long cursorAt = Long.parseLong(since);
+            return createdAt > cursorAt || (createdAt == cursorAt && !seenAtCursor);
+        }
+
+        private void failed(StackMobException e) {
+            List<Watch> current;
+            synchronized(this) {
+                current = new ArrayList<Watch>(watches);
+                interval = maxIntervalMillis;
+                schedule(interval);
+            }
+            for(Watch watch : current) {
+                watch.listener.failure(e);
+            }
+        }
+
+        /**
+         * fold a poll's changes into the change rate and pick the next interval from it. call with the lock held
+         */
+        private void adapt(int changes, boolean endOfPoll) {
+            pendingChanges += changes;
+            if(!endOfPoll) {
+                //the rest of this poll's changes are still to come, so leave the rate alone until they're in
+                return;
+            }
+            long now = System.currentTimeMillis();
+            double observed = (double) pendingChanges / Math.max(1, now - lastPollTime);
+            pendingChanges = 0;
+            lastPollTime = now;
+            changesPerMilli = RATE_SMOOTHING * observed + (1 - RATE_SMOOTHING) * changesPerMilli;
+            double ideal = changesPerMilli <= 0 ? maxIntervalMillis : changesPerPoll / changesPerMilli;
+            interval = Math.max(minIntervalMillis, Math.min(maxIntervalMillis, (long) ideal));
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers what the results of each query or fetch call site actually read: the fields of the objects themselves,
+ * and which relations were followed how deep. Later runs from the same call site use that to select just those
+ * fields and expand just that deep. A call site is the first frame outside the SDK that sent the request.
+ *
+ * Every run walks the stack to find its call site, so a call site seen for the first time always starts out learning
+ * and each call site keeps its own statistics.
+ *
+ * A run keeps the objects it returned, by relation path. When one of them is read for something that wasn't selected
+ * or expanded, the missing fields or objects of everything at that path are fetched in one batch.
+ */
+class UsageProfiler {
+
+    //the deepest expand the platform allows
+    static final int MAX_EXPAND_DEPTH = 3;
+
+    //how long a read waits for the objects at its path to be filled in
+    static final long FILL_TIMEOUT_SECONDS = 30;
+
+    private static final String SdkPackage = "com.stackmob.sdk.";
+
+    private static final Set<Class<?>> autoSelectClasses = new CopyOnWriteArraySet<Class<?>>();
+    private static final Set<Class<?>> autoExpandClasses = new CopyOnWriteArraySet<Class<?>>();
+    private static final Map<String, Site> sites = new ConcurrentHashMap<String, Site>();
+
+    static class Site {
+        final String schema;
+        final String callSite;
+        final Set<String> fieldsRead = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Set<String> pathsRead = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicInteger deepestRead = new AtomicInteger();
+        final AtomicInteger followUpFetches = new AtomicInteger();
+
+        Site(String schema, String callSite) {
+            this.schema = schema;
+            this.callSite = callSite;
+        }
+
+        /**
+         * @param path the relation path from a result to the object read, "" for the result itself
+         * @param jsonName the field read
+         */
+        void read(String path, String jsonName) {
+            if(path.length() == 0) {
+                fieldsRead.add(jsonName);
+                return;
+            }
+            pathsRead.add(path);
+            int depth = depthOf(path);
+            int deepest;
+            do {
+                deepest = deepestRead.get();
+            } while(depth > deepest && !deepestRead.compareAndSet(deepest, depth));
+        }
+
+        /**
+         * @return whether anything read at this site was reported, which it isn't for classes whose getters don't
+         *         call touch
+         */
+        boolean hasReads() {
+            return !fieldsRead.isEmpty() || !pathsRead.isEmpty();
+        }
+
+        int recommendedExpandDepth() {
+            return Math.min(MAX_EXPAND_DEPTH, deepestRead.get());
+        }
+
+        StackMobUsageStatistics statistics() {
+            return new StackMobUsageStatistics(schema, callSite, runs.get(), new TreeSet<String>(fieldsRead),
+                    new TreeSet<String>(pathsRead), recommendedExpandDepth(), followUpFetches.get());
+        }
+    }
+
+    /**
+     * One query or fetch from a site
+     */
+    static class Run {
+        final Site site;
+        final boolean learning;
+        //relation path -> the objects this run returned there
+        private final Map<String, Set<StackMobModel>> byPath = new HashMap<String, Set<StackMobModel>>();
+
+        Run(Site site) {
+            this.site = site;
+            this.learning = site.runs.getAndIncrement() == 0;
+        }
+
+        synchronized void register(String path, StackMobModel model) {
+            Set<StackMobModel> models = byPath.get(path);
+            if(models == null) {
+                models = Collections.newSetFromMap(new IdentityHashMap<StackMobModel, Boolean>());
+                byPath.put(path, models);
+            }
+            models.add(model);
+        }
+
+        /**
+         * Fetch what's missing from every object at a path in one batch: related objects that weren't expanded are
+         * fetched whole, and results that weren't fully selected get the fields they're missing. Blocks until the
+         * fetch is done or {@link #FILL_TIMEOUT_SECONDS} pass.
+         * @param path the relation path of the object that was read
+         * @return why the fetch failed, or null if it didn't
+         */
+        synchronized StackMobException fill(final String path) {
+            Set<StackMobModel> models = byPath.get(path);
+            if(models == null) return null;
+            final List<StackMobModel> unexpanded = new ArrayList<StackMobModel>();
+            final List<StackMobModel> partial = new ArrayList<StackMobModel>();
+            Set<String> missingFields = new TreeSet<String>();
+            for(StackMobModel model : models) {
+                if(model.getID() == null) continue;
+                if(!model.hasData()) {
+                    unexpanded.add(model);
+                } else if(model.isPartlyLoaded()) {
+                    partial.add(model);
+                    missingFields.addAll(model.getUnloadedFieldNames());
+                }
+            }
+            if(unexpanded.isEmpty() && partial.isEmpty()) return null;
+            site.followUpFetches.incrementAndGet();
+
+            final CountDownLatch latch = new CountDownLatch((unexpanded.isEmpty() ? 0 : 1) + (partial.isEmpty() ? 0 : 1));
+            final List<StackMobException> failures = Collections.synchronizedList(new ArrayList<StackMobException>());
+            StackMobQueryCallback<StackMobModel> callback = new StackMobQueryCallback<StackMobModel>() {
+                @Override
+                public void success(List<StackMobModel> result) {
+                    latch.countDown();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    failures.add(e);
+                    latch.countDown();
+                }
+            };
+            if(!unexpanded.isEmpty()) {
+                new BatchFetch<StackMobModel>(unexpanded, callback).send(StackMobModel.DEFAULT_MAX_CONCURRENT_REQUESTS);
+            }
+            if(!partial.isEmpty()) {
+                new BatchFetch<StackMobModel>(partial, new ArrayList<String>(missingFields), callback).fillingUnloadedOnly()
+                        .send(StackMobModel.DEFAULT_MAX_CONCURRENT_REQUESTS);
+            }
+            boolean finished;
+            try {
+                finished = latch.await(FILL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new StackMobException(String.format("interrupted while loading the objects at %s", describe(path)));
+            }
+
+            //whatever was filled in gets tracked like the rest of the results, relations included
+            for(StackMobModel model : unexpanded) {
+                if(model.hasData()) model.profile(this, path, null);
+            }
+            for(StackMobModel model : partial) {
+                if(!model.isPartlyLoaded()) model.profile(this, path, null);
+            }
+            if(!finished) {
+                return new StackMobException(String.format("timed out loading the objects at %s", describe(path)));
+            }
+            return failures.isEmpty() ? null : failures.get(0);
+        }
+
+        private String describe(String path) {
+            return path.length() == 0 ? "the results" : path;
+        }
+
+        /**
+         * @return the fields to select, or null to get everything while the site is still being learned, or if
+         *         nothing at the site reports its reads
+         */
+        List<String> selection(String idField) {
+            if(learning || !site.hasReads()) return null;
+            List<String> selection = new ArrayList<String>(new TreeSet<String>(site.fieldsRead));
+            if(!selection.contains(idField)) selection.add(0, idField);
+            return selection;
+        }
+
+        /**
+         * @return the expand depth to use, or the one asked for while the site is still being learned, or if
+         *         nothing at the site reports its reads
+         */
+        int expandDepth(int requested) {
+            return learning || !site.hasReads() ? requested : site.recommendedExpandDepth();
+        }
+    }
+
+    static void enableAutoSelect(Class<? extends StackMobModel> classOfT) {
+        autoSelectClasses.add(classOfT);
+    }
+
+    static void disableAutoSelect(Class<? extends StackMobModel> classOfT) {
+        autoSelectClasses.remove(classOfT);
+    }
+
+    static void enableAutoExpand(Class<? extends StackMobModel> classOfT) {
+        autoExpandClasses.add(classOfT);
+    }
+
+    static void disableAutoExpand(Class<? extends StackMobModel> classOfT) {
+        autoExpandClasses.remove(classOfT);
+    }
+
+    static boolean autoSelects(Class<?> classOfT) {
+        return autoSelectClasses.contains(classOfT);
+    }
+
+    static boolean autoExpands(Class<?> classOfT) {
+        return autoExpandClasses.contains(classOfT);
+    }
+
+    /**
+     * @return a new run from the calling site, or null if the class isn't being profiled
+     */
+    static Run startRun(Class<?> classOfT, String schema) {
+        if(!autoSelects(classOfT) && !autoExpands(classOfT)) return null;
+        String callSite = callSite();
+        String name = schema + " " + callSite;
+        Site site = sites.get(name);
+        if(site == null) {
+            synchronized(sites) {
+                site = sites.get(name);
+                if(site == null) {
+                    site = new Site(schema, callSite);
+                    sites.put(name, site);
+                }
+            }
+        }
+        return new Run(site);
+    }
+
+    static List<StackMobUsageStatistics> statistics() {
+        List<StackMobUsageStatistics> statistics = new ArrayList<StackMobUsageStatistics>();
+        for(Site site : sites.values()) {
+            statistics.add(site.statistics());
+        }
+        return statistics;
+    }
+
+    static void reset() {
+        sites.clear();
+    }
+
+    static int depthOf(String path) {
+        int depth = 1;
+        for(int i = 0; i < path.length(); i++) {
+            if(path.charAt(i) == '.') depth++;
+        }
+        return depth;
+    }
+
+    private static String callSite() {
+        StackTraceElement[] trace = new Throwable().getStackTrace();
+        for(StackTraceElement frame : trace) {
+            if(!frame.getClassName().startsWith(SdkPackage)) return frame.toString();
+        }
+        return trace.length == 0 ? "unknown" : trace[trace.length - 1].toString();
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+/**
+ * Picks how many items to put in the next batch based on how earlier batches went. It keeps running averages
+ * of the time and payload each item costs, and aims for batches that come back within a target latency without
+ * going over a maximum payload size. Batch sizes at most double from one batch to the next, and halve after a failure.
+ */
+public class AdaptiveBatchSizer {
+
+    //weight of the newest observation in the running averages
+    private static final double SMOOTHING = 0.3;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long targetLatencyMillis;
+    private final int maxPayloadBytes;
+
+    private int size;
+    private double millisPerItem = -1;
+    private double bytesPerItem = -1;
+
+    public AdaptiveBatchSizer(int initialSize, int minSize, int maxSize, long targetLatencyMillis, int maxPayloadBytes) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.maxPayloadBytes = maxPayloadBytes;
+        this.size = clamp(initialSize);
+    }
+
+    /**
+     * get the number of items that should go in the next batch
+     * @return the batch size
+     */
+    public synchronized int getBatchSize() {
+        return size;
+    }
+
+    /**
+     * record a batch that went through
+     * @param items how many items were in the batch
+     * @param payloadBytes the size of the batch's payload
+     * @param latencyMillis how long the batch took from send to response
+     */
+    public synchronized void recordSuccess(int items, int payloadBytes, long latencyMillis) {
+        if(items <= 0) {
+            return;
+        }
+        millisPerItem = average(millisPerItem, Math.max(1, latencyMillis) / (double)items);
+        bytesPerItem = average(bytesPerItem, Math.max(1, payloadBytes) / (double)items);
+        double ideal = Math.min(targetLatencyMillis / millisPerItem, maxPayloadBytes / bytesPerItem);
+        size = clamp((int)Math.min(ideal, size * 2.0));
+    }
+
+    /**
+     * record a batch that failed. the next batch will be half as big
+     */
+    public synchronized void recordFailure() {
+        size = clamp(size / 2);
+    }
+
+    private static double average(double current, double observed) {
+        return current < 0 ? observed : SMOOTHING * observed + (1 - SMOOTHING) * current;
+    }
+
+    private int clamp(int candidate) {
+        return Math.max(minSize, Math.min(maxSize, candidate));
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import com.stackmob.sdk.callback.StackMobBulkCallback;
+import com.stackmob.sdk.exception.StackMobBulkException;
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.*;
+
+/**
+ * Keeps track of which objects in a bulk operation went through and which didn't, reports progress
+ * as parts of the operation complete, and calls the callback once at the end. Safe to use from several threads.
+ */
+public class BulkProgress {
+    private final int total;
+    private final StackMobBulkCallback callback;
+    private int completed = 0;
+    private final Map<String, StackMobException> failures = new HashMap<String, StackMobException>();
+    private final List<String> succeeded = new ArrayList<String>();
+
+    public BulkProgress(int total, StackMobBulkCallback callback) {
+        this.total = total;
+        this.callback = callback;
+    }
+
+    public synchronized void succeeded(String id) {
+        succeeded.add(id);
+    }
+
+    public synchronized void failed(String id, StackMobException e) {
+        failures.put(id, e);
+    }
+
+    public synchronized void failed(Collection<String> ids, StackMobException e) {
+        for(String id : ids) {
+            failures.put(id, e);
+        }
+    }
+
+    /**
+     * mark part of the operation as done and tell the callback
+     * @param count how many more objects have been handled
+     */
+    public synchronized void completed(int count) {
+        completed += count;
+        callback.progress(completed, total);
+    }
+
+    /**
+     * call the callback with the outcome of the whole operation. call this once, when everything is done
+     */
+    public void finish() {
+        List<String> succeededCopy;
+        Map<String, StackMobException> failuresCopy;
+        synchronized(this) {
+            succeededCopy = new ArrayList<String>(succeeded);
+            failuresCopy = new HashMap<String, StackMobException>(failures);
+        }
+        if(failuresCopy.isEmpty()) {
+            callback.success(succeededCopy);
+        }
+        else {
+            callback.failure(new StackMobBulkException(failuresCopy, succeededCopy));
+        }
+    }
+
+    /**
+     * a runnable that calls {@link #finish()}, for handing to {@link ThrottledRequestQueue#start(Runnable)}
+     * @return the runnable
+     */
+    public Runnable finisher() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                finish();
+            }
+        };
+    }
+}
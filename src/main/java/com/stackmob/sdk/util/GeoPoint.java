@@ -22,14 +22,26 @@ public class GeoPoint {
   private static final double EarthRadiusInMi = 3956.6;
   private static final double EarthRadiusInKm = 6367.5;
 
-  private Double lon = Double.NaN;
-  private Double lat = Double.NaN;
+  private double lon = Double.NaN;
+  private double lat = Double.NaN;
 
   public GeoPoint(Double lon, Double lat) {
     this.lon = lon;
     this.lat = lat;
   }
 
+  private GeoPoint() { }
+
+  /**
+   * same as {@link #GeoPoint(Double, Double)} without boxing
+   */
+  public static GeoPoint of(double lon, double lat) {
+    GeoPoint point = new GeoPoint();
+    point.lon = lon;
+    point.lat = lat;
+    return point;
+  }
+
   public Double getLongitude() {
     return lon;
   }
@@ -38,26 +50,95 @@ public class GeoPoint {
     return lat;
   }
 
+  /**
+   * same as {@link #getLongitude()} without boxing
+   */
+  public double getLon() {
+    return lon;
+  }
+
+  /**
+   * same as {@link #getLatitude()} without boxing
+   */
+  public double getLat() {
+    return lat;
+  }
+
   public List<String> asList() {
     List<String> arguments = new ArrayList<String>();
-    arguments.add(getLatitude().toString());
-    arguments.add(getLongitude().toString());
+    arguments.add(Double.toString(lat));
+    arguments.add(Double.toString(lon));
     return arguments;
   }
+
+  /**
+   * write this point the way query arguments take it, lat then lon
+   * @param builder where to write it
+   * @return the builder
+   */
+  public StringBuilder appendTo(StringBuilder builder) {
+    return builder.append(lat).append(',').append(lon);
+  }
   
   public static Double radiansToMi(double radians) {
-    return radians * EarthRadiusInMi;
+    return radiansToMiles(radians);
   }
   
   public static Double radiansToKm(double radians) {
-    return radians * EarthRadiusInKm;
+    return radiansToKilometers(radians);
   }
   
   public static Double miToRadians(double mi) {
-    return mi / EarthRadiusInMi;
+    return milesToRadians(mi);
   }
   
   public static Double kmToRadians(double km) {
+    return kilometersToRadians(km);
+  }
+
+  /**
+   * same as {@link #radiansToMi(double)} without boxing
+   */
+  public static double radiansToMiles(double radians) {
+    return radians * EarthRadiusInMi;
+  }
+
+  /**
+   * same as {@link #radiansToKm(double)} without boxing
+   */
+  public static double radiansToKilometers(double radians) {
+    return radians * EarthRadiusInKm;
+  }
+
+  /**
+   * same as {@link #miToRadians(double)} without boxing
+   */
+  public static double milesToRadians(double mi) {
+    return mi / EarthRadiusInMi;
+  }
+
+  /**
+   * same as {@link #kmToRadians(double)} without boxing
+   */
+  public static double kilometersToRadians(double km) {
     return km / EarthRadiusInKm;
   }
+
+  /**
+   * the great circle distance between two points, by the haversine formula
+   * @return the distance in radians, the unit NEAR and WITHIN use
+   */
+  public static double radiansBetween(double lat1, double lon1, double lat2, double lon2) {
+    double sinHalfDLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+    double sinHalfDLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+    double a = sinHalfDLat * sinHalfDLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinHalfDLon * sinHalfDLon;
+    return 2 * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+  /**
+   * @return the distance from this point to another in radians
+   */
+  public double radiansTo(GeoPoint other) {
+    return radiansBetween(lat, lon, other.lat, other.lon);
+  }
 }
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.util;
+
+/**
+ * Distance, filter and sort kernels over many points packed into one array as lat0, lon0, lat1, lon1, ...
+ * They allocate nothing, so the caller owns every array and can reuse them from request to request. Distances are
+ * in radians, like {@link GeoPoint#radiansBetween}, and points with NaN coordinates are infinitely far away.
+ */
+public class GeoPoints {
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private GeoPoints() { }
+
+    /**
+     * pack points into an array
+     * @param points the points
+     * @param packed where to put them, at least twice as long as points
+     * @return packed
+     */
+    public static double[] pack(GeoPoint[] points, double[] packed) {
+        for(int i = 0; i < points.length; i++) {
+            packed[2 * i] = points[i].getLat();
+            packed[2 * i + 1] = points[i].getLon();
+        }
+        return packed;
+    }
+
+    /**
+     * the distance from a center to each of the first count points
+     * @param distances where the distances go, one per point
+     */
+    public static void distances(double lat, double lon, double[] points, int count, double[] distances) {
+        double latRadians = Math.toRadians(lat);
+        double cosLat = Math.cos(latRadians);
+        for(int i = 0; i < count; i++) {
+            distances[i] = toRadians(haversine(latRadians, cosLat, lon, points[2 * i], points[2 * i + 1]));
+        }
+    }
+
+    /**
+     * find the first count points within a radius of a center
+     * @param indices where the indices of the points inside go, in the order they're in points
+     * @return how many points are inside
+     */
+    public static int withinRadius(double lat, double lon, double radians, double[] points, int count, int[] indices) {
+        double latRadians = Math.toRadians(lat);
+        double cosLat = Math.cos(latRadians);
+        //compare the haversine term itself, which saves a square root and an arcsine per point
+        double threshold = haversineOf(radians);
+        int found = 0;
+        for(int i = 0; i < count; i++) {
+            if(haversine(latRadians, cosLat, lon, points[2 * i], points[2 * i + 1]) <= threshold) indices[found++] = i;
+        }
+        return found;
+    }
+
+    /**
+     * same as {@link #withinRadius(double, double, double, double[], int, int[])}, but only looks at the points
+     * whose indices are the first count of candidates
+     * @param indices where the indices of the points inside go. can be candidates itself
+     * @return how many points are inside
+     */
+    public static int withinRadius(double lat, double lon, double radians, double[] points, int[] candidates, int count, int[] indices) {
+        double latRadians = Math.toRadians(lat);
+        double cosLat = Math.cos(latRadians);
+        double threshold = haversineOf(radians);
+        int found = 0;
+        for(int i = 0; i < count; i++) {
+            int point = candidates[i];
+            if(haversine(latRadians, cosLat, lon, points[2 * point], points[2 * point + 1]) <= threshold) indices[found++] = point;
+        }
+        return found;
+    }
+
+    /**
+     * find the first count points in a box. a box whose lower left corner is east of its upper right crosses the
+     * 180th meridian
+     * @param indices where the indices of the points inside go
+     * @return how many points are inside
+     */
+    public static int withinBox(double lowerLat, double lowerLon, double upperLat, double upperLon, double[] points, int count, int[] indices) {
+        boolean wraps = lowerLon > upperLon;
+        int found = 0;
+        for(int i = 0; i < count; i++) {
+            double lat = points[2 * i];
+            double lon = points[2 * i + 1];
+            if(lat < lowerLat || lat > upperLat) continue;
+            if(wraps ? lon >= lowerLon || lon <= upperLon : lon >= lowerLon && lon <= upperLon) indices[found++] = i;
+        }
+        return found;
+    }
+
+    /**
+     * order points by their distance from a center, closest first
+     * @param indices the indices of the points to sort, sorted in place
+     * @param count how many of indices to sort
+     * @param distances gets each sorted point's distance, lined up with indices
+     */
+    public static void sortByDistance(double lat, double lon, double[] points, int[] indices, int count, double[] distances) {
+        double latRadians = Math.toRadians(lat);
+        double cosLat = Math.cos(latRadians);
+        for(int i = 0; i < count; i++) {
+            int point = indices[i];
+            distances[i] = toRadians(haversine(latRadians, cosLat, lon, points[2 * point], points[2 * point + 1]));
+        }
+        sort(indices, distances, count);
+    }
+
+    /**
+     * sort the first count keys ascending, moving indices along with them
+     */
+    public static void sort(int[] indices, double[] keys, int count) {
+        quicksort(indices, keys, 0, count - 1);
+    }
+
+    private static void quicksort(int[] indices, double[] keys, int lo, int hi) {
+        while(hi - lo >= INSERTION_SORT_THRESHOLD) {
+            int mid = (lo + hi) >>> 1;
+            //median of three, left at hi as the pivot
+            if(keys[mid] < keys[lo]) swap(indices, keys, mid, lo);
+            if(keys[hi] < keys[lo]) swap(indices, keys, hi, lo);
+            if(keys[mid] < keys[hi]) swap(indices, keys, mid, hi);
+            double pivot = keys[hi];
+            //three way partition, so runs of equal distances don't make this quadratic
+            int less = lo;
+            int greater = hi;
+            int i = lo;
+            while(i <= greater) {
+                if(keys[i] < pivot) {
+                    swap(indices, keys, less++, i++);
+                } else if(keys[i] > pivot) {
+                    swap(indices, keys, i, greater--);
+                } else {
+                    i++;
+                }
+            }
+            //recurse into the smaller side so the stack stays shallow
+            if(less - lo < hi - greater) {
+                quicksort(indices, keys, lo, less - 1);
+                lo = greater + 1;
+            } else {
+                quicksort(indices, keys, greater + 1, hi);
+                hi = less - 1;
+            }
+        }
+        for(int i = lo + 1; i <= hi; i++) {
+            double key = keys[i];
+            int index = indices[i];
+            int j = i - 1;
+            while(j >= lo && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                indices[j + 1] = indices[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            indices[j + 1] = index;
+        }
+    }
+
+    private static void swap(int[] indices, double[] keys, int a, int b) {
+        double key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        int index = indices[a];
+        indices[a] = indices[b];
+        indices[b] = index;
+    }
+
+    /**
+     * the haversine of the central angle between a center, given as its lat in radians with that lat's cosine, and
+     * a point in degrees. NaN coordinates give infinity
+     */
+    private static double haversine(double latRadians, double cosLat, double lon, double pointLat, double pointLon) {
+        double pointLatRadians = Math.toRadians(pointLat);
+        double sinHalfDLat = Math.sin((pointLatRadians - latRadians) / 2);
+        double sinHalfDLon = Math.sin(Math.toRadians(pointLon - lon) / 2);
+        double a = sinHalfDLat * sinHalfDLat + cosLat * Math.cos(pointLatRadians) * sinHalfDLon * sinHalfDLon;
+        return a != a ? Double.POSITIVE_INFINITY : a;
+    }
+
+    private static double haversineOf(double radians) {
+        if(radians >= Math.PI) return Double.POSITIVE_INFINITY;
+        double sinHalf = Math.sin(radians / 2);
+        return sinHalf * sinHalf;
+    }
+
+    private static double toRadians(double haversine) {
+        return haversine == Double.POSITIVE_INFINITY ? haversine : 2 * Math.asin(Math.min(1, Math.sqrt(haversine)));
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.util;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.stackmob.sdk.api.StackMobQuery;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Evaluates the conditions, ordering and range of a {@link StackMobQuery} against JSON objects on the client, the
+ * way the platform would on the server. Query values are strings, so they're matched against numbers and booleans
+ * by value: "20" equals 20 and 20.0.
+ */
+public class JsonQueryEvaluator {
+
+
+    /**
+     * One condition on one field
+     */
+    public static class Condition {
+        private final String field;
+        private final StackMobQuery.Operator operator;
+        private final List<String> values;
+        //lat, lon, then a radius in radians or the lat and lon of the upper right corner of a box
+        private final double[] geo;
+
+        Condition(String field, StackMobQuery.Operator operator, List<String> values) {
+            this.field = field;
+            this.operator = operator;
+            this.values = values;
+            if(operator == StackMobQuery.Operator.NEAR || operator == StackMobQuery.Operator.WITHIN) {
+                geo = new double[values.size()];
+                for(int i = 0; i < geo.length; i++) geo[i] = Double.parseDouble(values.get(i).trim());
+            } else {
+                geo = null;
+            }
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        /**
+         * @return the operator, or null for equality
+         */
+        public StackMobQuery.Operator getOperator() {
+            return operator;
+        }
+
+        public List<String> getValues() {
+            return values;
+        }
+
+        /**
+         * @return whether the condition can be checked on the client
+         */
+        public boolean isSupported() {
+            return geo == null || geo.length == 2 || geo.length == 3 || (geo.length == 4 && operator == StackMobQuery.Operator.WITHIN);
+        }
+
+        /**
+         * @return the lat and lon at the center of a NEAR or WITHIN radius condition, or the lower left corner of a
+         *         WITHIN box
+         */
+        public double[] getPoint() {
+            return geo == null ? null : new double[] {geo[0], geo[1]};
+        }
+
+        /**
+         * @return the radius of a NEAR or WITHIN condition in radians, or NaN if it doesn't have one
+         */
+        public double getRadius() {
+            return geo != null && geo.length == 3 ? geo[2] : Double.NaN;
+        }
+
+        /**
+         * @return the lat and lon of the lower left and upper right corners of a WITHIN box, or null if it isn't one
+         */
+        public double[] getBox() {
+            return geo != null && geo.length == 4 ? geo.clone() : null;
+        }
+
+        /**
+         * @param value a GeoPoint as JSON
+         * @return how far the value is from the center of this condition in radians, or NaN if it isn't a GeoPoint
+         */
+        public double radiansTo(JsonElement value) {
+            double[] point = latLon(value);
+            return point == null ? Double.NaN : GeoPoint.radiansBetween(geo[0], geo[1], point[0], point[1]);
+        }
+
+        public boolean matches(JsonElement value) {
+            if(value == null || value.isJsonNull()) return false;
+            if(geo != null) {
+                return matchesGeo(value);
+            }
+            if(value.isJsonArray()) {
+                //like the platform, a condition on an array field matches if any element does
+                for(JsonElement element : value.getAsJsonArray()) {
+                    if(matches(element)) return true;
+                }
+                return false;
+            }
+            if(operator == null) {
+                return key(value).equals(key(values.get(0)));
+            }
+            switch(operator) {
+                case IN:
+                    String valueKey = key(value);
+                    for(String v : values) {
+                        if(valueKey.equals(key(v))) return true;
+                    }
+                    return false;
+                case LT:
+                    return compare(value) < 0;
+                case LTE:
+                    return compare(value) <= 0;
+                case GT:
+                    return compare(value) > 0;
+                case GTE:
+                    return compare(value) >= 0;
+                default:
+                    throw new IllegalStateException(operator + " can't be evaluated on the client");
+            }
+        }
+
+        private boolean matchesGeo(JsonElement value) {
+            double[] point = latLon(value);
+            if(point == null) return false;
+            if(geo.length == 4) {
+                return isInBox(point[0], point[1], geo[0], geo[1], geo[2], geo[3]);
+            }
+            return geo.length == 2 || GeoPoint.radiansBetween(geo[0], geo[1], point[0], point[1]) <= geo[2];
+        }
+
+        private int compare(JsonElement value) {
+            return JsonValueComparator.INSTANCE.compare(value, toJsonValue(values.get(0)));
+        }
+    }
+
+    private final List<Condition> conditions = new ArrayList<Condition>();
+    private final Comparator<JsonObject> order;
+    private final String orderBy;
+    private final int rangeStart;
+    private final int rangeEnd;
+
+    public JsonQueryEvaluator(StackMobQuery query) {
+        for(Map.Entry<String, String> arg : query.getArguments().entrySet()) {
+            String key = arg.getKey();
+            StackMobQuery.Operator operator = null;
+            String field = key;
+            if(key.endsWith("]") && key.indexOf('[') > 0) {
+                field = key.substring(0, key.indexOf('['));
+                operator = operatorFor(key.substring(key.indexOf('[')));
+            }
+            List<String> values = operator == null ? Arrays.asList(arg.getValue()) : Arrays.asList(arg.getValue().split(","));
+            conditions.add(new Condition(field, operator, values));
+        }
+        orderBy = query.getHeaders().get(StackMobQuery.OrderByHeader);
+        order = orderBy == null ? null : JsonValueComparator.forOrderBy(orderBy);
+        String range = query.getHeaders().get(StackMobQuery.RangeHeader);
+        if(range != null && range.startsWith("objects=")) {
+            String[] bounds = range.substring("objects=".length()).split("-", -1);
+            rangeStart = Integer.parseInt(bounds[0]);
+            rangeEnd = bounds.length > 1 && bounds[1].length() > 0 ? Integer.parseInt(bounds[1]) : -1;
+        } else {
+            rangeStart = 0;
+            rangeEnd = -1;
+        }
+    }
+
+    private static StackMobQuery.Operator operatorFor(String forURL) {
+        for(StackMobQuery.Operator operator : StackMobQuery.Operator.values()) {
+            if(operator.getOperatorForURL().equals(forURL)) return operator;
+        }
+        throw new IllegalArgumentException("unknown operator " + forURL);
+    }
+
+    public List<Condition> getConditions() {
+        return Collections.unmodifiableList(conditions);
+    }
+
+    /**
+     * @return whether every condition can be checked on the client
+     */
+    public boolean isSupported() {
+        for(Condition condition : conditions) {
+            if(!condition.isSupported()) return false;
+        }
+        return true;
+    }
+
+    public boolean matches(JsonObject object) {
+        for(Condition condition : conditions) {
+            if(!condition.matches(object.get(condition.getField()))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the NEAR condition, whose results are ordered by distance unless the query says otherwise, or null
+     */
+    public Condition getNear() {
+        for(Condition condition : conditions) {
+            if(condition.getOperator() == StackMobQuery.Operator.NEAR) return condition;
+        }
+        return null;
+    }
+
+    /**
+     * @return the X-StackMob-OrderBy header of the query, or null if it isn't ordered
+     */
+    public String getOrderBy() {
+        return orderBy;
+    }
+
+    /**
+     * @return the query's ordering, or null if it isn't ordered
+     */
+    public Comparator<JsonObject> getOrder() {
+        return order;
+    }
+
+    /**
+     * @return the part of the results that falls inside the query's range
+     */
+    public <T> List<T> applyRange(List<T> results) {
+        int end = rangeEnd < 0 ? results.size() : Math.min(results.size(), rangeEnd + 1);
+        if(rangeStart >= end) return new ArrayList<T>();
+        return results.subList(rangeStart, end);
+    }
+
+    /**
+     * @return how many results the query asks for at most, or -1 if there's no limit
+     */
+    public int getLimit() {
+        return rangeEnd < 0 ? -1 : rangeEnd + 1;
+    }
+
+    /**
+     * @param value a GeoPoint as JSON, {"lat":..., "lon":...}
+     * @return its lat and lon, or null if it isn't a GeoPoint
+     */
+    public static double[] latLon(JsonElement value) {
+        if(value == null || !value.isJsonObject()) return null;
+        JsonObject object = value.getAsJsonObject();
+        JsonElement lat = object.get("lat");
+        JsonElement lon = object.get("lon");
+        if(lat == null || lon == null || !lat.isJsonPrimitive() || !lon.isJsonPrimitive()) return null;
+        try {
+            return new double[] {lat.getAsDouble(), lon.getAsDouble()};
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * whether a point is in a box. a box whose left edge is east of its right edge crosses the 180th meridian
+     */
+    public static boolean isInBox(double lat, double lon, double lowerLat, double lowerLon, double upperLat, double upperLon) {
+        if(lat < lowerLat || lat > upperLat) return false;
+        return lowerLon <= upperLon ? lon >= lowerLon && lon <= upperLon : lon >= lowerLon || lon <= upperLon;
+    }
+
+    /**
+     * the form two values share when they're equal in a query, so they can be used as hash keys
+     * @param value a JSON primitive
+     * @return the key
+     */
+    public static String key(JsonElement value) {
+        return value.isJsonPrimitive() ? key(value.getAsString()) : value.toString();
+    }
+
+    /**
+     * @param queryValue a value from a query
+     * @return the key it shares with the JSON values it equals
+     */
+    public static String key(String queryValue) {
+        String number = canonicalNumber(queryValue);
+        return number == null ? queryValue : number;
+    }
+
+    /**
+     * @param queryValue a value from a query
+     * @return the value as the JSON number or boolean it stands for, or as a string
+     */
+    public static JsonPrimitive toJsonValue(String queryValue) {
+        if("true".equals(queryValue) || "false".equals(queryValue)) return new JsonPrimitive(Boolean.valueOf(queryValue));
+        BigDecimal number = parseNumber(queryValue);
+        return number == null ? new JsonPrimitive(queryValue) : new JsonPrimitive(number);
+    }
+
+    private static String canonicalNumber(String s) {
+        BigDecimal number = parseNumber(s);
+        if(number == null) return null;
+        //stripTrailingZeros leaves 0.0 alone on older JVMs
+        return number.signum() == 0 ? "0" : number.stripTrailingZeros().toPlainString();
+    }
+
+    private static BigDecimal parseNumber(String s) {
+        if(s.length() == 0) return null;
+        char first = s.charAt(0);
+        if(!Character.isDigit(first) && first != '-' && first != '.') return null;
+        try {
+            return new BigDecimal(s);
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.util;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders JSON values the way the platform orders fields: missing and null values first, then booleans, numbers
+ * and strings, each compared naturally. Arrays and objects are compared by their JSON text.
+ */
+public class JsonValueComparator implements Comparator<JsonElement> {
+
+    public static final JsonValueComparator INSTANCE = new JsonValueComparator();
+
+    @Override
+    public int compare(JsonElement a, JsonElement b) {
+        int rankA = rank(a);
+        int rankB = rank(b);
+        if(rankA != rankB) {
+            return rankA < rankB ? -1 : 1;
+        }
+        switch(rankA) {
+            case 0:
+                return 0;
+            case 1:
+                return Boolean.valueOf(a.getAsBoolean()).compareTo(b.getAsBoolean());
+            case 2:
+                return Double.compare(a.getAsDouble(), b.getAsDouble());
+            case 3:
+                return a.getAsString().compareTo(b.getAsString());
+            default:
+                return a.toString().compareTo(b.toString());
+        }
+    }
+
+    private static int rank(JsonElement value) {
+        if(value == null || value.isJsonNull()) return 0;
+        if(value.isJsonPrimitive()) {
+            JsonPrimitive primitive = value.getAsJsonPrimitive();
+            if(primitive.isBoolean()) return 1;
+            if(primitive.isNumber()) return 2;
+            return 3;
+        }
+        return 4;
+    }
+
+    /**
+     * a comparator for JSON objects that follows an X-StackMob-OrderBy header
+     * @param orderBy the header value, like "age:desc,name:asc"
+     * @return the comparator
+     */
+    public static Comparator<JsonObject> forOrderBy(String orderBy) {
+        final List<String> fields = new ArrayList<String>();
+        final List<Boolean> descending = new ArrayList<Boolean>();
+        for(String part : orderBy.split(",")) {
+            String[] fieldAndOrder = part.trim().split(":");
+            fields.add(fieldAndOrder[0]);
+            descending.add(fieldAndOrder.length > 1 && fieldAndOrder[1].trim().equalsIgnoreCase("desc"));
+        }
+        return new Comparator<JsonObject>() {
+            @Override
+            public int compare(JsonObject a, JsonObject b) {
+                for(int i = 0; i < fields.size(); i++) {
+                    int result = INSTANCE.compare(a.get(fields.get(i)), b.get(fields.get(i)));
+                    if(result != 0) {
+                        return descending.get(i) ? -result : result;
+                    }
+                }
+                return 0;
+            }
+        };
+    }
+}
@@ -16,6 +16,9 @@
 
 package com.stackmob.sdk.util;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.List;
 
 public class ListHelpers {
@@ -31,4 +34,64 @@ public class ListHelpers {
         }
         return buf.toString();
     }
+
+    /**
+     * split values into consecutive chunks that are no longer than maxLength once they're percent encoded
+     * and joined with commas, which is how they end up in a query string. a value that's longer than maxLength
+     * on its own gets a chunk to itself
+     * @param values the values to split
+     * @param maxLength the maximum encoded length of a chunk
+     * @return the chunks, in order
+     */
+    public static List<List<String>> chunkByEncodedLength(List<String> values, int maxLength) {
+        final int encodedSeparatorLength = 3; //"," becomes "%2C"
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        List<String> current = new ArrayList<String>();
+        int currentLength = 0;
+        for(String value : values) {
+            int length = encodedLength(value);
+            int lengthWithSeparator = current.isEmpty() ? length : length + encodedSeparatorLength;
+            if(!current.isEmpty() && currentLength + lengthWithSeparator > maxLength) {
+                chunks.add(current);
+                current = new ArrayList<String>();
+                currentLength = 0;
+                lengthWithSeparator = length;
+            }
+            current.add(value);
+            currentLength += lengthWithSeparator;
+        }
+        if(!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    /**
+     * split a list into consecutive chunks of at most size elements
+     * @param list the list to split
+     * @param size the maximum size of each chunk
+     * @return the chunks, in order
+     */
+    public static <T> List<List<T>> chunk(List<T> list, int size) {
+        List<List<T>> chunks = new ArrayList<List<T>>();
+        for(int i = 0; i < list.size(); i += size) {
+            chunks.add(new ArrayList<T>(list.subList(i, Math.min(list.size(), i + size))));
+        }
+        return chunks;
+    }
+
+    private static int encodedLength(String value) {
+        try {
+            String encoded = URLEncoder.encode(value, "UTF-8");
+            int spaces = 0;
+            for(int i = 0; i < encoded.length(); i++) {
+                if(encoded.charAt(i) == '+') spaces++;
+            }
+            //spaces go out as %20 rather than +
+            return encoded.length() + 2 * spaces;
+        }
+        catch(UnsupportedEncodingException e) {
+            return value.length();
+        }
+    }
 }
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobLogger;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends asynchronous requests with no more than a fixed number of them in flight at once. Requests are pulled
+ * from {@link #next()} whenever a slot frees up, so subclasses can decide what to send based on earlier responses.
+ * The completion runnable is called exactly once, after the last request has reported that it's done.
+ */
+public class ThrottledRequestQueue {
+
+    public static abstract class Request {
+        /**
+         * send the request. implementations must call done.run() once the response has been handled,
+         * or right away if the request couldn't be sent at all
+         * @param done the runnable that frees this request's slot
+         */
+        public abstract void send(Runnable done);
+    }
+
+    private final int maxInFlight;
+    private final LinkedList<Request> queued = new LinkedList<Request>();
+    private int inFlight = 0;
+    private boolean started = false;
+    private boolean completed = false;
+    private Runnable onComplete;
+
+    public ThrottledRequestQueue(int maxInFlight) {
+        if(maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * queue a request. requests added after {@link #start(Runnable)} are sent as soon as there's room,
+     * as long as the queue hasn't completed yet
+     * @param request the request to queue
+     * @return this queue
+     */
+    public ThrottledRequestQueue add(Request request) {
+        boolean running;
+        synchronized(this) {
+            if(completed) {
+                throw new IllegalStateException("can't add requests to a queue that has already completed");
+            }
+            queued.add(request);
+            running = started;
+        }
+        if(running) {
+            pump();
+        }
+        return this;
+    }
+
+    /**
+     * get the next request to send. always called with the queue's lock held. returning null while
+     * nothing is in flight completes the queue
+     * @return the next request, or null if there's nothing to send right now
+     */
+    protected Request next() {
+        return queued.poll();
+    }
+
+    /**
+     * start sending requests
+     * @param onComplete called once every request has finished. may be null
+     */
+    public void start(Runnable onComplete) {
+        synchronized(this) {
+            if(started) {
+                throw new IllegalStateException("this queue has already been started");
+            }
+            started = true;
+            this.onComplete = onComplete;
+        }
+        pump();
+    }
+
+    public synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    private void pump() {
+        List<Request> toSend = new ArrayList<Request>();
+        boolean finished = false;
+        synchronized(this) {
+            while(inFlight < maxInFlight) {
+                Request request = next();
+                if(request == null) {
+                    break;
+                }
+                inFlight++;
+                toSend.add(request);
+            }
+            if(inFlight == 0 && !completed) {
+                completed = true;
+                finished = true;
+            }
+        }
+        for(Request request : toSend) {
+            Done done = new Done();
+            try {
+                request.send(done);
+            }
+            catch(RuntimeException e) {
+                //the request never got out, so it'll never free its slot on its own
+                StackMob.getLogger().logError("Request threw error while sending %s", StackMobLogger.getStackTrace(e));
+                done.run();
+            }
+        }
+        if(finished && onComplete != null) {
+            onComplete.run();
+        }
+    }
+
+    private class Done implements Runnable {
+        private final AtomicBoolean called = new AtomicBoolean(false);
+
+        @Override
+        public void run() {
+            if(called.compareAndSet(false, true)) {
+                synchronized(ThrottledRequestQueue.this) {
+                    inFlight--;
+                }
+                pump();
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+
+/**
+ * A local http server that stands in for the platform, so bulk and paging code can be tested without a network.
+ * Starting one points {@link StackMob#getStackMob()} at it, and stopping it clears that so the next caller gets
+ * a fresh one.
+ */
+public class FakeStackMobServer {
+
+    public static class Request {
+        public final String method;
+        public final String path;
+        public final String query;
+        public final String body;
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        Request(String method, String path, String query, String body) {
+            this.method = method;
+            this.path = path;
+            this.query = query == null ? "" : query;
+            this.body = body;
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        /**
+         * @return the decoded value of a query parameter, or null if it isn't there
+         */
+        public String getParam(String name) {
+            for(String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if(equals < 0) continue;
+                try {
+                    if(URLDecoder.decode(pair.substring(0, equals), "UTF-8").equals(name)) {
+                        return URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+                    }
+                } catch(IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the first and last index asked for in a Range header, or null if there isn't one
+         */
+        public int[] getRange() {
+            String range = getHeader("Range");
+            if(range == null) return null;
+            String[] bounds = range.substring(range.indexOf('=') + 1).split("-");
+            return new int[] {Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1])};
+        }
+    }
+
+    public static class Response {
+        public final int code;
+        public final String body;
+        public final Map<String, String> headers = new HashMap<String, String>();
+
+        public Response(int code, String body) {
+            this.code = code;
+            this.body = body;
+        }
+
+        public Response(String body) {
+            this(200, body);
+        }
+
+        public Response withHeader(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    public interface Handler {
+        Response handle(Request request);
+    }
+
+    /**
+     * accepts everything: a POST gets its own body back as if every object in it was saved, anything else gets {}
+     */
+    public static final Handler ACCEPT_ALL = new Handler() {
+        @Override
+        public Response handle(Request request) {
+            if(request.method.equals("POST")) return new Response(request.body);
+            return new Response("{}");
+        }
+    };
+
+    /**
+     * @param pathPrefix where requests fail, e.g. "/pear"
+     * @return a handler that fails requests under pathPrefix with a 500 and accepts the rest like {@link #ACCEPT_ALL}
+     */
+    public static Handler failingUnder(final String pathPrefix) {
+        return new Handler() {
+            @Override
+            public Response handle(Request request) {
+                if(request.path.startsWith(pathPrefix)) return new Response(500, "{\"error\":\"no\"}");
+                return ACCEPT_ALL.handle(request);
+            }
+        };
+    }
+
+    private final HttpServer server;
+    private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+
+    public FakeStackMobServer(final Handler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Request request = new Request(exchange.getRequestMethod(),
+                                              exchange.getRequestURI().getPath(),
+                                              exchange.getRequestURI().getRawQuery(),
+                                              read(exchange.getRequestBody()));
+                for(Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+                    request.headers.put(header.getKey().toLowerCase(), header.getValue().get(0));
+                }
+                requests.add(request);
+                Response response;
+                try {
+                    response = handler.handle(request);
+                } catch(RuntimeException e) {
+                    response = new Response(500, "{\"error\":\"" + e + "\"}");
+                }
+                byte[] body = response.body.getBytes("UTF-8");
+                for(Map.Entry<String, String> header : response.headers.entrySet()) {
+                    exchange.getResponseHeaders().add(header.getKey(), header.getValue());
+                }
+                exchange.sendResponseHeaders(response.code, body.length == 0 ? -1 : body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        String host = getHost();
+        StackMob.setStackMob(new StackMob("key", "secret", "user", 0, host, host, new StackMobRedirectedCallback() {
+            @Override
+            public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+                //do nothing
+            }
+        }));
+    }
+
+    /**
+     * @return where requests to this server go, for {@link com.stackmob.sdk.api.StackMobRequest#setUrlFormat}
+     */
+    public String getHost() {
+        return "localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return every request received so far, in order
+     */
+    public List<Request> getRequests() {
+        synchronized(requests) {
+            return new ArrayList<Request>(requests);
+        }
+    }
+
+    public void stop() {
+        StackMob.setStackMob(null);
+        server.stop(0);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+}
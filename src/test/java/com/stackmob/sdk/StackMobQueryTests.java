@@ -19,6 +19,7 @@ package com.stackmob.sdk;
 import com.stackmob.sdk.util.GeoPoint;
 import org.junit.Test;
 import static org.junit.Assert.*;
+import com.stackmob.sdk.api.StackMobPreparedQuery;
 import com.stackmob.sdk.api.StackMobQuery;
 import com.stackmob.sdk.api.StackMobQueryWithField;
 
@@ -140,4 +141,25 @@ public class StackMobQueryTests extends StackMobTestCommon {
                                                                             otherField+StackMobQuery.Operator.GT.getOperatorForURL()));
         assertKeysAndValuesMatch(q.getArguments(), expectedKeys, value);
     }
+
+    @Test public void preparedQuery() {
+        StackMobQuery q = new StackMobQuery(object).fieldIsEqualTo(field, "a b").fieldIsGreaterThan(otherField, "1").isInRange(0, 9);
+        StackMobPreparedQuery prepared = q.prepare(otherField + StackMobQuery.Operator.GT.getOperatorForURL());
+        assertEquals(object, prepared.getObjectName());
+        assertEquals(field + "=a%20b&" + otherField + "%5Bgt%5D=1", prepared.getQueryString());
+        assertEquals(1, prepared.getHeaders().size());
+        assertEquals("objects=0-9", prepared.getHeaders().get(0).getValue());
+
+        StackMobPreparedQuery bound = prepared.bind("x,y").inRange(10, 19);
+        assertEquals(field + "=a%20b&" + otherField + "%5Bgt%5D=x%2Cy", bound.getQueryString());
+        assertEquals(1, bound.getHeaders().size());
+        assertEquals("objects=10-19", bound.getHeaders().get(0).getValue());
+        //the template is untouched
+        assertEquals(field + "=a%20b&" + otherField + "%5Bgt%5D=1", prepared.getQueryString());
+        assertEquals("objects=0-9", prepared.getHeaders().get(0).getValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void preparedQueryUnknownParameter() {
+        new StackMobQuery(object).fieldIsEqualTo(field, value).prepare(otherField);
+    }
 }
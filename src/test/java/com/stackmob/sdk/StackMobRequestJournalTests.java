@@ -0,0 +1,216 @@
+/**
+ * Copyright 2011 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk;
+
+import com.stackmob.sdk.api.*;
+import com.stackmob.sdk.callback.StackMobNoopCallback;
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.concurrencyutils.CountDownLatchUtils;
+import com.stackmob.sdk.net.HttpVerb;
+import com.stackmob.sdk.net.HttpVerbWithPayload;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class StackMobRequestJournalTests {
+    private StackMobRedirectedCallback redirectedCallback = new StackMobRedirectedCallback() {
+        @Override
+        public void redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+            //do nothing
+        }
+    };
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private static class AwaitedRawCallback extends StackMobRawCallback {
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile int statusCode;
+
+        @Override
+        public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+            statusCode = responseStatusCode;
+            latch.countDown();
+        }
+    }
+
+    private static File newDirectory() throws IOException {
+        File directory = File.createTempFile("journal", "");
+        directory.delete();
+        return directory;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) file.delete();
+        }
+        directory.delete();
+    }
+
+    //a request is acked just after its callback runs
+    private static void awaitPending(StackMobRequestJournal journal, int pending) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(journal.getPendingCount() != pending && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(pending, journal.getPendingCount());
+    }
+
+    private static String contents(File directory) throws IOException {
+        StringBuilder contents = new StringBuilder();
+        for(File file : directory.listFiles()) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                byte[] bytes = new byte[(int) file.length()];
+                int read = 0;
+                while(read < bytes.length) read += in.read(bytes, read, bytes.length - read);
+                contents.append(new String(bytes, "ISO-8859-1"));
+            } finally {
+                in.close();
+            }
+        }
+        return contents.toString();
+    }
+
+    @Test public void testUndeliveredRequestsSurviveReopening() throws Exception {
+        File directory = File.createTempFile("journal", "");
+        directory.delete();
+        StackMobSession session = new StackMobSession("key", "secret", "user", 0);
+        StackMobRequestJournal journal = new StackMobRequestJournal(directory, 256, 1);
+        try {
+            StackMobRequest.setRequestJournal(journal);
+            for(int i = 0; i < 3; i++) {
+                //nothing listens on port 1, so delivery keeps failing and retrying
+                StackMobRequest request = new StackMobRequestWithPayload(executor, session, HttpVerbWithPayload.POST, "item", new StackMobNoopCallback(), redirectedCallback)
+                        .setUrlFormat("localhost:1");
+                assertEquals(StackMobRequestSendResult.RequestSendStatus.SENT, request.sendRequest().getStatus());
+            }
+            assertEquals(3, journal.getPendingCount());
+            journal.close();
+            assertEquals(StackMobRequestSendResult.RequestSendStatus.FAILED, new StackMobRequestWithPayload(executor, session, HttpVerbWithPayload.POST, "item", new StackMobNoopCallback(), redirectedCallback).sendRequest().getStatus());
+            StackMobRequest.setRequestJournal(null);
+
+            //a small segment size means every request went to its own segment
+            assertTrue(directory.listFiles().length > 1);
+            journal = new StackMobRequestJournal(directory, 256, 1);
+            assertEquals(3, journal.getPendingCount());
+            journal.close();
+        } finally {
+            StackMobRequest.setRequestJournal(null);
+            executor.shutdown();
+            for(File file : directory.listFiles()) file.delete();
+            directory.delete();
+        }
+    }
+
+    @Test public void testRequestsWithPasswordsAreNotJournaled() throws Exception {
+        File directory = newDirectory();
+        StackMobSession session = new StackMobSession("key", "secret", "user", 0);
+        StackMobRequestJournal journal = new StackMobRequestJournal(directory);
+        try {
+            StackMobRequest.setRequestJournal(journal);
+            Map<String, String> passwords = new HashMap<String, String>();
+            passwords.put("old", "hunter2");
+            passwords.put("new", "hunter3");
+            new StackMobUserBasedRequest(executor, session, HttpVerbWithPayload.POST, StackMobRequest.EmptyHeaders, StackMobRequest.EmptyParams, passwords, "resetPassword", new StackMobNoopCallback(), redirectedCallback)
+                    .setUrlFormat("localhost:1").sendRequest();
+            new StackMobRequestWithPayload(executor, session, HttpVerbWithPayload.POST, StackMobRequest.EmptyHeaders, StackMobRequest.EmptyParams, "{\"username\":\"bob\",\"password\":\"hunter2\"}", "user", new StackMobNoopCallback(), redirectedCallback)
+                    .setUrlFormat("localhost:1").sendRequest();
+            assertEquals(0, journal.getPendingCount());
+            new StackMobRequestWithPayload(executor, session, HttpVerbWithPayload.POST, StackMobRequest.EmptyHeaders, StackMobRequest.EmptyParams, "{\"name\":\"thing\"}", "item", new StackMobNoopCallback(), redirectedCallback)
+                    .setUrlFormat("localhost:1").sendRequest();
+            assertEquals(1, journal.getPendingCount());
+            journal.close();
+            assertFalse(contents(directory).contains("hunter"));
+        } finally {
+            StackMobRequest.setRequestJournal(null);
+            journal.close();
+            delete(directory);
+        }
+    }
+
+    @Test public void testJournaledRequestIsSentToItsPath() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new FakeStackMobServer.Handler() {
+            @Override
+            public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+                return new FakeStackMobServer.Response("{}");
+            }
+        });
+        File directory = newDirectory();
+        StackMobSession session = new StackMobSession("key", "secret", "user", 0);
+        StackMobRequestJournal journal = new StackMobRequestJournal(directory);
+        try {
+            StackMobRequest.setRequestJournal(journal);
+            AwaitedRawCallback callback = new AwaitedRawCallback();
+            new StackMobRequestWithPayload(executor, session, HttpVerbWithPayload.POST, StackMobRequest.EmptyHeaders, StackMobRequest.EmptyParams, "{\"name\":\"thing\"}", "item", callback, redirectedCallback)
+                    .setUrlFormat(server.getHost()).sendRequest();
+            assertTrue(CountDownLatchUtils.wasLatchFinished(callback.latch));
+            assertEquals(200, callback.statusCode);
+            assertEquals("/item", server.getRequests().get(0).path);
+            awaitPending(journal, 0);
+        } finally {
+            StackMobRequest.setRequestJournal(null);
+            journal.close();
+            server.stop();
+            delete(directory);
+        }
+    }
+
+    @Test public void testRequestThatKeepsFailingIsGivenUpOn() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new FakeStackMobServer.Handler() {
+            @Override
+            public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+                return request.path.equals("/broken") ? new FakeStackMobServer.Response(503, "{}") : new FakeStackMobServer.Response("{}");
+            }
+        });
+        File directory = newDirectory();
+        StackMobSession session = new StackMobSession("key", "secret", "user", 0);
+        StackMobRequestJournal journal = new StackMobRequestJournal(directory);
+        try {
+            journal.setMaxAttempts(2);
+            StackMobRequest.setRequestJournal(journal);
+            AwaitedRawCallback broken = new AwaitedRawCallback();
+            AwaitedRawCallback behind = new AwaitedRawCallback();
+            new StackMobRequestWithPayload(executor, session, HttpVerbWithPayload.POST, StackMobRequest.EmptyHeaders, StackMobRequest.EmptyParams, "{}", "broken", broken, redirectedCallback)
+                    .setUrlFormat(server.getHost()).sendRequest();
+            new StackMobRequestWithPayload(executor, session, HttpVerbWithPayload.POST, StackMobRequest.EmptyHeaders, StackMobRequest.EmptyParams, "{}", "item", behind, redirectedCallback)
+                    .setUrlFormat(server.getHost()).sendRequest();
+            assertTrue(CountDownLatchUtils.wasLatchFinished(broken.latch));
+            assertEquals(503, broken.statusCode);
+            //the request stuck ahead of it no longer holds it up
+            assertTrue(CountDownLatchUtils.wasLatchFinished(behind.latch));
+            assertEquals(200, behind.statusCode);
+            assertEquals(3, server.getRequests().size());
+            awaitPending(journal, 0);
+        } finally {
+            StackMobRequest.setRequestJournal(null);
+            journal.close();
+            server.stop();
+            delete(directory);
+        }
+    }
+}
@@ -26,7 +26,11 @@ import org.junit.Test;
 import static com.stackmob.sdk.concurrencyutils.CountDownLatchUtils.latchOne;
 import static org.junit.Assert.*;
 import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.util.Pair;
 import com.stackmob.sdk.exception.StackMobException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
@@ -189,4 +193,14 @@ public class StackMobRequestTests extends StackMobTestCommon {
         assertEquals(sendResult.getStatus(), StackMobRequestSendResult.RequestSendStatus.SENT);
         assertNull(sendResult.getFailureReason());
     }
-}
\ No newline at end of file
+
+    @Test public void testTotalFromContentRange() {
+        List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+        headers.add(new Pair<String, String>("Content-Length", "12"));
+        assertEquals(-1, StackMobRawCallback.getTotalNumberOfItemsFromContentRange(headers).intValue());
+        headers.add(new Pair<String, String>("Content-Range", "objects 0-9/1234"));
+        assertEquals(1234, StackMobRawCallback.getTotalNumberOfItemsFromContentRange(headers).intValue());
+        headers.set(1, new Pair<String, String>("Content-Range", "objects 0-9/*"));
+        assertEquals(-2, StackMobRawCallback.getTotalNumberOfItemsFromContentRange(headers).intValue());
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.concurrencyutils;
+
+import com.stackmob.sdk.callback.StackMobBulkCallback;
+import com.stackmob.sdk.exception.StackMobBulkException;
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A bulk callback a test can wait on and then look at
+ */
+public class AwaitedBulkCallback extends StackMobBulkCallback {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile List<String> succeeded = Collections.emptyList();
+    private volatile StackMobException failure;
+
+    @Override
+    public void success(List<String> ids) {
+        succeeded = ids;
+        latch.countDown();
+    }
+
+    @Override
+    public void failure(StackMobException e) {
+        failure = e;
+        if(e instanceof StackMobBulkException) {
+            succeeded = ((StackMobBulkException) e).getSucceeded();
+        }
+        latch.countDown();
+    }
+
+    public AwaitedBulkCallback await() throws InterruptedException {
+        assertTrue("bulk callback wasn't called", CountDownLatchUtils.wasLatchFinished(latch));
+        return this;
+    }
+
+    public List<String> getSucceeded() {
+        return succeeded;
+    }
+
+    public StackMobException getFailure() {
+        return failure;
+    }
+
+    public Map<String, StackMobException> getFailures() {
+        if(failure instanceof StackMobBulkException) return ((StackMobBulkException) failure).getFailures();
+        return Collections.emptyMap();
+    }
+}
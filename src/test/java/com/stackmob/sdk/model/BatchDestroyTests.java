@@ -0,0 +1,58 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.concurrencyutils.AwaitedBulkCallback;
+import com.stackmob.sdk.testobjects.Apple;
+import com.stackmob.sdk.testobjects.Pear;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class BatchDestroyTests {
+
+    @Test public void testSameIDInTwoSchemas() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(FakeStackMobServer.failingUnder("/pear"));
+        try {
+            AwaitedBulkCallback callback = new AwaitedBulkCallback();
+            StackMobModel.destroyAll(Arrays.asList(new Apple("a"), new Pear("a"), new Apple("a")), callback);
+            callback.await();
+            assertEquals(Arrays.asList("apple/a"), callback.getSucceeded());
+            assertEquals(new HashSet<String>(Arrays.asList("pear/a")), callback.getFailures().keySet());
+            assertEquals(2, server.getRequests().size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testRepeatedIDsDeletedFromOnce() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(FakeStackMobServer.ACCEPT_ALL);
+        try {
+            AwaitedBulkCallback callback = new AwaitedBulkCallback();
+            StackMob.getStackMob().deleteIdsFrom("apple", "p", "seeds", Arrays.asList("1", "2", "1"), false, 2, callback);
+            callback.await();
+            assertNull(callback.getFailure());
+            assertEquals(Arrays.asList("1", "2"), callback.getSucceeded());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.callback.StackMobStreamCallback;
+import com.stackmob.sdk.concurrencyutils.CountDownLatchUtils;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.Pair;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ClientJoinTests {
+
+    private static final String[] COLORS = {"red", "green", "blue"};
+
+    private static class Fruit extends StackMobModel {
+        private String color;
+
+        public Fruit() {
+            super(Fruit.class);
+        }
+    }
+
+    private static class Paint extends StackMobModel {
+        private String color;
+
+        public Paint() {
+            super(Paint.class);
+        }
+    }
+
+    @Test public void testJoinLeavesNoWindowsScheduled() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new FakeStackMobServer.Handler() {
+            @Override
+            public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+                JsonArray page = new JsonArray();
+                if(request.path.startsWith("/fruit")) {
+                    int[] range = request.getRange();
+                    for(int i = range[0]; i <= range[1] && i < 25; i++) {
+                        JsonObject fruit = new JsonObject();
+                        fruit.addProperty("fruit_id", String.format("f%02d", i));
+                        fruit.addProperty("color", COLORS[i % COLORS.length]);
+                        page.add(fruit);
+                    }
+                } else {
+                    for(String color : request.getParam("color[in]").split(",")) {
+                        JsonObject paint = new JsonObject();
+                        paint.addProperty("paint_id", color);
+                        paint.addProperty("color", color);
+                        page.add(paint);
+                    }
+                }
+                return new FakeStackMobServer.Response(page.toString());
+            }
+        });
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final List<Pair<Fruit, Paint>> pairs = new ArrayList<Pair<Fruit, Paint>>();
+            final AtomicReference<StackMobException> failure = new AtomicReference<StackMobException>();
+            new StackMobModelQuery<Fruit>(Fruit.class).join("color", Paint.class, "color", 10, new StackMobStreamCallback<Pair<Fruit, Paint>>() {
+                @Override
+                public void results(List<Pair<Fruit, Paint>> results) {
+                    pairs.addAll(results);
+                }
+
+                @Override
+                public void success() {
+                    latch.countDown();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    failure.set(e);
+                    latch.countDown();
+                }
+            });
+            assertTrue(CountDownLatchUtils.wasLatchFinished(latch));
+            assertNull(failure.get());
+            assertEquals(25, pairs.size());
+            for(Pair<Fruit, Paint> pair : pairs) {
+                assertEquals(pair.getKey().color, pair.getValue().color);
+            }
+            //each batch's loader was flushed by hand, so none of their windows are still waiting
+            assertEquals(0, StackMobBatchLoader.getScheduledWindowCount());
+        } finally {
+            server.stop();
+        }
+    }
+}
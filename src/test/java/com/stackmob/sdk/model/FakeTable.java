@@ -0,0 +1,80 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.stackmob.sdk.FakeStackMobServer;
+
+import java.util.*;
+
+/**
+ * One schema on a fake server, answering the lastmoddate queries that syncs and watchers send: an optional
+ * lastmoddate[gte], ordered by lastmoddate and then id, and a Range. objects come back with their createddate and
+ * lastmoddate like the platform's do
+ */
+class FakeTable implements FakeStackMobServer.Handler {
+    private final String idField;
+    private final Map<String, JsonObject> objects = new HashMap<String, JsonObject>();
+
+    FakeTable(String idField) {
+        this.idField = idField;
+    }
+
+    /**
+     * create an object, or modify it if it's already there
+     */
+    synchronized void put(String id, String name, long modified) {
+        JsonObject object = objects.get(id);
+        if(object == null) {
+            object = new JsonObject();
+            object.addProperty(idField, id);
+            object.addProperty("createddate", modified);
+            objects.put(id, object);
+        }
+        object.addProperty("name", name);
+        object.addProperty("lastmoddate", modified);
+    }
+
+    synchronized void remove(String id) {
+        objects.remove(id);
+    }
+
+    @Override
+    public synchronized FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+        String since = request.getParam("lastmoddate[gte]");
+        List<JsonObject> matching = new ArrayList<JsonObject>();
+        for(JsonObject object : objects.values()) {
+            if(since == null || object.get("lastmoddate").getAsLong() >= Long.parseLong(since)) matching.add(object);
+        }
+        String orderBy = request.getHeader("X-StackMob-OrderBy");
+        final boolean descending = orderBy != null && orderBy.startsWith("lastmoddate:desc");
+        Collections.sort(matching, new Comparator<JsonObject>() {
+            @Override
+            public int compare(JsonObject a, JsonObject b) {
+                int byModified = Long.valueOf(a.get("lastmoddate").getAsLong()).compareTo(b.get("lastmoddate").getAsLong());
+                if(byModified == 0) return a.get(idField).getAsString().compareTo(b.get(idField).getAsString());
+                return descending ? -byModified : byModified;
+            }
+        });
+        int[] range = request.getRange();
+        JsonArray page = new JsonArray();
+        for(int i = range == null ? 0 : range[0]; i < matching.size() && (range == null || i <= range[1]); i++) {
+            page.add(matching.get(i));
+        }
+        return new FakeStackMobServer.Response(page.toString());
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobScanCallback;
+import com.stackmob.sdk.concurrencyutils.CountDownLatchUtils;
+import com.stackmob.sdk.exception.StackMobException;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class ParallelScanTests {
+
+    private static class Thing extends StackMobModel {
+        private String name;
+
+        public Thing() {
+            super(Thing.class);
+        }
+    }
+
+    private static String id(int i) {
+        return String.format("%02d", i);
+    }
+
+    private static String things(int start, int end) {
+        JsonArray page = new JsonArray();
+        for(int i = start; i < end; i++) {
+            JsonObject thing = new JsonObject();
+            thing.addProperty("thing_id", id(i));
+            page.add(thing);
+        }
+        return page.toString();
+    }
+
+    /**
+     * records what a scan delivers, in the order it's delivered
+     */
+    private static class Recorder extends StackMobScanCallback<Thing> {
+        final List<Integer> starts = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+        final Set<Integer> partitions = Collections.synchronizedSet(new HashSet<Integer>());
+        final CountDownLatch done = CountDownLatchUtils.latchOne();
+        volatile int total = -1;
+        volatile StackMobException failure;
+
+        @Override
+        public void page(int partition, int start, List<Thing> objects) {
+            partitions.add(partition);
+            starts.add(start);
+            for(Thing thing : objects) ids.add(thing.getID());
+        }
+
+        @Override
+        public void success(int total) {
+            this.total = total;
+            done.countDown();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            failure = e;
+            done.countDown();
+        }
+    }
+
+    /**
+     * serves things 00 to size-1 by Range with a Content-Range total, and fails the page starting at failAt
+     */
+    private static class Numbered implements FakeStackMobServer.Handler {
+        private final int size;
+        private final int failAt;
+
+        Numbered(int size, int failAt) {
+            this.size = size;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+            int[] range = request.getRange();
+            if(range[0] == failAt) {
+                return new FakeStackMobServer.Response(500, "{\"error\":\"page failed\"}");
+            }
+            int end = Math.min(size, range[1] + 1);
+            return new FakeStackMobServer.Response(things(range[0], end))
+                    .withHeader("Content-Range", "objects " + range[0] + "-" + (end - 1) + "/" + size);
+        }
+    }
+
+    @Test public void testInOrderHoldsPagesUntilTheEarlierOnesArrive() throws Exception {
+        Recorder recorder = new Recorder();
+        //10 objects in partitions [0, 5) and [5, 10), 3 to a page
+        ParallelScan<Thing> scan = new ParallelScan<Thing>(new StackMobModelQuery<Thing>(Thing.class), 2, 3, true, recorder);
+        scan.counted(10);
+        scan.page(1, 5, 8, things(5, 8));
+        scan.page(0, 3, 5, things(3, 5));
+        assertTrue(recorder.starts.isEmpty());
+        scan.page(1, 8, 10, things(8, 10));
+        scan.page(0, 0, 3, things(0, 3));
+        assertEquals(Arrays.asList(0, 3, 5, 8), recorder.starts);
+        assertEquals(Arrays.asList(id(0), id(1), id(2), id(3), id(4), id(5), id(6), id(7), id(8), id(9)), recorder.ids);
+    }
+
+    @Test public void testOutOfOrderDeliversPagesAsTheyArrive() throws Exception {
+        Recorder recorder = new Recorder();
+        ParallelScan<Thing> scan = new ParallelScan<Thing>(new StackMobModelQuery<Thing>(Thing.class), 2, 3, false, recorder);
+        scan.counted(10);
+        scan.page(1, 5, 8, things(5, 8));
+        scan.page(0, 3, 5, things(3, 5));
+        assertEquals(Arrays.asList(5, 3), recorder.starts);
+        assertEquals(new HashSet<Integer>(Arrays.asList(0, 1)), recorder.partitions);
+    }
+
+    @Test public void testScanReadsEveryPartition() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new Numbered(23, -1));
+        try {
+            Recorder recorder = new Recorder();
+            new ParallelScan<Thing>(new StackMobModelQuery<Thing>(Thing.class), 3, 4, true, recorder).send(2);
+            assertTrue(CountDownLatchUtils.wasLatchFinished(recorder.done));
+            assertNull(recorder.failure);
+            assertEquals(23, recorder.total);
+            List<String> expected = new ArrayList<String>();
+            for(int i = 0; i < 23; i++) expected.add(id(i));
+            assertEquals(expected, recorder.ids);
+            assertEquals(new HashSet<Integer>(Arrays.asList(0, 1, 2)), recorder.partitions);
+            //partitions of 8, 8 and 7 read 4 at a time, after the count
+            List<FakeStackMobServer.Request> requests = server.getRequests();
+            assertEquals(1 + 2 + 2 + 2, requests.size());
+            for(FakeStackMobServer.Request request : requests) {
+                //ranges only line up across requests over an ordered result
+                assertEquals("thing_id:asc", request.getHeader(StackMobQuery.OrderByHeader));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testFailedPageFailsTheScan() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new Numbered(23, 12));
+        try {
+            Recorder recorder = new Recorder();
+            new ParallelScan<Thing>(new StackMobModelQuery<Thing>(Thing.class), 3, 4, true, recorder).send(3);
+            assertTrue(CountDownLatchUtils.wasLatchFinished(recorder.done));
+            assertNotNull(recorder.failure);
+            assertEquals(-1, recorder.total);
+            //in order, nothing past the failed page is delivered
+            for(int start : recorder.starts) assertTrue(start < 12);
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.concurrencyutils.CountDownLatchUtils;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.testobjects.Apple;
+import com.stackmob.sdk.testobjects.Pear;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SaveCoalescerTests {
+
+    private static class Result extends StackMobCallback {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> body = new AtomicReference<String>();
+        final AtomicReference<StackMobException> failure = new AtomicReference<StackMobException>();
+
+        @Override
+        public void success(String responseBody) {
+            body.set(responseBody);
+            latch.countDown();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            failure.set(e);
+            latch.countDown();
+        }
+    }
+
+    @Test public void testCallbacksGetServerJsonAndTheirOwnFailures() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new FakeStackMobServer.Handler() {
+            @Override
+            public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+                if(request.path.startsWith("/pear")) return new FakeStackMobServer.Response(500, "{\"error\":\"no\"}");
+                JsonArray created = new JsonParser().parse(request.body).getAsJsonArray();
+                for(JsonElement object : created) {
+                    object.getAsJsonObject().addProperty("createddate", 1234L);
+                    object.getAsJsonObject().addProperty("lastmoddate", 1234L);
+                }
+                return new FakeStackMobServer.Response(created.toString());
+            }
+        });
+        SaveCoalescer coalescer = new SaveCoalescer(60 * 1000, 100);
+        try {
+            Result apple = new Result();
+            Result pear = new Result();
+            coalescer.save(new Apple("a"), 0, apple);
+            coalescer.save(new Pear("a"), 0, pear);
+            coalescer.flush();
+            assertTrue(CountDownLatchUtils.wasLatchFinished(apple.latch));
+            assertTrue(CountDownLatchUtils.wasLatchFinished(pear.latch));
+            assertNull(apple.failure.get());
+            assertEquals(1234L, new JsonParser().parse(apple.body.get()).getAsJsonObject().get("createddate").getAsLong());
+            assertNotNull(pear.failure.get());
+        } finally {
+            coalescer.shutdown();
+            server.stop();
+        }
+    }
+
+    @Test public void testSavesOfOneObjectGoOutOneAtATime() throws Exception {
+        final CountDownLatch firstArrived = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger mostConcurrent = new AtomicInteger();
+        FakeStackMobServer server = new FakeStackMobServer(new FakeStackMobServer.Handler() {
+            @Override
+            public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+                mostConcurrent.set(Math.max(mostConcurrent.get(), concurrent.incrementAndGet()));
+                firstArrived.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                concurrent.decrementAndGet();
+                return new FakeStackMobServer.Response(request.body);
+            }
+        });
+        SaveCoalescer coalescer = new SaveCoalescer(10, 100);
+        try {
+            Result first = new Result();
+            Result second = new Result();
+            Result third = new Result();
+            coalescer.save(new Apple("a"), 0, first);
+            assertTrue(CountDownLatchUtils.wasLatchFinished(firstArrived));
+            //both come due while the first save is out, so they wait and go out together after it
+            coalescer.save(new Apple("a"), 0, second);
+            coalescer.flush();
+            coalescer.save(new Apple("a"), 0, third);
+            Thread.sleep(100);
+            assertEquals(1, server.getRequests().size());
+            release.countDown();
+            assertTrue(CountDownLatchUtils.wasLatchFinished(first.latch));
+            assertTrue(CountDownLatchUtils.wasLatchFinished(second.latch));
+            assertTrue(CountDownLatchUtils.wasLatchFinished(third.latch));
+            assertEquals(2, server.getRequests().size());
+            assertEquals(1, mostConcurrent.get());
+        } finally {
+            release.countDown();
+            coalescer.shutdown();
+            server.stop();
+        }
+    }
+
+    @Test public void testFlushCancelsTimers() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(FakeStackMobServer.ACCEPT_ALL);
+        SaveCoalescer coalescer = new SaveCoalescer(60 * 1000, 100);
+        try {
+            Result apple = new Result();
+            coalescer.save(new Apple("a"), 0, apple);
+            coalescer.save(new Apple("b"), 0, new Result());
+            assertEquals(2, coalescer.getScheduledCount());
+            coalescer.flush();
+            assertEquals(0, coalescer.getScheduledCount());
+            assertTrue(CountDownLatchUtils.wasLatchFinished(apple.latch));
+        } finally {
+            coalescer.shutdown();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.callback.StackMobAggregationCallback;
+import com.stackmob.sdk.concurrencyutils.CountDownLatchUtils;
+import com.stackmob.sdk.exception.StackMobException;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobAggregationTests {
+
+    @Test public void testFoldAndMerge() throws Exception {
+        StackMobAggregation agg = new StackMobAggregation("price").groupBy("category");
+        StackMobAggregationResult first = agg.newResult();
+        StackMobAggregationResult second = agg.newResult();
+        assertEquals(2, agg.fold("[{\"price\":2,\"category\":\"a\",\"tags\":[1,{\"x\":2}]},{\"price\":4.5,\"category\":\"b\"}]", first));
+        assertEquals(2, agg.fold("[{\"price\":6,\"category\":\"a\"},{\"category\":\"a\",\"price\":\"n/a\"}]", second));
+        first.merge(second);
+
+        assertEquals(4, first.getCount());
+        assertEquals(3, first.getCount("a"));
+        assertEquals(8.0, first.getSum("a", "price"), 0.0);
+        assertEquals(4.0, first.getAverage("a", "price"), 0.0);
+        assertEquals(2.0, first.getMin("price"), 0.0);
+        assertEquals(6.0, first.getMax("price"), 0.0);
+        assertEquals(12.5, first.getSum("price"), 0.0);
+        assertTrue(Double.isNaN(first.getSum("missing", "price")));
+    }
+
+    @Test public void testEmptyPage() throws Exception {
+        StackMobAggregation agg = new StackMobAggregation();
+        StackMobAggregationResult result = agg.newResult();
+        assertEquals(0, agg.fold("[]", result));
+        assertEquals(0, result.getCount());
+    }
+
+    private static class Item extends StackMobModel {
+        private int price;
+
+        public Item() {
+            super(Item.class);
+        }
+    }
+
+    @Test public void testAggregateOverPartitions() throws Exception {
+        final int total = 95;
+        FakeStackMobServer server = new FakeStackMobServer(new FakeStackMobServer.Handler() {
+            @Override
+            public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+                int[] range = request.getRange();
+                JsonArray page = new JsonArray();
+                for(int i = range[0]; i <= range[1] && i < total; i++) {
+                    JsonObject item = new JsonObject();
+                    item.addProperty("item_id", String.format("i%03d", i));
+                    item.addProperty("price", i);
+                    page.add(item);
+                }
+                return new FakeStackMobServer.Response(page.toString()).withHeader("Content-Range", "objects " + range[0] + "-" + range[1] + "/" + total);
+            }
+        });
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicReference<StackMobAggregationResult> result = new AtomicReference<StackMobAggregationResult>();
+            new StackMobModelQuery<Item>(Item.class).aggregate(new StackMobAggregation("price"), 3, 10, 2, new StackMobAggregationCallback() {
+                @Override
+                public void success(StackMobAggregationResult aggregated) {
+                    result.set(aggregated);
+                    latch.countDown();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    latch.countDown();
+                }
+            });
+            assertTrue(CountDownLatchUtils.wasLatchFinished(latch));
+            assertNotNull(result.get());
+            assertEquals(total, result.get().getCount());
+            assertEquals(total * (total - 1) / 2, result.get().getSum("price"), 0.0);
+            assertEquals(94.0, result.get().getMax("price"), 0.0);
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.concurrencyutils.CountDownLatchUtils;
+import com.stackmob.sdk.exception.StackMobException;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class StackMobBatchLoaderTests {
+
+    private static class Fruit extends StackMobModel {
+        private String color;
+
+        public Fruit() {
+            super(Fruit.class);
+        }
+    }
+
+    /**
+     * a server with a number of fruit of each color, and no limit on how many it sends back at once besides the Range
+     */
+    static FakeStackMobServer.Handler fruitByColor(final int perColor) {
+        return new FakeStackMobServer.Handler() {
+            @Override
+            public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+                JsonArray all = new JsonArray();
+                for(String color : request.getParam("color[in]").split(",")) {
+                    for(int i = 0; i < perColor; i++) {
+                        JsonObject fruit = new JsonObject();
+                        fruit.addProperty("fruit_id", String.format("%s%05d", color, i));
+                        fruit.addProperty("color", color);
+                        all.add(fruit);
+                    }
+                }
+                int[] range = request.getRange();
+                JsonArray page = new JsonArray();
+                for(int i = range[0]; i <= range[1] && i < all.size(); i++) {
+                    page.add(all.get(i));
+                }
+                return new FakeStackMobServer.Response(page.toString());
+            }
+        };
+    }
+
+    private static class Collector extends StackMobQueryCallback<Fruit> {
+        final CountDownLatch latch;
+        final ConcurrentHashMap<String, Integer> counts;
+        final String key;
+        final boolean blowUp;
+
+        Collector(String key, CountDownLatch latch, ConcurrentHashMap<String, Integer> counts, boolean blowUp) {
+            this.key = key;
+            this.latch = latch;
+            this.counts = counts;
+            this.blowUp = blowUp;
+        }
+
+        @Override
+        public void success(List<Fruit> result) {
+            counts.put(key, result.size());
+            latch.countDown();
+            if(blowUp) throw new IllegalStateException("broken callback");
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            latch.countDown();
+        }
+    }
+
+    @Test public void testNonIDLookupsArePaged() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(fruitByColor(StackMobBatchLoader.PAGE_SIZE + 50));
+        try {
+            StackMobBatchLoader<Fruit> loader = new StackMobBatchLoader<Fruit>(Fruit.class, "color", 1000, 10);
+            CountDownLatch latch = new CountDownLatch(2);
+            ConcurrentHashMap<String, Integer> counts = new ConcurrentHashMap<String, Integer>();
+            loader.load("red", new Collector("red", latch, counts, false));
+            loader.load("green", new Collector("green", latch, counts, false));
+            loader.flush();
+            assertTrue(CountDownLatchUtils.wasLatchFinished(latch));
+            assertEquals(StackMobBatchLoader.PAGE_SIZE + 50, (int) counts.get("red"));
+            assertEquals(StackMobBatchLoader.PAGE_SIZE + 50, (int) counts.get("green"));
+            assertEquals(3, server.getRequests().size());
+            assertNotNull(server.getRequests().get(0).getHeader("X-StackMob-OrderBy"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testThrowingCallbackDoesNotStopTheRest() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(fruitByColor(1));
+        try {
+            StackMobBatchLoader<Fruit> loader = new StackMobBatchLoader<Fruit>(Fruit.class, "color", 1000, 10);
+            CountDownLatch latch = new CountDownLatch(3);
+            ConcurrentHashMap<String, Integer> counts = new ConcurrentHashMap<String, Integer>();
+            loader.load("red", new Collector("red", latch, counts, true));
+            loader.load("red", new Collector("red again", latch, counts, false));
+            loader.load("green", new Collector("green", latch, counts, false));
+            loader.flush();
+            assertTrue(CountDownLatchUtils.wasLatchFinished(latch));
+            assertEquals(1, (int) counts.get("red again"));
+            assertEquals(1, (int) counts.get("green"));
+        } finally {
+            server.stop();
+        }
+    }
+}
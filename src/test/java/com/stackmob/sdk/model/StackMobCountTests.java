@@ -0,0 +1,111 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobCountCallback;
+import com.stackmob.sdk.concurrencyutils.CountDownLatchUtils;
+import com.stackmob.sdk.exception.StackMobException;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobCountTests {
+
+    private static class Thing extends StackMobModel {
+        private String name;
+
+        public Thing() {
+            super(Thing.class);
+        }
+    }
+
+    private static class Answer implements FakeStackMobServer.Handler {
+        private final String body;
+        private final String contentRange;
+
+        Answer(String body, String contentRange) {
+            this.body = body;
+            this.contentRange = contentRange;
+        }
+
+        @Override
+        public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+            FakeStackMobServer.Response response = new FakeStackMobServer.Response(body);
+            if(contentRange != null) response.withHeader("Content-Range", contentRange);
+            return response;
+        }
+    }
+
+    /**
+     * @return the count of things named a, or the failure
+     */
+    private static Object countNamedA() throws Exception {
+        final AtomicReference<Object> outcome = new AtomicReference<Object>();
+        final CountDownLatch latch = CountDownLatchUtils.latchOne();
+        new StackMobModelQuery<Thing>(Thing.class).field(new StackMobField("name").isEqualTo("a")).count(new StackMobCountCallback() {
+            @Override
+            public void success(int count) {
+                outcome.set(count);
+                latch.countDown();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                outcome.set(e);
+                latch.countDown();
+            }
+        });
+        assertTrue(CountDownLatchUtils.wasLatchFinished(latch));
+        return outcome.get();
+    }
+
+    @Test public void testCountComesFromContentRange() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new Answer("[{\"thing_id\":\"a\"}]", "objects 0-0/123"));
+        try {
+            assertEquals(123, countNamedA());
+            //only the first id is asked for, with the query's conditions
+            FakeStackMobServer.Request request = server.getRequests().get(0);
+            assertArrayEquals(new int[] {0, 0}, request.getRange());
+            assertEquals("thing_id", request.getHeader(StackMobQuery.SelectHeader));
+            assertEquals("a", request.getParam("name"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testNothingMatchedCountsZero() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new Answer("[]", null));
+        try {
+            assertEquals(0, countNamedA());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testMissingTotalFails() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new Answer("[{\"thing_id\":\"a\"}]", null));
+        try {
+            assertTrue(countNamedA() instanceof StackMobException);
+        } finally {
+            server.stop();
+        }
+    }
+}
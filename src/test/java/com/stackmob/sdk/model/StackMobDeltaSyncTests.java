@@ -0,0 +1,125 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.callback.StackMobSyncCallback;
+import com.stackmob.sdk.concurrencyutils.CountDownLatchUtils;
+import com.stackmob.sdk.exception.StackMobException;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class StackMobDeltaSyncTests {
+
+    private static class Task extends StackMobModel {
+        private String name;
+
+        public Task() {
+            super(Task.class);
+        }
+    }
+
+    private static class AwaitedSync extends StackMobSyncCallback {
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile Set<String> changed;
+        volatile StackMobException failure;
+
+        @Override
+        public void success(Set<String> changedIDs, Set<String> deletedIDs) {
+            changed = changedIDs;
+            latch.countDown();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            failure = e;
+            latch.countDown();
+        }
+    }
+
+    private static Set<String> sync(StackMobDeltaSync<Task> sync) throws InterruptedException {
+        AwaitedSync callback = new AwaitedSync();
+        sync.sync(callback);
+        assertTrue("sync didn't finish", CountDownLatchUtils.wasLatchFinished(callback.latch));
+        assertNull(callback.failure);
+        return callback.changed;
+    }
+
+    private static StackMobDeltaSync<Task> newSync(StackMobLocalStore<Task> replica, int pageSize) {
+        return new StackMobDeltaSync<Task>(new StackMobModelQuery<Task>(Task.class), replica).pageSize(pageSize).reconcileEvery(0);
+    }
+
+    @Test public void testReModifiedTieIsNotLost() throws Exception {
+        FakeTable table = new FakeTable("task_id");
+        table.put("a", "one", 100);
+        table.put("b", "two", 100);
+        table.put("c", "three", 100);
+        FakeStackMobServer server = new FakeStackMobServer(table);
+        try {
+            StackMobLocalStore<Task> replica = new StackMobLocalStore<Task>(Task.class);
+            StackMobDeltaSync<Task> sync = newSync(replica, 10);
+            assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c")), sync(sync));
+            //a leaves the tie at 100, so only two objects are still there to be skipped
+            table.put("a", "one again", 200);
+            assertEquals(Collections.singleton("a"), sync(sync));
+            assertEquals("one again", replica.get("a").name);
+            assertEquals("200", sync.getHighWaterMark());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testDeletedTieDoesNotHideChanges() throws Exception {
+        FakeTable table = new FakeTable("task_id");
+        table.put("a", "one", 100);
+        table.put("b", "two", 100);
+        FakeStackMobServer server = new FakeStackMobServer(table);
+        try {
+            StackMobLocalStore<Task> replica = new StackMobLocalStore<Task>(Task.class);
+            StackMobDeltaSync<Task> sync = newSync(replica, 10);
+            sync(sync);
+            table.remove("b");
+            table.put("c", "three", 150);
+            assertEquals(Collections.singleton("c"), sync(sync));
+            assertNotNull(replica.get("c"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testMoreTiesThanAPage() throws Exception {
+        FakeTable table = new FakeTable("task_id");
+        for(int i = 0; i < 5; i++) {
+            table.put("t" + i, "tied", 100);
+        }
+        table.put("u", "later", 200);
+        FakeStackMobServer server = new FakeStackMobServer(table);
+        try {
+            StackMobLocalStore<Task> replica = new StackMobLocalStore<Task>(Task.class);
+            StackMobDeltaSync<Task> sync = newSync(replica, 2);
+            assertEquals(6, sync(sync).size());
+            table.put("t3", "modified", 300);
+            assertEquals(Collections.singleton("t3"), sync(sync));
+            assertTrue(sync(sync).isEmpty());
+        } finally {
+            server.stop();
+        }
+    }
+}
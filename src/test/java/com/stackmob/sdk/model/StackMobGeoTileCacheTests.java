@@ -0,0 +1,126 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.concurrencyutils.CountDownLatchUtils;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.GeoPoint;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class StackMobGeoTileCacheTests {
+
+    private static class Shop extends StackMobModel {
+        private GeoPoint location;
+
+        public Shop() {
+            super(Shop.class);
+        }
+    }
+
+    private static class Collector extends StackMobQueryCallback<Shop> {
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile List<Shop> result;
+        volatile StackMobException failure;
+
+        @Override
+        public void success(List<Shop> result) {
+            this.result = result;
+            latch.countDown();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            this.failure = e;
+            latch.countDown();
+        }
+
+        Collector await() throws InterruptedException {
+            assertTrue("callback wasn't called", CountDownLatchUtils.wasLatchFinished(latch));
+            return this;
+        }
+    }
+
+    /**
+     * a server with a number of shops all in one spot, and no limit on how many it sends back at once besides the Range
+     */
+    private static FakeStackMobServer.Handler shopsAt(final double lat, final double lon, final int count) {
+        return new FakeStackMobServer.Handler() {
+            @Override
+            public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+                int[] range = request.getRange();
+                JsonArray page = new JsonArray();
+                for(int i = range[0]; i <= range[1] && i < count; i++) {
+                    JsonObject location = new JsonObject();
+                    location.addProperty("lat", lat);
+                    location.addProperty("lon", lon);
+                    JsonObject shop = new JsonObject();
+                    shop.addProperty("shop_id", String.format("shop%05d", i));
+                    shop.add("location", location);
+                    page.add(shop);
+                }
+                return new FakeStackMobServer.Response(page.toString());
+            }
+        };
+    }
+
+    @Test public void testCrowdedTileIsPaged() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(shopsAt(0.01, 0.01, 450));
+        try {
+            StackMobGeoTileCache<Shop> shops = new StackMobGeoTileCache<Shop>(new StackMobModelQuery<Shop>(Shop.class), "location", 0.05, 60000).pageSize(200);
+            Collector first = new Collector();
+            shops.getWithinBox(new GeoPoint(0.0, 0.0), new GeoPoint(0.04, 0.04), first);
+            assertNull(first.await().failure);
+            assertEquals(450, first.result.size());
+            assertEquals(3, server.getRequests().size());
+            assertNotNull(server.getRequests().get(0).getHeader("X-StackMob-OrderBy"));
+            assertEquals(400, server.getRequests().get(2).getRange()[0]);
+            //the whole tile was cached, not just its first page
+            Collector second = new Collector();
+            shops.getWithinBox(new GeoPoint(0.0, 0.0), new GeoPoint(0.04, 0.04), second);
+            assertEquals(450, second.await().result.size());
+            assertEquals(3, server.getRequests().size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testBoxOverTileLimitFails() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(shopsAt(0.01, 0.01, 1));
+        try {
+            StackMobGeoTileCache<Shop> shops = new StackMobGeoTileCache<Shop>(new StackMobModelQuery<Shop>(Shop.class), "location", 0.05, 60000).maxTilesPerBox(4);
+            Collector tooBig = new Collector();
+            shops.getWithinBox(new GeoPoint(0.0, 0.0), new GeoPoint(0.5, 0.5), tooBig);
+            assertNotNull(tooBig.await().failure);
+            assertEquals(0, server.getRequests().size());
+            assertEquals(0, shops.getTileCount());
+            Collector fits = new Collector();
+            shops.getWithinBox(new GeoPoint(0.0, 0.0), new GeoPoint(0.09, 0.09), fits);
+            assertEquals(1, fits.await().result.size());
+            assertEquals(4, server.getRequests().size());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.FakeStackMobServer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StackMobKeysetCursorTests {
+
+    private static class Thing extends StackMobModel {
+        private String name;
+
+        public Thing() {
+            super(Thing.class);
+        }
+    }
+
+    private static List<String> ids(List<Thing> things) {
+        List<String> ids = new ArrayList<String>();
+        for(Thing thing : things) ids.add(thing.getID());
+        return ids;
+    }
+
+    @Test public void testDeletedTieDoesntSkipTheNextObject() throws Exception {
+        FakeTable table = new FakeTable("thing_id");
+        table.put("a", "a", 1);
+        table.put("b", "b", 1);
+        table.put("c", "c", 1);
+        table.put("d", "d", 2);
+        table.put("e", "e", 3);
+        FakeStackMobServer server = new FakeStackMobServer(table);
+        try {
+            StackMobKeysetCursor<Thing> cursor = new StackMobModelQuery<Thing>(Thing.class).keysetCursor("lastmoddate", 2);
+            List<String> seen = new ArrayList<String>(ids(cursor.nextPage()));
+            assertEquals(Arrays.asList("a", "b"), seen);
+            //skipping the two objects at the last key by count would now skip c
+            table.remove("a");
+            while(cursor.hasNextPage()) seen.addAll(ids(cursor.nextPage()));
+            assertEquals(Arrays.asList("a", "b", "c", "d", "e"), seen);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testPagesThroughMoreTiesThanFitOnAPage() throws Exception {
+        FakeTable table = new FakeTable("thing_id");
+        for(String id : Arrays.asList("a", "b", "c", "d", "e")) table.put(id, id, 1);
+        FakeStackMobServer server = new FakeStackMobServer(table);
+        try {
+            StackMobKeysetCursor<Thing> cursor = new StackMobModelQuery<Thing>(Thing.class).keysetCursor("lastmoddate", 2);
+            List<String> seen = new ArrayList<String>();
+            int pages = 0;
+            while(cursor.hasNextPage()) {
+                seen.addAll(ids(cursor.nextPage()));
+                assertTrue(++pages <= 3);
+            }
+            assertEquals(Arrays.asList("a", "b", "c", "d", "e"), seen);
+            //every later page starts at the last key instead of past it
+            for(FakeStackMobServer.Request request : server.getRequests().subList(1, server.getRequests().size())) {
+                assertEquals("1", request.getParam("lastmoddate[gte]"));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
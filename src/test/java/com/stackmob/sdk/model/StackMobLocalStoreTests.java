@@ -0,0 +1,191 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.concurrencyutils.CountDownLatchUtils;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.util.GeoPoint;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobLocalStoreTests {
+
+    private static class Item extends StackMobModel {
+        private String color;
+        private int size;
+
+        public Item() {
+            super(Item.class);
+        }
+
+        public Item(String id, String color, int size) {
+            this();
+            setID(id);
+            this.color = color;
+            this.size = size;
+        }
+    }
+
+    private static class Place extends StackMobModel {
+        private GeoPoint location;
+
+        public Place() {
+            super(Place.class);
+        }
+
+        public Place(String id, double lon, double lat) {
+            this();
+            setID(id);
+            this.location = new GeoPoint(lon, lat);
+        }
+    }
+
+    private static class Shelf extends StackMobModel {
+        private List<Integer> heights;
+
+        public Shelf() {
+            super(Shelf.class);
+        }
+
+        public Shelf(String id, Integer... heights) {
+            this();
+            setID(id);
+            this.heights = Arrays.asList(heights);
+        }
+    }
+
+    private StackMobLocalStore<Item> store(boolean indexed) {
+        StackMobLocalStore<Item> store = new StackMobLocalStore<Item>(Item.class);
+        if(indexed) store.index("color").sortedIndex("size");
+        store.putAll(Arrays.asList(new Item("a", "red", 3), new Item("b", "blue", 1), new Item("c", "red", 2), new Item("d", "green", 5)));
+        return store;
+    }
+
+    private List<String> ids(List<? extends StackMobModel> items) {
+        List<String> ids = new ArrayList<String>();
+        for(StackMobModel item : items) ids.add(item.getID());
+        return ids;
+    }
+
+    @Test public void testQueries() {
+        for(boolean indexed : new boolean[] {false, true}) {
+            StackMobLocalStore<Item> store = store(indexed);
+            assertEquals(Arrays.asList("c", "a"), ids(store.query(new StackMobQuery("item").fieldIsEqualTo("color", "red").fieldIsOrderedBy("size", StackMobQuery.Ordering.ASCENDING))));
+            assertEquals(Arrays.asList("a", "d"), ids(store.query(new StackMobQuery("item").fieldIsGreaterThan("size", "2"))));
+            assertEquals(Arrays.asList("b", "d"), ids(store.query(new StackMobQuery("item").fieldIsIn("color", Arrays.asList("blue", "green")))));
+            assertEquals(Arrays.asList("a", "c"), ids(store.query(new StackMobQuery("item").fieldIsOrderedBy("size", StackMobQuery.Ordering.DESCENDING).isInRange(1, 2))));
+            assertEquals(Arrays.asList("c"), ids(store.query(new StackMobQuery("item").fieldIsEqualTo("size", "2.0"))));
+        }
+    }
+
+    @Test public void testIndexesFollowUpdates() {
+        StackMobLocalStore<Item> store = store(true);
+        store.put(new Item("a", "blue", 3));
+        store.remove("b");
+        assertEquals(Arrays.asList("a"), ids(store.query(new StackMobQuery("item").fieldIsEqualTo("color", "blue"))));
+        assertEquals(3, store.size());
+    }
+
+    @Test public void testGeoQueries() {
+        for(boolean indexed : new boolean[] {false, true}) {
+            StackMobLocalStore<Place> store = new StackMobLocalStore<Place>(Place.class);
+            if(indexed) store.geoIndex("location");
+            //san francisco, oakland, los angeles, new york, and fiji across the 180th meridian
+            store.putAll(Arrays.asList(new Place("sf", -122.42, 37.77), new Place("oak", -122.27, 37.80),
+                    new Place("la", -118.24, 34.05), new Place("ny", -74.0, 40.71), new Place("fiji", 179.9, -17.7)));
+            GeoPoint sf = new GeoPoint(-122.42, 37.77);
+            assertEquals(Arrays.asList("sf", "oak", "la"), ids(store.query(new StackMobQuery("place").fieldIsNear("location", sf).isInRange(0, 2))));
+            assertEquals(Arrays.asList("sf", "oak"), ids(store.query(new StackMobQuery("place").fieldIsNearWithinMi("location", sf, 20.0))));
+            assertEquals(Arrays.asList("sf", "oak", "la"), ids(store.query(new StackMobQuery("place").fieldIsNearWithinKm("location", sf, 600.0))));
+            assertEquals(Arrays.asList("la"), ids(store.query(new StackMobQuery("place").fieldIsWithinBox("location", new GeoPoint(-120.0, 30.0), new GeoPoint(-110.0, 36.0)))));
+            assertEquals(Arrays.asList("fiji"), ids(store.query(new StackMobQuery("place").fieldIsWithinBox("location", new GeoPoint(179.0, -20.0), new GeoPoint(-179.0, -15.0)))));
+            assertEquals(1, store.query(new StackMobQuery("place").fieldIsWithinRadiusInMi("location", new GeoPoint(-179.9, -17.7), 50.0)).size());
+        }
+    }
+
+    @Test public void testSortedIndexFindsArrayElements() {
+        for(boolean indexed : new boolean[] {false, true}) {
+            StackMobLocalStore<Shelf> store = new StackMobLocalStore<Shelf>(Shelf.class);
+            if(indexed) store.sortedIndex("heights");
+            store.putAll(Arrays.asList(new Shelf("a", 1, 5), new Shelf("b", 2, 3), new Shelf("c", 8, 9)));
+            assertEquals(Arrays.asList("a", "c"), ids(store.query(new StackMobQuery("shelf").fieldIsGreaterThan("heights", "4"))));
+            assertEquals(Arrays.asList("a", "b"), ids(store.query(new StackMobQuery("shelf").fieldIsLessThan("heights", "3"))));
+            store.remove("a");
+            assertEquals(Arrays.asList("c"), ids(store.query(new StackMobQuery("shelf").fieldIsGreaterThan("heights", "4"))));
+        }
+    }
+
+    private List<String> send(StackMobLocalStore<Item> store, StackMobModelQuery<Item> query) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<List<Item>> results = new AtomicReference<List<Item>>();
+        store.send(query, new StackMobQueryCallback<Item>() {
+            @Override
+            public void success(List<Item> result) {
+                results.set(result);
+                latch.countDown();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                latch.countDown();
+            }
+        });
+        assertTrue(CountDownLatchUtils.wasLatchFinished(latch));
+        return ids(results.get());
+    }
+
+    @Test public void testSendAnswersLocallyOnlyWhenEveryMatchIsHere() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new FakeStackMobServer.Handler() {
+            @Override
+            public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+                return new FakeStackMobServer.Response("[{\"item_id\":\"a\",\"color\":\"red\",\"size\":3},{\"item_id\":\"e\",\"color\":\"red\",\"size\":4}]");
+            }
+        });
+        try {
+            StackMobLocalStore<Item> store = store(true);
+            //only some of the red items are here, so the server is asked
+            assertEquals(Arrays.asList("a", "e"), send(store, new StackMobModelQuery<Item>(Item.class).fieldIsEqualTo("color", "red")));
+            assertEquals(1, server.getRequests().size());
+            assertNotNull(store.get("e"));
+            //every id asked for is here
+            assertEquals(Arrays.asList("b", "c"), send(store, new StackMobModelQuery<Item>(Item.class).fieldIsIn("item_id", Arrays.asList("b", "c"))));
+            assertEquals(1, server.getRequests().size());
+            send(store, new StackMobModelQuery<Item>(Item.class).fieldIsIn("item_id", Arrays.asList("b", "z")));
+            assertEquals(2, server.getRequests().size());
+            store.setComplete(true);
+            assertEquals(new HashSet<String>(Arrays.asList("a", "c", "e")), new HashSet<String>(send(store, new StackMobModelQuery<Item>(Item.class).fieldIsEqualTo("color", "red"))));
+            assertEquals(2, server.getRequests().size());
+            //relations are stored as ids, so expanding them needs the server
+            StackMobModelQuery<Item> expanded = new StackMobModelQuery<Item>(Item.class).fieldIsEqualTo("color", "red");
+            expanded.getQuery().expandDepthIs(1);
+            send(store, expanded);
+            assertEquals(3, server.getRequests().size());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.exception.StackMobException;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class StackMobModelCursorTests {
+
+    private static class Thing extends StackMobModel {
+        private String name;
+
+        public Thing() {
+            super(Thing.class);
+        }
+    }
+
+    /**
+     * serves things 0 to size-1 by Range, with a Content-Range total unless told not to, and fails the page starting
+     * at failAt
+     */
+    private static class Numbered implements FakeStackMobServer.Handler {
+        private final int size;
+        private final boolean sendTotal;
+        private final int failAt;
+
+        Numbered(int size, boolean sendTotal, int failAt) {
+            this.size = size;
+            this.sendTotal = sendTotal;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+            int[] range = request.getRange();
+            if(range[0] == failAt) {
+                return new FakeStackMobServer.Response(500, "{\"error\":\"page failed\"}");
+            }
+            JsonArray page = new JsonArray();
+            for(int i = range[0]; i < size && i <= range[1]; i++) {
+                JsonObject thing = new JsonObject();
+                thing.addProperty("thing_id", String.valueOf(i));
+                thing.addProperty("name", "thing " + i);
+                page.add(thing);
+            }
+            FakeStackMobServer.Response response = new FakeStackMobServer.Response(page.toString());
+            if(sendTotal && page.size() > 0) {
+                response.withHeader("Content-Range", "objects " + range[0] + "-" + (range[0] + page.size() - 1) + "/" + size);
+            }
+            return response;
+        }
+    }
+
+    private static List<String> readAll(StackMobModelCursor<Thing> cursor) throws StackMobException {
+        List<String> ids = new ArrayList<String>();
+        while(cursor.hasNextPage()) {
+            for(Thing thing : cursor.nextPage()) ids.add(thing.getID());
+        }
+        return ids;
+    }
+
+    private static List<String> numbers(int size) {
+        List<String> ids = new ArrayList<String>();
+        for(int i = 0; i < size; i++) ids.add(String.valueOf(i));
+        return ids;
+    }
+
+    @Test public void testTotalFromContentRangeEndsTheCursor() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new Numbered(10, true, -1));
+        try {
+            StackMobModelCursor<Thing> cursor = new StackMobModelQuery<Thing>(Thing.class).cursor(5, 2);
+            assertEquals(numbers(10), readAll(cursor));
+            assertEquals(10, cursor.getTotalCount());
+            //the total says a full second page is the last, so nothing past it is asked for
+            assertEquals(2, server.getRequests().size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testPrefetchesPagesAhead() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new Numbered(20, true, -1));
+        try {
+            StackMobModelCursor<Thing> cursor = new StackMobModelQuery<Thing>(Thing.class).cursor(5, 2);
+            assertEquals(5, cursor.nextPage().size());
+            //with page 1 up next, pages 1 to 3 are on their way
+            long deadline = System.currentTimeMillis() + 5000;
+            while(server.getRequests().size() < 4 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertEquals(4, server.getRequests().size());
+            Set<Integer> starts = new HashSet<Integer>();
+            for(FakeStackMobServer.Request request : server.getRequests()) starts.add(request.getRange()[0]);
+            assertEquals(new HashSet<Integer>(Arrays.asList(0, 5, 10, 15)), starts);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testShortPageIsLastWithoutATotal() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new Numbered(7, false, -1));
+        try {
+            StackMobModelCursor<Thing> cursor = new StackMobModelQuery<Thing>(Thing.class).cursor(5, 0);
+            assertEquals(numbers(7), readAll(cursor));
+            assertTrue(cursor.getTotalCount() < 0);
+            assertEquals(2, server.getRequests().size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testFailedPageIsThrownAndEndsTheCursor() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new Numbered(20, true, 5));
+        try {
+            StackMobModelCursor<Thing> cursor = new StackMobModelQuery<Thing>(Thing.class).cursor(5, 0);
+            assertEquals(5, cursor.nextPage().size());
+            assertTrue(cursor.hasNextPage());
+            try {
+                cursor.nextPage();
+                fail("the second page should have failed");
+            }
+            catch(StackMobException expected) { }
+            assertFalse(cursor.hasNextPage());
+            try {
+                cursor.nextPage();
+                fail("nothing should come after a failed page");
+            }
+            catch(NoSuchElementException expected) { }
+        } finally {
+            server.stop();
+        }
+    }
+}
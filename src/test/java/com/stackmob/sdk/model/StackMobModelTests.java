@@ -23,6 +23,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
@@ -31,6 +32,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
@@ -42,9 +44,13 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.stackmob.sdk.FakeStackMobServer;
 import com.stackmob.sdk.StackMobTestCommon;
 import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.concurrencyutils.CountDownLatchUtils;
 import com.stackmob.sdk.concurrencyutils.MultiThreadAsserter;
+import com.stackmob.sdk.exception.StackMobBulkException;
 import com.stackmob.sdk.exception.StackMobException;
 import com.stackmob.sdk.testobjects.Author;
 import com.stackmob.sdk.testobjects.Book;
@@ -308,6 +314,236 @@ public class StackMobModelTests extends StackMobTestCommon {
         assertEquals("baz", b.getAuthor().getName());
     }
 
+    @Test public void testPartialObjectOnlySendsLoadedOrSetFields() throws Exception {
+        Simple simple = new Simple();
+        simple.fillFromJson(new JsonParser().parse("{\"simple_id\":\"foo\",\"foo\":\"loaded\"}"));
+        simple.profile(null, "", Arrays.asList("simple_id", "foo"));
+        JsonObject obj = new JsonParser().parse(simple.toJson()).getAsJsonObject();
+        assertEquals("loaded", obj.get("foo").getAsString());
+        assertNull(obj.get("bar"));
+        simple.bar = 7;
+        obj = new JsonParser().parse(simple.toJson()).getAsJsonObject();
+        assertEquals(7, obj.get("bar").getAsInt());
+    }
+
+    @Test public void testPartialObjectSendsFieldsMarkedChanged() throws Exception {
+        Simple simple = new Simple();
+        simple.fillFromJson(new JsonParser().parse("{\"simple_id\":\"foo\",\"bar\":3}"));
+        simple.profile(null, "", Arrays.asList("simple_id", "bar"));
+        assertNull(new JsonParser().parse(simple.toJson()).getAsJsonObject().get("foo"));
+        //null is what it held all along, but it was set on purpose
+        simple.foo = null;
+        simple.markChanged("foo");
+        JsonObject obj = new JsonParser().parse(simple.toJson()).getAsJsonObject();
+        assertTrue(obj.has("foo"));
+        assertTrue(obj.get("foo").isJsonNull());
+        assertEquals(3, obj.get("bar").getAsInt());
+    }
+
+    @Test public void testUsageProfileFollowsRelations() throws Exception {
+        Book b = new Book();
+        b.fillFromJson(new JsonParser().parse("{\"book_id\":\"b\",\"title\":\"Oliver\",\"author\":{\"author_id\":\"a\",\"name\":\"Dickens\"}}"));
+        UsageProfiler.Site site = new UsageProfiler.Site("book", "here");
+        ((StackMobModel) b).profile(new UsageProfiler.Run(site), "", null);
+        b.touch("title");
+        b.getAuthor().touch("name");
+        StackMobUsageStatistics stats = site.statistics();
+        assertEquals(1, stats.getRuns());
+        assertTrue(stats.getFieldsRead().contains("title"));
+        assertTrue(stats.getRelationPathsRead().contains("author"));
+        assertEquals(1, stats.getRecommendedExpandDepth());
+        assertEquals(0, stats.getFollowUpFetches());
+    }
+
+    /**
+     * books and authors with made up fields, honoring the select header
+     */
+    private static FakeStackMobServer.Handler library() {
+        return new FakeStackMobServer.Handler() {
+            @Override
+            public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+                String select = request.getHeader("X-StackMob-Select");
+                List<String> fields = select == null ? null : Arrays.asList(select.split(","));
+                JsonArray results = new JsonArray();
+                String books = request.getParam("book_id[in]");
+                String authors = request.getParam("author_id[in]");
+                for(String id : (books != null ? books : authors).split(",")) {
+                    JsonObject obj = new JsonObject();
+                    if(books != null) {
+                        obj.addProperty("book_id", id);
+                        obj.addProperty("title", "title of " + id);
+                        obj.addProperty("publisher", "publisher of " + id);
+                        obj.addProperty("author", "author of " + id);
+                    } else {
+                        obj.addProperty("author_id", id);
+                        obj.addProperty("name", "name of " + id);
+                    }
+                    JsonObject selected = new JsonObject();
+                    for(Map.Entry<String, JsonElement> field : obj.entrySet()) {
+                        if(fields == null || fields.contains(field.getKey())) selected.add(field.getKey(), field.getValue());
+                    }
+                    results.add(selected);
+                }
+                return new FakeStackMobServer.Response(results.toString());
+            }
+        };
+    }
+
+    private static List<Book> partialBooks(UsageProfiler.Run run, String... ids) throws Exception {
+        List<Book> books = new ArrayList<Book>();
+        for(String id : ids) {
+            Book b = new Book();
+            b.fillFromJson(new JsonParser().parse(String.format("{\"book_id\":\"%s\",\"title\":\"old\"}", id)), Arrays.asList("book_id", "title"));
+            ((StackMobModel) b).profile(run, "", Arrays.asList("book_id", "title"));
+            books.add(b);
+        }
+        return books;
+    }
+
+    @Test public void testUnselectedReadFetchesMissingFieldsOfAllResults() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(library());
+        try {
+            UsageProfiler.Site site = new UsageProfiler.Site("book", "here");
+            List<Book> books = partialBooks(new UsageProfiler.Run(site), "b1", "b2", "b3");
+            books.get(2).setPublisher("changed here");
+            books.get(0).touch("publisher");
+            assertEquals("publisher of b1", books.get(0).getPublisher());
+            assertEquals("publisher of b2", books.get(1).getPublisher());
+            assertEquals("changed here", books.get(2).getPublisher());
+            //what was already loaded isn't fetched again or overwritten
+            assertEquals("old", books.get(1).getTitle());
+            assertEquals(1, server.getRequests().size());
+            String select = server.getRequests().get(0).getHeader("X-StackMob-Select");
+            assertTrue(select.contains("publisher"));
+            assertFalse(select.contains("title"));
+            //the rest of the results are already filled in
+            books.get(1).touch("publisher");
+            assertEquals(1, server.getRequests().size());
+            StackMobUsageStatistics stats = site.statistics();
+            assertTrue(stats.getFieldsRead().contains("publisher"));
+            assertEquals(1, stats.getFollowUpFetches());
+            //the local change is still saved
+            assertEquals("changed here", new JsonParser().parse(books.get(2).toJson()).getAsJsonObject().get("publisher").getAsString());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testUnexpandedReadFetchesEveryObjectAtThePath() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(library());
+        try {
+            UsageProfiler.Site site = new UsageProfiler.Site("book", "here");
+            UsageProfiler.Run run = new UsageProfiler.Run(site);
+            List<Book> books = new ArrayList<Book>();
+            for(String id : Arrays.asList("b1", "b2")) {
+                Book b = new Book();
+                b.fillFromJson(new JsonParser().parse(String.format("{\"book_id\":\"%s\",\"title\":\"t\",\"author\":\"a%s\"}", id, id)));
+                ((StackMobModel) b).profile(run, "", null);
+                books.add(b);
+            }
+            books.get(0).getAuthor().touch("name");
+            assertEquals("name of ab1", books.get(0).getAuthor().getName());
+            assertEquals("name of ab2", books.get(1).getAuthor().getName());
+            assertEquals(1, server.getRequests().size());
+            StackMobUsageStatistics stats = site.statistics();
+            assertEquals(1, stats.getFollowUpFetches());
+            assertEquals(1, stats.getRecommendedExpandDepth());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testFetchAllReportsObjectsBySchemaAndID() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new FakeStackMobServer.Handler() {
+            @Override
+            public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+                if(request.getParam("book_id[in]") != null) return new FakeStackMobServer.Response("[{\"book_id\":\"same\",\"title\":\"t\"}]");
+                return new FakeStackMobServer.Response("[]");
+            }
+        });
+        try {
+            Book book = new Book();
+            book.setID("same");
+            Author author = new Author();
+            author.setID("same");
+            final CountDownLatch latch = latchOne();
+            final List<StackMobException> failures = new ArrayList<StackMobException>();
+            StackMobModel.fetchAll(Arrays.<StackMobModel>asList(book, author), new StackMobQueryCallback<StackMobModel>() {
+                @Override
+                public void success(List<StackMobModel> result) {
+                    latch.countDown();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    failures.add(e);
+                    latch.countDown();
+                }
+            });
+            assertTrue(CountDownLatchUtils.wasLatchFinished(latch));
+            StackMobBulkException e = (StackMobBulkException) failures.get(0);
+            assertEquals(Arrays.asList("book/same"), e.getSucceeded());
+            assertEquals(new HashSet<String>(Arrays.asList("author/same")), e.getFailures().keySet());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testReadThatCantBeFetchedFails() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new FakeStackMobServer.Handler() {
+            @Override
+            public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+                return new FakeStackMobServer.Response(500, "{\"error\":\"down\"}");
+            }
+        });
+        try {
+            UsageProfiler.Site site = new UsageProfiler.Site("book", "here");
+            List<Book> books = partialBooks(new UsageProfiler.Run(site), "b1");
+            try {
+                books.get(0).touch("publisher");
+                fail("a field that couldn't be fetched shouldn't read as null");
+            } catch(IllegalStateException expected) { }
+            assertTrue(site.statistics().getFieldsRead().contains("publisher"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testEveryRunResolvesItsCallSite() throws Exception {
+        StackMobModel.resetUsageStatistics();
+        StackMobModel.enableAutoSelect(Book.class);
+        try {
+            UsageProfiler.Run first = UsageProfiler.startRun(Book.class, "book");
+            assertTrue(first.learning);
+            first.site.read("", "title");
+            for(int i = 0; i < 100; i++) {
+                UsageProfiler.Run run = UsageProfiler.startRun(Book.class, "book");
+                assertEquals(first.site, run.site);
+                assertFalse(run.learning);
+                assertEquals(Arrays.asList("book_id", "title"), run.selection("book_id"));
+            }
+            assertEquals(1, StackMobModel.getUsageStatistics().size());
+            assertEquals(101, StackMobModel.getUsageStatistics().get(0).getRuns());
+            //a call site that hasn't been seen before learns on its own, whatever the class's other sites read
+            UsageProfiler.Run unseen = new UsageProfiler.Run(new UsageProfiler.Site("book", "elsewhere"));
+            assertTrue(unseen.learning);
+            assertNull(unseen.selection("book_id"));
+        } finally {
+            StackMobModel.disableAutoSelect(Book.class);
+            StackMobModel.resetUsageStatistics();
+        }
+    }
+
+    @Test public void testSiteWithoutReadsIsNotNarrowed() throws Exception {
+        UsageProfiler.Site site = new UsageProfiler.Site("book", "here");
+        assertNull(new UsageProfiler.Run(site).selection("book_id"));
+        //the getters never called touch, so selecting would leave every field empty
+        assertNull(new UsageProfiler.Run(site).selection("book_id"));
+        assertEquals(2, new UsageProfiler.Run(site).expandDepth(2));
+        site.read("", "title");
+        assertEquals(Arrays.asList("book_id", "title"), new UsageProfiler.Run(site).selection("book_id"));
+    }
+
     @Test public void testHasSameID() {
         Simple simple = new Simple();
         assertFalse(simple.hasSameID(new JsonPrimitive("foo")));
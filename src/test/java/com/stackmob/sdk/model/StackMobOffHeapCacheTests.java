@@ -0,0 +1,73 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StackMobOffHeapCacheTests {
+
+    private static class Item extends StackMobModel {
+        private String color;
+        private int size;
+
+        public Item() {
+            super(Item.class);
+        }
+
+        public Item(String id, String color, int size) {
+            this();
+            setID(id);
+            this.color = color;
+            this.size = size;
+        }
+    }
+
+    @Test public void testReplacingReclaimsSpace() throws Exception {
+        StackMobOffHeapCache cache = new StackMobOffHeapCache(4 * 1024, 1024);
+        for(int round = 0; round < 200; round++) {
+            for(int i = 0; i < 10; i++) {
+                assertTrue(cache.put(new Item("item" + i, "red", round)));
+            }
+        }
+        assertEquals(10, cache.size());
+        assertEquals(0, cache.getEvictionCount());
+        for(int i = 0; i < 10; i++) {
+            Item item = cache.get(Item.class, "item" + i);
+            assertEquals("red", item.color);
+            assertEquals(199, item.size);
+        }
+        assertTrue(cache.remove(Item.class, "item3"));
+        assertNull(cache.get(Item.class, "item3"));
+        assertFalse(cache.remove(Item.class, "item3"));
+        cache.close();
+    }
+
+    @Test public void testEvictsOldestWhenFull() throws Exception {
+        StackMobOffHeapCache cache = new StackMobOffHeapCache(4 * 1024, 1024);
+        for(int i = 0; i < 1000; i++) {
+            cache.put(new Item("item" + i, "blue", i));
+        }
+        assertTrue(cache.getEvictionCount() > 0);
+        assertEquals(1000, cache.size() + cache.getEvictionCount());
+        assertNull(cache.get(Item.class, "item0"));
+        assertEquals(999, cache.get(Item.class, "item999").size);
+        assertTrue(cache.getLiveBytes() <= 4 * 1024);
+        assertFalse(cache.put(new Item("big", new String(new char[2000]).replace('\0', 'x'), 0)));
+        cache.close();
+    }
+}
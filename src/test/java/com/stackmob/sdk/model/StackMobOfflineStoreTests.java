@@ -0,0 +1,389 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobReplayCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StackMobOfflineStoreTests {
+
+    private static class Item extends StackMobModel {
+        private String color;
+        private Long lastmoddate;
+
+        public Item() {
+            super(Item.class);
+        }
+
+        public Item(String id, String color) {
+            this();
+            setID(id);
+            this.color = color;
+        }
+
+        public Item(String id, String color, long lastmoddate) {
+            this(id, color);
+            this.lastmoddate = lastmoddate;
+        }
+    }
+
+    /**
+     * items on a fake server: id lookups, bulk saves that stamp a lastmoddate, and deletes that 404 on what
+     * isn't there
+     */
+    private static class ItemServer implements FakeStackMobServer.Handler {
+        private final Map<String, JsonObject> items = new HashMap<String, JsonObject>();
+        //id:color of every save that went through, in order
+        final List<String> saved = Collections.synchronizedList(new ArrayList<String>());
+        //ids the server turns down in the bulk response
+        final Set<String> refused = Collections.synchronizedSet(new HashSet<String>());
+        //anything but 200 fails every save with it
+        volatile int saveStatus = 200;
+        //saves wait for this if it's set
+        volatile CountDownLatch hold = null;
+        private long clock = 100;
+
+        synchronized long put(String id, String color) {
+            JsonObject item = new JsonObject();
+            item.addProperty("item_id", id);
+            item.addProperty("color", color);
+            item.addProperty("lastmoddate", ++clock);
+            items.put(id, item);
+            return clock;
+        }
+
+        synchronized String color(String id) {
+            return items.get(id).get("color").getAsString();
+        }
+
+        @Override
+        public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+            CountDownLatch waitFor = hold;
+            if(request.method.equals("POST") && waitFor != null) {
+                try {
+                    waitFor.await(5, TimeUnit.SECONDS);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized(this) {
+                if(request.method.equals("GET")) {
+                    JsonArray found = new JsonArray();
+                    for(String id : request.getParam("item_id[in]").split(",")) {
+                        if(items.containsKey(id)) found.add(items.get(id));
+                    }
+                    return new FakeStackMobServer.Response(found.toString());
+                } else if(request.method.equals("DELETE")) {
+                    String id = request.path.substring(request.path.lastIndexOf('/') + 1);
+                    if(items.remove(id) == null) return new FakeStackMobServer.Response(404, "{\"error\":\"not found\"}");
+                    return new FakeStackMobServer.Response("{}");
+                }
+                if(saveStatus != 200) return new FakeStackMobServer.Response(saveStatus, "{\"error\":\"no\"}");
+                JsonArray created = new JsonArray();
+                JsonArray failed = new JsonArray();
+                for(JsonElement elt : new JsonParser().parse(request.body).getAsJsonArray()) {
+                    JsonObject item = elt.getAsJsonObject();
+                    String id = item.get("item_id").getAsString();
+                    if(refused.contains(id)) {
+                        failed.add(item.get("item_id"));
+                        continue;
+                    }
+                    saved.add(id + ":" + item.get("color").getAsString());
+                    item.addProperty("lastmoddate", ++clock);
+                    items.put(id, item);
+                    created.add(item);
+                }
+                if(failed.size() == 0) return new FakeStackMobServer.Response(created.toString());
+                JsonObject summary = new JsonObject();
+                JsonArray succeeded = new JsonArray();
+                for(JsonElement item : created) succeeded.add(item.getAsJsonObject().get("item_id"));
+                summary.add("succeeded", succeeded);
+                summary.add("failed", failed);
+                return new FakeStackMobServer.Response(summary.toString());
+            }
+        }
+    }
+
+    /**
+     * hears what the replayer did
+     */
+    private static class Listener extends StackMobReplayCallback<Item> {
+        final List<String> replayed = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> rejected = Collections.synchronizedList(new ArrayList<String>());
+        final Semaphore passes = new Semaphore(0);
+        final Semaphore rejections = new Semaphore(0);
+
+        @Override
+        public Item conflict(Item local, Item server) {
+            //"keep" is kept as it is here, everything else as the server has it
+            return local != null && local.color.startsWith("keep") ? local : server;
+        }
+
+        @Override
+        public void replayed(List<String> ids) {
+            replayed.addAll(ids);
+            passes.release();
+        }
+
+        @Override
+        public void rejected(String id, StackMobException e) {
+            rejected.add(id);
+            rejections.release();
+        }
+    }
+
+    private static void awaitPending(StackMobOfflineStore<Item> store, int pending) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(store.getPendingCount() != pending && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(pending, store.getPendingCount());
+    }
+
+    private static void awaitRequests(FakeStackMobServer server, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(server.getRequests().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, server.getRequests().size());
+    }
+
+    private static File newJournal() throws Exception {
+        File journal = File.createTempFile("offline", ".journal");
+        journal.delete();
+        return journal;
+    }
+
+    @Test public void testReopen() throws Exception {
+        File journal = File.createTempFile("offline", ".journal");
+        journal.delete();
+        try {
+            StackMobOfflineStore<Item> store = new StackMobOfflineStore<Item>(Item.class, journal);
+            store.save(new Item("a", "red"));
+            store.save(new Item("b", "blue"));
+            store.destroy("b");
+            store.cache(Arrays.asList(new Item("c", "red")));
+            Item unnamed = new Item(null, "green");
+            store.save(unnamed);
+            assertNotNull(unnamed.getID());
+            assertEquals(3, store.getLocalStore().size());
+            assertEquals(3, store.getPendingCount());
+            store.close();
+
+            //a record torn by a crash is dropped
+            FileOutputStream out = new FileOutputStream(journal, true);
+            out.write("{\"op\":\"save\",\"id\":\"d\",\"se".getBytes("UTF-8"));
+            out.close();
+
+            StackMobOfflineStore<Item> reopened = new StackMobOfflineStore<Item>(Item.class, journal);
+            assertEquals(3, reopened.getPendingCount());
+            assertNull(reopened.getLocalStore().get("b"));
+            assertNull(reopened.getLocalStore().get("d"));
+            assertEquals(2, reopened.getLocalStore().query(new StackMobQuery("item").fieldIsEqualTo("color", "red")).size());
+            assertEquals("green", reopened.getLocalStore().get(unnamed.getID()).color);
+            reopened.save(new Item("d", "red"));
+            reopened.close();
+            StackMobOfflineStore<Item> again = new StackMobOfflineStore<Item>(Item.class, journal);
+            assertEquals(4, again.getPendingCount());
+            again.close();
+        } finally {
+            journal.delete();
+        }
+    }
+
+    @Test public void testConflictsAreFoundByLastModDate() throws Exception {
+        ItemServer items = new ItemServer();
+        long a = items.put("a", "red");
+        long b = items.put("b", "red");
+        FakeStackMobServer server = new FakeStackMobServer(items);
+        File journal = newJournal();
+        try {
+            StackMobOfflineStore<Item> store = new StackMobOfflineStore<Item>(Item.class, journal);
+            store.setReplayCallback(new Listener());
+            store.cache(Arrays.asList(new Item("a", "red", a), new Item("b", "red", b)));
+            //changed on the server after they were cached
+            items.put("a", "blue");
+            items.put("b", "blue");
+            store.save(new Item("a", "green"));
+            store.save(new Item("b", "keep green"));
+            awaitPending(store, 0);
+            assertEquals("blue", store.getLocalStore().get("a").color);
+            assertEquals("blue", items.color("a"));
+            assertEquals("keep green", items.color("b"));
+            assertEquals(Arrays.asList("b:keep green"), items.saved);
+            store.close();
+            StackMobOfflineStore<Item> reopened = new StackMobOfflineStore<Item>(Item.class, journal);
+            assertEquals("blue", reopened.getLocalStore().get("a").color);
+            assertEquals(0, reopened.getPendingCount());
+            reopened.close();
+        } finally {
+            server.stop();
+            journal.delete();
+        }
+    }
+
+    @Test public void testChangesToOneObjectReplayInOrder() throws Exception {
+        ItemServer items = new ItemServer();
+        items.hold = new CountDownLatch(1);
+        FakeStackMobServer server = new FakeStackMobServer(items);
+        File journal = newJournal();
+        try {
+            StackMobOfflineStore<Item> store = new StackMobOfflineStore<Item>(Item.class, journal);
+            store.setReplayCallback(new Listener());
+            store.save(new Item("a", "red"));
+            awaitRequests(server, 1);
+            //made while the first save is out, so they go out after it, made against what it left on the server
+            store.save(new Item("a", "blue"));
+            store.save(new Item("a", "green"));
+            items.hold.countDown();
+            awaitPending(store, 0);
+            assertEquals(Arrays.asList("a:red", "a:green"), items.saved);
+            assertEquals("green", items.color("a"));
+            store.close();
+        } finally {
+            server.stop();
+            journal.delete();
+        }
+    }
+
+    @Test public void testDestroyOfMissingObjectIsDone() throws Exception {
+        ItemServer items = new ItemServer();
+        FakeStackMobServer server = new FakeStackMobServer(items);
+        File journal = newJournal();
+        try {
+            StackMobOfflineStore<Item> store = new StackMobOfflineStore<Item>(Item.class, journal);
+            Listener listener = new Listener();
+            store.setReplayCallback(listener);
+            store.destroy("gone");
+            awaitPending(store, 0);
+            assertTrue(listener.passes.tryAcquire(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("gone"), listener.replayed);
+            assertTrue(listener.rejected.isEmpty());
+            store.close();
+        } finally {
+            server.stop();
+            journal.delete();
+        }
+    }
+
+    @Test public void testRefusedChangePutsBackTheServersVersion() throws Exception {
+        ItemServer items = new ItemServer();
+        long a = items.put("a", "red");
+        items.saveStatus = 400;
+        FakeStackMobServer server = new FakeStackMobServer(items);
+        File journal = newJournal();
+        try {
+            StackMobOfflineStore<Item> store = new StackMobOfflineStore<Item>(Item.class, journal);
+            Listener listener = new Listener();
+            store.setReplayCallback(listener);
+            store.cache(Arrays.asList(new Item("a", "red", a)));
+            store.save(new Item("a", "purple"));
+            //the server's version of a new object isn't known, so it stays as it is
+            store.save(new Item("n", "new"));
+            awaitPending(store, 0);
+            //rejections are reported once the store lets go of its lock, so they can trail the pending count
+            assertTrue(listener.rejections.tryAcquire(2, 5, TimeUnit.SECONDS));
+            assertEquals(new HashSet<String>(Arrays.asList("a", "n")), new HashSet<String>(listener.rejected));
+            assertEquals("red", store.getLocalStore().get("a").color);
+            assertEquals("new", store.getLocalStore().get("n").color);
+            store.close();
+            StackMobOfflineStore<Item> reopened = new StackMobOfflineStore<Item>(Item.class, journal);
+            assertEquals("red", reopened.getLocalStore().get("a").color);
+            assertEquals(0, reopened.getPendingCount());
+            //made against what the server really has, so it's pushed without a conflict
+            items.saveStatus = 200;
+            reopened.setReplayCallback(listener);
+            reopened.save(new Item("a", "green"));
+            awaitPending(reopened, 0);
+            assertEquals("green", items.color("a"));
+            reopened.close();
+        } finally {
+            server.stop();
+            journal.delete();
+        }
+    }
+
+    @Test public void testGivesUpAfterMaxAttempts() throws Exception {
+        ItemServer items = new ItemServer();
+        items.refused.add("bad");
+        FakeStackMobServer server = new FakeStackMobServer(items);
+        File journal = newJournal();
+        try {
+            StackMobOfflineStore<Item> store = new StackMobOfflineStore<Item>(Item.class, journal);
+            Listener listener = new Listener();
+            store.setReplayCallback(listener);
+            store.save(new Item("bad", "red"));
+            store.save(new Item("good0", "red"));
+            for(int pass = 1; pass <= StackMobOfflineStore.MAX_ATTEMPTS; pass++) {
+                assertTrue(listener.passes.tryAcquire(5, TimeUnit.SECONDS));
+                if(pass == StackMobOfflineStore.MAX_ATTEMPTS) break;
+                assertTrue(listener.rejected.isEmpty());
+                //other changes going through show the server is up, so the failures count
+                store.save(new Item("good" + pass, "red"));
+                store.replay();
+            }
+            assertEquals(Arrays.asList("bad"), listener.rejected);
+            awaitPending(store, 0);
+            store.close();
+        } finally {
+            server.stop();
+            journal.delete();
+        }
+    }
+
+    @Test public void testBacksOffWhileUnreachable() throws Exception {
+        ItemServer items = new ItemServer();
+        items.saveStatus = 500;
+        FakeStackMobServer server = new FakeStackMobServer(items);
+        File journal = newJournal();
+        try {
+            StackMobOfflineStore<Item> store = new StackMobOfflineStore<Item>(Item.class, journal);
+            Listener listener = new Listener();
+            store.setReplayCallback(listener);
+            store.save(new Item("a", "red"));
+            awaitRequests(server, 1);
+            Thread.sleep(1200);
+            //nothing went through, so the next try waits longer than the shortest retry
+            assertEquals(1, server.getRequests().size());
+            assertEquals(1, store.getPendingCount());
+            assertTrue(listener.rejected.isEmpty());
+            items.saveStatus = 200;
+            store.replay();
+            awaitPending(store, 0);
+            assertEquals(Arrays.asList("a:red"), items.saved);
+            store.close();
+        } finally {
+            server.stop();
+            journal.delete();
+        }
+    }
+}
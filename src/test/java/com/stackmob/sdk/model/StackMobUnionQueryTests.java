@@ -0,0 +1,190 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobQueryCallback;
+import com.stackmob.sdk.concurrencyutils.CountDownLatchUtils;
+import com.stackmob.sdk.exception.StackMobException;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobUnionQueryTests {
+
+    private static class Task extends StackMobModel {
+        private String owner;
+        private String tag;
+        private int rank;
+
+        public Task() {
+            super(Task.class);
+        }
+    }
+
+    /**
+     * tasks a to f, ranked in that order. bob owns a, c and e, and b, c and f are urgent, so c matches both. answers
+     * an owner or tag equality, ordered by rank, with a Range. a query on owner "nobody" fails
+     */
+    private static class Tasks implements FakeStackMobServer.Handler {
+        private final List<JsonObject> tasks = new ArrayList<JsonObject>();
+
+        Tasks() {
+            String[][] rows = {{"a", "bob", "low"}, {"b", "alice", "urgent"}, {"c", "bob", "urgent"},
+                               {"d", "alice", "low"}, {"e", "bob", "low"}, {"f", "alice", "urgent"}};
+            for(int i = 0; i < rows.length; i++) {
+                JsonObject task = new JsonObject();
+                task.addProperty("task_id", rows[i][0]);
+                task.addProperty("owner", rows[i][1]);
+                task.addProperty("tag", rows[i][2]);
+                task.addProperty("rank", i);
+                tasks.add(task);
+            }
+        }
+
+        @Override
+        public FakeStackMobServer.Response handle(FakeStackMobServer.Request request) {
+            String owner = request.getParam("owner");
+            String tag = request.getParam("tag");
+            if("nobody".equals(owner)) {
+                return new FakeStackMobServer.Response(500, "{\"error\":\"branch failed\"}");
+            }
+            List<JsonObject> matching = new ArrayList<JsonObject>();
+            for(JsonObject task : tasks) {
+                if(owner != null && !owner.equals(task.get("owner").getAsString())) continue;
+                if(tag != null && !tag.equals(task.get("tag").getAsString())) continue;
+                matching.add(task);
+            }
+            int[] range = request.getRange();
+            JsonArray page = new JsonArray();
+            for(int i = range == null ? 0 : range[0]; i < matching.size() && (range == null || i <= range[1]); i++) {
+                page.add(matching.get(i));
+            }
+            return new FakeStackMobServer.Response(page.toString());
+        }
+    }
+
+    private static StackMobModelQuery<Task> owner(String owner) {
+        return new StackMobModelQuery<Task>(Task.class).fieldIsEqualTo("owner", owner);
+    }
+
+    private static StackMobModelQuery<Task> urgent() {
+        return new StackMobModelQuery<Task>(Task.class).fieldIsEqualTo("tag", "urgent");
+    }
+
+    private static List<String> send(StackMobUnionQuery<Task> union) throws Exception {
+        final AtomicReference<Object> outcome = new AtomicReference<Object>();
+        final CountDownLatch latch = CountDownLatchUtils.latchOne();
+        union.send(new StackMobQueryCallback<Task>() {
+            @Override
+            public void success(List<Task> result) {
+                List<String> ids = new ArrayList<String>();
+                for(Task task : result) ids.add(task.getID());
+                outcome.set(ids);
+                latch.countDown();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                outcome.set(e);
+                latch.countDown();
+            }
+        });
+        assertTrue(CountDownLatchUtils.wasLatchFinished(latch));
+        if(outcome.get() instanceof StackMobException) throw (StackMobException) outcome.get();
+        @SuppressWarnings("unchecked") List<String> ids = (List<String>) outcome.get();
+        return ids;
+    }
+
+    @Test public void testOrderedBranchesAreMergedInOrderWithoutRepeats() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new Tasks());
+        try {
+            StackMobUnionQuery<Task> union = new StackMobUnionQuery<Task>(Task.class)
+                    .or(owner("bob").fieldIsOrderedBy("rank", StackMobQuery.Ordering.ASCENDING))
+                    .or(urgent().fieldIsOrderedBy("rank", StackMobQuery.Ordering.ASCENDING))
+                    .pageSize(2);
+            assertEquals(Arrays.asList("a", "b", "c", "e", "f"), send(union));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testLimitStopsReadingTheBranches() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new Tasks());
+        try {
+            StackMobUnionQuery<Task> union = new StackMobUnionQuery<Task>(Task.class)
+                    .or(owner("bob").fieldIsOrderedBy("rank", StackMobQuery.Ordering.ASCENDING))
+                    .or(urgent().fieldIsOrderedBy("rank", StackMobQuery.Ordering.ASCENDING))
+                    .pageSize(2)
+                    .limit(2);
+            assertEquals(Arrays.asList("a", "b"), send(union));
+            //each branch's first page was enough
+            assertEquals(2, server.getRequests().size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testUnorderedBranchesDropRepeats() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new Tasks());
+        try {
+            StackMobUnionQuery<Task> union = new StackMobUnionQuery<Task>(Task.class).or(owner("bob")).or(urgent()).pageSize(2);
+            List<String> ids = send(union);
+            assertEquals(5, ids.size());
+            assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c", "e", "f")), new HashSet<String>(ids));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testSelectKeepsTheIDAndOrderedFields() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new Tasks());
+        try {
+            StackMobUnionQuery<Task> union = new StackMobUnionQuery<Task>(Task.class)
+                    .or(owner("bob").fieldIsOrderedBy("rank", StackMobQuery.Ordering.ASCENDING).select(Arrays.asList("owner")))
+                    .or(urgent().fieldIsOrderedBy("rank", StackMobQuery.Ordering.ASCENDING));
+            assertEquals(Arrays.asList("a", "b", "c", "e", "f"), send(union));
+            for(FakeStackMobServer.Request request : server.getRequests()) {
+                if(request.getParam("owner") != null) {
+                    assertEquals("owner,task_id,rank", request.getHeader(StackMobQuery.SelectHeader));
+                }
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testFailedBranchFailsTheUnion() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(new Tasks());
+        try {
+            StackMobUnionQuery<Task> union = new StackMobUnionQuery<Task>(Task.class).or(owner("nobody")).or(urgent());
+            try {
+                send(union);
+                fail("the union should have failed");
+            }
+            catch(StackMobException expected) { }
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.concurrencyutils.AwaitedBulkCallback;
+import com.stackmob.sdk.testobjects.Apple;
+import com.stackmob.sdk.testobjects.Seed;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StackMobUnitOfWorkTests {
+
+    @Test public void testDestroyedChildIsNotAdded() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(FakeStackMobServer.ACCEPT_ALL);
+        try {
+            StackMobUnitOfWork work = new StackMobUnitOfWork();
+            Apple apple = new Apple("p");
+            Seed seed = new Seed("s");
+            work.addRelated(apple, "seeds", Arrays.asList(seed));
+            work.destroy(seed);
+            assertFalse(work.isEmpty());
+            AwaitedBulkCallback callback = new AwaitedBulkCallback();
+            work.flush(callback);
+            callback.await();
+            assertNull(callback.getFailure());
+            assertEquals(Arrays.asList("seed/s"), callback.getSucceeded());
+            List<FakeStackMobServer.Request> requests = server.getRequests();
+            assertEquals(1, requests.size());
+            assertEquals("DELETE", requests.get(0).method);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void testFailedSavesReportedByKey() throws Exception {
+        FakeStackMobServer server = new FakeStackMobServer(FakeStackMobServer.failingUnder("/seed"));
+        try {
+            StackMobUnitOfWork work = new StackMobUnitOfWork();
+            Apple apple = new Apple("a");
+            Seed seed = new Seed("a");
+            work.save(apple);
+            work.save(seed);
+            work.addRelated(apple, "seeds", Arrays.asList(seed));
+            AwaitedBulkCallback callback = new AwaitedBulkCallback();
+            work.flush(callback);
+            callback.await();
+            assertEquals(Arrays.asList("apple/a"), callback.getSucceeded());
+            assertTrue(callback.getFailures().containsKey("seed/a"));
+            //the relation change involves the seed, so it isn't sent
+            assertTrue(callback.getFailures().containsKey("apple/a/seeds"));
+            assertFalse(callback.getFailures().containsKey(""));
+            for(FakeStackMobServer.Request request : server.getRequests()) {
+                assertEquals("POST", request.method);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.FakeStackMobServer;
+import com.stackmob.sdk.callback.StackMobWatchListener;
+import com.stackmob.sdk.exception.StackMobException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StackMobWatcherTests {
+
+    private static final long MIN_INTERVAL = 10;
+    private static final long MAX_INTERVAL = 200;
+
+    private static class Task extends StackMobModel {
+        private String name;
+
+        public Task() {
+            super(Task.class);
+        }
+    }
+
+    private static class Recorder extends StackMobWatchListener<Task> {
+        final List<String> added = new ArrayList<String>();
+        final List<String> modified = new ArrayList<String>();
+
+        @Override
+        public synchronized void changed(List<Task> added, List<Task> modified) {
+            for(Task task : added) this.added.add(task.getID());
+            for(Task task : modified) this.modified.add(task.getID());
+        }
+
+        @Override
+        public void failure(StackMobException e) { }
+
+        synchronized String seen() {
+            return "added " + added + " modified " + modified;
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(String what, Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!condition.holds()) {
+            assertTrue("timed out waiting for " + what, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static int startingPolls(FakeStackMobServer server) {
+        int count = 0;
+        for(FakeStackMobServer.Request request : server.getRequests()) {
+            if(request.getParam("lastmoddate[gte]") == null) count++;
+        }
+        return count;
+    }
+
+    @Test public void testWatchesShareAPollAndSeeTheirOwnChanges() throws Exception {
+        FakeTable table = new FakeTable("task_id");
+        table.put("a", "old", 100);
+        final FakeStackMobServer server = new FakeStackMobServer(table);
+        StackMobWatcher watcher = new StackMobWatcher(MIN_INTERVAL, MAX_INTERVAL, 1);
+        try {
+            final Recorder everything = new Recorder();
+            final Recorder named = new Recorder();
+            watcher.watch(new StackMobModelQuery<Task>(Task.class), everything);
+            watcher.watch(new StackMobModelQuery<Task>(Task.class).fieldIsEqualTo("name", "x"), named);
+            waitFor("the first poll", new Condition() {
+                public boolean holds() {
+                    return server.getRequests().size() > 1;
+                }
+            });
+            table.put("b", "x", 200);
+            table.put("a", "y", 200);
+            waitFor("the changes", new Condition() {
+                public boolean holds() {
+                    return everything.seen().equals("added [b] modified [a]");
+                }
+            });
+            waitFor("the filtered changes", new Condition() {
+                public boolean holds() {
+                    return named.seen().equals("added [b] modified []");
+                }
+            });
+            assertEquals(1, startingPolls(server));
+        } finally {
+            watcher.stop();
+            server.stop();
+        }
+    }
+
+    @Test public void testReModifiedTieIsNotLost() throws Exception {
+        final FakeTable table = new FakeTable("task_id");
+        final FakeStackMobServer server = new FakeStackMobServer(table);
+        StackMobWatcher watcher = new StackMobWatcher(MIN_INTERVAL, MAX_INTERVAL, 1);
+        try {
+            final Recorder recorder = new Recorder();
+            watcher.watch(new StackMobModelQuery<Task>(Task.class), recorder);
+            waitFor("the first poll", new Condition() {
+                public boolean holds() {
+                    return server.getRequests().size() > 1;
+                }
+            });
+            table.put("a", "one", 200);
+            table.put("b", "two", 200);
+            waitFor("both to be added", new Condition() {
+                public boolean holds() {
+                    return recorder.seen().equals("added [a, b] modified []");
+                }
+            });
+            //a leaves the tie at 200, so only one object is still there to be skipped
+            table.put("a", "one again", 300);
+            waitFor("a to be modified", new Condition() {
+                public boolean holds() {
+                    return recorder.seen().equals("added [a, b] modified [a]");
+                }
+            });
+        } finally {
+            watcher.stop();
+            server.stop();
+        }
+    }
+
+    @Test public void testIntervalFollowsTheChangeRate() throws Exception {
+        final FakeTable table = new FakeTable("task_id");
+        final FakeStackMobServer server = new FakeStackMobServer(table);
+        final StackMobWatcher watcher = new StackMobWatcher(MIN_INTERVAL, MAX_INTERVAL, 1);
+        try {
+            final Recorder recorder = new Recorder();
+            watcher.watch(new StackMobModelQuery<Task>(Task.class), recorder);
+            waitFor("an idle schema to back off", new Condition() {
+                public boolean holds() {
+                    return watcher.getInterval("task") == MAX_INTERVAL;
+                }
+            });
+            for(int i = 0; i < 100; i++) {
+                table.put("t" + i, "busy", 1000 + i);
+            }
+            waitFor("a busy schema to be polled sooner", new Condition() {
+                public boolean holds() {
+                    return watcher.getInterval("task") < MAX_INTERVAL;
+                }
+            });
+            assertEquals(100, recorder.added.size());
+        } finally {
+            watcher.stop();
+            server.stop();
+        }
+        assertEquals(-1, watcher.getInterval("task"));
+    }
+}
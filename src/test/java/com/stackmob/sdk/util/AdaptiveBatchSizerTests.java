@@ -0,0 +1,56 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AdaptiveBatchSizerTests {
+
+    @Test public void testGrowsWhenFast() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 1, 100, 1000, 1000000);
+        sizer.recordSuccess(10, 1000, 10);
+        //at most doubles per batch
+        assertEquals(20, sizer.getBatchSize());
+        for(int i = 0; i < 10; i++) {
+            sizer.recordSuccess(sizer.getBatchSize(), 100 * sizer.getBatchSize(), sizer.getBatchSize());
+        }
+        assertEquals(100, sizer.getBatchSize());
+    }
+
+    @Test public void testShrinksWhenSlow() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(50, 1, 100, 1000, 1000000);
+        //100ms per item means 10 items fit in the target latency
+        sizer.recordSuccess(50, 5000, 5000);
+        assertEquals(10, sizer.getBatchSize());
+    }
+
+    @Test public void testPayloadLimit() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 1, 100, 1000, 5000);
+        //fast, but 1000 bytes per item only fits 5 items
+        sizer.recordSuccess(10, 10000, 10);
+        assertEquals(5, sizer.getBatchSize());
+    }
+
+    @Test public void testFailureHalves() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 2, 100, 1000, 1000000);
+        sizer.recordFailure();
+        assertEquals(5, sizer.getBatchSize());
+        sizer.recordFailure();
+        sizer.recordFailure();
+        assertEquals(2, sizer.getBatchSize());
+    }
+}
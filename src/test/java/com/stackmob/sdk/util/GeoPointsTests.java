@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GeoPointsTests {
+
+    private double[] randomPoints(int count) {
+        Random random = new Random(42);
+        double[] points = new double[2 * count];
+        for(int i = 0; i < count; i++) {
+            points[2 * i] = random.nextDouble() * 180 - 90;
+            //coarse longitudes so plenty of distances tie
+            points[2 * i + 1] = random.nextInt(8) * 45 - 180;
+        }
+        return points;
+    }
+
+    @Test public void testSortByDistance() {
+        int count = 5000;
+        double[] points = randomPoints(count);
+        int[] indices = new int[count];
+        for(int i = 0; i < count; i++) indices[i] = i;
+        double[] distances = new double[count];
+        GeoPoints.sortByDistance(10, 20, points, indices, count, distances);
+        boolean[] seen = new boolean[count];
+        for(int i = 0; i < count; i++) {
+            assertFalse(seen[indices[i]]);
+            seen[indices[i]] = true;
+            assertEquals(GeoPoint.radiansBetween(10, 20, points[2 * indices[i]], points[2 * indices[i] + 1]), distances[i], 1e-12);
+            if(i > 0) assertTrue(distances[i - 1] <= distances[i]);
+        }
+    }
+
+    @Test public void testWithinRadiusAndBox() {
+        int count = 2000;
+        double[] points = randomPoints(count);
+        double radius = GeoPoint.kmToRadians(3000);
+        int[] indices = new int[count];
+        int found = GeoPoints.withinRadius(0, 0, radius, points, count, indices);
+        int expected = 0;
+        for(int i = 0; i < count; i++) {
+            if(GeoPoint.radiansBetween(0, 0, points[2 * i], points[2 * i + 1]) <= radius) assertEquals(i, indices[expected++]);
+        }
+        assertEquals(expected, found);
+
+        found = GeoPoints.withinBox(-10, 170, 10, -170, points, count, indices);
+        for(int i = 0; i < found; i++) {
+            assertEquals(-180.0, points[2 * indices[i] + 1], 0.0);
+        }
+    }
+
+    @Test public void testNaNIsFarthest() {
+        double[] points = new double[] {Double.NaN, Double.NaN, 1, 1, 0, 0};
+        int[] indices = new int[] {0, 1, 2};
+        double[] distances = new double[3];
+        GeoPoints.sortByDistance(0, 0, points, indices, 3, distances);
+        assertArrayEquals(new int[] {2, 1, 0}, indices);
+        assertEquals(Double.POSITIVE_INFINITY, distances[2], 0.0);
+    }
+
+    @Test public void testBoxedAndPrimitiveAgree() {
+        Double lon = -122.42;
+        Double lat = 37.77;
+        GeoPoint boxed = new GeoPoint(lon, lat);
+        GeoPoint primitive = GeoPoint.of(-122.42, 37.77);
+        //mixing boxed and primitive arguments has to keep compiling
+        assertEquals(lat, new GeoPoint(lon, 37.77).getLatitude());
+        assertEquals(boxed.getLongitude(), primitive.getLongitude());
+        assertEquals(boxed.getLatitude(), primitive.getLatitude());
+        Double radians = GeoPoint.kmToRadians(100);
+        assertEquals(GeoPoint.kilometersToRadians(100), radians, 0.0);
+        assertEquals(GeoPoint.milesToRadians(100), GeoPoint.miToRadians(100), 0.0);
+        assertEquals(GeoPoint.radiansToKilometers(0.1), GeoPoint.radiansToKm(0.1), 0.0);
+        assertEquals(GeoPoint.radiansToMiles(0.1), GeoPoint.radiansToMi(0.1), 0.0);
+    }
+}
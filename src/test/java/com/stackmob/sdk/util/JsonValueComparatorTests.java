@@ -0,0 +1,48 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.util;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.util.Comparator;
+
+import static org.junit.Assert.*;
+
+public class JsonValueComparatorTests {
+
+    private JsonObject json(String s) {
+        return new JsonParser().parse(s).getAsJsonObject();
+    }
+
+    @Test public void testValues() {
+        JsonObject o = json("{\"n\":null,\"b\":true,\"small\":2,\"big\":10,\"s\":\"abc\"}");
+        JsonValueComparator c = JsonValueComparator.INSTANCE;
+        assertTrue(c.compare(o.get("missing"), o.get("b")) < 0);
+        assertEquals(0, c.compare(o.get("missing"), o.get("n")));
+        assertTrue(c.compare(o.get("small"), o.get("big")) < 0);
+        assertTrue(c.compare(o.get("b"), o.get("small")) < 0);
+        assertTrue(c.compare(o.get("big"), o.get("s")) < 0);
+    }
+
+    @Test public void testOrderBy() {
+        Comparator<JsonObject> c = JsonValueComparator.forOrderBy("age:desc,name:asc");
+        assertTrue(c.compare(json("{\"age\":30,\"name\":\"b\"}"), json("{\"age\":20,\"name\":\"a\"}")) < 0);
+        assertTrue(c.compare(json("{\"age\":30,\"name\":\"a\"}"), json("{\"age\":30,\"name\":\"b\"}")) < 0);
+        assertEquals(0, c.compare(json("{\"age\":30,\"name\":\"a\"}"), json("{\"age\":30,\"name\":\"a\"}")));
+    }
+}
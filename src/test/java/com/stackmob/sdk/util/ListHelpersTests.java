@@ -0,0 +1,93 @@
+/**
+ * Copyright 2012 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdk.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ListHelpersTests {
+
+    @Test public void testChunkByEncodedLength() {
+        List<String> values = Arrays.asList("aaaa", "bbbb", "cccc", "dddd", "eeee");
+        //"aaaa%2Cbbbb" is 11 characters, one more value would be 18
+        List<List<String>> chunks = ListHelpers.chunkByEncodedLength(values, 11);
+        assertEquals(3, chunks.size());
+        assertEquals(Arrays.asList("aaaa", "bbbb"), chunks.get(0));
+        assertEquals(Arrays.asList("cccc", "dddd"), chunks.get(1));
+        assertEquals(Arrays.asList("eeee"), chunks.get(2));
+    }
+
+    @Test public void testChunkByEncodedLengthCountsEncoding() {
+        //a space goes out as %20, so each of these is 5 characters on the wire
+        List<List<String>> chunks = ListHelpers.chunkByEncodedLength(Arrays.asList("a b", "c d"), 10);
+        assertEquals(2, chunks.size());
+    }
+
+    @Test public void testChunkByEncodedLengthOversizedValue() {
+        List<List<String>> chunks = ListHelpers.chunkByEncodedLength(Arrays.asList("a", "way too long", "b"), 5);
+        assertEquals(3, chunks.size());
+        assertEquals(Arrays.asList("way too long"), chunks.get(1));
+    }
+
+    @Test public void testChunk() {
+        List<List<Integer>> chunks = ListHelpers.chunk(Arrays.asList(1, 2, 3, 4, 5), 2);
+        assertEquals(3, chunks.size());
+        assertEquals(Arrays.asList(5), chunks.get(2));
+        assertEquals(0, ListHelpers.chunk(new ArrayList<Integer>(), 2).size());
+    }
+
+    @Test public void testThrottledRequestQueue() {
+        final int max = 3;
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger sent = new AtomicInteger(0);
+        final AtomicBoolean tooMany = new AtomicBoolean(false);
+        final List<Runnable> pending = new ArrayList<Runnable>();
+        ThrottledRequestQueue queue = new ThrottledRequestQueue(max);
+        for(int i = 0; i < 10; i++) {
+            queue.add(new ThrottledRequestQueue.Request() {
+                @Override
+                public void send(Runnable done) {
+                    sent.incrementAndGet();
+                    if(inFlight.incrementAndGet() > max) tooMany.set(true);
+                    pending.add(done);
+                }
+            });
+        }
+        final AtomicInteger completions = new AtomicInteger(0);
+        queue.start(new Runnable() {
+            @Override
+            public void run() {
+                completions.incrementAndGet();
+            }
+        });
+        while(!pending.isEmpty()) {
+            Runnable done = pending.remove(0);
+            inFlight.decrementAndGet();
+            done.run();
+            done.run(); //a second call must not free another slot
+        }
+        assertFalse(tooMany.get());
+        assertEquals(10, sent.get());
+        assertEquals(1, completions.get());
+        assertTrue(queue.isCompleted());
+    }
+}